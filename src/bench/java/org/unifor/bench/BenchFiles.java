@@ -0,0 +1,34 @@
+package org.unifor.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Limpeza dos dados que os benchmarks deixam no diretório de trabalho.
+ */
+final class BenchFiles {
+
+    private BenchFiles() {
+    }
+
+    /**
+     * Apaga o diretório e tudo o que houver dentro, se existir.
+     * Usa só NIO: o java.io.File ignora o user.dir que o {@link JmhRunner} passa às JVMs de medição.
+     */
+    static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
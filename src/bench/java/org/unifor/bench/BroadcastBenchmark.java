@@ -0,0 +1,165 @@
+package org.unifor.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.unifor.p2p.Frame;
+import org.unifor.p2p.Log;
+import org.unifor.p2p.Peer;
+import org.unifor.p2p.PeerConfig;
+import org.unifor.p2p.PeerIdentity;
+import org.unifor.p2p.Transport;
+import org.unifor.p2p.TransportConnection;
+import org.unifor.p2p.TransportListener;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Peer#broadcastMessage} com 1 a 500 conexões de loopback: o tempo até
+ * a mensagem chegar a todas elas (fan-out, gravação no histórico de cada
+ * conversa, fila de saída e socket).
+ *
+ * As conexões são todas abertas por um único transporte "sumidouro", que
+ * responde ao handshake como um peer sem histórico e só conta as mensagens;
+ * assim 500 conexões não custam 500 nós completos.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final String MESSAGE = "mensagem de teste do benchmark de broadcast";
+    private static final String USER_NAME = "bench-broadcast";
+    private static final int BURST = 100;
+    // Marcador da versão 2 do protocolo binário no fim da linha "/id:"
+    private static final String PROTOCOL_MARKER = String.valueOf((char) 2);
+
+    @Param({"1", "10", "100", "500"})
+    public int connections;
+
+    @Param({"nio"})
+    public String transport;
+
+    private Peer peer;
+    private Transport sink;
+    private final AtomicLong delivered = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        PeerConfig config = new PeerConfig()
+                .setTransport(transport)
+                .setHistoryReplay(0)
+                .setMaxAutoConnections(0);
+        peer = new Peer(USER_NAME, port, config, message -> {
+        });
+        peer.start();
+
+        sink = Transport.create(transport, new SinkListener());
+        sink.start();
+        for (int i = 0; i < connections; i++) {
+            String id = UUID.randomUUID().toString();
+            TransportConnection conn = sink.connect("127.0.0.1", port);
+            conn.attach(id);
+            conn.send(Frame.line("/id:" + id + PROTOCOL_MARKER));
+        }
+        awaitAllReady();
+    }
+
+    /**
+     * Uma conexão só entra no envio ao vivo depois do HELLO; reenvia até todas receberem.
+     */
+    private void awaitAllReady() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            long before = delivered.get();
+            peer.broadcastMessage("aquecimento");
+            Thread.sleep(100);
+            if (delivered.get() - before == connections) return;
+        }
+        throw new IllegalStateException("Conexões não ficaram prontas: " + peer.getConnectionStats().size());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+        peer.close();
+        // O histórico de cada conversa com o sumidouro não serve para a próxima rodada
+        BenchFiles.deleteTree(Paths.get("chat_history", PeerIdentity.getPeerId(USER_NAME)));
+    }
+
+    @Benchmark
+    public void broadcast() {
+        long target = delivered.get() + connections;
+        peer.broadcastMessage(MESSAGE);
+        await(target);
+    }
+
+    /**
+     * Rajada: mede a vazão do fan-out quando as mensagens se acumulam na fila.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void broadcastBurst() {
+        long target = delivered.get() + (long) BURST * connections;
+        for (int i = 0; i < BURST; i++) {
+            peer.broadcastMessage(MESSAGE);
+        }
+        await(target);
+    }
+
+    private void await(long target) {
+        while (delivered.get() < target) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private final class SinkListener implements TransportListener {
+        @Override
+        public void onOpen(TransportConnection connection, boolean inbound) {
+        }
+
+        @Override
+        public void onFrame(TransportConnection connection, Frame frame) throws IOException {
+            switch (frame.type()) {
+                case LINE -> {
+                    if (frame.text().startsWith("/id:")) {
+                        // Sem outbox (-1): o peer manda CHAT direto, sem gossip nem sincronização
+                        connection.upgrade();
+                        connection.send(Frame.hello(2, (String) connection.attachment(), "sumidouro", -1, -1));
+                    }
+                }
+                case CHAT -> delivered.incrementAndGet();
+                default -> {
+                }
+            }
+        }
+
+        @Override
+        public void onClose(TransportConnection connection) {
+        }
+    }
+}
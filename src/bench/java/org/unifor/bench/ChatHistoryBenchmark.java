@@ -0,0 +1,138 @@
+package org.unifor.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.unifor.p2p.ChatHistory;
+import org.unifor.p2p.Log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gravação e leitura do histórico em disco: vazão de {@link ChatHistory#saveMessage}
+ * por política de fsync e tempo de {@link ChatHistory#loadHistory} (e da última
+ * página) em conversas de 10 mil a 10 milhões de mensagens.
+ *
+ * As conversas grandes são geradas uma vez e reaproveitadas nas rodadas
+ * seguintes (em target/jmh/work/chat_history); a de 10 milhões ocupa ~700 MB.
+ */
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ChatHistoryBenchmark {
+
+    private static final int BATCH = 1000;
+
+    private static String message(long i) {
+        return "[PeerA]: mensagem " + i + " do benchmark de histórico";
+    }
+
+    @State(Scope.Benchmark)
+    public static class Save {
+        // os = sem fsync explícito; interval = fsync a cada segundo; always = fsync antes de cada retorno
+        @Param({"os", "interval"})
+        public String durability;
+
+        ChatHistory history;
+        String localPeerId;
+        String remotePeerId;
+        long next;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Log.setLevel(Log.Level.WARN);
+            localPeerId = "bench-save-" + UUID.randomUUID();
+            remotePeerId = UUID.randomUUID().toString();
+            ChatHistory.Settings settings = new ChatHistory.Settings(ChatHistory.Settings.DEFAULT.segmentBytes(),
+                    ChatHistory.Durability.parse(durability), ChatHistory.Settings.DEFAULT.syncIntervalMillis());
+            history = ChatHistory.open(localPeerId, settings);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            history.close();
+            BenchFiles.deleteTree(Paths.get("chat_history", localPeerId));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Load {
+        @Param({"10000", "1000000", "10000000"})
+        public int lines;
+
+        ChatHistory history;
+        final String remotePeerId = "00000000-0000-4000-8000-00000000be4c";
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Log.setLevel(Log.Level.WARN);
+            String localPeerId = "bench-load-" + lines;
+            Path done = Paths.get("chat_history", localPeerId + ".completo");
+            if (!Files.exists(done)) {
+                BenchFiles.deleteTree(Paths.get("chat_history", localPeerId));
+                ChatHistory writer = ChatHistory.open(localPeerId,
+                        new ChatHistory.Settings(ChatHistory.Settings.DEFAULT.segmentBytes(), ChatHistory.Durability.OS,
+                                ChatHistory.Settings.DEFAULT.syncIntervalMillis()));
+                for (int i = 0; i < lines; i++) {
+                    writer.saveMessage(remotePeerId, message(i));
+                    // A fila da thread de escrita não tem limite: esvazia a cada lote
+                    if (i % 100_000 == 99_999) writer.flush();
+                }
+                writer.close();
+                Files.writeString(done, Integer.toString(lines));
+            }
+            history = ChatHistory.open(localPeerId);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            history.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void saveMessage(Save s) {
+        for (int i = 0; i < BATCH; i++) {
+            s.history.saveMessage(s.remotePeerId, message(s.next++));
+        }
+        // Conta só o que já está no log, e não o que ficou na fila
+        s.history.flush();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<String> loadHistory(Load s) {
+        return s.history.loadHistory(s.remotePeerId);
+    }
+
+    /**
+     * A página que a UI pede ao abrir a conversa: deve custar o mesmo em qualquer tamanho.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ChatHistory.HistoryPage loadTail(Load s) {
+        return s.history.loadTail(s.remotePeerId, 50);
+    }
+}
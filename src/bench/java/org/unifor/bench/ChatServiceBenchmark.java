@@ -0,0 +1,109 @@
+package org.unifor.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.unifor.service.ChatService;
+import org.unifor.service.MessageBuffer;
+
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ChatService} com as threads do Peer gravando mensagens
+ * ({@link ChatService#onMessageReceived}) enquanto requisições HTTP leem o
+ * buffer ({@link ChatService#getMessages()} e a página a partir de um seq).
+ *
+ * O serviço sobe num contexto Spring mínimo, com as mesmas propriedades e
+ * valores padrão da aplicação, só com a porta P2P livre e o log em WARN.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatServiceBenchmark {
+
+    private static final String MESSAGE = "[PeerA]: mensagem de teste do benchmark do serviço";
+
+    private AnnotationConfigApplicationContext context;
+    private ChatService service;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("bench", Map.of(
+                "p2p.username", "bench-service",
+                "p2p.port", port,
+                "p2p.log.level", "WARN")));
+        context.register(ChatService.class);
+        context.refresh();
+        service = context.getBean(ChatService.class);
+        // Começa com o buffer cheio, como numa conversa em andamento
+        for (int i = 0; i < service.getMessagesCapacity(); i++) {
+            service.onMessageReceived(MESSAGE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @Group("concorrente")
+    @GroupThreads(2)
+    public void write() {
+        service.onMessageReceived(MESSAGE);
+    }
+
+    /**
+     * GET /messages sem cursor: a janela inteira.
+     */
+    @Benchmark
+    @Group("concorrente")
+    @GroupThreads(2)
+    public List<String> readAll() {
+        return service.getMessages();
+    }
+
+    /**
+     * Cursor de um navegador em GET /messages?since=.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        long next;
+    }
+
+    /**
+     * GET /messages?since=: só o que chegou desde a última leitura, como no polling da UI.
+     */
+    @Benchmark
+    @Group("concorrente")
+    @GroupThreads(4)
+    public List<MessageBuffer.Entry> readSince(Cursor cursor) {
+        List<MessageBuffer.Entry> entries = service.getMessages(cursor.next, service.getMessagesCapacity());
+        if (!entries.isEmpty()) cursor.next = entries.get(entries.size() - 1).seq() + 1;
+        return entries;
+    }
+}
@@ -0,0 +1,359 @@
+package org.unifor.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.unifor.p2p.GossipRouter;
+import org.unifor.p2p.Log;
+import org.unifor.p2p.Membership;
+import org.unifor.p2p.Metrics;
+import org.unifor.p2p.Peer;
+import org.unifor.p2p.PeerConfig;
+import org.unifor.p2p.PeerConnectionStats;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulador de cluster: sobe N {@link Peer} nesta JVM, em loopback, cada um
+ * com suas portas e seu diretório de dados, liga-os numa topologia, gera
+ * mensagens a uma taxa fixa e mede a entrega ponta a ponta.
+ *
+ * O relatório (JSON) traz latência de entrega (p50/p90/p99/p999), vazão,
+ * perda, duplicatas e memória/threads por peer.
+ *
+ * Uso: mvn -Pbench test-compile exec:exec -Dbench.main=org.unifor.bench.ClusterSimulator \
+ *   -Dbench.args="--peers=20 --topology=random --degree=3 --rate=200 --duration=30"
+ *
+ * Opções (padrão entre parênteses):
+ * <ul>
+ *   <li>--peers (10), --topology: full, ring, star ou random (random), --degree: grau médio no random (3)</li>
+ *   <li>--rate: mensagens/s no cluster todo (100), --duration: segundos enviando (10),
+ *       --size: bytes por mensagem (64), --drain: segundos esperando as últimas entregas (5)</li>
+ *   <li>--transport (nio), --ttl e --fanout do gossip (os de {@link GossipRouter.Settings#DEFAULT})</li>
+ *   <li>--order-window: espera de ordenação em ms (0, para medir só a rede; ver p2p.order.window-ms)</li>
+ *   <li>--multicast: "off" ou "grupo:porta" (off: os nós se conhecem só pelas conexões)</li>
+ *   <li>--dir: raiz dos dados (target/cluster/&lt;data&gt;, apagada no fim sem --keep=true),
+ *       --out: arquivo do relatório (target/cluster/relatorio-&lt;data&gt;.json), --seed (1)</li>
+ * </ul>
+ */
+public class ClusterSimulator {
+
+    private static final String PREFIX = "sim:";
+
+    /**
+     * Entregas vistas por um peer.
+     */
+    private static final class Node {
+        final int index;
+        final int port;
+        final Set<Long> seen = ConcurrentHashMap.newKeySet();
+        final AtomicLong duplicates = new AtomicLong();
+        final Metrics.Histogram latency = new Metrics.Histogram();
+        Peer peer;
+
+        Node(int index, int port) {
+            this.index = index;
+            this.port = port;
+        }
+    }
+
+    public record Latency(long count, double p50, double p90, double p99, double p999, double mean) {
+        static Latency of(Metrics.Histogram h) {
+            long count = h.count();
+            return new Latency(count, millis(h.quantile(0.5)), millis(h.quantile(0.9)), millis(h.quantile(0.99)),
+                    millis(h.quantile(0.999)), count == 0 ? 0 : millis(h.sum() / count));
+        }
+    }
+
+    public record PeerReport(String name, int port, int connections, long sent, long received, long duplicates,
+                             double latencyP99Millis, long outboundDropped, long gossipRelayed) {
+    }
+
+    public record Memory(long heapBeforeBytes, long heapIdleBytes, long heapAfterBytes, long idleBytesPerPeer,
+                         int threadsBefore, int threadsIdle, double threadsPerPeer) {
+    }
+
+    public record Report(Map<String, String> config, int peers, int links, long sent, long expectedDeliveries,
+                         long delivered, long duplicates, double loss, double offeredRate,
+                         double deliveriesPerSecond, double durationSeconds, Latency latencyMillis,
+                         Memory memory, List<PeerReport> perPeer) {
+    }
+
+    private final Map<String, String> options;
+    private final List<Node> nodes = new ArrayList<>();
+    private final Metrics.Histogram latency = new Metrics.Histogram();
+    private final AtomicLong lastDelivery = new AtomicLong();
+    private final long[] sentBy;
+
+    private ClusterSimulator(Map<String, String> options) {
+        this.options = options;
+        this.sentBy = new long[intOption("peers", 10)];
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Opção inválida: " + arg + " (use --nome=valor)");
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new ClusterSimulator(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int peers = intOption("peers", 10);
+        String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        Path root = Paths.get(option("dir", "target/cluster/" + stamp)).toAbsolutePath();
+        Path out = Paths.get(option("out", "target/cluster/relatorio-" + stamp + ".json")).toAbsolutePath();
+        Log.setLevel(Log.Level.parse(option("log", "WARN")));
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        startPeers(peers, root);
+        int links = connect(topology(peers));
+        awaitReady();
+        long heapIdle = usedHeap();
+        int threadsIdle = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.printf("%d peers, %d conexões (%s); gerando carga%n", peers, links, option("topology", "random"));
+
+        long start = System.nanoTime();
+        long sent = drive();
+        long expected = sent * (peers - 1);
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(intOption("drain", 5));
+        while (delivered() < expected && System.nanoTime() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        long heapAfter = usedHeap();
+
+        long delivered = delivered();
+        long duplicates = nodes.stream().mapToLong(n -> n.duplicates.get()).sum();
+        double seconds = Math.max(1, lastDelivery.get() - start) / 1e9;
+        Memory memory = new Memory(heapBefore, heapIdle, heapAfter, (heapIdle - heapBefore) / peers, threadsBefore,
+                threadsIdle, (double) (threadsIdle - threadsBefore) / peers);
+        Report report = new Report(options, peers, links, sent, expected, delivered, duplicates,
+                expected == 0 ? 0 : 1 - (double) delivered / expected, doubleOption("rate", 100),
+                delivered / seconds, seconds, Latency.of(latency), memory, perPeer());
+
+        for (Node n : nodes) {
+            n.peer.close();
+        }
+        if (!Boolean.parseBoolean(option("keep", "false"))) {
+            BenchFiles.deleteTree(root);
+        }
+        Files.createDirectories(out.getParent());
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(out.toFile(), report);
+        System.out.printf("enviadas=%d entregues=%d/%d perda=%.4f p50=%.2fms p99=%.2fms vazão=%.0f entregas/s%n",
+                sent, delivered, expected, report.loss(), report.latencyMillis().p50(), report.latencyMillis().p99(),
+                report.deliveriesPerSecond());
+        System.out.println("Relatório em " + out);
+    }
+
+    // --- Montagem do cluster ---
+
+    private void startPeers(int peers, Path root) throws IOException {
+        GossipRouter.Settings gossip = GossipRouter.Settings.DEFAULT;
+        gossip = new GossipRouter.Settings(intOption("ttl", gossip.ttl()), intOption("fanout", gossip.fanout()),
+                gossip.dedupCapacity(), gossip.dedupWindowMillis());
+        Membership.Settings membership = Membership.Settings.DEFAULT;
+        String multicast = option("multicast", "off");
+        String group = multicast.equals("off") ? "" : multicast.substring(0, multicast.lastIndexOf(':'));
+        int groupPort = multicast.equals("off") ? 0 : Integer.parseInt(multicast.substring(multicast.lastIndexOf(':') + 1));
+        membership = new Membership.Settings(group, groupPort, membership.announceIntervalMillis(),
+                membership.probeIntervalMillis(), membership.probeTimeoutMillis(), membership.indirectProbes(),
+                membership.suspectTimeoutMillis());
+
+        for (int i = 0; i < peers; i++) {
+            Node node = new Node(i, freePort());
+            PeerConfig config = new PeerConfig()
+                    .setTransport(option("transport", "nio"))
+                    .setHistoryReplay(0)
+                    // A topologia é só a que o simulador monta
+                    .setMaxAutoConnections(0)
+                    .setGossip(gossip)
+                    .setOrderWindowMillis(intOption("order-window", 0))
+                    .setMembership(membership)
+                    .setDataDir(root.resolve("peer-" + i));
+            node.peer = new Peer("sim-" + i, node.port, config, message -> received(node, message));
+            node.peer.start();
+            nodes.add(node);
+        }
+    }
+
+    private List<int[]> topology(int peers) {
+        String kind = option("topology", "random");
+        Set<List<Integer>> edges = new LinkedHashSet<>();
+        switch (kind) {
+            case "full" -> {
+                for (int i = 0; i < peers; i++) {
+                    for (int j = i + 1; j < peers; j++) edges.add(List.of(i, j));
+                }
+            }
+            case "ring" -> {
+                for (int i = 0; i < peers && peers > 1; i++) edges.add(edge(i, (i + 1) % peers));
+            }
+            case "star" -> {
+                for (int i = 1; i < peers; i++) edges.add(List.of(0, i));
+            }
+            case "random" -> {
+                // Um anel garante que o grafo é conexo; o resto dos vizinhos é sorteado
+                Random random = new Random(intOption("seed", 1));
+                int degree = Math.min(intOption("degree", 3), peers - 1);
+                for (int i = 0; i < peers && peers > 1; i++) edges.add(edge(i, (i + 1) % peers));
+                while (edges.size() < (long) peers * degree / 2) {
+                    int i = random.nextInt(peers);
+                    int j = random.nextInt(peers);
+                    if (i != j) edges.add(edge(i, j));
+                }
+            }
+            default -> throw new IllegalArgumentException("Topologia desconhecida: " + kind);
+        }
+        List<int[]> out = new ArrayList<>();
+        for (List<Integer> e : edges) out.add(new int[]{e.get(0), e.get(1)});
+        return out;
+    }
+
+    private static List<Integer> edge(int a, int b) {
+        return a < b ? List.of(a, b) : List.of(b, a);
+    }
+
+    private int connect(List<int[]> edges) {
+        List<CompletableFuture<String>> pending = new ArrayList<>();
+        for (int[] e : edges) {
+            pending.add(nodes.get(e[0]).peer.connectAsync("127.0.0.1", nodes.get(e[1]).port));
+        }
+        int links = 0;
+        for (CompletableFuture<String> f : pending) {
+            try {
+                f.join();
+                links++;
+            } catch (RuntimeException e) {
+                System.err.println("[ERRO] Falha ao conectar: " + e.getMessage());
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Espera cada peer trocar o HELLO com todos os vizinhos: até lá ele não recebe o envio ao vivo.
+     */
+    private void awaitReady() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            boolean ready = true;
+            for (Node n : nodes) {
+                for (PeerConnectionStats c : n.peer.getConnectionStats()) {
+                    if (c.userName() == null) ready = false;
+                }
+            }
+            if (ready) break;
+            Thread.sleep(50);
+        }
+        // O HELLO chega antes de a conexão entrar no envio ao vivo (depois da sincronização)
+        Thread.sleep(500);
+    }
+
+    // --- Carga ---
+
+    private long drive() {
+        double rate = doubleOption("rate", 100);
+        long durationNanos = TimeUnit.SECONDS.toNanos(intOption("duration", 10));
+        String padding = "x".repeat(Math.max(0, intOption("size", 64) - 40));
+        long interval = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long next = start;
+        long sent = 0;
+        while (next - start < durationNanos) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            int sender = (int) (sent % nodes.size());
+            long n = sentBy[sender]++;
+            nodes.get(sender).peer.broadcastMessage(PREFIX + sender + ":" + n + ":" + System.nanoTime() + ":" + padding);
+            sent++;
+            next += interval;
+        }
+        return sent;
+    }
+
+    private void received(Node node, String message) {
+        int at = message.indexOf("]: " + PREFIX);
+        if (at < 0) return; // mensagens do sistema
+        long now = System.nanoTime();
+        String[] parts = message.substring(at + 3 + PREFIX.length()).split(":", 4);
+        int origin = Integer.parseInt(parts[0]);
+        if (origin == node.index) return; // o broadcast também exibe a mensagem para quem enviou
+        long key = ((long) origin << 40) | Long.parseLong(parts[1]);
+        if (!node.seen.add(key)) {
+            node.duplicates.incrementAndGet();
+            return;
+        }
+        long elapsed = now - Long.parseLong(parts[2]);
+        latency.record(elapsed);
+        node.latency.record(elapsed);
+        lastDelivery.accumulateAndGet(now, Math::max);
+    }
+
+    private long delivered() {
+        return nodes.stream().mapToLong(n -> n.seen.size()).sum();
+    }
+
+    private List<PeerReport> perPeer() {
+        List<PeerReport> out = new ArrayList<>();
+        for (Node n : nodes) {
+            List<PeerConnectionStats> connections = n.peer.getConnectionStats();
+            long dropped = connections.stream().mapToLong(c -> c.outbound().dropped()).sum();
+            out.add(new PeerReport("sim-" + n.index, n.port, connections.size(), sentBy[n.index], n.seen.size(),
+                    n.duplicates.get(), millis(n.latency.quantile(0.99)), dropped,
+                    n.peer.getGossipStats().relayed()));
+        }
+        return out;
+    }
+
+    // --- Utilitários ---
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return Double.parseDouble(option(name, Double.toString(defaultValue)));
+    }
+}
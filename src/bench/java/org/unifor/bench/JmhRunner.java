@@ -0,0 +1,48 @@
+package org.unifor.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Roda os benchmarks JMH e grava o resultado em JSON, um arquivo por execução
+ * ({@code target/jmh/resultado-<data>.json}), para comparar as rodadas entre si.
+ *
+ * Os argumentos são os mesmos da linha de comando do JMH, por exemplo:
+ * <pre>
+ * mvn -Pbench test-compile exec:exec -Dbench.main=org.unifor.bench.JmhRunner -Dbench.args="Broadcast -p connections=1,100"
+ * mvn -Pbench test-compile exec:exec -Dbench.main=org.unifor.bench.JmhRunner -Dbench.args="ChatHistory -f 1 -wi 2 -i 3"
+ * </pre>
+ * Sem argumentos roda todos. As JVMs de medição rodam com o diretório de
+ * trabalho em {@code target/jmh/work}: {@code peer_id.txt} e {@code chat_history/}
+ * dos nós de benchmark ficam lá, longe dos dados da aplicação.
+ */
+public class JmhRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        Path dir = Paths.get("target", "jmh").toAbsolutePath();
+        Path work = dir.resolve("work");
+        Files.createDirectories(work);
+
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cli);
+        builder.jvmArgsPrepend("-Duser.dir=" + work);
+        if (!cli.getResult().hasValue()) {
+            String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+            builder.resultFormat(ResultFormatType.JSON);
+            builder.result(dir.resolve("resultado-" + stamp + ".json").toString());
+        }
+        Options options = builder.build();
+        new Runner(options).run();
+        System.out.println("Resultados em " + options.getResult().orElse("(padrão do JMH)"));
+    }
+}
@@ -0,0 +1,86 @@
+package org.unifor.bench;
+
+import org.unifor.service.MessageBuffer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Custo de adicionar mensagens ao buffer da UI: o buffer circular mantém o mesmo
+ * custo por mensagem até 1M, enquanto a CopyOnWriteArrayList antiga copia o
+ * array inteiro a cada inserção (custo cresce com o tamanho).
+ *
+ * Uso: mvn -Pbench test-compile exec:exec -Dbench.main=org.unifor.bench.MessageBufferBenchmark -Dbench.args="1000000 4"
+ */
+public class MessageBufferBenchmark {
+
+    private static final String MESSAGE = "[PeerA]: mensagem de teste do benchmark do buffer";
+    private static final int WINDOW = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        // Aquecimento
+        fill(new MessageBuffer(4096), count);
+
+        System.out.printf("buffer circular (capacidade 4096), %d mensagens, 1 thread%n", count);
+        MessageBuffer buffer = new MessageBuffer(4096);
+        for (int done = 0; done < count; done += WINDOW) {
+            long nanos = fill(buffer, WINDOW);
+            System.out.printf("  mensagens %,9d..%,9d %8.1f ns/msg%n", done + 1, done + WINDOW, (double) nanos / WINDOW);
+        }
+
+        System.out.printf("buffer circular, %d mensagens, %d threads%n", count, threads);
+        long nanos = fillConcurrently(new MessageBuffer(4096), count, threads);
+        System.out.printf("  total %8.1f ns/msg %,14.0f msg/s%n", (double) nanos / count, count / (nanos / 1e9));
+
+        // A lista antiga é quadrática; 1M inserções levariam horas, então paramos em 100k
+        int listCount = Math.min(count, WINDOW);
+        System.out.printf("CopyOnWriteArrayList, %d mensagens, 1 thread%n", listCount);
+        List<String> list = new CopyOnWriteArrayList<>();
+        int step = listCount / 5;
+        for (int done = 0; done < listCount; done += step) {
+            long start = System.nanoTime();
+            for (int i = 0; i < step; i++) {
+                list.add(MESSAGE);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("  mensagens %,9d..%,9d %8.1f ns/msg%n", done + 1, done + step, (double) elapsed / step);
+        }
+    }
+
+    private static long fill(MessageBuffer buffer, int n) {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            buffer.add(MESSAGE);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long fillConcurrently(MessageBuffer buffer, int count, int threads) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                fill(buffer, count / threads);
+            });
+            workers[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,115 @@
+package org.unifor.bench;
+
+import org.unifor.p2p.Frame;
+import org.unifor.p2p.Transport;
+import org.unifor.p2p.TransportConnection;
+import org.unifor.p2p.TransportListener;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark de loopback do transporte: abre de 10 a 1.000 conexões contra
+ * um servidor local, troca uma linha em cada uma e mede threads vivas e RSS.
+ *
+ * Uso: mvn -Pbench test-compile exec:exec -Dbench.args=nio
+ * (ou "virtual"). Com 1.000 conexões são ~2.000 descritores: confira o "ulimit -n".
+ */
+public class TransportLoopbackBenchmark {
+
+    private static final int[] STEPS = {10, 100, 250, 500, 1000};
+
+    public static void main(String[] args) throws Exception {
+        String kind = args.length > 0 ? args[0] : "nio";
+        List<TransportConnection> clients = new ArrayList<>();
+
+        EchoListener serverListener = new EchoListener(true);
+        Transport server = Transport.create(kind, serverListener);
+        server.bind(0);
+        server.start();
+
+        EchoListener clientListener = new EchoListener(false);
+        Transport client = Transport.create(kind, clientListener);
+        client.start();
+
+        System.out.printf("transporte=%s%n", kind);
+        System.out.printf("%12s %10s %12s %12s%n", "conexões", "threads", "rss(KB)", "heap(KB)");
+        System.out.printf("%12d %10d %12d %12d%n", 0, threadCount(), rssKb(), heapKb());
+
+        for (int target : STEPS) {
+            int toOpen = target - clients.size();
+            CountDownLatch echoes = new CountDownLatch(toOpen);
+            clientListener.echoes = echoes;
+            for (int i = 0; i < toOpen; i++) {
+                TransportConnection conn = client.connect("127.0.0.1", server.localPort());
+                clients.add(conn);
+                conn.send(Frame.line("ping " + clients.size()));
+            }
+            if (!echoes.await(30, TimeUnit.SECONDS)) {
+                System.err.println("[ERRO] Timeout esperando ecos com " + target + " conexões");
+            }
+            System.gc();
+            Thread.sleep(200);
+            System.out.printf("%12d %10d %12d %12d%n", target, threadCount(), rssKb(), heapKb());
+        }
+
+        clients.forEach(TransportConnection::close);
+        client.close();
+        server.close();
+        System.exit(0);
+    }
+
+    private static int threadCount() {
+        // Virtual threads não aparecem aqui, só as threads de plataforma (carriers incluídos)
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    private static long heapKb() {
+        Runtime rt = Runtime.getRuntime();
+        return (rt.totalMemory() - rt.freeMemory()) / 1024;
+    }
+
+    private static long rssKb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+        } catch (Exception e) {
+            // Fora do Linux não há /proc; o RSS fica como -1
+        }
+        return -1;
+    }
+
+    private static final class EchoListener implements TransportListener {
+        private final boolean echo;
+        volatile CountDownLatch echoes;
+
+        EchoListener(boolean echo) {
+            this.echo = echo;
+        }
+
+        @Override
+        public void onOpen(TransportConnection connection, boolean inbound) {
+        }
+
+        @Override
+        public void onFrame(TransportConnection connection, Frame frame) {
+            if (echo) {
+                connection.send(frame);
+            } else {
+                echoes.countDown();
+            }
+        }
+
+        @Override
+        public void onClose(TransportConnection connection) {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.unifor.bench;
+
+import org.unifor.p2p.Frame;
+import org.unifor.p2p.OutboundQueue;
+import org.unifor.p2p.Transport;
+import org.unifor.p2p.TransportConnection;
+import org.unifor.p2p.TransportListener;
+
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mensagens/s em uma única conexão de loopback: o envio antigo (PrintWriter
+ * com autoflush, uma syscall por mensagem) contra frames binários agrupados.
+ *
+ * Uso: mvn -Pbench test-compile exec:exec -Dbench.main=org.unifor.bench.WireProtocolBenchmark -Dbench.args="nio 1000000"
+ */
+public class WireProtocolBenchmark {
+
+    private static final String MESSAGE = "[PeerA]: mensagem de teste do benchmark de protocolo";
+
+    public static void main(String[] args) throws Exception {
+        String kind = args.length > 0 ? args[0] : "nio";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        System.out.printf("transporte=%s mensagens=%d%n", kind, count);
+        report("linhas (PrintWriter autoflush)", count, runLegacy(kind, count));
+        report("frames binários agrupados", count, runFramed(kind, count));
+        System.exit(0);
+    }
+
+    private static long runLegacy(String kind, int count) throws Exception {
+        CountingListener listener = new CountingListener(count, false);
+        Transport server = Transport.create(kind, listener);
+        server.bind(0);
+        server.start();
+        try (Socket socket = new Socket("127.0.0.1", server.localPort());
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                out.println(MESSAGE);
+            }
+            listener.done.await(5, TimeUnit.MINUTES);
+            return System.nanoTime() - start;
+        } finally {
+            server.close();
+        }
+    }
+
+    private static long runFramed(String kind, int count) throws Exception {
+        CountingListener listener = new CountingListener(count, true);
+        Transport server = Transport.create(kind, listener);
+        server.bind(0);
+        server.start();
+        // Com BLOCK o produtor acompanha o ritmo do socket em vez de descartar frames
+        OutboundQueue.Settings queues = new OutboundQueue.Settings(1024, OutboundQueue.OverflowPolicy.BLOCK, 60_000);
+        Transport client = Transport.create(kind, new CountingListener(0, true), queues);
+        client.start();
+        TransportConnection conn = client.connect("127.0.0.1", server.localPort());
+        conn.upgrade();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            conn.send(Frame.chat(i, MESSAGE));
+        }
+        listener.done.await(5, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        conn.close();
+        client.close();
+        server.close();
+        return elapsed;
+    }
+
+    private static void report(String name, int count, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-34s %8.2f s %,14.0f msg/s%n", name, seconds, count / seconds);
+    }
+
+    private static final class CountingListener implements TransportListener {
+        private final boolean framed;
+        private int received;
+        final CountDownLatch done = new CountDownLatch(1);
+        private final int expected;
+
+        CountingListener(int expected, boolean framed) {
+            this.expected = expected;
+            this.framed = framed;
+        }
+
+        @Override
+        public void onOpen(TransportConnection connection, boolean inbound) {
+            if (framed) connection.upgrade();
+        }
+
+        @Override
+        public void onFrame(TransportConnection connection, Frame frame) {
+            if (++received == expected) done.countDown();
+        }
+
+        @Override
+        public void onClose(TransportConnection connection) {
+        }
+    }
+}
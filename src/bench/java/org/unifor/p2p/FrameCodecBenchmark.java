@@ -0,0 +1,132 @@
+package org.unifor.p2p;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import java.util.zip.DataFormatException;
+
+/**
+ * Codificação e decodificação das mensagens no fio, sem socket: o que cada
+ * conexão gasta de CPU por mensagem antes e depois do transporte.
+ *
+ * Fica no pacote p2p (na árvore de benchmarks) para usar o {@link WireCodec},
+ * que é interno ao transporte.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    // Frames por buffer nos benchmarks de decodificação (uma leitura do socket com vários frames)
+    private static final int FRAMES = 64;
+    private static final String ORIGIN = "3f2a9c1e-0000-4000-8000-000000000000";
+
+    @Param({"32", "256", "4096"})
+    public int messageLength;
+
+    private String message;
+    private ByteBuffer out;
+    private ByteBuffer chatStream;
+    private ByteBuffer lineStream;
+    private Frame syncBatch;
+    private List<ChatHistory.SequencedMessage> syncMessages;
+    private long seq;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder("[PeerA]: ");
+        while (sb.length() < messageLength) {
+            sb.append("mensagem de teste ");
+        }
+        message = sb.substring(0, messageLength);
+        out = ByteBuffer.allocate(2 * messageLength + 256);
+
+        chatStream = encodeAll(i -> Frame.chat(i, message));
+        lineStream = encodeAll(i -> Frame.line(message));
+
+        syncMessages = new ArrayList<>();
+        for (int i = 1; i <= 256; i++) {
+            syncMessages.add(new ChatHistory.SequencedMessage(i, message));
+        }
+        syncBatch = Frame.syncData(syncMessages);
+    }
+
+    private ByteBuffer encodeAll(LongFunction<Frame> factory) {
+        List<Frame> frames = new ArrayList<>();
+        int size = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            Frame f = factory.apply(i);
+            frames.add(f);
+            size += f.encodedLength();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        frames.forEach(f -> f.writeTo(buf));
+        return buf.flip();
+    }
+
+    @Benchmark
+    public int encodeChat() {
+        out.clear();
+        Frame.chat(++seq, message).writeTo(out);
+        return out.position();
+    }
+
+    @Benchmark
+    public int encodeGossip() {
+        out.clear();
+        Frame.gossip(ORIGIN, ++seq, 3, 0, System.currentTimeMillis(), message).writeTo(out);
+        return out.position();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeChat(Blackhole bh) throws IOException {
+        WireCodec codec = new WireCodec();
+        codec.upgrade();
+        codec.decode(chatStream.duplicate(), frame -> bh.consume(frame.text()));
+    }
+
+    /**
+     * Protocolo de linhas (handshake e peers legados), byte a byte até o '\n'.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeLines(Blackhole bh) throws IOException {
+        new WireCodec().decode(lineStream.duplicate(), frame -> bh.consume(frame.text()));
+    }
+
+    /**
+     * Lote de sincronização (256 mensagens comprimidas com Deflate), por mensagem.
+     */
+    @Benchmark
+    @OperationsPerInvocation(256)
+    public Frame encodeSyncBatch() {
+        return Frame.syncData(syncMessages);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(256)
+    public List<ChatHistory.SequencedMessage> decodeSyncBatch() throws DataFormatException, IOException {
+        return syncBatch.syncMessages();
+    }
+}
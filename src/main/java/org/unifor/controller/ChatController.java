@@ -1,16 +1,29 @@
 package org.unifor.controller;
 
+import org.unifor.p2p.FileTransfer;
+import org.unifor.p2p.GossipRouter;
+import org.unifor.p2p.Membership;
+import org.unifor.p2p.PeerConnectionStats;
+import org.unifor.p2p.RoomRouter;
 import org.unifor.service.ChatService;
+import org.unifor.service.MessageBuffer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes; // IMPORTANTE: Adicionar este import
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 @Controller
 public class ChatController {
@@ -19,11 +32,19 @@ public class ChatController {
     private ChatService chatService;
 
     /**
-     * Carrega a página principal do chat.
+     * Carrega a página principal do chat, na sala pedida (a padrão se ela não estiver aberta).
      */
     @GetMapping("/")
-    public String chatPage(Model model) {
-        model.addAttribute("messages", chatService.getMessages());
+    public String chatPage(@RequestParam(defaultValue = RoomRouter.DEFAULT_ROOM) String room, Model model) {
+        List<String> rooms = chatService.getRoomNames();
+        if (!rooms.contains(room)) room = RoomRouter.DEFAULT_ROOM;
+        List<MessageBuffer.Entry> entries = chatService.getMessages(room, 0, chatService.getMessagesCapacity());
+        model.addAttribute("room", room);
+        model.addAttribute("rooms", rooms);
+        model.addAttribute("messages", entries);
+        // A página continua o stream a partir da última mensagem que já veio renderizada
+        model.addAttribute("lastSeq", entries.isEmpty() ? 0 : entries.get(entries.size() - 1).seq());
+        model.addAttribute("capacity", chatService.getMessagesCapacity());
         return "chat";
     }
 
@@ -31,20 +52,221 @@ public class ChatController {
      * Recebe uma nova mensagem enviada pelo formulário da página.
      */
     @PostMapping("/send")
-    public String sendMessage(@RequestParam String message) {
+    public String sendMessage(@RequestParam String message,
+                              @RequestParam(defaultValue = RoomRouter.DEFAULT_ROOM) String room,
+                              RedirectAttributes redirectAttributes) {
         if (message != null && !message.trim().isEmpty()) {
-            chatService.sendMessage(message);
+            try {
+                chatService.sendMessage(room, message);
+            } catch (IllegalArgumentException e) {
+                redirectAttributes.addFlashAttribute("feedbackMessage", "❌ " + e.getMessage());
+                redirectAttributes.addFlashAttribute("feedbackType", "error");
+            }
         }
-        return "redirect:/";
+        return "redirect:/?room=" + RoomRouter.normalize(room);
     }
 
     /**
-     * Endpoint para o AJAX Polling. Retorna a lista de mensagens em formato JSON.
+     * Endpoint para o AJAX Polling. Sem "since" retorna a lista de mensagens em
+     * formato JSON, como antes; com "since" retorna só as entradas {seq, message}
+     * a partir dessa sequência. O ETag identifica a sala, o cursor e a última mensagem
+     * devolvida, então uma nova consulta sem novidades recebe 304 sem corpo.
      */
     @GetMapping("/messages")
     @ResponseBody
-    public List<String> getMessages() {
-        return chatService.getMessages();
+    public ResponseEntity<?> getMessages(@RequestParam(required = false) Long since,
+                                         @RequestParam(defaultValue = RoomRouter.DEFAULT_ROOM) String room) {
+        long from = since == null ? 0 : since;
+        List<MessageBuffer.Entry> entries = chatService.getMessages(room, from, chatService.getMessagesCapacity());
+        long last = entries.isEmpty() ? from - 1 : entries.get(entries.size() - 1).seq();
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache())
+                .eTag(room + "-" + (since == null ? "all" : since) + "-" + last);
+        if (since != null) {
+            return response.body(entries);
+        }
+        return response.body(entries.stream().map(MessageBuffer.Entry::message).toList());
+    }
+
+    /**
+     * Push das mensagens novas (Server-Sent Events), sem polling. Ao reconectar,
+     * o navegador manda o Last-Event-ID e o stream continua de onde parou.
+     */
+    @GetMapping(path = "/messages/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @ResponseBody
+    public SseEmitter streamMessages(@RequestParam(required = false) Long since,
+                                     @RequestParam(defaultValue = RoomRouter.DEFAULT_ROOM) String room,
+                                     @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        long from = lastEventId != null ? lastEventId + 1 : since == null ? 0 : since;
+        return chatService.subscribe(room, from);
+    }
+
+    /**
+     * Salas assinadas e, por vizinho, as salas que ele anunciou (com a distância em saltos) em JSON.
+     */
+    @GetMapping("/rooms")
+    @ResponseBody
+    public RoomRouter.RoomsView getRooms() {
+        return chatService.getRooms();
+    }
+
+    /**
+     * Assina a sala e abre a página dela.
+     */
+    @PostMapping("/rooms/join")
+    public String joinRoom(@RequestParam String room, RedirectAttributes redirectAttributes) {
+        try {
+            chatService.joinRoom(room);
+            return "redirect:/?room=" + RoomRouter.normalize(room);
+        } catch (IllegalArgumentException e) {
+            redirectAttributes.addFlashAttribute("feedbackMessage", "❌ " + e.getMessage());
+            redirectAttributes.addFlashAttribute("feedbackType", "error");
+            return "redirect:/";
+        }
+    }
+
+    /**
+     * Sai da sala e volta para a sala padrão.
+     */
+    @PostMapping("/rooms/leave")
+    public String leaveRoom(@RequestParam String room, RedirectAttributes redirectAttributes) {
+        try {
+            chatService.leaveRoom(room);
+            redirectAttributes.addFlashAttribute("feedbackMessage", "Você saiu da sala #" + RoomRouter.normalize(room));
+            redirectAttributes.addFlashAttribute("feedbackType", "success");
+        } catch (IllegalArgumentException e) {
+            redirectAttributes.addFlashAttribute("feedbackMessage", "❌ " + e.getMessage());
+            redirectAttributes.addFlashAttribute("feedbackType", "error");
+        }
+        return "redirect:/";
+    }
+
+    /**
+     * Página do histórico com um peer, para carregar mensagens antigas sob demanda.
+     * Sem "before" retorna as últimas mensagens; para a página anterior, passe o
+     * "cursor" da resposta como "before". Um "peer" que não é UUID dá 400.
+     */
+    @GetMapping("/history")
+    @ResponseBody
+    public ResponseEntity<?> getHistory(@RequestParam String peer,
+                                        @RequestParam(required = false) Long before,
+                                        @RequestParam(defaultValue = "50") int limit) {
+        try {
+            return ResponseEntity.ok(chatService.loadHistoryPage(peer, before, Math.min(Math.max(limit, 1), 500)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("erro", String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * Busca textual no histórico. Sem "peer", procura em todas as conversas; um
+     * "peer" que não é UUID dá 400.
+     */
+    @GetMapping("/search")
+    @ResponseBody
+    public ResponseEntity<?> search(@RequestParam String q,
+                                    @RequestParam(required = false) String peer,
+                                    @RequestParam(defaultValue = "20") int limit) {
+        try {
+            return ResponseEntity.ok(chatService.search(q, peer == null || peer.isBlank() ? null : peer,
+                    Math.min(Math.max(limit, 1), 500)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("erro", String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * Apaga e refaz o índice de busca a partir dos logs do histórico.
+     */
+    @PostMapping("/search/rebuild")
+    @ResponseBody
+    public Map<String, Integer> rebuildSearchIndex() {
+        return Map.of("conversations", chatService.rebuildSearchIndex());
+    }
+
+    /**
+     * Estado de cada peer conectado (fila de saída, descartes, RTT) em JSON.
+     */
+    @GetMapping("/peers")
+    @ResponseBody
+    public List<PeerConnectionStats> getPeers() {
+        return chatService.getPeerStats();
+    }
+
+    /**
+     * Números do gossip (mensagens entregues, taxa de duplicatas, latência de propagação) em JSON.
+     */
+    @GetMapping("/gossip")
+    @ResponseBody
+    public GossipRouter.GossipStats getGossipStats() {
+        return chatService.getGossipStats();
+    }
+
+    /**
+     * Métricas do nó (contadores, gauges e latências) no formato texto do Prometheus.
+     */
+    @GetMapping(value = "/metrics", produces = "text/plain; version=0.0.4; charset=utf-8")
+    @ResponseBody
+    public String getMetrics() {
+        return chatService.getMetricsText();
+    }
+
+    /**
+     * Oferece ao peer (UUID) um arquivo da pasta de envio ({@code path} é o nome dentro
+     * dela) e devolve a transferência em JSON.
+     */
+    @PostMapping("/send-file")
+    @ResponseBody
+    public ResponseEntity<?> sendFile(@RequestParam String peer, @RequestParam String path) {
+        try {
+            return ResponseEntity.ok(chatService.sendFile(peer, path));
+        } catch (IllegalArgumentException | IllegalStateException | IOException e) {
+            return ResponseEntity.badRequest().body(Map.of("erro", String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * Aceita a oferta de arquivo {@code id}; o download começa em seguida.
+     */
+    @PostMapping("/send-file/accept")
+    @ResponseBody
+    public ResponseEntity<?> acceptFile(@RequestParam String id) {
+        try {
+            return ResponseEntity.ok(chatService.acceptFile(id));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return ResponseEntity.badRequest().body(Map.of("erro", String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * Recusa a oferta de arquivo {@code id}.
+     */
+    @PostMapping("/send-file/decline")
+    @ResponseBody
+    public ResponseEntity<?> declineFile(@RequestParam String id) {
+        try {
+            return ResponseEntity.ok(chatService.declineFile(id));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return ResponseEntity.badRequest().body(Map.of("erro", String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * Andamento das transferências de arquivo (bytes, porcentagem, taxa e estado) em JSON.
+     */
+    @GetMapping("/send-file")
+    @ResponseBody
+    public List<FileTransfer.TransferView> getTransfers() {
+        return chatService.getTransfers();
+    }
+
+    /**
+     * Tabela de membros da rede (vivos e suspeitos, com a encarnação e há quanto tempo cada um respondeu) em JSON.
+     */
+    @GetMapping("/members")
+    @ResponseBody
+    public List<Membership.MemberView> getMembers() {
+        return chatService.getMembers();
     }
 
     /**
@@ -59,7 +281,8 @@ public class ChatController {
     }
 
     /**
-     * ALTERADO: Recebe a requisição para conectar, agora com feedback para a UI.
+     * ALTERADO: Recebe a requisição para conectar e responde na hora; a conexão segue em
+     * segundo plano e o resultado chega pelo stream (mensagem de sistema e evento {@code peers}).
      * @param host O IP do peer de destino.
      * @param port A porta do peer de destino.
      * @param redirectAttributes Objeto do Spring para passar atributos através de um redirect.
@@ -68,12 +291,9 @@ public class ChatController {
     @PostMapping("/connect")
     public String connectToPeer(@RequestParam String host, @RequestParam int port, RedirectAttributes redirectAttributes) {
         if (host != null && !host.trim().isEmpty() && port > 0) {
-            // Chama o serviço e captura o resultado da conexão.
-            boolean success = chatService.connectToPeer(host, port);
-
-            // Cria uma "Flash Message" com base no resultado.
-            if (success) {
-                redirectAttributes.addFlashAttribute("feedbackMessage", "✅ Conexão com " + host + ":" + port + " bem-sucedida!");
+            // Só inicia a tentativa: não segura a thread do Tomcat pelo connect e handshake.
+            if (chatService.connectToPeer(host, port)) {
+                redirectAttributes.addFlashAttribute("feedbackMessage", "⏳ Conectando com " + host + ":" + port + "…");
                 redirectAttributes.addFlashAttribute("feedbackType", "success");
             } else {
                 redirectAttributes.addFlashAttribute("feedbackMessage", "❌ Falha ao conectar com " + host + ":" + port + ". Verifique o console para detalhes.");
@@ -0,0 +1,104 @@
+package org.unifor.p2p;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Ordem de exibição das mensagens: cada mensagem recebida espera até
+ * {@code p2p.order.window-ms} numa fila ordenada por {@link ChatMessage#ORDER}
+ * e sai em ordem de HLC. Mensagens que chegam por caminhos diferentes (direto,
+ * gossip, sincronização) e fora de ordem dentro da janela aparecem na mesma
+ * ordem em todos os nós; as que chegam depois da janela saem na hora e são contadas.
+ *
+ * Uma mensagem escrita aqui tem o maior HLC que este nó conhece: ela libera
+ * antes as que estão esperando e aparece sem atraso.
+ *
+ * Quem chama reetiqueta as mensagens com HLC além da deriva permitida
+ * ({@link Hlc#update}); mesmo assim, a última mensagem exibida nunca passa do
+ * relógio local mais a deriva, para que uma mensagem do futuro não faça todas as
+ * seguintes contarem como atrasadas.
+ */
+final class CausalOrder {
+
+    private record Held(ChatMessage message, long releaseAt) {
+    }
+
+    private final long windowNanos;
+    private final Consumer<String> sink;
+    private final Hlc clock;
+    private final PriorityQueue<Held> held = new PriorityQueue<>(Comparator.comparing(Held::message, ChatMessage.ORDER));
+    private final Metrics.Counter late;
+    private ChatMessage lastReleased;
+
+    CausalOrder(long windowMillis, Consumer<String> sink, Hlc clock, Metrics metrics) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.sink = sink;
+        this.clock = clock;
+        this.late = metrics.counter("p2p_order_late_total",
+                "Mensagens que chegaram depois da janela de ordenação, atrás de outras já exibidas");
+        metrics.gauge("p2p_order_held", "Mensagens esperando a janela de ordenação", this::size);
+    }
+
+    void start(ScheduledExecutorService scheduler) {
+        if (windowNanos == 0) return;
+        long tick = Math.max(TimeUnit.NANOSECONDS.toMillis(windowNanos) / 4, 5);
+        scheduler.scheduleWithFixedDelay(this::releaseDue, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mensagem recebida de outro peer.
+     */
+    synchronized void offer(ChatMessage message) {
+        if (lastReleased != null && ChatMessage.ORDER.compare(message, lastReleased) < 0) {
+            late.inc();
+            release(message);
+            return;
+        }
+        if (windowNanos == 0) {
+            release(message);
+            return;
+        }
+        held.add(new Held(message, System.nanoTime() + windowNanos));
+    }
+
+    /**
+     * Mensagem escrita aqui: sai na hora, depois das que estavam esperando.
+     */
+    synchronized void local(ChatMessage message) {
+        releaseAll();
+        release(message);
+    }
+
+    synchronized void releaseDue() {
+        long now = System.nanoTime();
+        // A fila anda pela ordem: uma mensagem já vencida espera a menor à frente dela (no máximo outra janela)
+        while (!held.isEmpty() && held.peek().releaseAt() <= now) {
+            release(held.poll().message());
+        }
+    }
+
+    synchronized void releaseAll() {
+        while (!held.isEmpty()) {
+            release(held.poll().message());
+        }
+    }
+
+    synchronized int size() {
+        return held.size();
+    }
+
+    private void release(ChatMessage message) {
+        if ((lastReleased == null || ChatMessage.ORDER.compare(message, lastReleased) > 0)
+                && message.hlc() <= clock.ceiling()) {
+            lastReleased = message;
+        }
+        try {
+            sink.accept(message.text());
+        } catch (RuntimeException e) {
+            Log.error("ordem.falha_entregar", "erro", e.getMessage());
+        }
+    }
+}
@@ -2,33 +2,392 @@ package org.unifor.p2p;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 
+/**
+ * Histórico de conversas em disco, um {@link HistoryLog} segmentado por peer remoto.
+ *
+ * Cada mensagem ({@link ChatMessage}: autor, HLC e texto) fica uma única vez no
+ * {@link MessageStore} compartilhado; o log de cada conversa (e o outbox) guarda
+ * só referências a ela, com o seq de autor. Uma mensagem enviada a 50 peers
+ * ocupa um registro e 50 referências. As leituras devolvem as mensagens na
+ * ordem do HLC.
+ *
+ * As gravações não abrem nem fecham arquivos: vão para uma fila e uma única
+ * thread de escrita grava em lote (group commit), com uma escrita por log e
+ * um fsync conforme a {@link Durability} configurada.
+ */
 public class ChatHistory {
 
     private static final String HISTORY_DIR = "chat_history";
+    private static final int MAX_BATCH = 4096;
+    // Tipo do payload de um registro: sem seq (peers legados) ou com seq de autor. Os dois
+    // primeiros (texto no próprio registro) só existem nos logs do formato antigo e como
+    // cabeçalho na fila; em disco vão as referências [tipo][ref:8] e [tipo][origem][seq:8][ref:8]
+    private static final byte RECORD_TEXT = 0;
+    private static final byte RECORD_SEQUENCED = 1;
+    private static final byte RECORD_REF = 2;
+    private static final byte RECORD_SEQUENCED_REF = 3;
+    private static final byte FROM_LOCAL = 0;
+    private static final byte FROM_REMOTE = 1;
+    private static final int SEQUENCED_HEADER = 10;
+    private static final String INDEX_DIR = "index";
+    private static final String STORE_DIR = "messages";
+    // Presente na pasta de uma conversa cujo log já guarda referências
+    private static final String REFS_MARKER = "refs";
+    private static final String MIGRATION_DIR = "migrating";
+    private static final String MIGRATION_DONE = "done";
+    // Texto de uma referência que não está no log compartilhado (queda antes do fsync dele)
+    private static final String MISSING_TEXT = "[mensagem indisponível]";
+    // Registros lidos do log por vez ao (re)indexar
+    private static final int INDEX_READ_BATCH = 4096;
+    // Teto de conversas abertas por mensagens repassadas pelo gossip (autores que nunca se conectaram aqui)
+    static final int MAX_CONVERSATIONS = 4096;
+
+    public enum Durability {
+        // fsync antes de confirmar cada lote; saveMessage espera o disco
+        ALWAYS,
+        // fsync periódico, a cada syncIntervalMillis
+        INTERVAL,
+        // Deixa o sistema operacional decidir quando gravar
+        OS;
+
+        public static Durability parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Parâmetros do armazenamento (p2p.history.*).
+     */
+    public record Settings(long segmentBytes, Durability durability, long syncIntervalMillis, Compaction compaction) {
+        public static final Settings DEFAULT = new Settings(8 * 1024 * 1024, Durability.INTERVAL, 1000);
+
+        public Settings(long segmentBytes, Durability durability, long syncIntervalMillis) {
+            this(segmentBytes, durability, syncIntervalMillis, Compaction.DEFAULT);
+        }
+    }
+
+    /**
+     * Compressão dos segmentos fechados e retenção (p2p.history.compaction.* e
+     * p2p.history.retention.*). Limites em 0 = sem limite. A retenção apaga
+     * segmentos fechados inteiros, dos mais antigos; o segmento ativo de cada log
+     * nunca é apagado.
+     *
+     * @param maxAgeMillis idade máxima de um segmento (pela última gravação nele)
+     * @param maxPeerBytes bytes em disco por conversa
+     * @param maxPeerMessages mensagens por conversa
+     * @param maxTotalBytes bytes dos segmentos de todas as conversas e do log compartilhado; sai primeiro o
+     *                      segmento mais antigo entre todas as conversas
+     */
+    public record Compaction(boolean compress, int blockBytes, long intervalMillis, long maxAgeMillis,
+                             long maxPeerBytes, long maxPeerMessages, long maxTotalBytes) {
+        public static final Compaction DEFAULT = new Compaction(true, 64 * 1024, 60_000, 0, 0, 0, 0);
+    }
+
+    /**
+     * Mensagem com o seq atribuído pelo seu autor.
+     */
+    public record SequencedMessage(long seq, String text) {
+    }
+
+    // Cabeçalho do registro (tipo, origem e seq, sem a referência) e a mensagem a gravar
+    private record Entry(byte[] header, ChatMessage message) {
+    }
+
+    // entry null = só atualiza o estado de sincronização; syncSnapshot null = registro sem seq
+    private record Append(String remotePeerId, Entry entry, CompletableFuture<Void> done, long[] syncSnapshot,
+                          long enqueuedNanos) {
+    }
+
+    private final String localPeerId;
     private final Path userHistoryDir;
+    private final Settings settings;
+    private final MessageStore store;
+    private final Map<String, HistoryLog> logs = new ConcurrentHashMap<>();
+    private final Map<String, ConversationSync> syncs = new ConcurrentHashMap<>();
+    // Índice de busca por conversa; o future evita abrir (e reindexar) o mesmo índice duas vezes
+    private final Map<String, CompletableFuture<MessageIndex>> indexes = new ConcurrentHashMap<>();
+    // Seq de autor da última mensagem escrita por este peer (o outbox é o log da "conversa" com o próprio id)
+    private final AtomicLong outboxSeq;
+    // Conversas em disco, para o teto de MAX_CONVERSATIONS
+    private final AtomicInteger conversationCount;
+    private final BlockingQueue<Append> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final HistoryCompactor compactor;
+    private volatile boolean running = true;
+    private long lastSync = System.currentTimeMillis();
+    private final Metrics.Histogram saveLatency;
+    private final Metrics.Histogram commitLatency;
+    private final Metrics.Histogram loadLatency;
+
+    public static ChatHistory open(String localPeerId) throws IOException {
+        return open(localPeerId, Settings.DEFAULT);
+    }
+
+    public static ChatHistory open(String localPeerId, Settings settings) throws IOException {
+        return open(localPeerId, settings, new Metrics());
+    }
+
+    public static ChatHistory open(String localPeerId, Settings settings, Metrics metrics) throws IOException {
+        return open(Paths.get(""), localPeerId, settings, metrics);
+    }
+
+    /**
+     * Abre o histórico e só então inicia a thread de escrita, a compactação e o
+     * aquecimento dos índices, que recebem o objeto já construído.
+     *
+     * @param dataDir diretório de dados do nó; o histórico fica em {@code dataDir/chat_history/<id>}
+     */
+    public static ChatHistory open(Path dataDir, String localPeerId, Settings settings, Metrics metrics)
+            throws IOException {
+        ChatHistory history = new ChatHistory(dataDir, localPeerId, settings, metrics);
+        history.start();
+        return history;
+    }
 
-    public ChatHistory(String localPeerId) throws IOException {
-        this.userHistoryDir = Paths.get(HISTORY_DIR, localPeerId);
+    private ChatHistory(Path dataDir, String localPeerId, Settings settings, Metrics metrics) throws IOException {
+        this.localPeerId = localPeerId;
+        this.userHistoryDir = dataDir.resolve(HISTORY_DIR).resolve(localPeerId);
+        this.settings = settings;
+        this.saveLatency = metrics.histogram("p2p_history_save_seconds",
+                "Tempo entre pedir a gravação de uma mensagem e ela estar no log");
+        this.commitLatency = metrics.histogram("p2p_history_commit_seconds", "Duração de cada escrita em lote no log");
+        this.loadLatency = metrics.histogram("p2p_history_load_seconds", "Duração das leituras de páginas do histórico");
+        metrics.gauge("p2p_history_pending", "Gravações na fila da thread de escrita", pending::size);
         Files.createDirectories(userHistoryDir);
+        this.conversationCount = new AtomicInteger(conversations().size());
+        this.store = MessageStore.open(userHistoryDir.resolve(STORE_DIR), settings.segmentBytes());
+        metrics.gauge("p2p_history_stored_messages", "Mensagens distintas no log compartilhado", store::size);
+        metrics.counter("p2p_history_deduplicated_total", "Gravações que reaproveitaram uma mensagem já armazenada",
+                store::deduplicated);
+        metrics.gauge("p2p_history_dedup_entries", "Mensagens na tabela hash de deduplicação (acima do piso da retenção)",
+                store::indexed);
+        this.outboxSeq = new AtomicLong(log(localPeerId).nextSeq());
+        migrateTextFiles();
+        this.writer = new Thread(this::writeLoop, "p2p-history-writer");
+        this.writer.setDaemon(true);
+        this.compactor = new HistoryCompactor(this, store, settings.compaction(), metrics);
+    }
+
+    private void start() {
+        writer.start();
+        compactor.start();
+        // Põe em dia os índices (e converte os logs do formato antigo) em segundo plano, antes da primeira busca
+        Thread warmUp = new Thread(() -> forEachConversation(this::index), "p2p-index-warmup");
+        warmUp.setDaemon(true);
+        warmUp.start();
     }
 
     /**
      * Salva uma mensagem no histórico do par local x remoto
      */
     public void saveMessage(String remotePeerId, String message) {
+        saveMessage(remotePeerId, new ChatMessage(ChatMessage.UNKNOWN_SENDER, -1,
+                Hlc.fromMillis(System.currentTimeMillis()), message));
+    }
+
+    /**
+     * Salva uma mensagem sem seq de autor (peers de texto) no histórico do par local x remoto.
+     */
+    void saveMessage(String remotePeerId, ChatMessage message) {
+        enqueue(remotePeerId, new Entry(new byte[]{RECORD_TEXT}, message), null);
+    }
+
+    /**
+     * Se já existe a conversa com {@code remotePeerId} (em disco ou aberta).
+     * Ao contrário de {@link #remoteWatermark}, não abre nada.
+     */
+    boolean hasConversation(String remotePeerId) {
+        return logs.containsKey(remotePeerId)
+                || PeerIdentity.isValid(remotePeerId) && Files.isDirectory(userHistoryDir.resolve(remotePeerId));
+    }
+
+    /**
+     * Salva uma mensagem repassada pelo gossip de um autor com quem nunca conversamos.
+     * Uma conversa nova só é criada enquanto houver menos de {@link #MAX_CONVERSATIONS}:
+     * quem inventa ids de autor não abre logs e arquivos sem limite.
+     */
+    boolean saveRelayed(String origin, ChatMessage message) {
+        if (!hasConversation(origin) && conversationCount.get() >= MAX_CONVERSATIONS) return false;
+        saveMessage(origin, message);
+        return true;
+    }
+
+    // --- Sincronização incremental (seq de autor por conversa) ---
+
+    /**
+     * Registra no outbox uma mensagem escrita por este peer e a devolve com o seq
+     * de autor atribuído. Chamado só pela thread de fan-out, que define a ordem.
+     * Não espera o disco: a gravação entra em {@code writes} (ver {@link #awaitDurable}).
+     */
+    ChatMessage appendOutbox(long hlc, String message, List<CompletableFuture<Void>> writes) {
+        ChatMessage written = new ChatMessage(localPeerId, outboxSeq.incrementAndGet(), hlc, message);
+        writes.add(submit(localPeerId, new Entry(header(FROM_LOCAL, written.seq()), written), null));
+        return written;
+    }
+
+    long outboxMax() {
+        return outboxSeq.get();
+    }
+
+    /**
+     * Menor seq de autor ainda no outbox (as anteriores foram apagadas pela retenção).
+     */
+    long outboxFirstSeq() throws IOException {
+        return log(localPeerId).firstSeq() + 1;
+    }
+
+    /**
+     * Mensagens do outbox com seq maior que {@code afterSeq}, em ordem, até {@code max}.
+     */
+    List<ChatMessage> readOutbox(long afterSeq, int max) throws IOException {
+        flush();
+        // O registro de índice i no outbox tem seq de autor i + 1
+        return messages(localPeerId, log(localPeerId).read(afterSeq, max));
+    }
+
+    /**
+     * Grava uma mensagem nossa na conversa com o remoto, uma única vez por seq.
+     * Como {@link #appendOutbox}, não espera o disco: a gravação entra em {@code writes}.
+     */
+    void saveOutgoing(String remotePeerId, ChatMessage message, List<CompletableFuture<Void>> writes)
+            throws IOException {
+        ConversationSync sync = sync(remotePeerId);
+        if (sync.markLocal(message.seq())) {
+            writes.add(submit(remotePeerId, new Entry(header(FROM_LOCAL, message.seq()), message), sync.snapshot()));
+        }
+    }
+
+    /**
+     * Com {@link Durability#ALWAYS}, espera de uma vez as gravações juntadas em
+     * {@code writes}: a thread de escrita as confirma no mesmo lote, com um fsync só,
+     * em vez de um por conversa. Nos outros modos não espera.
+     */
+    void awaitDurable(List<CompletableFuture<Void>> writes) {
+        if (settings.durability() != Durability.ALWAYS || writes.isEmpty()) return;
         try {
-            Path file = userHistoryDir.resolve(remotePeerId + ".txt");
-            Files.writeString(file, message + System.lineSeparator(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            awaitWriter(CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)));
         } catch (IOException e) {
-            System.err.println("[ERRO] Falha ao salvar mensagem no histórico: " + e.getMessage());
+            Log.error("historico.falha_gravar", "erro", e.getMessage());
+        }
+    }
+
+    /**
+     * Grava uma mensagem recebida do remoto, descartando duplicatas.
+     */
+    ConversationSync.Receive saveIncoming(String remotePeerId, ChatMessage message) throws IOException {
+        ConversationSync sync = sync(remotePeerId);
+        ConversationSync.Receive result = sync.receive(message.seq());
+        if (result != ConversationSync.Receive.DUPLICATE) {
+            enqueue(remotePeerId, new Entry(header(FROM_REMOTE, message.seq()), message), sync.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Registra a seq de uma mensagem do remoto que não fica no histórico (sala
+     * que não assinamos, só repassada), para ela não virar lacuna.
+     */
+    ConversationSync.Receive passIncoming(String remotePeerId, long seq) throws IOException {
+        ConversationSync sync = sync(remotePeerId);
+        ConversationSync.Receive result = sync.receive(seq);
+        if (result != ConversationSync.Receive.DUPLICATE) {
+            enqueue(remotePeerId, null, sync.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * As seqs do remoto em [from, to] não eram para nós (ver {@link ConversationSync#skip}).
+     */
+    void skipIncoming(String remotePeerId, long from, long to) throws IOException {
+        ConversationSync sync = sync(remotePeerId);
+        if (sync.skip(from, to)) {
+            enqueue(remotePeerId, null, sync.snapshot());
+        }
+    }
+
+    /**
+     * Maior seq do remoto que já temos sem lacunas (-1 se nunca conversamos).
+     */
+    long remoteWatermark(String remotePeerId) throws IOException {
+        return sync(remotePeerId).remoteWatermark();
+    }
+
+    long[] remoteGap(String remotePeerId) throws IOException {
+        return sync(remotePeerId).gap();
+    }
+
+    void baseline(String remotePeerId, long remoteOutboxMax) throws IOException {
+        ConversationSync sync = sync(remotePeerId);
+        sync.baseline(remoteOutboxMax);
+        enqueue(remotePeerId, null, sync.snapshot());
+    }
+
+    private void enqueue(String remotePeerId, Entry entry, long[] syncSnapshot) {
+        // Espera o fsync: quem chama não pode ser a thread do transporte (o Peer grava pela thread do histórico)
+        awaitDurable(List.of(submit(remotePeerId, entry, syncSnapshot)));
+    }
+
+    /**
+     * Põe a gravação na fila da thread de escrita sem esperar; o future completa
+     * quando o lote dela foi confirmado.
+     */
+    private CompletableFuture<Void> submit(String remotePeerId, Entry entry, long[] syncSnapshot) {
+        if (!remotePeerId.equals(localPeerId) && !PeerIdentity.isValid(remotePeerId)) {
+            // Um id inválido falharia o lote inteiro na thread de escrita
+            Log.warn("historico.id_invalido", "peer", remotePeerId);
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        pending.add(new Append(remotePeerId, entry, done, syncSnapshot, System.nanoTime()));
+        return done;
+    }
+
+    /**
+     * Espera a thread de escrita concluir {@code done}. Se ela já terminou (histórico
+     * fechado), o pedido nunca vai ser atendido: falha em vez de esperar para sempre.
+     */
+    private void awaitWriter(CompletableFuture<Void> done) throws IOException {
+        while (true) {
+            try {
+                done.get(100, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                if (!writer.isAlive() && !done.isDone()) throw new IOException("histórico fechado");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("espera pelo histórico interrompida");
+            }
         }
     }
 
@@ -36,19 +395,688 @@ public class ChatHistory {
      * Carrega todo o histórico do par local x remoto
      */
     public List<String> loadHistory(String remotePeerId) {
+        long start = System.nanoTime();
         List<String> messages = new ArrayList<>();
-        Path file = userHistoryDir.resolve(remotePeerId + ".txt");
+        try {
+            // Garante que gravações ainda na fila apareçam na leitura
+            flush();
+            messages.addAll(texts(remotePeerId, log(remotePeerId).readAll()));
+        } catch (IOException | RuntimeException e) {
+            Log.error("historico.falha_carregar", "conversa", remotePeerId, "erro", e.getMessage());
+        }
+        loadLatency.recordSince(start);
+        return messages;
+    }
+
+    /**
+     * Carrega as últimas {@code n} mensagens da conversa.
+     */
+    public HistoryPage loadTail(String remotePeerId, int n) {
+        long start = System.nanoTime();
+        try {
+            flush();
+            return page(remotePeerId, Long.MAX_VALUE, n);
+        } catch (IOException | RuntimeException e) {
+            Log.error("historico.falha_carregar", "conversa", remotePeerId, "erro", e.getMessage());
+            return HistoryPage.EMPTY;
+        } finally {
+            loadLatency.recordSince(start);
+        }
+    }
 
-        if (Files.exists(file)) {
-            try (BufferedReader reader = Files.newBufferedReader(file)) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    messages.add(line);
+    /**
+     * Carrega até {@code n} mensagens anteriores ao cursor (o {@link HistoryPage#cursor()}
+     * de uma página já carregada).
+     */
+    public HistoryPage loadBefore(String remotePeerId, long cursor, int n) {
+        long start = System.nanoTime();
+        try {
+            return page(remotePeerId, cursor, n);
+        } catch (IOException | RuntimeException e) {
+            Log.error("historico.falha_carregar", "conversa", remotePeerId, "erro", e.getMessage());
+            return HistoryPage.EMPTY;
+        } finally {
+            loadLatency.recordSince(start);
+        }
+    }
+
+    private HistoryPage page(String remotePeerId, long before, int n) throws IOException {
+        HistoryLog log = log(remotePeerId);
+        long end = Math.min(before, log.nextSeq());
+        long start = Math.max(log.firstSeq(), end - n);
+        List<String> messages = start < end ? texts(remotePeerId, log.read(start, (int) (end - start))) : List.of();
+        return new HistoryPage(messages, start, start > log.firstSeq());
+    }
+
+    /**
+     * Uma página do histórico, em ordem cronológica.
+     *
+     * @param cursor número da primeira mensagem da página; passe-o a {@link #loadBefore} para a página anterior
+     * @param hasMore se existem mensagens mais antigas que esta página
+     */
+    public record HistoryPage(List<String> messages, long cursor, boolean hasMore) {
+        static final HistoryPage EMPTY = new HistoryPage(List.of(), 0, false);
+    }
+
+    // --- Busca textual ---
+
+    /**
+     * Uma mensagem encontrada na busca.
+     *
+     * @param seq posição da mensagem no histórico da conversa
+     */
+    public record SearchHit(String peerId, long seq, String message) {
+    }
+
+    /**
+     * Mensagens que contêm todos os termos da consulta, das mais novas para as
+     * mais antigas. Sem {@code remotePeerId}, busca em todas as conversas.
+     */
+    public List<SearchHit> search(String query, String remotePeerId, int limit) {
+        List<String> terms = MessageIndex.tokenize(query);
+        if (terms.isEmpty() || limit <= 0) return List.of();
+        List<String> peers = remotePeerId != null ? List.of(remotePeerId) : conversations();
+        List<List<SearchHit>> perPeer = new ArrayList<>();
+        for (String peer : peers) {
+            if (peer.equals(localPeerId) || !Files.isDirectory(userHistoryDir.resolve(peer))) continue;
+            try {
+                HistoryLog log = log(peer);
+                List<SearchHit> hits = new ArrayList<>();
+                // O índice ainda tem mensagens apagadas pela retenção: filtradas antes do limite
+                for (long seq : index(peer).search(terms, log.firstSeq(), limit)) {
+                    List<byte[]> record = log.read(seq, 1);
+                    if (!record.isEmpty()) hits.add(new SearchHit(peer, seq, texts(peer, record).get(0)));
+                }
+                perPeer.add(hits);
+            } catch (IOException | RuntimeException e) {
+                Log.error("busca.falha", "conversa", peer, "erro", e.getMessage());
+            }
+        }
+        // Sem relógio comum entre conversas: intercala as mais novas de cada uma
+        List<SearchHit> result = new ArrayList<>();
+        for (int i = 0; result.size() < limit; i++) {
+            boolean any = false;
+            for (List<SearchHit> hits : perPeer) {
+                if (i < hits.size() && result.size() < limit) {
+                    result.add(hits.get(i));
+                    any = true;
+                }
+            }
+            if (!any) break;
+        }
+        return result;
+    }
+
+    /**
+     * Apaga e refaz os índices de busca a partir dos logs, uma conversa por thread.
+     *
+     * @return quantidade de conversas reindexadas
+     */
+    public int rebuildIndex() {
+        return forEachConversation(peer -> {
+            HistoryLog log = log(peer);
+            index(peer).rebuild(log.nextSeq(), from -> readTexts(peer, log, from));
+        });
+    }
+
+    private interface ConversationTask {
+        void run(String remotePeerId) throws IOException;
+    }
+
+    /**
+     * Executa a tarefa em paralelo para cada conversa em disco e espera todas.
+     */
+    private int forEachConversation(ConversationTask task) {
+        List<String> peers = conversations();
+        if (peers.isEmpty()) return 0;
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(peers.size(), Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread t = new Thread(r, "p2p-index");
+                    t.setDaemon(true);
+                    return t;
+                });
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (String peer : peers) {
+                tasks.add(pool.submit(() -> {
+                    task.run(peer);
+                    return null;
+                }));
+            }
+            int done = 0;
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    tasks.get(i).get();
+                    done++;
+                } catch (ExecutionException e) {
+                    Log.error("indice.falha_reconstruir", "conversa", peers.get(i), "erro", e.getCause().getMessage());
                 }
+            }
+            return done;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Logs de todas as conversas em disco e do outbox, por id do remoto.
+     */
+    Map<String, HistoryLog> allLogs() throws IOException {
+        Map<String, HistoryLog> all = new LinkedHashMap<>();
+        for (String peer : conversations()) {
+            all.put(peer, log(peer));
+        }
+        all.put(localPeerId, log(localPeerId));
+        return all;
+    }
+
+    /**
+     * Conversas com histórico em disco (o outbox deste peer não entra).
+     */
+    private List<String> conversations() {
+        try (Stream<Path> dirs = Files.list(userHistoryDir)) {
+            return dirs.filter(Files::isDirectory)
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> !name.equals(localPeerId) && !name.equals(STORE_DIR))
+                    .toList();
+        } catch (IOException e) {
+            Log.error("historico.falha_listar", "erro", e.getMessage());
+            return List.of();
+        }
+    }
+
+    private MessageIndex index(String remotePeerId) throws IOException {
+        CompletableFuture<MessageIndex> opening = new CompletableFuture<>();
+        CompletableFuture<MessageIndex> existing = indexes.putIfAbsent(remotePeerId, opening);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (RuntimeException e) {
+                throw new IOException("índice de busca indisponível", e.getCause());
+            }
+        }
+        try {
+            HistoryLog log = log(remotePeerId);
+            MessageIndex index = MessageIndex.open(userHistoryDir.resolve(remotePeerId).resolve(INDEX_DIR),
+                    log.nextSeq(), from -> readTexts(remotePeerId, log, from));
+            opening.complete(index);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            // Permite uma nova tentativa na próxima vez
+            indexes.remove(remotePeerId, opening);
+            opening.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private List<String> readTexts(String remotePeerId, HistoryLog log, long fromSeq) {
+        try {
+            // Na ordem dos registros: o índice é por número de registro
+            List<String> texts = new ArrayList<>();
+            long first = log.firstSeq();
+            if (fromSeq < first) {
+                // Apagadas pela retenção: entram vazias para a numeração seguir a do log
+                for (long seq = fromSeq; seq < first && texts.size() < INDEX_READ_BATCH; seq++) {
+                    texts.add("");
+                }
+                return texts;
+            }
+            for (ChatMessage m : messages(remotePeerId, log.read(fromSeq, INDEX_READ_BATCH))) {
+                texts.add(m.text());
+            }
+            return texts;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Espera até que tudo o que já foi enfileirado tenha sido gravado.
+     */
+    public void flush() {
+        if (!writer.isAlive()) return;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        pending.add(new Append(null, null, done, null, 0));
+        try {
+            awaitWriter(done);
+        } catch (IOException e) {
+            // Fechado no meio da espera: o que estava na fila já foi gravado na saída da thread de escrita
+        }
+    }
+
+    /**
+     * Grava o que estiver pendente, faz o fsync e fecha os arquivos.
+     */
+    public void close() {
+        compactor.close();
+        // Sem interrupt(): interromper a thread no meio de uma escrita fecharia o FileChannel
+        running = false;
+        pending.add(new Append(null, null, new CompletableFuture<>(), null, 0));
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            Log.error("historico.falha_fechar", "erro", e.getMessage());
+        }
+        for (HistoryLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Log.error("historico.falha_fechar", "erro", e.getMessage());
+            }
+        }
+        for (ConversationSync sync : syncs.values()) {
+            try {
+                sync.close();
             } catch (IOException e) {
-                System.err.println("[ERRO] Falha ao carregar histórico: " + e.getMessage());
+                Log.error("sync.falha_fechar", "erro", e.getMessage());
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Append> batch = new ArrayList<>();
+        while (running || !pending.isEmpty()) {
+            try {
+                Append first = pending.poll(settings.syncIntervalMillis(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH - 1);
+                    commit(batch);
+                    batch.clear();
+                }
+                if (settings.durability() == Durability.INTERVAL
+                        && System.currentTimeMillis() - lastSync >= settings.syncIntervalMillis()) {
+                    syncAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void commit(List<Append> batch) {
+        long start = System.nanoTime();
+        // Agrupa por conversa para fazer uma escrita por log
+        Map<String, List<Entry>> byPeer = new LinkedHashMap<>();
+        Map<String, long[]> snapshots = new LinkedHashMap<>();
+        for (Append a : batch) {
+            if (a.remotePeerId() == null) continue;
+            List<Entry> entries = byPeer.computeIfAbsent(a.remotePeerId(), k -> new ArrayList<>());
+            if (a.entry() != null) entries.add(a.entry());
+            if (a.syncSnapshot() != null) {
+                snapshots.merge(a.remotePeerId(), a.syncSnapshot(),
+                        (x, y) -> new long[]{Math.max(x[0], y[0]), Math.max(x[1], y[1])});
+            }
+        }
+        IOException failure = null;
+        Map<String, List<byte[]>> references = new LinkedHashMap<>();
+        try {
+            // As mensagens vão primeiro para o log compartilhado (as repetidas só ganham a referência)
+            references = toReferences(byPeer);
+            if (settings.durability() == Durability.ALWAYS) store.sync();
+        } catch (IOException ex) {
+            Log.error("historico.falha_gravar", "erro", ex.getMessage());
+            failure = ex;
+        }
+        for (Map.Entry<String, List<Entry>> e : byPeer.entrySet()) {
+            if (failure != null) break;
+            try {
+                HistoryLog log = log(e.getKey());
+                // O índice é aberto antes do append, para que a reindexação na abertura pare no ponto certo
+                MessageIndex index = e.getKey().equals(localPeerId) || e.getValue().isEmpty() ? null : index(e.getKey());
+                long base = log.nextSeq();
+                if (!e.getValue().isEmpty()) log.append(references.get(e.getKey()));
+                if (settings.durability() == Durability.ALWAYS) log.sync();
+                if (index != null) indexAppended(index, base, e.getValue());
+                // O estado de sincronização só é gravado depois dos registros que ele cobre
+                long[] snapshot = snapshots.get(e.getKey());
+                if (snapshot != null) sync(e.getKey()).persist(snapshot);
+            } catch (IOException ex) {
+                Log.error("historico.falha_gravar", "erro", ex.getMessage());
+                failure = ex;
+            }
+        }
+        long end = System.nanoTime();
+        commitLatency.record(end - start);
+        for (Append a : batch) {
+            if (a.entry() != null) saveLatency.record(end - a.enqueuedNanos());
+            if (failure != null && a.remotePeerId() != null) a.done().completeExceptionally(failure);
+            else a.done().complete(null);
+        }
+    }
+
+    private static void indexAppended(MessageIndex index, long base, List<Entry> entries) {
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                index.add(base + i, entries.get(i).message().text());
+            }
+        } catch (IOException e) {
+            // O log já está gravado; o que faltar no índice é refeito na próxima abertura
+            Log.error("indice.falha_indexar", "erro", e.getMessage());
+        }
+    }
+
+    /**
+     * Grava as mensagens no log compartilhado, com uma única gravação para o lote
+     * inteiro, e devolve os registros de cada conversa com a referência a elas.
+     */
+    private Map<String, List<byte[]>> toReferences(Map<String, List<Entry>> byPeer) throws IOException {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (List<Entry> entries : byPeer.values()) {
+            for (Entry entry : entries) {
+                messages.add(entry.message());
+            }
+        }
+        long[] refs = messages.isEmpty() ? new long[0] : store.put(messages);
+        Map<String, List<byte[]>> out = new LinkedHashMap<>();
+        int i = 0;
+        for (Map.Entry<String, List<Entry>> e : byPeer.entrySet()) {
+            List<byte[]> converted = new ArrayList<>(e.getValue().size());
+            for (Entry entry : e.getValue()) {
+                converted.add(reference(entry.header(), refs[i++]));
+            }
+            out.put(e.getKey(), converted);
+        }
+        return out;
+    }
+
+    /**
+     * Textos dos registros, na ordem do HLC.
+     */
+    private List<String> texts(String remotePeerId, List<byte[]> payloads) throws IOException {
+        List<ChatMessage> messages = orderByClock(messages(remotePeerId, payloads));
+        List<String> texts = new ArrayList<>(messages.size());
+        for (ChatMessage m : messages) {
+            texts.add(m.text());
+        }
+        return texts;
+    }
+
+    /**
+     * Ordena pelo HLC as mensagens que têm um; as sem relógio (gravadas por
+     * versões anteriores) ficam na posição em que estavam no log.
+     */
+    private static List<ChatMessage> orderByClock(List<ChatMessage> messages) {
+        List<Integer> positions = new ArrayList<>();
+        List<ChatMessage> clocked = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i).hlc() != 0) {
+                positions.add(i);
+                clocked.add(messages.get(i));
+            }
+        }
+        // Ordenação estável: empates ficam na ordem de chegada
+        clocked.sort(Comparator.comparingLong(ChatMessage::hlc));
+        List<ChatMessage> out = new ArrayList<>(messages);
+        for (int i = 0; i < positions.size(); i++) {
+            out.set(positions.get(i), clocked.get(i));
+        }
+        return out;
+    }
+
+    /**
+     * Mensagem de cada registro lido de um log, na ordem dos registros, buscando
+     * as referências no log compartilhado de uma vez.
+     */
+    private List<ChatMessage> messages(String remotePeerId, List<byte[]> payloads) throws IOException {
+        int count = 0;
+        for (byte[] payload : payloads) {
+            if (isReference(payload)) count++;
+        }
+        long[] refs = new long[count];
+        count = 0;
+        for (byte[] payload : payloads) {
+            if (isReference(payload)) refs[count++] = refOf(payload);
+        }
+        List<ChatMessage> resolved = count == 0 ? List.of() : store.get(refs);
+        List<ChatMessage> messages = new ArrayList<>(payloads.size());
+        count = 0;
+        for (byte[] payload : payloads) {
+            if (!isReference(payload)) {
+                messages.add(legacyMessage(remotePeerId, payload, decode(payload)));
+                continue;
+            }
+            ChatMessage message = resolved.get(count++);
+            if (message == null) {
+                messages.add(legacyMessage(remotePeerId, payload, MISSING_TEXT));
+            } else if (message.hlc() == 0 && message.senderId().equals(ChatMessage.UNKNOWN_SENDER)) {
+                // Só o texto no log compartilhado: autor e seq vêm do registro da conversa
+                messages.add(legacyMessage(remotePeerId, payload, message.text()));
+            } else {
+                messages.add(message);
             }
         }
         return messages;
     }
+
+    /**
+     * Mensagem sem relógio de um registro gravado antes dos registros estruturados,
+     * com o autor deduzido da origem do registro.
+     */
+    private ChatMessage legacyMessage(String remotePeerId, byte[] payload, String text) {
+        boolean sequenced = payload[0] == RECORD_SEQUENCED || payload[0] == RECORD_SEQUENCED_REF;
+        if (!sequenced) return new ChatMessage(ChatMessage.UNKNOWN_SENDER, -1, 0, text);
+        String sender = payload[1] == FROM_REMOTE ? remotePeerId : localPeerId;
+        return new ChatMessage(sender, seqOf(payload), 0, text);
+    }
+
+    private void syncAll() {
+        try {
+            // O log compartilhado vai para o disco antes das referências a ele
+            store.sync();
+        } catch (IOException e) {
+            Log.error("historico.falha_fsync", "erro", e.getMessage());
+        }
+        for (HistoryLog log : logs.values()) {
+            try {
+                log.sync();
+            } catch (IOException e) {
+                Log.error("historico.falha_fsync", "erro", e.getMessage());
+            }
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    private HistoryLog log(String remotePeerId) throws IOException {
+        HistoryLog log = logs.get(remotePeerId);
+        if (log != null) return log;
+        synchronized (logs) {
+            log = logs.get(remotePeerId);
+            if (log == null) {
+                // O id vem do remoto e vira nome de pasta: só UUIDs (nada de "../")
+                if (!remotePeerId.equals(localPeerId) && !PeerIdentity.isValid(remotePeerId)) {
+                    throw new IOException("Id de peer inválido: " + remotePeerId);
+                }
+                Path dir = userHistoryDir.resolve(remotePeerId);
+                if (!remotePeerId.equals(localPeerId) && !Files.isDirectory(dir)) conversationCount.incrementAndGet();
+                log = openConversation(dir);
+                migrateTextFile(remotePeerId, log);
+                logs.put(remotePeerId, log);
+            }
+            return log;
+        }
+    }
+
+    private ConversationSync sync(String remotePeerId) throws IOException {
+        ConversationSync sync = syncs.get(remotePeerId);
+        if (sync != null) return sync;
+        HistoryLog log = log(remotePeerId);
+        synchronized (syncs) {
+            sync = syncs.get(remotePeerId);
+            if (sync == null) {
+                sync = ConversationSync.open(userHistoryDir.resolve(remotePeerId));
+                // Registros gravados depois do último sync.state estão no segmento ativo
+                for (byte[] payload : log.read(log.activeBase(), Integer.MAX_VALUE)) {
+                    if (payload[0] != RECORD_SEQUENCED && payload[0] != RECORD_SEQUENCED_REF) continue;
+                    if (payload[1] == FROM_REMOTE) sync.receive(seqOf(payload));
+                    else sync.markLocal(seqOf(payload));
+                }
+                syncs.put(remotePeerId, sync);
+            }
+            return sync;
+        }
+    }
+
+    // --- Migração dos formatos antigos ---
+
+    /**
+     * Abre o log da conversa; um log do formato anterior (texto em cada registro)
+     * é convertido para referências ao log compartilhado, mantendo a numeração
+     * dos registros (as páginas e o índice de busca continuam valendo). O log
+     * novo é montado em {@code migrating/} e só substitui o antigo depois de completo.
+     */
+    private HistoryLog openConversation(Path dir) throws IOException {
+        Path staging = dir.resolve(MIGRATION_DIR);
+        if (Files.exists(staging.resolve(MIGRATION_DONE))) {
+            // A troca foi interrompida: termina com o log novo, que já está completo
+            finishMigration(dir, staging);
+        }
+        HistoryLog log = HistoryLog.open(dir, settings.segmentBytes());
+        if (Files.exists(dir.resolve(REFS_MARKER))) return log;
+        if (log.nextSeq() == 0) {
+            Files.createFile(dir.resolve(REFS_MARKER));
+            return log;
+        }
+        long start = System.nanoTime();
+        deleteFiles(staging);
+        HistoryLog converted = HistoryLog.open(staging, settings.segmentBytes());
+        String remotePeerId = dir.getFileName().toString();
+        for (long seq = log.firstSeq(); seq < log.nextSeq(); ) {
+            List<byte[]> batch = log.read(seq, INDEX_READ_BATCH);
+            if (batch.isEmpty()) break;
+            List<ChatMessage> messages = new ArrayList<>(batch.size());
+            for (byte[] payload : batch) {
+                messages.add(legacyMessage(remotePeerId, payload, decode(payload)));
+            }
+            long[] refs = store.put(messages);
+            List<byte[]> references = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                references.add(reference(batch.get(i), refs[i]));
+            }
+            converted.append(references);
+            seq += batch.size();
+        }
+        long records = converted.nextSeq();
+        store.sync();
+        converted.close();
+        // Lista dos segmentos novos: a troca pode ser refeita do ponto em que parou
+        try (Stream<Path> files = Files.list(staging)) {
+            Files.write(staging.resolve(MIGRATION_DONE), files.map(p -> p.getFileName().toString()).toList());
+        }
+        log.close();
+        finishMigration(dir, staging);
+        Log.info("historico.referencias", "conversa", dir.getFileName(), "mensagens", records,
+                "ms", (System.nanoTime() - start) / 1_000_000);
+        return HistoryLog.open(dir, settings.segmentBytes());
+    }
+
+    private static void finishMigration(Path dir, Path staging) throws IOException {
+        List<String> fresh = Files.readAllLines(staging.resolve(MIGRATION_DONE));
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path old : files.toList()) {
+                String name = old.getFileName().toString();
+                if ((name.endsWith(".log") || name.endsWith(".idx")) && !fresh.contains(name)) Files.delete(old);
+            }
+        }
+        for (String name : fresh) {
+            Path moved = staging.resolve(name);
+            if (Files.exists(moved)) Files.move(moved, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (!Files.exists(dir.resolve(REFS_MARKER))) Files.createFile(dir.resolve(REFS_MARKER));
+        deleteFiles(staging);
+    }
+
+    private static void deleteFiles(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Importa de uma vez os arquivos {@code <remoto>.txt} do formato mais antigo,
+     * inclusive os de peers que não voltarem a se conectar.
+     */
+    private void migrateTextFiles() throws IOException {
+        try (Stream<Path> files = Files.list(userHistoryDir)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".txt") && Files.isRegularFile(file)) log(name.substring(0, name.length() - 4));
+            }
+        }
+    }
+
+    /**
+     * Importa o arquivo de texto do formato antigo ({@code <remoto>.txt}) para o log
+     * e o renomeia para {@code .txt.migrated}.
+     */
+    private void migrateTextFile(String remotePeerId, HistoryLog log) throws IOException {
+        Path legacy = userHistoryDir.resolve(remotePeerId + ".txt");
+        if (!Files.exists(legacy)) return;
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(legacy)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                entries.add(new Entry(new byte[]{RECORD_TEXT}, new ChatMessage(ChatMessage.UNKNOWN_SENDER, -1, 0, line)));
+            }
+        }
+        log.append(toReferences(Map.of(remotePeerId, entries)).get(remotePeerId));
+        store.sync();
+        log.sync();
+        Files.move(legacy, legacy.resolveSibling(remotePeerId + ".txt.migrated"));
+        Log.info("historico.migrado", "conversa", remotePeerId, "mensagens", entries.size());
+    }
+
+    private static byte[] header(byte from, long seq) {
+        return ByteBuffer.allocate(SEQUENCED_HEADER).put(RECORD_SEQUENCED).put(from).putLong(seq).array();
+    }
+
+    private static long seqOf(byte[] payload) {
+        return ByteBuffer.wrap(payload, 2, 8).getLong();
+    }
+
+    private static boolean isReference(byte[] payload) {
+        return payload[0] == RECORD_REF || payload[0] == RECORD_SEQUENCED_REF;
+    }
+
+    private static long refOf(byte[] payload) {
+        return ByteBuffer.wrap(payload, payload.length - 8, 8).getLong();
+    }
+
+    /**
+     * Referência ao log compartilhado de um registro de conversa, ou -1 se o
+     * registro ainda tem o texto (formato antigo).
+     */
+    static long storeRef(byte[] payload) {
+        return isReference(payload) ? refOf(payload) : -1;
+    }
+
+    /**
+     * O registro com a referência no lugar do texto (a partir do cabeçalho ou
+     * de um registro do formato antigo).
+     */
+    private static byte[] reference(byte[] payload, long ref) {
+        if (payload[0] == RECORD_SEQUENCED) {
+            return ByteBuffer.allocate(SEQUENCED_HEADER + 8).put(RECORD_SEQUENCED_REF).put(payload[1])
+                    .putLong(seqOf(payload)).putLong(ref).array();
+        }
+        return ByteBuffer.allocate(9).put(RECORD_REF).putLong(ref).array();
+    }
+
+    private static String decode(byte[] payload) {
+        int offset = payload[0] == RECORD_SEQUENCED ? SEQUENCED_HEADER : 1;
+        return new String(payload, offset, payload.length - offset, StandardCharsets.UTF_8);
+    }
 }
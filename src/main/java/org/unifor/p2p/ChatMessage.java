@@ -0,0 +1,227 @@
+package org.unifor.p2p;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mensagem de chat imutável: id do autor, seq de autor, HLC de quando foi escrita
+ * e o texto (já formatado, {@code "[nome]: texto"}, com o prefixo da sala), guardado
+ * em UTF-8.
+ *
+ * Os ids de autor são internados: todas as mensagens de um peer apontam para o
+ * mesmo String. Na codificação binária os números vão em varint e o id vai
+ * como os 16 bytes do UUID (no fio) ou como o número dele num dicionário (no
+ * {@link MessageStore}).
+ */
+public final class ChatMessage {
+
+    /**
+     * Ordem causal: HLC, com empates resolvidos pelo autor e pelo seq (a mesma em todos os nós).
+     */
+    public static final Comparator<ChatMessage> ORDER = Comparator.comparingLong(ChatMessage::hlc)
+            .thenComparing(ChatMessage::senderId)
+            .thenComparingLong(ChatMessage::seq);
+
+    // Autor desconhecido (mensagens gravadas antes desta versão ou de peers de texto sem id)
+    public static final String UNKNOWN_SENDER = "";
+    private static final int MAX_INTERNED = 65_536;
+    private static final int MAX_SENDER_BYTES = 255;
+    private static final Map<String, String> SENDERS = new ConcurrentHashMap<>();
+
+    private static final int SENDER_UNKNOWN = 0;
+    private static final int SENDER_UUID = 1;
+    private static final int SENDER_TEXT = 2;
+
+    /**
+     * Como o id do autor é escrito e lido na codificação binária.
+     */
+    interface Senders {
+        void write(ByteArrayOutputStream out, String senderId);
+
+        String read(ByteBuffer in);
+    }
+
+    /**
+     * Ids no fio: {@code [0]} desconhecido, {@code [1][uuid:16]} ou {@code [2][tamanho][utf8]}.
+     */
+    static final Senders WIRE = new Senders() {
+        @Override
+        public void write(ByteArrayOutputStream out, String senderId) {
+            if (senderId.isEmpty()) {
+                out.write(SENDER_UNKNOWN);
+                return;
+            }
+            UUID uuid = parseUuid(senderId);
+            if (uuid != null) {
+                out.write(SENDER_UUID);
+                out.writeBytes(ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits())
+                        .putLong(uuid.getLeastSignificantBits()).array());
+            } else {
+                byte[] id = senderId.getBytes(StandardCharsets.UTF_8);
+                out.write(SENDER_TEXT);
+                putVarLong(out, id.length);
+                out.writeBytes(id);
+            }
+        }
+
+        @Override
+        public String read(ByteBuffer in) {
+            int kind = in.get();
+            return switch (kind) {
+                case SENDER_UNKNOWN -> UNKNOWN_SENDER;
+                case SENDER_UUID -> new UUID(in.getLong(), in.getLong()).toString();
+                case SENDER_TEXT -> {
+                    long len = getVarLong(in);
+                    if (len > MAX_SENDER_BYTES || len > in.remaining()) throw new IllegalArgumentException("Id de autor inválido");
+                    String id = new String(in.array(), in.arrayOffset() + in.position(), (int) len, StandardCharsets.UTF_8);
+                    in.position(in.position() + (int) len);
+                    yield id;
+                }
+                default -> throw new IllegalArgumentException("Id de autor inválido: " + kind);
+            };
+        }
+    };
+
+    private final String senderId;
+    private final long seq;
+    private final long hlc;
+    private final byte[] body;
+
+    /**
+     * @param seq seq de autor, ou -1 para mensagens sem seq (peers antigos)
+     */
+    public ChatMessage(String senderId, long seq, long hlc, String text) {
+        this(senderId, seq, hlc, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private ChatMessage(String senderId, long seq, long hlc, byte[] body) {
+        this.senderId = intern(senderId);
+        this.seq = seq;
+        this.hlc = hlc;
+        this.body = body;
+    }
+
+    public String senderId() {
+        return senderId;
+    }
+
+    public long seq() {
+        return seq;
+    }
+
+    public long hlc() {
+        return hlc;
+    }
+
+    /**
+     * Milissegundos do relógio de parede em que a mensagem foi escrita (segundo o HLC).
+     */
+    public long timestampMillis() {
+        return Hlc.millis(hlc);
+    }
+
+    public String text() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tamanho do texto em bytes (UTF-8).
+     */
+    int length() {
+        return body.length;
+    }
+
+    /**
+     * A mesma mensagem com outro seq de autor (atribuído ao entrar no outbox).
+     */
+    ChatMessage withSeq(long seq) {
+        return new ChatMessage(senderId, seq, hlc, body);
+    }
+
+    /**
+     * A mesma mensagem com outro HLC (reetiquetada ao chegar com o relógio do autor adiantado).
+     */
+    ChatMessage withHlc(long hlc) {
+        return new ChatMessage(senderId, seq, hlc, body);
+    }
+
+    // --- Codificação binária ---
+
+    /**
+     * {@code [autor][seq+1:varint][hlc:varint][tamanho:varint][utf8]}.
+     */
+    void writeTo(ByteArrayOutputStream out, Senders senders) {
+        senders.write(out, senderId);
+        putVarLong(out, seq + 1);
+        putVarLong(out, hlc);
+        putVarLong(out, body.length);
+        out.writeBytes(body);
+    }
+
+    byte[] encode(Senders senders) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 24);
+        writeTo(out, senders);
+        return out.toByteArray();
+    }
+
+    static ChatMessage readFrom(ByteBuffer in, Senders senders) {
+        String sender = senders.read(in);
+        long seq = getVarLong(in) - 1;
+        long hlc = getVarLong(in);
+        long len = getVarLong(in);
+        if (len < 0 || len > in.remaining()) throw new IllegalArgumentException("Mensagem truncada");
+        byte[] body = new byte[(int) len];
+        in.get(body);
+        return new ChatMessage(sender, seq, hlc, body);
+    }
+
+    static void putVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) throw new IllegalArgumentException("Varint longo demais");
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static String intern(String senderId) {
+        String interned = SENDERS.get(senderId);
+        if (interned != null) return interned;
+        // Um remoto que inventa ids não faz a tabela crescer sem limite
+        if (SENDERS.size() >= MAX_INTERNED) return senderId;
+        interned = SENDERS.putIfAbsent(senderId, senderId);
+        return interned != null ? interned : senderId;
+    }
+
+    private static UUID parseUuid(String id) {
+        if (id.length() != 36) return null;
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChatMessage[" + senderId + "#" + seq + " @" + hlc + ": " + text() + "]";
+    }
+}
@@ -0,0 +1,168 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Abre as conexões de saída do {@link Peer} sem prender quem pediu.
+ *
+ * Cada tentativa roda numa virtual thread e devolve um future com o id do peer
+ * remoto; tentativas simultâneas para o mesmo peer (ou o mesmo host:porta, quando
+ * o id ainda não é conhecido) compartilham o mesmo future. Uma conexão de saída
+ * que cai é refeita sozinha, com espera exponencial entre as tentativas
+ * (limitada a {@link Settings#reconnectMaxMillis()} e com variação aleatória,
+ * para que vários nós não tentem todos no mesmo instante).
+ */
+public final class ConnectionManager {
+
+    /**
+     * Parâmetros das conexões de saída (p2p.connect.*).
+     *
+     * @param connectTimeoutMillis   prazo do connect TCP
+     * @param handshakeTimeoutMillis prazo para o remoto responder o "/id:"
+     * @param reconnectInitialMillis primeira espera antes de reconectar (dobra a cada falha)
+     * @param reconnectMaxMillis     maior espera entre tentativas
+     */
+    public record Settings(int connectTimeoutMillis, int handshakeTimeoutMillis, long reconnectInitialMillis,
+                           long reconnectMaxMillis) {
+        public static final Settings DEFAULT = new Settings(5000, 5000, 1000, 60_000);
+    }
+
+    /**
+     * Abre a conexão e faz o handshake, bloqueando a thread (virtual) de quem chama
+     * dentro dos prazos configurados. Devolve o id do peer remoto.
+     */
+    interface Dialer {
+        String dial(String host, int port, String expectedPeerId) throws IOException;
+    }
+
+    private record Endpoint(String host, int port) {
+    }
+
+    private final Settings settings;
+    private final Dialer dialer;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService dialers = Executors.newVirtualThreadPerTaskExecutor();
+    // Tentativas em andamento, por id do peer ou "host:porta"
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    // Onde reconectar cada peer (com quem já abrimos conexão ou conhecido pela tabela de membros)
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> reconnects = new ConcurrentHashMap<>();
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    ConnectionManager(Settings settings, Dialer dialer, ScheduledExecutorService scheduler) {
+        this.settings = settings;
+        this.dialer = dialer;
+        this.scheduler = scheduler;
+    }
+
+    Settings settings() {
+        return settings;
+    }
+
+    /**
+     * Conecta ao peer em {@code host:port}, ou reaproveita a tentativa já em andamento.
+     *
+     * @param expectedPeerId id do peer, se já conhecido (pela tabela de membros ou reconexão)
+     */
+    CompletableFuture<String> connect(String host, int port, String expectedPeerId) {
+        if (closed) return CompletableFuture.failedFuture(new IOException("Nó encerrado"));
+        String key = expectedPeerId != null ? expectedPeerId : host + ":" + port;
+        CompletableFuture<String> created = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) return existing;
+        try {
+            dialers.execute(() -> {
+                try {
+                    String remotePeerId = dialer.dial(host, port, expectedPeerId);
+                    endpoints.put(remotePeerId, new Endpoint(host, port));
+                    failures.remove(remotePeerId);
+                    created.complete(remotePeerId);
+                } catch (IOException | RuntimeException e) {
+                    Log.error("conexao.falha", "endereco", host + ":" + port, "erro", e.getMessage());
+                    created.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(key, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(new IOException("Nó encerrado"));
+        }
+        return created;
+    }
+
+    /**
+     * Tentativas de conexão ainda sem resposta.
+     */
+    int pending() {
+        return inFlight.size();
+    }
+
+    /**
+     * Registra onde o peer aceita conexões, para poder reconectar a ele.
+     */
+    void remember(String remotePeerId, String host, int port) {
+        endpoints.putIfAbsent(remotePeerId, new Endpoint(host, port));
+    }
+
+    /**
+     * A conexão com o peer caiu: agenda a reconexão, se sabemos onde ele está.
+     */
+    void dropped(String remotePeerId) {
+        Endpoint endpoint = endpoints.get(remotePeerId);
+        if (closed || endpoint == null) return;
+        int attempt = failures.merge(remotePeerId, 1, Integer::sum);
+        long delay = backoff(attempt);
+        Log.info("conexao.reconectando", "endereco", endpoint.host() + ":" + endpoint.port(), "espera_ms", delay,
+                "tentativa", attempt);
+        try {
+            ScheduledFuture<?> task = scheduler.schedule(() -> {
+                reconnects.remove(remotePeerId);
+                if (!endpoints.containsKey(remotePeerId)) return; // esquecido nesse meio tempo
+                connect(endpoint.host(), endpoint.port(), remotePeerId).whenComplete((id, e) -> {
+                    if (e != null) dropped(remotePeerId);
+                });
+            }, delay, TimeUnit.MILLISECONDS);
+            ScheduledFuture<?> previous = reconnects.put(remotePeerId, task);
+            if (previous != null) previous.cancel(false);
+        } catch (RejectedExecutionException e) {
+            // Nó encerrando
+        }
+    }
+
+    /**
+     * Para de reconectar ao peer (ele saiu da rede ou a conexão foi fechada de propósito).
+     */
+    void forget(String remotePeerId) {
+        endpoints.remove(remotePeerId);
+        failures.remove(remotePeerId);
+        ScheduledFuture<?> task = reconnects.remove(remotePeerId);
+        if (task != null) task.cancel(false);
+    }
+
+    void close() {
+        closed = true;
+        reconnects.values().forEach(task -> task.cancel(false));
+        dialers.shutdownNow();
+    }
+
+    /**
+     * min(máximo, inicial * 2^(tentativa-1)), sorteado entre a metade e o valor cheio.
+     */
+    private long backoff(int attempt) {
+        long base = settings.reconnectInitialMillis() << Math.min(attempt - 1, 30);
+        long capped = Math.min(settings.reconnectMaxMillis(), base < 0 ? Long.MAX_VALUE : base);
+        return capped / 2 + ThreadLocalRandom.current().nextLong(capped / 2 + 1);
+    }
+}
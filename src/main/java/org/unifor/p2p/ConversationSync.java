@@ -0,0 +1,158 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeSet;
+
+/**
+ * Estado de sincronização de uma conversa, usado para trocar só a diferença
+ * entre os dois lados ao reconectar.
+ *
+ * Cada peer numera as mensagens que escreve (seq de autor, 1, 2, 3...). Para a
+ * conversa com um peer remoto guardamos:
+ * <ul>
+ *   <li>{@code remoteWatermark}: maior seq do remoto tal que todas as anteriores já
+ *       chegaram (-1 = ainda sem ponto de partida, nunca conversamos);</li>
+ *   <li>{@code remoteAhead}: seqs recebidas acima de uma lacuna, para descartar duplicatas
+ *       quando a lacuna for preenchida;</li>
+ *   <li>{@code maxLocal}: maior seq nossa já gravada nesta conversa.</li>
+ * </ul>
+ * O arquivo {@code sync.state} guarda watermark e maxLocal. Ele é gravado pela thread
+ * de escrita do histórico com o retrato tirado junto com cada registro, então nunca
+ * fica à frente do log; o que ficou depois da última gravação é recuperado relendo o
+ * segmento ativo na abertura.
+ */
+final class ConversationSync {
+
+    enum Receive {
+        NEW, DUPLICATE,
+        // Nova, mas há mensagens faltando antes dela
+        GAP
+    }
+
+    // Acima disso a lacuna mais antiga é dada como perdida (ex.: mensagens de gossip que nunca chegaram)
+    private static final int MAX_AHEAD = 4096;
+
+    private final FileChannel stateFile;
+    private long remoteWatermark = -1;
+    private final TreeSet<Long> remoteAhead = new TreeSet<>();
+    private long maxLocal;
+    // Último estado gravado em sync.state (só a thread de escrita mexe)
+    private long persistedWatermark = -1;
+    private long persistedMaxLocal;
+
+    private ConversationSync(FileChannel stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    static ConversationSync open(Path dir) throws IOException {
+        FileChannel ch = FileChannel.open(dir.resolve("sync.state"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ConversationSync sync = new ConversationSync(ch);
+        if (ch.size() >= 16) {
+            ByteBuffer buf = ByteBuffer.allocate(16);
+            ch.read(buf, 0);
+            buf.flip();
+            sync.remoteWatermark = sync.persistedWatermark = buf.getLong();
+            sync.maxLocal = sync.persistedMaxLocal = buf.getLong();
+        }
+        return sync;
+    }
+
+    /**
+     * Registra a chegada de uma mensagem do remoto com seq de autor {@code seq}.
+     */
+    synchronized Receive receive(long seq) {
+        if (remoteWatermark < 0) {
+            // Primeira mensagem sem HELLO (ex.: estado perdido): passa a ser o ponto de partida
+            remoteWatermark = seq;
+            return Receive.NEW;
+        }
+        if (seq <= remoteWatermark || !remoteAhead.add(seq)) {
+            return Receive.DUPLICATE;
+        }
+        if (remoteAhead.size() > MAX_AHEAD) {
+            remoteWatermark = remoteAhead.first() - 1;
+        }
+        while (remoteAhead.remove(remoteWatermark + 1)) {
+            remoteWatermark++;
+        }
+        return remoteAhead.isEmpty() ? Receive.NEW : Receive.GAP;
+    }
+
+    /**
+     * Marca as seqs do remoto em [from, to] como recebidas sem mensagem (não eram
+     * para nós). Só vale quando o intervalo encosta no watermark; se houver uma
+     * lacuna antes dele, ela é pedida e a resposta traz o intervalo de novo.
+     */
+    synchronized boolean skip(long from, long to) {
+        if (remoteWatermark < 0 || from > remoteWatermark + 1 || to <= remoteWatermark) return false;
+        remoteWatermark = to;
+        remoteAhead.headSet(to, true).clear();
+        while (remoteAhead.remove(remoteWatermark + 1)) {
+            remoteWatermark++;
+        }
+        return true;
+    }
+
+    /**
+     * Define o ponto de partida numa conversa nova: o que o remoto escreveu antes
+     * de nos conhecer não é transferido.
+     */
+    synchronized void baseline(long remoteOutboxMax) {
+        if (remoteWatermark < 0) {
+            remoteWatermark = remoteOutboxMax;
+        }
+    }
+
+    synchronized long remoteWatermark() {
+        return remoteWatermark;
+    }
+
+    /**
+     * Primeira seq faltando e a última recebida acima da lacuna, ou null se não há lacuna.
+     */
+    synchronized long[] gap() {
+        if (remoteAhead.isEmpty()) return null;
+        return new long[]{remoteWatermark + 1, remoteAhead.first() - 1};
+    }
+
+    synchronized boolean markLocal(long seq) {
+        if (seq <= maxLocal) return false;
+        maxLocal = seq;
+        return true;
+    }
+
+    synchronized long maxLocal() {
+        return maxLocal;
+    }
+
+    /**
+     * Retrato {watermark, maxLocal} para acompanhar um registro até o disco.
+     */
+    synchronized long[] snapshot() {
+        return new long[]{remoteWatermark, maxLocal};
+    }
+
+    /**
+     * Grava o estado de um retrato cujos registros já estão no log. Chamado só
+     * pela thread de escrita do histórico; nunca faz o estado gravado regredir.
+     */
+    void persist(long[] snapshot) throws IOException {
+        long watermark = Math.max(persistedWatermark, snapshot[0]);
+        long local = Math.max(persistedMaxLocal, snapshot[1]);
+        if (watermark == persistedWatermark && local == persistedMaxLocal) return;
+        persistedWatermark = watermark;
+        persistedMaxLocal = local;
+        ByteBuffer buf = ByteBuffer.allocate(16).putLong(watermark).putLong(local);
+        buf.flip();
+        stateFile.write(buf, 0);
+    }
+
+    void close() throws IOException {
+        stateFile.close();
+    }
+}
@@ -0,0 +1,664 @@
+package org.unifor.p2p;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Transferência de arquivos entre peers, fora da conexão do chat.
+ *
+ * Quem envia manda um FILE_OFFER pela conexão do chat com o id da transferência,
+ * o nome, o tamanho e a porta de dados; quem recebe abre uma conexão TCP só para
+ * aquele arquivo nessa porta. Assim um arquivo de vários GB não disputa a fila
+ * de saída nem o socket das mensagens.
+ *
+ * <ul>
+ *   <li>O arquivo vai em blocos de {@link Settings#chunkBytes()} com CRC32C. Os bytes
+ *       saem com {@link FileChannel#transferTo} (sendfile) e entram com
+ *       {@link FileChannel#transferFrom}, sem passar pelo heap.</li>
+ *   <li>Controle de fluxo por créditos: quem recebe libera {@link Settings#window()}
+ *       blocos de início e mais um a cada bloco conferido.</li>
+ *   <li>Os blocos conferidos ficam num arquivo ".part" com o id da transferência.
+ *       Se a conexão cair, ou o nó reiniciar e receber a oferta de novo, a
+ *       transferência continua do último bloco conferido.</li>
+ * </ul>
+ * O id (UUID aleatório) é a única credencial para baixar o arquivo oferecido.
+ * Só se oferecem arquivos da pasta de envio ({@link Settings#outbox()}), e quem
+ * recebe só baixa depois que o usuário aceita a oferta.
+ */
+public final class FileTransfer {
+
+    // Pedido: [tamanho do id:2][id][primeiro bloco:8][créditos:4]; bloco: [índice:8][tamanho:4][crc:4][bytes]
+    private static final int CHUNK_HEADER = 16;
+    private static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+    private static final int CHECKSUM_BUFFER = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // Sessão sem nenhum byte nesse prazo é fechada (leituras bloqueantes de canal não têm timeout)
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+    private static final long RETRY_MAX_MILLIS = 30_000;
+    // Um id de transferência é um UUID (36 bytes); um pedido com mais que isso é descartado
+    private static final int MAX_ID_BYTES = 64;
+    // Ofertas esperando o usuário aceitar; além disso as novas são descartadas
+    private static final int MAX_PENDING_OFFERS = 64;
+    // Transferências encerradas (concluídas, com falha ou recusadas) ficam na lista por esse
+    // tempo e até esse número; depois saem da memória, as mais antigas primeiro
+    private static final long FINISHED_RETENTION_MILLIS = 10 * 60_000;
+    private static final int MAX_FINISHED = 100;
+
+    /**
+     * Parâmetros da transferência de arquivos (p2p.file.*).
+     *
+     * @param port       porta TCP dos dados (0 = qualquer uma livre; vai na oferta)
+     * @param chunkBytes tamanho de cada bloco com checksum
+     * @param window     blocos em trânsito antes de quem envia esperar por créditos
+     * @param directory  pasta dos arquivos recebidos, dentro do diretório de dados
+     * @param retries    reconexões seguidas sem progresso antes de desistir
+     * @param outbox     pasta de onde se pode enviar arquivos, dentro do diretório de dados
+     */
+    public record Settings(int port, int chunkBytes, int window, String directory, int retries, String outbox) {
+        public static final Settings DEFAULT = new Settings(0, 1024 * 1024, 8, "downloads", 5, "outbox");
+    }
+
+    public enum Direction {SEND, RECEIVE}
+
+    /**
+     * No recebimento, OFFERED é uma oferta esperando o usuário aceitar ou recusar (DECLINED).
+     */
+    public enum State {OFFERED, TRANSFERRING, COMPLETED, FAILED, DECLINED}
+
+    /**
+     * Retrato de uma transferência para a UI.
+     */
+    public record TransferView(String id, Direction direction, String peerId, String peerName, String name,
+                               long size, long transferred, int percent, long bytesPerSecond, State state,
+                               String file, String error) {
+    }
+
+    /**
+     * Oferta recém-registrada: o frame a mandar pela conexão do chat e o retrato da transferência.
+     */
+    record Offer(Frame frame, TransferView transfer) {
+    }
+
+    /**
+     * Avisos para o Peer, nas threads das transferências.
+     */
+    interface Listener {
+        void onOffered(TransferView transfer);
+
+        void onReceiving(TransferView transfer);
+
+        void onCompleted(TransferView transfer);
+
+        void onFailed(TransferView transfer);
+    }
+
+    private static final class Transfer {
+        final String id;
+        final Direction direction;
+        final String peerId;
+        final String peerName;
+        final String name;
+        final long size;
+        final int chunkBytes;
+        // Origem (envio) ou destino final (recebimento, definido ao concluir)
+        volatile Path path;
+        final long lastModified;
+        volatile State state = State.OFFERED;
+        volatile long transferred;
+        volatile String error;
+        volatile SocketChannel socket;
+        // Recebimento: porta de dados de quem envia (a da última oferta) e se o usuário já aceitou
+        volatile InetSocketAddress source;
+        boolean accepted;
+        volatile long lastActivity;
+        // Quando a transferência foi encerrada (0 = ainda não)
+        volatile long finishedAt;
+        // Bytes e instante do início da sessão atual, para a taxa
+        volatile long sessionStartBytes;
+        volatile long sessionStartNanos;
+
+        Transfer(String id, Direction direction, String peerId, String peerName, String name, long size,
+                 int chunkBytes, Path path, long lastModified) {
+            this.id = id;
+            this.direction = direction;
+            this.peerId = peerId;
+            this.peerName = peerName;
+            this.name = name;
+            this.size = size;
+            this.chunkBytes = chunkBytes;
+            this.path = path;
+            this.lastModified = lastModified;
+        }
+
+        long chunks() {
+            return (size + chunkBytes - 1) / chunkBytes;
+        }
+
+        int chunkLength(long index) {
+            return (int) Math.min(chunkBytes, size - index * chunkBytes);
+        }
+
+        void beginSession(SocketChannel socket, long fromBytes) {
+            this.socket = socket;
+            this.transferred = fromBytes;
+            this.sessionStartBytes = fromBytes;
+            this.sessionStartNanos = System.nanoTime();
+            this.lastActivity = System.currentTimeMillis();
+            this.state = State.TRANSFERRING;
+        }
+
+        TransferView view() {
+            long elapsed = System.nanoTime() - sessionStartNanos;
+            long rate = state == State.TRANSFERRING && elapsed > 0
+                    ? (transferred - sessionStartBytes) * 1_000_000_000L / elapsed : 0;
+            int percent = size == 0 ? 100 : (int) (transferred * 100 / size);
+            return new TransferView(id, direction, peerId, peerName, name, size, transferred, percent, rate, state,
+                    path == null ? null : path.toString(), error);
+        }
+    }
+
+    private final Settings settings;
+    private final Path directory;
+    private final Path outbox;
+    private final Listener listener;
+    private final ServerSocketChannel server;
+    private final ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private final Metrics.Counter bytesSent;
+    private final Metrics.Counter bytesReceived;
+    private final Metrics.Counter chunksRejected;
+    private volatile boolean closed;
+
+    FileTransfer(Settings settings, Path dataDir, Metrics metrics, Listener listener) throws IOException {
+        this.settings = settings;
+        this.directory = dataDir.resolve(settings.directory());
+        this.outbox = dataDir.resolve(settings.outbox());
+        Files.createDirectories(outbox);
+        this.listener = listener;
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(settings.port()));
+        bytesSent = metrics.counter("p2p_file_bytes_sent_total", "Bytes de arquivos enviados");
+        bytesReceived = metrics.counter("p2p_file_bytes_received_total", "Bytes de arquivos recebidos e conferidos");
+        chunksRejected = metrics.counter("p2p_file_chunks_rejected_total", "Blocos de arquivo com checksum errado");
+        metrics.gauge("p2p_file_transfers_active", "Transferências de arquivo em andamento",
+                () -> transfers.values().stream().filter(t -> t.state == State.TRANSFERRING).count());
+    }
+
+    void start(ScheduledExecutorService scheduler) {
+        Thread acceptor = new Thread(this::acceptLoop, "p2p-file-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        scheduler.scheduleAtFixedRate(this::closeIdle, IDLE_TIMEOUT_MILLIS / 4, IDLE_TIMEOUT_MILLIS / 4,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::expireFinished, IDLE_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS);
+        Log.info("arquivos.ouvindo", "porta", port(), "pasta", directory.toAbsolutePath(), "envio", outbox.toAbsolutePath());
+    }
+
+    int port() {
+        return server.socket().getLocalPort();
+    }
+
+    void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+        for (Transfer t : transfers.values()) {
+            closeQuietly(t.socket);
+        }
+        sessions.shutdownNow();
+    }
+
+    /**
+     * Transferências deste nó, enviadas e recebidas: as em andamento e as encerradas
+     * há pouco (ver {@link #expireFinished}).
+     */
+    List<TransferView> transfers() {
+        List<TransferView> views = new ArrayList<>();
+        for (Transfer t : transfers.values()) {
+            views.add(t.view());
+        }
+        return views;
+    }
+
+    // --- Envio ---
+
+    /**
+     * Arquivo {@code name} da pasta de envio. O caminho é resolvido (links e "..") e
+     * precisa continuar dentro dela: quem chama a API não lê nenhum outro arquivo do computador.
+     */
+    Path outboxFile(String name) throws IOException {
+        Path root = outbox.toRealPath();
+        Path file;
+        try {
+            file = root.resolve(name).toRealPath();
+        } catch (NoSuchFileException | InvalidPathException e) {
+            throw new IllegalArgumentException("Arquivo não encontrado na pasta de envio: " + name);
+        }
+        if (!file.startsWith(root) || !Files.isRegularFile(file)) {
+            throw new IllegalArgumentException("Só arquivos da pasta de envio (" + root + ") podem ser enviados");
+        }
+        return file;
+    }
+
+    /**
+     * Registra o envio do arquivo {@code name} da pasta de envio e devolve a oferta
+     * a mandar pela conexão do chat.
+     */
+    Offer offer(String peerId, String peerName, String name) throws IOException {
+        Path file = outboxFile(name);
+        Transfer t = new Transfer(UUID.randomUUID().toString(), Direction.SEND, peerId, peerName,
+                file.getFileName().toString(), Files.size(file), settings.chunkBytes(), file,
+                Files.getLastModifiedTime(file).toMillis());
+        transfers.put(t.id, t);
+        Log.info("arquivos.oferta", "id", t.id, "arquivo", file, "peer", peerId);
+        return new Offer(offerFrame(t), t.view());
+    }
+
+    /**
+     * Ofertas ainda não concluídas para o peer, reenviadas quando ele reconecta.
+     */
+    List<Frame> pendingOffers(String peerId) {
+        List<Frame> offers = new ArrayList<>();
+        for (Transfer t : transfers.values()) {
+            if (t.direction == Direction.SEND && t.peerId.equals(peerId) && t.state == State.OFFERED) {
+                offers.add(offerFrame(t));
+            }
+        }
+        return offers;
+    }
+
+    private Frame offerFrame(Transfer t) {
+        return Frame.fileOffer(t.id, t.name, t.size, t.chunkBytes, port());
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                SocketChannel socket = server.accept();
+                sessions.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) Log.error("arquivos.falha_aceitar", "erro", e.getMessage());
+            }
+        }
+    }
+
+    private void serve(SocketChannel socket) {
+        Transfer t = null;
+        try (socket) {
+            int length = readFully(socket, ByteBuffer.allocate(2)).getShort() & 0xFFFF;
+            if (length > MAX_ID_BYTES) return;
+            byte[] id = new byte[length];
+            readFully(socket, ByteBuffer.wrap(id));
+            ByteBuffer request = readFully(socket, ByteBuffer.allocate(12));
+            long next = request.getLong();
+            long credit = request.getInt();
+            // Sem crédito inicial o envio nunca começaria; um bloco negativo não existe
+            if (next < 0 || credit <= 0) {
+                Log.warn("arquivos.pedido_invalido", "bloco", next, "creditos", credit);
+                return;
+            }
+            t = transfers.get(new String(id, StandardCharsets.UTF_8));
+            if (t == null || t.direction != Direction.SEND || t.state == State.COMPLETED) return;
+            if (Files.size(t.path) != t.size || Files.getLastModifiedTime(t.path).toMillis() != t.lastModified) {
+                fail(t, "o arquivo mudou depois de oferecido");
+                return;
+            }
+            // Cada crédito depois dos iniciais confirma um bloco: o envio só termina quando todos forem conferidos
+            long confirmed = 0;
+            long chunks = t.chunks();
+            long first = Math.max(0, Math.min(next, chunks));
+            closeQuietly(t.socket);
+            t.beginSession(socket, first * t.chunkBytes);
+            Log.info("arquivos.enviando", "id", t.id, "bloco", first, "blocos", chunks);
+            ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER);
+            ByteBuffer credits = ByteBuffer.allocate(4);
+            ByteBuffer scratch = ByteBuffer.allocateDirect(CHECKSUM_BUFFER);
+            try (FileChannel file = FileChannel.open(t.path, StandardOpenOption.READ)) {
+                for (long index = first; index < chunks; index++) {
+                    while (credit == 0) {
+                        int granted = readCredit(socket, credits);
+                        credit += granted;
+                        confirmed += granted;
+                        t.lastActivity = System.currentTimeMillis();
+                    }
+                    long position = index * t.chunkBytes;
+                    int len = t.chunkLength(index);
+                    header.clear().putLong(index).putInt(len).putInt(checksum(file, position, len, scratch)).flip();
+                    writeFully(socket, header);
+                    for (long done = 0; done < len; ) {
+                        done += file.transferTo(position + done, len - done, socket);
+                        t.lastActivity = System.currentTimeMillis();
+                    }
+                    credit--;
+                    t.transferred = position + len;
+                    bytesSent.add(len);
+                }
+            }
+            while (confirmed < chunks - first) {
+                confirmed += readCredit(socket, credits);
+            }
+            complete(t);
+        } catch (IOException e) {
+            if (t != null && t.socket == socket && t.state == State.TRANSFERRING) {
+                // Quem recebe reconecta e continua do último bloco conferido
+                t.state = State.OFFERED;
+                Log.warn("arquivos.envio_interrompido", "id", t.id, "erro", e.getMessage());
+            }
+        }
+    }
+
+    // --- Recebimento ---
+
+    /**
+     * Oferta recebida de {@code peerId}, com a porta de dados em {@code address}: fica
+     * esperando o usuário aceitar ({@link #accept}). Uma oferta repetida (o remoto
+     * reconectou) retoma uma transferência já aceita, inclusive antes de este nó
+     * reiniciar (o ".part" existe), e é ignorada nos outros casos.
+     */
+    void receive(String peerId, String peerName, InetAddress address, Frame offer) throws ProtocolException {
+        String id = offer.fileOfferId();
+        long size = offer.fileOfferSize();
+        int chunkBytes = offer.fileOfferChunkBytes();
+        // O id vira nome de arquivo: só aceitamos UUIDs
+        if (chunkBytes <= 0 || chunkBytes > MAX_CHUNK_BYTES || size < 0 || !isUuid(id)) {
+            Log.warn("arquivos.oferta_invalida", "id", id, "peer", peerId);
+            return;
+        }
+        Transfer fresh = new Transfer(id, Direction.RECEIVE, peerId, peerName, safeName(offer.fileOfferName()),
+                size, chunkBytes, null, 0);
+        fresh.source = new InetSocketAddress(address, offer.fileOfferPort());
+        Transfer t = transfers.compute(id, (k, old) -> old == null || old.state == State.FAILED ? fresh : old);
+        if (t != fresh) {
+            // Ainda esperando resposta: o remoto pode ter reiniciado em outra porta
+            if (t.direction == Direction.RECEIVE && t.state == State.OFFERED) t.source = fresh.source;
+            return;
+        }
+        if (Files.exists(partFile(id))) {
+            start(t);
+            return;
+        }
+        long pending = transfers.values().stream()
+                .filter(x -> x.direction == Direction.RECEIVE && x.state == State.OFFERED).count();
+        if (pending > MAX_PENDING_OFFERS) {
+            transfers.remove(id, t);
+            Log.warn("arquivos.ofertas_demais", "id", id, "peer", peerId);
+            return;
+        }
+        Log.info("arquivos.oferta_recebida", "id", id, "arquivo", t.name, "peer", peerId);
+        listener.onOffered(t.view());
+    }
+
+    /**
+     * O usuário aceitou a oferta {@code id}: o download começa.
+     */
+    TransferView accept(String id) {
+        Transfer t = pendingOffer(id);
+        synchronized (t) {
+            if (t.accepted) throw new IllegalStateException("A oferta " + id + " já foi aceita");
+            t.accepted = true;
+        }
+        start(t);
+        return t.view();
+    }
+
+    /**
+     * O usuário recusou a oferta {@code id}; ofertas repetidas dela são ignoradas.
+     */
+    TransferView decline(String id) {
+        Transfer t = pendingOffer(id);
+        synchronized (t) {
+            if (t.accepted) throw new IllegalStateException("A oferta " + id + " já foi aceita");
+            t.finishedAt = System.currentTimeMillis();
+            t.state = State.DECLINED;
+        }
+        Log.info("arquivos.oferta_recusada", "id", id, "peer", t.peerId);
+        return t.view();
+    }
+
+    private Transfer pendingOffer(String id) {
+        Transfer t = transfers.get(id);
+        if (t == null || t.direction != Direction.RECEIVE || t.state != State.OFFERED) {
+            throw new IllegalArgumentException("Nenhuma oferta esperando resposta com id " + id);
+        }
+        return t;
+    }
+
+    private void start(Transfer t) {
+        t.accepted = true;
+        listener.onReceiving(t.view());
+        sessions.execute(() -> download(t));
+    }
+
+    private Path partFile(String id) {
+        return directory.resolve("." + id + ".part");
+    }
+
+    private void download(Transfer t) {
+        Path part = partFile(t.id);
+        int failures = 0;
+        while (!closed) {
+            long before = t.transferred;
+            try {
+                Files.createDirectories(directory);
+                try (FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    if (Files.getFileStore(directory).getUsableSpace() < t.size - file.size()) {
+                        fail(t, "sem espaço em disco para " + t.size + " bytes");
+                        return;
+                    }
+                    downloadChunks(t, file, t.source);
+                    file.force(false);
+                }
+                t.path = moveToUniqueName(part, directory.resolve(t.name));
+                complete(t);
+                return;
+            } catch (IOException e) {
+                if (closed) return;
+                failures = t.transferred > before ? 1 : failures + 1;
+                if (failures > settings.retries()) {
+                    fail(t, e.getMessage());
+                    return;
+                }
+                long wait = Math.min(RETRY_MAX_MILLIS, 1000L << (failures - 1));
+                Log.warn("arquivos.recebimento_interrompido", "id", t.id, "erro", e.getMessage());
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void downloadChunks(Transfer t, FileChannel file, InetSocketAddress source) throws IOException {
+        // O último bloco completo pode ter sido gravado sem ser conferido (queda no meio): é pedido de novo
+        long chunks = t.chunks();
+        long next = Math.max(0, Math.min(file.size() / t.chunkBytes, chunks) - 1);
+        file.truncate(next * t.chunkBytes);
+        try (SocketChannel socket = SocketChannel.open()) {
+            socket.socket().connect(source, CONNECT_TIMEOUT_MILLIS);
+            t.beginSession(socket, next * t.chunkBytes);
+            byte[] id = t.id.getBytes(StandardCharsets.UTF_8);
+            writeFully(socket, ByteBuffer.allocate(2 + id.length + 12)
+                    .putShort((short) id.length).put(id).putLong(next).putInt(settings.window()).flip());
+            ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER);
+            ByteBuffer credit = ByteBuffer.allocate(4);
+            ByteBuffer scratch = ByteBuffer.allocateDirect(CHECKSUM_BUFFER);
+            for (; next < chunks; next++) {
+                readFully(socket, header.clear());
+                long index = header.getLong();
+                int len = header.getInt();
+                int crc = header.getInt();
+                if (index != next || len != t.chunkLength(next)) {
+                    throw new IOException("bloco inesperado " + index + " (" + len + " bytes)");
+                }
+                long position = next * t.chunkBytes;
+                for (long done = 0; done < len; ) {
+                    long n = file.transferFrom(socket, position + done, len - done);
+                    if (n == 0) throw new EOFException("conexão encerrada no bloco " + index);
+                    done += n;
+                    t.lastActivity = System.currentTimeMillis();
+                }
+                if (checksum(file, position, len, scratch) != crc) {
+                    chunksRejected.inc();
+                    file.truncate(position);
+                    throw new IOException("checksum errado no bloco " + index);
+                }
+                t.transferred = position + len;
+                bytesReceived.add(len);
+                writeFully(socket, credit.clear().putInt(1).flip());
+            }
+        }
+    }
+
+    // --- Comum ---
+
+    private void complete(Transfer t) {
+        t.finishedAt = System.currentTimeMillis();
+        t.state = State.COMPLETED;
+        t.transferred = t.size;
+        t.socket = null;
+        Log.info("arquivos.concluido", "id", t.id, "bytes", t.size, "arquivo", t.path);
+        listener.onCompleted(t.view());
+    }
+
+    private void fail(Transfer t, String reason) {
+        t.error = reason;
+        t.finishedAt = System.currentTimeMillis();
+        t.state = State.FAILED;
+        t.socket = null;
+        Log.error("arquivos.falhou", "id", t.id, "erro", reason);
+        listener.onFailed(t.view());
+    }
+
+    private void closeIdle() {
+        long limit = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+        for (Transfer t : transfers.values()) {
+            SocketChannel socket = t.socket;
+            if (socket != null && t.state == State.TRANSFERRING && t.lastActivity < limit) {
+                Log.warn("arquivos.ociosa", "id", t.id, "bytes", t.transferred);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Tira da memória as transferências encerradas há mais de {@link #FINISHED_RETENTION_MILLIS}
+     * e, se ainda passarem de {@link #MAX_FINISHED}, as mais antigas. Uma oferta recusada
+     * que expirou volta a ser perguntada se o remoto a mandar de novo.
+     */
+    private void expireFinished() {
+        long limit = System.currentTimeMillis() - FINISHED_RETENTION_MILLIS;
+        List<Transfer> finished = new ArrayList<>();
+        for (Transfer t : transfers.values()) {
+            if (t.finishedAt == 0) continue;
+            if (t.finishedAt < limit) {
+                transfers.remove(t.id, t);
+            } else {
+                finished.add(t);
+            }
+        }
+        if (finished.size() > MAX_FINISHED) {
+            finished.sort(Comparator.comparingLong(t -> t.finishedAt));
+            for (Transfer t : finished.subList(0, finished.size() - MAX_FINISHED)) {
+                transfers.remove(t.id, t);
+            }
+        }
+    }
+
+    private static int checksum(FileChannel file, long position, int len, ByteBuffer scratch) throws IOException {
+        CRC32C crc = new CRC32C();
+        long end = position + len;
+        while (position < end) {
+            scratch.clear().limit((int) Math.min(scratch.capacity(), end - position));
+            int n = file.read(scratch, position);
+            if (n < 0) throw new EOFException("arquivo menor que o esperado");
+            crc.update(scratch.flip());
+            position += n;
+        }
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer readFully(SocketChannel socket, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (socket.read(buf) < 0) throw new EOFException("conexão encerrada");
+        }
+        return buf.flip();
+    }
+
+    // Créditos vêm do remoto: zero ou negativo desfaria a contagem de blocos confirmados
+    private static int readCredit(SocketChannel socket, ByteBuffer buf) throws IOException {
+        int granted = readFully(socket, buf.clear()).getInt();
+        if (granted <= 0) throw new ProtocolException("crédito inválido: " + granted);
+        return granted;
+    }
+
+    private static void writeFully(SocketChannel socket, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            socket.write(buf);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static boolean isUuid(String id) {
+        try {
+            return UUID.fromString(id).toString().equals(id);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Só o nome, sem diretórios: o nome vem do remoto e não pode escapar da pasta de recebidos.
+     */
+    private static String safeName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        base = base.replaceAll("[\\p{Cntrl}:*?\"<>|]", "_").strip();
+        return base.isEmpty() || base.equals(".") || base.equals("..") ? "arquivo" : base;
+    }
+
+    private static Path moveToUniqueName(Path source, Path target) throws IOException {
+        String name = target.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; Files.exists(target); i++) {
+            target = target.resolveSibling(stem + " (" + i + ")" + ext);
+        }
+        return Files.move(source, target);
+    }
+}
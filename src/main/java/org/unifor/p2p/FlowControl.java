@@ -0,0 +1,243 @@
+package org.unifor.p2p;
+
+import java.util.ArrayDeque;
+
+/**
+ * Limites de entrada do nó e controle de fluxo por créditos.
+ *
+ * Cada conexão tem um {@link TokenBucket} e todas dividem um balde global.
+ * Com um remoto que entende créditos (HELLO de versão 6 ou maior), quem recebe
+ * paga as fichas adiantado e concede ao remoto, num frame CREDIT, até
+ * {@code window} mensagens; o remoto só envia mensagens enquanto tem crédito e
+ * retém o resto na ordem, sem descartar. Sem fichas não há nova concessão: o
+ * remoto desacelera até a taxa configurada. Um remoto antigo não recebe
+ * créditos; suas mensagens além da taxa são descartadas (e pedidas de novo na
+ * sincronização, quando têm seq).
+ */
+public final class FlowControl {
+
+    /**
+     * Parâmetros dos limites (p2p.flow.*). Taxas em mensagens por segundo; 0 = sem limite.
+     *
+     * @param window créditos concedidos de uma vez a cada conexão
+     * @param maxHeld frames retidos por conexão esperando crédito; além disso sai o mais antigo
+     * @param maxMessageBytes tamanho máximo (UTF-8) de uma mensagem, com nome e sala
+     */
+    public record Settings(int peerRate, int peerBurst, int globalRate, int globalBurst, int window, int maxHeld,
+                           int maxMessageBytes) {
+        public static final Settings DEFAULT = new Settings(500, 1000, 2000, 4000, 512, 1024, 8192);
+    }
+
+    /**
+     * Retrato do fluxo de uma conexão, exposto em /peers.
+     *
+     * @param credits mensagens que ainda podemos enviar ao remoto
+     * @param held frames nossos esperando crédito do remoto
+     * @param outstanding mensagens que o remoto ainda pode nos enviar
+     * @param throttled o remoto está sendo limitado (sem fichas para novas concessões, ou descartes)
+     * @param dropped mensagens do remoto descartadas pelos limites
+     */
+    public record LinkStats(boolean creditBased, long credits, int held, long outstanding, boolean throttled,
+                            long dropped) {
+    }
+
+    // Frame retido e quantas mensagens ele leva
+    private record Held(Frame frame, int messages) {
+    }
+
+    private final Settings settings;
+    private final TokenBucket global;
+    private final Metrics.Counter droppedRate;
+    private final Metrics.Counter droppedTooLong;
+    private final Metrics.Counter heldDropped;
+    private final Metrics.Counter granted;
+
+    FlowControl(Settings settings, Metrics metrics) {
+        this.settings = settings;
+        this.global = new TokenBucket(settings.globalRate(), settings.globalBurst());
+        String help = "Mensagens recebidas descartadas pelos limites de entrada";
+        this.droppedRate = metrics.counter("p2p_flow_dropped_total", help, Metrics.label("motivo", "taxa"));
+        this.droppedTooLong = metrics.counter("p2p_flow_dropped_total", help, Metrics.label("motivo", "tamanho"));
+        this.heldDropped = metrics.counter("p2p_flow_held_dropped_total",
+                "Frames nossos descartados por excesso retido esperando crédito");
+        this.granted = metrics.counter("p2p_flow_credits_granted_total", "Créditos concedidos aos remotos");
+    }
+
+    Settings settings() {
+        return settings;
+    }
+
+    Link link(TransportConnection connection) {
+        return new Link(connection);
+    }
+
+    /**
+     * Se a mensagem cabe no limite de tamanho; a que não cabe é contada.
+     */
+    boolean fits(int bytes) {
+        if (bytes <= settings.maxMessageBytes()) return true;
+        droppedTooLong.inc();
+        return false;
+    }
+
+    /**
+     * Fluxo de uma conexão nos dois sentidos.
+     */
+    final class Link {
+        private final TransportConnection connection;
+        private final TokenBucket bucket = new TokenBucket(settings.peerRate(), settings.peerBurst());
+        private final ArrayDeque<Held> held = new ArrayDeque<>();
+        private volatile boolean creditBased;
+        // Saída: o que o remoto nos concedeu menos o que já enviamos
+        private long credits;
+        // Uma thread de cada vez entrega os retidos, na ordem
+        private boolean draining;
+        // Entrada: o que concedemos ao remoto menos o que ele já enviou
+        private long outstanding;
+        private volatile boolean throttled;
+        private volatile long dropped;
+
+        private Link(TransportConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * O remoto entende créditos: a partir daqui as mensagens para ele esperam
+         * concessão, e ele recebe a primeira janela.
+         */
+        void enableCredits() {
+            creditBased = true;
+            grant();
+        }
+
+        boolean creditBased() {
+            return creditBased;
+        }
+
+        // --- Saída ---
+
+        /**
+         * Envia um frame com {@code messages} mensagens (0 para um frame que só
+         * precisa manter a ordem em relação a elas, como SKIP). Sem crédito, o
+         * frame fica retido até a próxima concessão. Um frame pode deixar o
+         * crédito negativo: assim um lote maior que a janela também passa.
+         */
+        void send(Frame frame, int messages) {
+            if (!creditBased) {
+                connection.send(frame);
+                return;
+            }
+            synchronized (this) {
+                if (held.size() >= settings.maxHeld()) {
+                    // As mensagens descartadas com seq voltam pela sincronização
+                    held.poll();
+                    heldDropped.inc();
+                }
+                held.add(new Held(frame, messages));
+                if (draining) return;
+                draining = true;
+            }
+            drain();
+        }
+
+        /**
+         * Frame CREDIT recebido do remoto.
+         */
+        void onCredit(int n) {
+            synchronized (this) {
+                credits += n;
+                if (draining || held.isEmpty()) return;
+                draining = true;
+            }
+            drain();
+        }
+
+        private void drain() {
+            while (true) {
+                Held next;
+                synchronized (this) {
+                    next = held.peek();
+                    if (next == null || (next.messages() > 0 && credits <= 0)) {
+                        draining = false;
+                        return;
+                    }
+                    held.poll();
+                    credits -= next.messages();
+                }
+                // Fora do lock: com a política BLOCK o envio pode esperar a fila de saída
+                connection.send(next.frame());
+            }
+        }
+
+        // --- Entrada ---
+
+        /**
+         * Decide se {@code messages} mensagens recebidas do remoto são aceitas.
+         */
+        boolean admit(int messages) {
+            boolean accepted;
+            if (creditBased) {
+                synchronized (this) {
+                    // Tolera um lote além do crédito; mais do que isso o remoto está ignorando os créditos
+                    accepted = outstanding - messages >= -settings.window();
+                    if (accepted) outstanding -= messages;
+                }
+            } else {
+                accepted = acquire(messages) == messages;
+            }
+            if (!accepted) {
+                dropped += messages;
+                droppedRate.add(messages);
+                if (!throttled) Log.info("fluxo.limitado", "endereco", connection.remoteAddress());
+                throttled = true;
+            } else if (!creditBased) {
+                throttled = false;
+            }
+            return accepted;
+        }
+
+        /**
+         * Completa a janela do remoto com as fichas disponíveis, quando ele já
+         * gastou metade. Chamada depois de cada leitura e periodicamente.
+         */
+        void grant() {
+            if (!creditBased || !connection.isOpen()) return;
+            int want;
+            synchronized (this) {
+                want = (int) Math.max(0, settings.window() - outstanding);
+                if (want < settings.window() / 2 && !throttled) return;
+            }
+            int got = want == 0 ? 0 : acquire(want);
+            synchronized (this) {
+                outstanding += got;
+            }
+            boolean limited = got < want;
+            if (limited && !throttled) Log.info("fluxo.limitado", "endereco", connection.remoteAddress());
+            throttled = limited;
+            if (got > 0) {
+                granted.add(got);
+                connection.send(Frame.credit(got));
+            }
+        }
+
+        // Fichas do balde da conexão e do global, as duas ao mesmo tempo
+        private int acquire(int n) {
+            int local = bucket.acquireUpTo(n);
+            int both = global.acquireUpTo(local);
+            if (both < local) bucket.refund(local - both);
+            return both;
+        }
+
+        synchronized LinkStats stats() {
+            return new LinkStats(creditBased, credits, held.size(), outstanding, throttled, dropped);
+        }
+
+        synchronized int heldFrames() {
+            return held.size();
+        }
+
+        boolean throttled() {
+            return throttled;
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package org.unifor.p2p;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Unidade de envio entre peers.
+ *
+ * No modo binário cada frame vai para o fio como {@code [tipo:1][tamanho:4][payload]}.
+ * O tipo {@link Type#LINE} representa o protocolo antigo de texto (uma linha
+ * terminada por '\n') e é usado no handshake "/id:" e com peers legados.
+ */
+public final class Frame {
+
+    public static final int HEADER_SIZE = 5;
+    private static final int GOSSIP_HEADER = 1 + 1 + 8 + 8 + 2;
+    private static final int FILE_OFFER_HEADER = 8 + 4 + 2 + 2;
+    // Maior texto num campo [tamanho:2][utf8]
+    private static final int MAX_SHORT_STRING = 0xFFFF;
+
+    public enum Type {
+        LINE(0), HELLO(1), CHAT(2), ACK(3), PING(4), SYNC_REQUEST(5), SYNC_DATA(6), GOSSIP(7), FILE_OFFER(8), ROOMS(9), SKIP(10),
+        MESSAGE(11), SYNC_BATCH(12), CREDIT(13);
+
+        final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        static Type fromCode(int code) {
+            for (Type t : values()) {
+                if (t.code == code) return t;
+            }
+            return null;
+        }
+    }
+
+    private final Type type;
+    private final byte[] payload;
+
+    Frame(Type type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    public byte[] payload() {
+        return payload;
+    }
+
+    // --- Construtores por tipo ---
+
+    public static Frame line(String text) {
+        // No protocolo de linhas uma quebra de linha no meio do texto corromperia o fluxo
+        String sanitized = text.replace("\r\n", " ").replace('\n', ' ').replace('\r', ' ');
+        return new Frame(Type.LINE, sanitized.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param outboxMax  seq da última mensagem escrita por quem envia
+     * @param knownOfYou maior seq do destinatário que quem envia já tem sem lacunas (-1 = nenhuma)
+     */
+    public static Frame hello(int version, String peerId, String userName, long outboxMax, long knownOfYou) {
+        return hello(version, peerId, userName, outboxMax, knownOfYou, Map.of());
+    }
+
+    /**
+     * HELLO com as salas de interesse no fim (ver {@link #rooms}); peers antigos
+     * leem os campos por posição e ignoram o que vem depois.
+     */
+    public static Frame hello(int version, String peerId, String userName, long outboxMax, long knownOfYou,
+                              Map<String, Integer> rooms) {
+        byte[] id = shortString(peerId);
+        byte[] name = shortString(userName);
+        byte[] interest = rooms.isEmpty() ? new byte[0] : encodeRooms(rooms);
+        ByteBuffer buf = ByteBuffer.allocate(1 + 2 + id.length + 2 + name.length + 16 + interest.length);
+        buf.put((byte) version).putShort((short) id.length).put(id).putShort((short) name.length).put(name);
+        buf.putLong(outboxMax).putLong(knownOfYou).put(interest);
+        return new Frame(Type.HELLO, buf.array());
+    }
+
+    public static Frame chat(long seq, String text) {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(8 + body.length);
+        buf.putLong(seq).put(body);
+        return new Frame(Type.CHAT, buf.array());
+    }
+
+    public static Frame ack(long seq) {
+        return new Frame(Type.ACK, ByteBuffer.allocate(8).putLong(seq).array());
+    }
+
+    /**
+     * Pede ao remoto as mensagens dele com seq entre {@code from} e {@code to} (inclusive).
+     */
+    public static Frame syncRequest(long from, long to) {
+        return new Frame(Type.SYNC_REQUEST, ByteBuffer.allocate(16).putLong(from).putLong(to).array());
+    }
+
+    /**
+     * Lote de mensagens antigas {@code [quantidade:4]([seq:8][tamanho:4][utf8])*},
+     * comprimido com Deflate (histórico de texto costuma comprimir bem).
+     */
+    public static Frame syncData(List<ChatHistory.SequencedMessage> messages) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        raw.writeBytes(ByteBuffer.allocate(4).putInt(messages.size()).array());
+        for (ChatHistory.SequencedMessage m : messages) {
+            byte[] text = m.text().getBytes(StandardCharsets.UTF_8);
+            raw.writeBytes(ByteBuffer.allocate(12).putLong(m.seq()).putInt(text.length).array());
+            raw.writeBytes(text);
+        }
+        return new Frame(Type.SYNC_DATA, deflate(raw));
+    }
+
+    /**
+     * SYNC_DATA dos peers com mensagens estruturadas: {@code [quantidade:varint]([mensagem])*},
+     * com cada {@link ChatMessage} na codificação binária, comprimido com Deflate.
+     */
+    public static Frame syncBatch(List<ChatMessage> messages) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ChatMessage.putVarLong(raw, messages.size());
+        for (ChatMessage m : messages) {
+            m.writeTo(raw, ChatMessage.WIRE);
+        }
+        return new Frame(Type.SYNC_BATCH, deflate(raw));
+    }
+
+    /**
+     * Mensagem estruturada, direta ou repassada pelo gossip: {@code [ttl:1][saltos:1][mensagem]}.
+     * Com ttl 0 ninguém a repassa adiante.
+     */
+    public static Frame message(int ttl, int hops, ChatMessage message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ttl);
+        out.write(hops);
+        message.writeTo(out, ChatMessage.WIRE);
+        return new Frame(Type.MESSAGE, out.toByteArray());
+    }
+
+    private static byte[] deflate(ByteArrayOutputStream raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.size() / 2 + 16);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Mensagem repassada pelo gossip: {@code [ttl:1][saltos:1][envio pelo autor:8][seq:8][id do autor][texto]}.
+     */
+    public static Frame gossip(String originId, long seq, int ttl, int hops, long originTimestamp, String text) {
+        byte[] id = shortString(originId);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(GOSSIP_HEADER + id.length + body.length);
+        buf.put((byte) ttl).put((byte) hops).putLong(originTimestamp).putLong(seq)
+                .putShort((short) id.length).put(id).put(body);
+        return new Frame(Type.GOSSIP, buf.array());
+    }
+
+    /**
+     * Oferta de arquivo: {@code [tamanho:8][bloco:4][porta de dados:2][id][nome]}.
+     * Os bytes vão por uma conexão à parte (ver {@link FileTransfer}).
+     */
+    public static Frame fileOffer(String transferId, String name, long size, int chunkBytes, int port) {
+        byte[] id = shortString(transferId);
+        byte[] body = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(FILE_OFFER_HEADER + id.length + body.length);
+        buf.putLong(size).putInt(chunkBytes).putShort((short) port)
+                .putShort((short) id.length).put(id).put(body);
+        return new Frame(Type.FILE_OFFER, buf.array());
+    }
+
+    /**
+     * Salas de interesse de quem envia, com a distância até o assinante mais
+     * próximo: {@code [quantidade:2]([distância:1][tamanho:1][nome])*}. Substitui o anúncio anterior.
+     */
+    public static Frame rooms(Map<String, Integer> rooms) {
+        return new Frame(Type.ROOMS, encodeRooms(rooms));
+    }
+
+    /**
+     * As mensagens de quem envia com seq entre {@code from} e {@code to} (inclusive)
+     * não são para o destinatário (salas que ele não assina): não são lacunas.
+     */
+    public static Frame skip(long from, long to) {
+        return new Frame(Type.SKIP, ByteBuffer.allocate(16).putLong(from).putLong(to).array());
+    }
+
+    /**
+     * UTF-8 de um campo {@code [tamanho:2][utf8]}; o que passa do limite é cortado
+     * sem partir um caractere (um nome de usuário enorme não corrompe o frame).
+     */
+    private static byte[] shortString(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_SHORT_STRING) return bytes;
+        int end = MAX_SHORT_STRING;
+        while ((bytes[end] & 0xC0) == 0x80) end--;
+        return Arrays.copyOf(bytes, end);
+    }
+
+    private static byte[] encodeRooms(Map<String, Integer> rooms) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(rooms.size() >>> 8);
+        out.write(rooms.size());
+        rooms.forEach((room, distance) -> {
+            byte[] name = room.getBytes(StandardCharsets.UTF_8);
+            out.write(distance);
+            out.write(name.length);
+            out.writeBytes(name);
+        });
+        return out.toByteArray();
+    }
+
+    /**
+     * O remoto pode nos enviar mais {@code credits} mensagens.
+     */
+    public static Frame credit(int credits) {
+        return new Frame(Type.CREDIT, ByteBuffer.allocate(4).putInt(credits).array());
+    }
+
+    public static Frame ping(long timestamp, boolean reply) {
+        ByteBuffer buf = ByteBuffer.allocate(9);
+        buf.put((byte) (reply ? 1 : 0)).putLong(timestamp);
+        return new Frame(Type.PING, buf.array());
+    }
+
+    // --- Leitura dos campos ---
+    // O payload vem do remoto: cada leitura confere os tamanhos e, se o frame
+    // não tiver o formato do tipo, lança ProtocolException (a conexão é fechada).
+
+    /**
+     * Texto de um frame LINE, CHAT ou GOSSIP.
+     */
+    public String text() throws ProtocolException {
+        int offset = switch (type) {
+            case CHAT -> require(8);
+            case GOSSIP -> stringEnd(GOSSIP_HEADER - 2);
+            default -> 0;
+        };
+        return new String(payload, offset, payload.length - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Número de sequência de um CHAT ou ACK.
+     */
+    public long seq() throws ProtocolException {
+        require(8);
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    public int helloVersion() throws ProtocolException {
+        require(1);
+        return payload[0];
+    }
+
+    public String helloPeerId() throws ProtocolException {
+        return string(1);
+    }
+
+    public String helloUserName() throws ProtocolException {
+        return string(stringEnd(1));
+    }
+
+    /**
+     * seq do último envio do remoto, ou -1 se o HELLO não traz os campos de sincronização.
+     */
+    public long helloOutboxMax() throws ProtocolException {
+        int at = helloSyncOffset();
+        return payload.length >= at + 16 ? ByteBuffer.wrap(payload).getLong(at) : -1;
+    }
+
+    public long helloKnownOfYou() throws ProtocolException {
+        int at = helloSyncOffset();
+        return payload.length >= at + 16 ? ByteBuffer.wrap(payload).getLong(at + 8) : -1;
+    }
+
+    private int helloSyncOffset() throws ProtocolException {
+        return stringEnd(stringEnd(1));
+    }
+
+    /**
+     * Salas de um ROOMS, ou do fim de um HELLO (vazio se o remoto não conhece salas).
+     */
+    public Map<String, Integer> rooms() throws ProtocolException {
+        int offset = type == Type.HELLO ? helloSyncOffset() + 16 : 0;
+        Map<String, Integer> rooms = new HashMap<>();
+        if (payload.length < offset + 2) return rooms;
+        int count = ByteBuffer.wrap(payload).getShort(offset) & 0xFFFF;
+        int at = offset + 2;
+        for (int i = 0; i < count; i++) {
+            require(at + 2);
+            int distance = payload[at] & 0xFF;
+            int len = payload[at + 1] & 0xFF;
+            require(at + 2 + len);
+            rooms.put(new String(payload, at + 2, len, StandardCharsets.UTF_8), distance);
+            at += 2 + len;
+        }
+        return rooms;
+    }
+
+    /**
+     * Início do intervalo de um SYNC_REQUEST ou SKIP.
+     */
+    public long syncFrom() throws ProtocolException {
+        require(16);
+        return ByteBuffer.wrap(payload).getLong(0);
+    }
+
+    public long syncTo() throws ProtocolException {
+        require(16);
+        return ByteBuffer.wrap(payload).getLong(8);
+    }
+
+    /**
+     * Descomprime um SYNC_DATA; o tamanho descomprimido é limitado ao de um frame.
+     */
+    public List<ChatHistory.SequencedMessage> syncMessages() throws DataFormatException, ProtocolException {
+        ByteBuffer buf = inflate();
+        if (buf.remaining() < 4) throw truncated();
+        int count = buf.getInt();
+        if (count < 0) throw new ProtocolException(type + " inválido");
+        List<ChatHistory.SequencedMessage> messages = new ArrayList<>(Math.min(count, 4096));
+        for (int i = 0; i < count; i++) {
+            if (buf.remaining() < 12) throw truncated();
+            long seq = buf.getLong();
+            int len = buf.getInt();
+            if (len < 0 || len > buf.remaining()) throw truncated();
+            messages.add(new ChatHistory.SequencedMessage(seq, new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8)));
+            buf.position(buf.position() + len);
+        }
+        return messages;
+    }
+
+    /**
+     * Descomprime um SYNC_BATCH, com o mesmo limite do SYNC_DATA.
+     */
+    public List<ChatMessage> batchMessages() throws DataFormatException, ProtocolException {
+        ByteBuffer buf = inflate();
+        try {
+            long count = ChatMessage.getVarLong(buf);
+            List<ChatMessage> messages = new ArrayList<>((int) Math.min(Math.max(count, 0), 4096));
+            for (long i = 0; i < count; i++) {
+                messages.add(ChatMessage.readFrom(buf, ChatMessage.WIRE));
+            }
+            return messages;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw invalid(e);
+        }
+    }
+
+    private ByteBuffer inflate() throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(payload);
+        byte[] chunk = new byte[8192];
+        // O payload vem do remoto: o buffer cresce com o que de fato sai, até o limite conferido abaixo
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(chunk.length);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException(type + " truncado");
+                }
+                raw.write(chunk, 0, n);
+                if (raw.size() > WireCodec.MAX_FRAME_SIZE) throw new DataFormatException(type + " grande demais");
+            }
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(raw.toByteArray());
+    }
+
+    /**
+     * Mensagem de um frame MESSAGE.
+     */
+    public ChatMessage message() throws ProtocolException {
+        require(2);
+        try {
+            // Os campos da mensagem são varints: quem confere os tamanhos é a própria decodificação
+            return ChatMessage.readFrom(ByteBuffer.wrap(payload, 2, payload.length - 2), ChatMessage.WIRE);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw invalid(e);
+        }
+    }
+
+    /**
+     * TTL de um GOSSIP ou MESSAGE.
+     */
+    public int gossipTtl() throws ProtocolException {
+        require(2);
+        return payload[0];
+    }
+
+    public int gossipHops() throws ProtocolException {
+        require(2);
+        return payload[1];
+    }
+
+    public long gossipTimestamp() throws ProtocolException {
+        require(GOSSIP_HEADER);
+        return ByteBuffer.wrap(payload).getLong(2);
+    }
+
+    public long gossipSeq() throws ProtocolException {
+        require(GOSSIP_HEADER);
+        return ByteBuffer.wrap(payload).getLong(10);
+    }
+
+    public String gossipOriginId() throws ProtocolException {
+        return string(GOSSIP_HEADER - 2);
+    }
+
+    public long fileOfferSize() throws ProtocolException {
+        require(FILE_OFFER_HEADER);
+        return ByteBuffer.wrap(payload).getLong(0);
+    }
+
+    public int fileOfferChunkBytes() throws ProtocolException {
+        require(FILE_OFFER_HEADER);
+        return ByteBuffer.wrap(payload).getInt(8);
+    }
+
+    public int fileOfferPort() throws ProtocolException {
+        require(FILE_OFFER_HEADER);
+        return ByteBuffer.wrap(payload).getShort(12) & 0xFFFF;
+    }
+
+    public String fileOfferId() throws ProtocolException {
+        return string(FILE_OFFER_HEADER - 2);
+    }
+
+    public String fileOfferName() throws ProtocolException {
+        int offset = stringEnd(FILE_OFFER_HEADER - 2);
+        return new String(payload, offset, payload.length - offset, StandardCharsets.UTF_8);
+    }
+
+    public boolean pingIsReply() throws ProtocolException {
+        require(9);
+        return payload[0] == 1;
+    }
+
+    public long pingTimestamp() throws ProtocolException {
+        require(9);
+        return ByteBuffer.wrap(payload, 1, 8).getLong();
+    }
+
+    /**
+     * Créditos concedidos por um CREDIT.
+     */
+    public int credits() throws ProtocolException {
+        require(4);
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    /**
+     * Texto {@code [tamanho:2][utf8]} que começa em {@code at}.
+     */
+    private String string(int at) throws ProtocolException {
+        int end = stringEnd(at);
+        return new String(payload, at + 2, end - at - 2, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Posição logo depois do texto {@code [tamanho:2][utf8]} que começa em {@code at}.
+     */
+    private int stringEnd(int at) throws ProtocolException {
+        require(at + 2);
+        int len = ByteBuffer.wrap(payload).getShort(at) & 0xFFFF;
+        return require(at + 2 + len);
+    }
+
+    /**
+     * Garante que o payload tem pelo menos {@code length} bytes; retorna {@code length}.
+     */
+    private int require(int length) throws ProtocolException {
+        if (payload.length < length) throw truncated();
+        return length;
+    }
+
+    private ProtocolException truncated() {
+        return new ProtocolException(type + " truncado (" + payload.length + " bytes)");
+    }
+
+    private ProtocolException invalid(RuntimeException cause) {
+        String detail = cause instanceof BufferUnderflowException ? "truncado" : cause.getMessage();
+        ProtocolException e = new ProtocolException(type + " inválido: " + detail);
+        e.initCause(cause);
+        return e;
+    }
+
+    // --- Codificação ---
+
+    /**
+     * Quantidade de bytes que o frame ocupa no fio.
+     */
+    int encodedLength() {
+        return type == Type.LINE ? payload.length + 1 : HEADER_SIZE + payload.length;
+    }
+
+    void writeTo(ByteBuffer out) {
+        if (type == Type.LINE) {
+            out.put(payload).put((byte) '\n');
+        } else {
+            out.put((byte) type.code).putInt(payload.length).put(payload);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.unifor.p2p;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Regras do repasse de mensagens em várias etapas (gossip).
+ *
+ * Cada mensagem é identificada pelo peer que a escreveu e pelo seq de autor
+ * dela. Quem a recebe pela primeira vez a entrega e repassa para até
+ * {@link Settings#fanout()} vizinhos sorteados, com o TTL decrementado; cópias
+ * repetidas são reconhecidas por uma janela de ids vistos recentemente e
+ * descartadas. Assim um nó alcança o grupo inteiro sem conexão direta com todos.
+ */
+public final class GossipRouter {
+
+    /**
+     * Parâmetros do gossip (p2p.gossip.*).
+     *
+     * @param ttl               quantos repasses uma mensagem pode sofrer (0 = só vizinhos diretos)
+     * @param fanout            vizinhos sorteados a cada repasse
+     * @param dedupCapacity     máximo de ids lembrados
+     * @param dedupWindowMillis por quanto tempo um id é lembrado
+     */
+    public record Settings(int ttl, int fanout, int dedupCapacity, long dedupWindowMillis) {
+        public static final Settings DEFAULT = new Settings(8, 4, 65536, 300_000);
+    }
+
+    /**
+     * Números do gossip desde que o nó subiu.
+     *
+     * @param duplicateRatio fração das mensagens recebidas que eram cópias
+     * @param avgLatencyMillis tempo médio entre o envio pelo autor e a chegada aqui
+     */
+    public record GossipStats(long originated, long delivered, long duplicates, long relayed,
+                              double duplicateRatio, double avgLatencyMillis, long maxLatencyMillis,
+                              double avgHops) {
+    }
+
+    private final Settings settings;
+    // Ids vistos, em ordem de chegada (a mais antiga sai primeiro)
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<>();
+    private final LongAdder originated = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder relayed = new LongAdder();
+    private final LongAdder latencySum = new LongAdder();
+    private final LongAdder hopsSum = new LongAdder();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    GossipRouter(Settings settings) {
+        this.settings = settings;
+    }
+
+    Settings settings() {
+        return settings;
+    }
+
+    /**
+     * Registra o id e diz se é a primeira vez que ele aparece dentro da janela.
+     */
+    boolean firstSeen(String originId, long seq) {
+        String id = originId + ':' + seq;
+        long now = System.currentTimeMillis();
+        synchronized (seen) {
+            Iterator<Map.Entry<String, Long>> it = seen.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (seen.size() < settings.dedupCapacity() && now - eldest.getValue() < settings.dedupWindowMillis()) {
+                    break;
+                }
+                it.remove();
+            }
+            return seen.putIfAbsent(id, now) == null;
+        }
+    }
+
+    /**
+     * Sorteia até {@code fanout} destinos entre os candidatos.
+     */
+    <T> List<T> pickTargets(List<T> candidates) {
+        if (candidates.size() <= settings.fanout()) return candidates;
+        List<T> shuffled = new ArrayList<>(candidates);
+        Collections.shuffle(shuffled, ThreadLocalRandom.current());
+        return shuffled.subList(0, settings.fanout());
+    }
+
+    void recordOriginated() {
+        originated.increment();
+    }
+
+    void recordDelivery(long originTimestamp, int hops) {
+        long latency = Math.max(0, System.currentTimeMillis() - originTimestamp);
+        delivered.increment();
+        latencySum.add(latency);
+        hopsSum.add(hops);
+        maxLatency.accumulateAndGet(latency, Math::max);
+    }
+
+    void recordDuplicate() {
+        duplicates.increment();
+    }
+
+    void recordRelayed(int count) {
+        relayed.add(count);
+    }
+
+    GossipStats stats() {
+        long d = delivered.sum();
+        long dup = duplicates.sum();
+        return new GossipStats(originated.sum(), d, dup, relayed.sum(),
+                d + dup == 0 ? 0 : (double) dup / (d + dup),
+                d == 0 ? 0 : (double) latencySum.sum() / d, maxLatency.get(),
+                d == 0 ? 0 : (double) hopsSum.sum() / d);
+    }
+}
@@ -0,0 +1,235 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manutenção do histórico em segundo plano, a cada {@code intervalMillis}:
+ * comprime os segmentos fechados de todos os logs, aplica a retenção
+ * ({@link ChatHistory.Compaction}) apagando segmentos fechados inteiros e, por
+ * fim, apaga do {@link MessageStore} os segmentos para os quais nenhuma
+ * conversa aponta mais.
+ *
+ * Só mexe em segmentos fechados: a thread de escrita continua gravando no
+ * segmento ativo de cada log durante toda a passada.
+ */
+final class HistoryCompactor {
+
+    private final ChatHistory history;
+    private final MessageStore store;
+    private final ChatHistory.Compaction settings;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "p2p-history-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    // Menor referência de cada segmento fechado de conversa (não muda depois de fechado)
+    private Map<Path, Long> minRefs = new HashMap<>();
+    private volatile long diskBytes;
+    private final Metrics.Counter compressed;
+    private final Metrics.Counter saved;
+    private final Metrics.Counter dropped;
+    private final Metrics.Histogram duration;
+
+    HistoryCompactor(ChatHistory history, MessageStore store, ChatHistory.Compaction settings, Metrics metrics) {
+        this.history = history;
+        this.store = store;
+        this.settings = settings;
+        this.compressed = metrics.counter("p2p_history_compressed_segments_total", "Segmentos do histórico comprimidos");
+        this.saved = metrics.counter("p2p_history_compaction_saved_bytes_total", "Bytes economizados pela compressão");
+        this.dropped = metrics.counter("p2p_history_retention_dropped_total",
+                "Registros apagados pela retenção (conversas e log compartilhado)");
+        this.duration = metrics.histogram("p2p_history_compaction_seconds", "Duração de cada passada de compactação");
+        metrics.gauge("p2p_history_disk_bytes", "Bytes em disco do histórico, medidos na última compactação",
+                () -> diskBytes);
+    }
+
+    void start() {
+        if (settings.intervalMillis() <= 0) return;
+        timer.scheduleWithFixedDelay(this::runSafely, settings.intervalMillis(), settings.intervalMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        timer.shutdown();
+        try {
+            // Uma passada em andamento termina antes de os logs serem fechados
+            timer.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runSafely() {
+        long start = System.nanoTime();
+        try {
+            runOnce();
+        } catch (IOException | RuntimeException e) {
+            Log.error("historico.falha_compactar", "erro", e.getMessage());
+        } finally {
+            duration.recordSince(start);
+        }
+    }
+
+    /**
+     * Uma passada completa.
+     */
+    void runOnce() throws IOException {
+        Map<String, HistoryLog> logs = history.allLogs();
+        if (settings.compress()) {
+            for (HistoryLog log : logs.values()) {
+                compress(log);
+            }
+            compress(store.log());
+        }
+        for (Map.Entry<String, HistoryLog> e : logs.entrySet()) {
+            retain(e.getKey(), e.getValue());
+        }
+        collectStore(logs);
+        if (settings.maxTotalBytes() > 0) {
+            retainTotal(logs);
+        }
+        diskBytes = total(logs);
+    }
+
+    private void compress(HistoryLog log) throws IOException {
+        for (HistoryLog.Sealed segment : log.sealed()) {
+            if (segment.compressed()) continue;
+            saved.add(log.compress(segment.base(), settings.blockBytes()));
+            compressed.inc();
+        }
+    }
+
+    /**
+     * Limites por conversa: idade, bytes e mensagens.
+     */
+    private void retain(String peer, HistoryLog log) throws IOException {
+        long records = log.nextSeq() - log.firstSeq();
+        long bytes = log.sizeBytes();
+        long expiredBefore = settings.maxAgeMillis() > 0 ? System.currentTimeMillis() - settings.maxAgeMillis() : 0;
+        long removed = 0;
+        for (HistoryLog.Sealed segment : log.sealed()) {
+            boolean expired = segment.modifiedMillis() < expiredBefore;
+            boolean tooMany = settings.maxPeerMessages() > 0 && records - segment.records() >= settings.maxPeerMessages();
+            boolean tooBig = settings.maxPeerBytes() > 0 && bytes - segment.bytes() >= settings.maxPeerBytes();
+            if (!expired && !tooMany && !tooBig) break;
+            removed += log.dropOldest();
+            records -= segment.records();
+            bytes -= segment.bytes();
+        }
+        if (removed > 0) {
+            dropped.add(removed);
+            Log.info("historico.retencao", "conversa", peer, "mensagens", removed);
+        }
+    }
+
+    /**
+     * Limite global: apaga o segmento fechado mais antigo entre todas as conversas
+     * até o histórico inteiro caber, recolhendo o log compartilhado a cada vez. O
+     * total é medido uma vez e descontado do que cada passo apaga.
+     */
+    private void retainTotal(Map<String, HistoryLog> logs) throws IOException {
+        long total = total(logs);
+        while (total > settings.maxTotalBytes()) {
+            String oldestPeer = null;
+            HistoryLog.Sealed oldest = null;
+            for (Map.Entry<String, HistoryLog> e : logs.entrySet()) {
+                List<HistoryLog.Sealed> sealed = e.getValue().sealed();
+                if (sealed.isEmpty()) continue;
+                HistoryLog.Sealed first = sealed.get(0);
+                if (oldest == null || first.modifiedMillis() < oldest.modifiedMillis()) {
+                    oldest = first;
+                    oldestPeer = e.getKey();
+                }
+            }
+            // Só restam segmentos ativos
+            if (oldest == null) break;
+            long removed = logs.get(oldestPeer).dropOldest();
+            dropped.add(removed);
+            Log.info("historico.retencao", "conversa", oldestPeer, "mensagens", removed);
+            total -= oldest.bytes() + collectStore(logs);
+        }
+    }
+
+    private long total(Map<String, HistoryLog> logs) throws IOException {
+        long bytes = store.log().sizeBytes();
+        for (HistoryLog log : logs.values()) {
+            bytes += log.sizeBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Apaga os segmentos do log compartilhado abaixo da menor referência das
+     * conversas. O piso vai para o store antes da segunda contagem: uma gravação
+     * que ainda reaproveitava uma mensagem antiga já está nos logs depois do
+     * {@link ChatHistory#flush}, e as seguintes não reaproveitam mais.
+     *
+     * @return bytes apagados do log compartilhado
+     */
+    private long collectStore(Map<String, HistoryLog> logs) throws IOException {
+        HistoryLog storeLog = store.log();
+        List<HistoryLog.Sealed> sealed = storeLog.sealed();
+        if (sealed.isEmpty()) return 0;
+        long cutoff = minRef(logs);
+        if (cutoff <= storeLog.firstSeq()) return 0;
+        store.retireBelow(cutoff);
+        history.flush();
+        // Conversas abertas nesse meio tempo também contam
+        cutoff = Math.min(cutoff, minRef(history.allLogs()));
+        long removed = 0;
+        long bytes = 0;
+        for (HistoryLog.Sealed segment : sealed) {
+            if (segment.base() + segment.records() > cutoff) break;
+            removed += storeLog.dropOldest();
+            bytes += segment.bytes();
+        }
+        if (removed > 0) {
+            dropped.add(removed);
+            Log.info("historico.retencao", "conversa", "store", "mensagens", removed);
+        }
+        return bytes;
+    }
+
+    /**
+     * Menor referência ao log compartilhado entre todos os logs de conversa (e o
+     * outbox), ou o fim do log compartilhado se nenhum aponta para ele.
+     */
+    private long minRef(Map<String, HistoryLog> logs) throws IOException {
+        long min = store.log().nextSeq();
+        Map<Path, Long> cache = new HashMap<>();
+        for (HistoryLog log : logs.values()) {
+            for (HistoryLog.Sealed segment : log.sealed()) {
+                Long segmentMin = minRefs.get(segment.path());
+                if (segmentMin == null) {
+                    segmentMin = minRef(log, segment.base(), segment.base() + segment.records());
+                }
+                cache.put(segment.path(), segmentMin);
+                min = Math.min(min, segmentMin);
+            }
+            min = Math.min(min, minRef(log, log.activeBase(), log.nextSeq()));
+        }
+        minRefs = cache;
+        return min;
+    }
+
+    private static long minRef(HistoryLog log, long from, long to) throws IOException {
+        long min = Long.MAX_VALUE;
+        for (long seq = Math.max(from, log.firstSeq()); seq < to; ) {
+            List<byte[]> batch = log.read(seq, (int) Math.min(4096, to - seq));
+            if (batch.isEmpty()) break;
+            for (byte[] payload : batch) {
+                long ref = ChatHistory.storeRef(payload);
+                if (ref >= 0) min = Math.min(min, ref);
+            }
+            seq += batch.size();
+        }
+        return min;
+    }
+}
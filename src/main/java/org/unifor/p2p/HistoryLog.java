@@ -0,0 +1,733 @@
+package org.unifor.p2p;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Log de histórico de uma conversa (peer local x peer remoto), só de acréscimo,
+ * dividido em segmentos de tamanho limitado.
+ *
+ * Cada segmento se chama {@code <seq-base>.log}, onde seq-base é o número do seu
+ * primeiro registro, e guarda registros {@code [tamanho:4][crc32:4][payload]}.
+ * Ao lado dele, {@code <seq-base>.idx} é um índice esparso com uma entrada
+ * {@code [seq relativo:4][posição:4]} a cada {@link #INDEX_INTERVAL} registros, lido
+ * via memory-map; assim uma página do histórico é lida sem varrer o segmento inteiro.
+ *
+ * Um segmento fechado pode ser trocado ({@link #compress}) por {@code <seq-base>.zlog}:
+ * os mesmos registros em blocos comprimidos com Deflate,
+ * {@code [tamanho original:4][tamanho comprimido:4][crc32 original:4][dados]}, e
+ * {@code <seq-base>.zidx} com uma entrada {@code [seq relativo:4][posição:4]} por
+ * bloco. Uma leitura descomprime só os blocos que toca.
+ *
+ * Só a thread de escrita do {@link ChatHistory} chama {@link #append}; leituras
+ * podem vir de qualquer thread e enxergam até o último append concluído. Uma
+ * leitura do segmento ativo segura a trava de leitura de {@code rollLock}, e a
+ * troca de segmento (que fecha o canal antigo) espera por ela. Cada segmento
+ * fechado é mapeado em memória uma vez e o mapeamento é reaproveitado pelas
+ * leituras seguintes. Só o {@link HistoryCompactor} comprime e apaga segmentos
+ * fechados; uma leitura que perde o arquivo no meio procura o segmento de novo.
+ *
+ * As posições dentro de um segmento são ints: o tamanho de segmento vai até
+ * {@link #MAX_SEGMENT_BYTES}.
+ */
+final class HistoryLog {
+
+    static final int RECORD_HEADER = 8;
+    static final int INDEX_INTERVAL = 64;
+    private static final int INDEX_ENTRY = 8;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String COMPRESSED_SUFFIX = ".zlog";
+    private static final String COMPRESSED_INDEX_SUFFIX = ".zidx";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BLOCK_HEADER = 12;
+    static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    /**
+     * Segmento fechado (nunca o ativo), para compactação e retenção.
+     *
+     * @param modifiedMillis hora da última gravação no segmento
+     */
+    record Sealed(long base, long records, long bytes, long modifiedMillis, boolean compressed, Path path) {
+    }
+
+    /**
+     * Recebe cada registro lido; retorna false para interromper a leitura.
+     */
+    interface RecordVisitor {
+        boolean visit(long relSeq, int position, byte[] payload);
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final NavigableMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+    // Índices dos segmentos fechados (.idx ou .zidx), mapeados em memória sob demanda
+    private final Map<Path, MappedByteBuffer> sealedIndexes = new ConcurrentHashMap<>();
+    // Segmentos fechados (.log ou .zlog) mapeados inteiros, sob demanda
+    private final Map<Path, MappedByteBuffer> sealedMaps = new ConcurrentHashMap<>();
+    // Leituras do segmento ativo (leitura) x troca e fechamento do canal dele (escrita)
+    private final ReentrantReadWriteLock rollLock = new ReentrantReadWriteLock();
+    private FileChannel active;
+    private FileChannel activeIndexFile;
+    private volatile ActiveIndex activeIndex = new ActiveIndex();
+    private volatile long activeBase;
+    private volatile long activeSize;
+    private volatile long nextSeq;
+    private boolean dirty;
+
+    private HistoryLog(Path dir, long segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Abre (ou cria) o log e faz a varredura de recuperação do último segmento:
+     * um registro incompleto ou com CRC inválido no final (escrita interrompida
+     * por queda do processo) é truncado, e o índice do segmento é refeito.
+     */
+    static HistoryLog open(Path dir, long segmentBytes) throws IOException {
+        if (segmentBytes <= 0 || segmentBytes > MAX_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("Tamanho de segmento inválido: " + segmentBytes
+                    + " (de 1 a " + MAX_SEGMENT_BYTES + " bytes)");
+        }
+        Files.createDirectories(dir);
+        HistoryLog log = new HistoryLog(dir, segmentBytes);
+        List<Path> plain = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.toList()) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(COMPRESSED_SUFFIX + TEMP_SUFFIX) || name.endsWith(COMPRESSED_INDEX_SUFFIX + TEMP_SUFFIX)) {
+                    // Compressão interrompida: o segmento original continua valendo
+                    Files.delete(p);
+                } else if (name.endsWith(COMPRESSED_SUFFIX)) {
+                    log.segments.put(baseOf(p), p);
+                    Files.deleteIfExists(segmentPath(dir, baseOf(p), INDEX_SUFFIX));
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    plain.add(p);
+                }
+            }
+        }
+        for (Path p : plain) {
+            if (log.segments.putIfAbsent(baseOf(p), p) != null) {
+                // Queda entre terminar a versão comprimida e apagar a original
+                Files.delete(p);
+                Files.deleteIfExists(segmentPath(dir, baseOf(p), INDEX_SUFFIX));
+            }
+        }
+        if (log.segments.isEmpty() || isCompressed(log.segments.lastEntry().getValue())) {
+            // O segmento ativo é sempre um .log
+            long base = log.segments.isEmpty() ? 0 : log.countEnd(log.segments.lastKey());
+            log.segments.put(base, segmentPath(dir, base, SEGMENT_SUFFIX));
+        }
+        Map.Entry<Long, Path> last = log.segments.lastEntry();
+        log.activeBase = last.getKey();
+        log.active = FileChannel.open(last.getValue(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long fileSize = log.active.size();
+        ActiveIndex index = new ActiveIndex();
+        long[] count = new long[1];
+        long valid = scan(log.active, 0, fileSize, 0, (rel, pos, payload) -> {
+            if (rel % INDEX_INTERVAL == 0) index.add(rel, pos);
+            count[0]++;
+            return true;
+        });
+        if (valid < fileSize) {
+            Log.warn("historico.final_incompleto", "arquivo", last.getValue(), "bytes_truncados", fileSize - valid);
+            log.active.truncate(valid);
+            log.active.force(true);
+        }
+        log.active.position(valid);
+        log.activeSize = valid;
+        log.nextSeq = log.activeBase + count[0];
+
+        // O índice do segmento ativo é sempre refeito a partir da varredura
+        log.activeIndexFile = FileChannel.open(segmentPath(dir, log.activeBase, INDEX_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        log.activeIndexFile.write(index.toBuffer());
+        log.activeIndex = index;
+        return log;
+    }
+
+    /**
+     * Acrescenta os payloads em ordem, com uma única escrita por segmento tocado.
+     */
+    void append(List<byte[]> payloads) throws IOException {
+        int i = 0;
+        while (i < payloads.size()) {
+            if (activeSize > 0 && activeSize + RECORD_HEADER + payloads.get(i).length > segmentBytes) {
+                roll();
+            }
+            // Junta todos os registros que ainda cabem no segmento ativo
+            long room = Math.max(segmentBytes - activeSize, RECORD_HEADER + payloads.get(i).length);
+            int size = 0;
+            int end = i;
+            while (end < payloads.size() && size + RECORD_HEADER + payloads.get(end).length <= room) {
+                size += RECORD_HEADER + payloads.get(end).length;
+                end++;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            ActiveIndex index = activeIndex;
+            int indexed = index.size;
+            for (int j = i; j < end; j++) {
+                long rel = nextSeq - activeBase + (j - i);
+                if (rel % INDEX_INTERVAL == 0) index.add(rel, (int) (activeSize + buf.position()));
+                writeRecord(buf, payloads.get(j));
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                active.write(buf);
+            }
+            if (index.size > indexed) {
+                activeIndexFile.write(index.toBuffer(indexed));
+            }
+            activeSize += size;
+            nextSeq += end - i;
+            dirty = true;
+            i = end;
+        }
+    }
+
+    /**
+     * Força os dados do segmento ativo para o disco, se houver algo pendente.
+     */
+    void sync() throws IOException {
+        if (dirty) {
+            active.force(false);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Número que o próximo registro vai receber (= total de registros já gravados).
+     */
+    long nextSeq() {
+        return nextSeq;
+    }
+
+    long firstSeq() {
+        return segments.firstKey();
+    }
+
+    long activeBase() {
+        return activeBase;
+    }
+
+    /**
+     * Lê até {@code max} registros a partir de {@code fromSeq}, usando o índice
+     * esparso para começar perto do registro pedido.
+     */
+    List<byte[]> read(long fromSeq, int max) throws IOException {
+        List<byte[]> out = new ArrayList<>();
+        long seq = Math.max(fromSeq, firstSeq());
+        long end = nextSeq;
+        while (out.size() < max && seq < end) {
+            Map.Entry<Long, Path> segment = segments.floorEntry(seq);
+            if (segment == null) {
+                // O começo do log foi apagado pela retenção durante a leitura
+                if (seq >= firstSeq()) break;
+                seq = firstSeq();
+                continue;
+            }
+            long base = segment.getKey();
+            int before = out.size();
+            try {
+                if (!readActive(base, seq, max, out)) {
+                    Path path = segment.getValue();
+                    MappedByteBuffer map = sealedMap(path);
+                    if (isCompressed(path)) {
+                        readCompressed(path, map, seq - base, max, out);
+                    } else {
+                        long[] entry = indexLookup(path, seq - base);
+                        int from = (int) entry[1];
+                        scan(map.slice(from, map.limit() - from), from, entry[0],
+                                collect(seq - base - entry[0], max, out));
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // Comprimido ou apagado no meio da leitura: procura o segmento de novo
+                if (segment.getValue().equals(segments.get(base))) throw e;
+                continue;
+            }
+            if (out.size() == before) break; // segmento truncado ou removido no meio da leitura
+            seq += out.size() - before;
+        }
+        return out;
+    }
+
+    /**
+     * Lê do segmento ativo sob a trava de leitura: o roll não fecha o canal no meio.
+     *
+     * @return false se {@code base} não é (mais) o segmento ativo
+     */
+    private boolean readActive(long base, long seq, int max, List<byte[]> out) throws IOException {
+        rollLock.readLock().lock();
+        try {
+            if (base != activeBase) return false;
+            long[] entry = activeIndex.floor(seq - base);
+            scan(active, entry[1], activeSize, entry[0], collect(seq - base - entry[0], max, out));
+            return true;
+        } finally {
+            rollLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Mapeamento do segmento fechado inteiro, criado na primeira leitura. Quem lê
+     * usa só acessos absolutos ou um slice próprio.
+     */
+    private MappedByteBuffer sealedMap(Path segment) throws IOException {
+        MappedByteBuffer map = sealedMaps.get(segment);
+        if (map != null) return map;
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        MappedByteBuffer raced = sealedMaps.putIfAbsent(segment, map);
+        if (!segment.equals(segments.get(baseOf(segment)))) {
+            // Comprimido ou apagado enquanto mapeava: não guarda o mapeamento do arquivo velho
+            sealedMaps.remove(segment);
+        }
+        return raced != null ? raced : map;
+    }
+
+    private void readCompressed(Path segment, ByteBuffer map, long rel, int max, List<byte[]> out) throws IOException {
+        long[] entry = indexLookup(segment, rel);
+        RecordVisitor visitor = collect(rel - entry[0], max, out);
+        int position = (int) entry[1];
+        while (position < map.limit() && out.size() < max) {
+            if (map.limit() - position < BLOCK_HEADER) throw new IOException("Bloco truncado em " + segment);
+            int rawLength = map.getInt(position);
+            int length = map.getInt(position + 4);
+            int expected = map.getInt(position + 8);
+            if (length < 0 || length > map.limit() - position - BLOCK_HEADER) {
+                throw new IOException("Bloco truncado em " + segment);
+            }
+            byte[] raw = inflate(map.slice(position + BLOCK_HEADER, length), rawLength);
+            CRC32 crc = new CRC32();
+            crc.update(raw);
+            if ((int) crc.getValue() != expected) throw new IOException("Bloco corrompido em " + segment);
+            scan(ByteBuffer.wrap(raw), 0, 0, visitor);
+            position += BLOCK_HEADER + length;
+        }
+    }
+
+    /**
+     * Lê todos os registros do log, do mais antigo ao mais novo.
+     */
+    List<byte[]> readAll() throws IOException {
+        return read(firstSeq(), Integer.MAX_VALUE);
+    }
+
+    void close() throws IOException {
+        rollLock.writeLock().lock();
+        try {
+            sync();
+            active.close();
+            activeIndexFile.close();
+        } finally {
+            rollLock.writeLock().unlock();
+        }
+        sealedMaps.clear();
+    }
+
+    // --- Compactação e retenção (só a thread do HistoryCompactor) ---
+
+    /**
+     * Segmentos fechados, do mais antigo ao mais novo.
+     */
+    List<Sealed> sealed() throws IOException {
+        List<Sealed> out = new ArrayList<>();
+        for (Map.Entry<Long, Path> e : segments.headMap(activeBase, false).entrySet()) {
+            Path path = e.getValue();
+            out.add(new Sealed(e.getKey(), segments.higherKey(e.getKey()) - e.getKey(), Files.size(path),
+                    Files.getLastModifiedTime(path).toMillis(), isCompressed(path), path));
+        }
+        return out;
+    }
+
+    /**
+     * Bytes em disco dos segmentos (sem os índices).
+     */
+    long sizeBytes() throws IOException {
+        long bytes = activeSize;
+        for (Sealed s : sealed()) {
+            bytes += s.bytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Troca um segmento fechado pela versão comprimida em blocos de até
+     * {@code blockBytes} (sem partir registros). A versão nova é gravada em
+     * arquivos temporários, vai para o disco e só então substitui a original.
+     *
+     * @return bytes economizados
+     */
+    long compress(long base, int blockBytes) throws IOException {
+        Path segment = segments.get(base);
+        if (segment == null || base >= activeBase || isCompressed(segment)) return 0;
+        Path target = segmentPath(dir, base, COMPRESSED_SUFFIX);
+        Path targetIndex = segmentPath(dir, base, COMPRESSED_INDEX_SUFFIX);
+        Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+        Path tempIndex = targetIndex.resolveSibling(targetIndex.getFileName() + TEMP_SUFFIX);
+        FileTime modified = Files.getLastModifiedTime(segment);
+        long original;
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel outIndex = FileChannel.open(tempIndex, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            original = in.size();
+            // Início (seq relativo, posição) de cada bloco
+            List<long[]> blocks = new ArrayList<>();
+            long end = scan(in, 0, original, 0, (rel, pos, payload) -> {
+                long[] last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+                if (last == null || pos + RECORD_HEADER + payload.length - last[1] > blockBytes) {
+                    blocks.add(new long[]{rel, pos});
+                }
+                return true;
+            });
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            ByteBuffer index = ByteBuffer.allocate(blocks.size() * INDEX_ENTRY);
+            Deflater deflater = new Deflater();
+            try {
+                long position = 0;
+                for (int i = 0; i < blocks.size(); i++) {
+                    int from = (int) blocks.get(i)[1];
+                    int to = i + 1 < blocks.size() ? (int) blocks.get(i + 1)[1] : (int) end;
+                    byte[] raw = new byte[to - from];
+                    map.get(from, raw);
+                    byte[] packed = deflate(deflater, raw);
+                    CRC32 crc = new CRC32();
+                    crc.update(raw);
+                    ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER + packed.length);
+                    block.putInt(raw.length).putInt(packed.length).putInt((int) crc.getValue()).put(packed).flip();
+                    writeFully(out, block);
+                    index.putInt((int) blocks.get(i)[0]).putInt((int) position);
+                    position += block.limit();
+                }
+            } finally {
+                deflater.end();
+            }
+            writeFully(outIndex, index.flip());
+            out.force(true);
+            outIndex.force(true);
+        }
+        // O .zlog no lugar é o ponto de confirmação: o índice vai antes
+        Files.move(tempIndex, targetIndex, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        Files.setLastModifiedTime(target, modified);
+        segments.put(base, target);
+        Path oldIndex = segmentPath(dir, base, INDEX_SUFFIX);
+        sealedMaps.remove(segment);
+        sealedIndexes.remove(oldIndex);
+        deleteQuietly(segment);
+        deleteQuietly(oldIndex);
+        return original - Files.size(target);
+    }
+
+    /**
+     * Apaga o segmento fechado mais antigo (retenção). Leituras que já abriram o
+     * arquivo terminam normalmente.
+     *
+     * @return registros apagados (0 se só resta o segmento ativo)
+     */
+    long dropOldest() throws IOException {
+        Map.Entry<Long, Path> first = segments.firstEntry();
+        if (first.getKey() >= activeBase) return 0;
+        long records = segments.higherKey(first.getKey()) - first.getKey();
+        segments.remove(first.getKey());
+        sealedMaps.remove(first.getValue());
+        Path index = indexPathOf(first.getValue());
+        sealedIndexes.remove(index);
+        deleteQuietly(first.getValue());
+        deleteQuietly(index);
+        return records;
+    }
+
+    /**
+     * Seq logo após o último registro de um segmento comprimido (o próximo a ser gravado).
+     */
+    private long countEnd(long base) throws IOException {
+        Path segment = segments.get(base);
+        long records = 0;
+        int chunk = 4096;
+        while (true) {
+            // Só usado na abertura, antes de haver segmento ativo
+            List<byte[]> out = new ArrayList<>();
+            readCompressed(segment, sealedMap(segment), records, chunk, out);
+            records += out.size();
+            if (out.size() < chunk) return base + records;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Sobra um arquivo que a próxima abertura ignora ou apaga
+            Log.warn("historico.falha_apagar", "arquivo", file, "erro", e.getMessage());
+        }
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 16);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(ByteBuffer packed, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(packed);
+        byte[] raw = new byte[rawLength];
+        try {
+            int n = 0;
+            while (n < rawLength) {
+                int read = inflater.inflate(raw, n, rawLength - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Bloco comprimido truncado");
+                }
+                n += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bloco comprimido inválido", e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    private void roll() throws IOException {
+        active.force(false);
+        activeIndexFile.force(false);
+        long base = nextSeq;
+        Path path = segmentPath(dir, base, SEGMENT_SUFFIX);
+        FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileChannel nextIndex = FileChannel.open(segmentPath(dir, base, INDEX_SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        // Espera as leituras do segmento que está fechando; as seguintes o leem como segmento fechado
+        rollLock.writeLock().lock();
+        try {
+            active.close();
+            activeIndexFile.close();
+            active = next;
+            activeIndexFile = nextIndex;
+            activeIndex = new ActiveIndex();
+            activeSize = 0;
+            dirty = false;
+            segments.put(base, path);
+            activeBase = base;
+        } finally {
+            rollLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Maior entrada do índice de um segmento fechado com seq relativo <= {@code rel}.
+     *
+     * @return {seq relativo da entrada, posição no segmento (ou do bloco, se comprimido)}
+     */
+    private long[] indexLookup(Path segment, long rel) throws IOException {
+        Path idxPath = indexPathOf(segment);
+        MappedByteBuffer idx = sealedIndexes.get(idxPath);
+        if (idx == null) {
+            idx = mapSealedIndex(segment, idxPath);
+        }
+        int lo = 0;
+        int hi = idx.limit() / INDEX_ENTRY - 1;
+        long[] best = {0, 0};
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int entryRel = idx.getInt(mid * INDEX_ENTRY);
+            if (entryRel <= rel) {
+                best = new long[]{entryRel, idx.getInt(mid * INDEX_ENTRY + 4)};
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return best;
+    }
+
+    private MappedByteBuffer mapSealedIndex(Path segment, Path idxPath) throws IOException {
+        if (!isCompressed(segment) && !Files.exists(idxPath)) {
+            // Segmento sem índice (versão anterior ou arquivo apagado): refaz a partir dos registros
+            ActiveIndex rebuilt = new ActiveIndex();
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                scan(ch, 0, ch.size(), 0, (rel, pos, payload) -> {
+                    if (rel % INDEX_INTERVAL == 0) rebuilt.add(rel, pos);
+                    return true;
+                });
+            }
+            Files.write(idxPath, rebuilt.toBuffer().array());
+        }
+        try (FileChannel ch = FileChannel.open(idxPath, StandardOpenOption.READ)) {
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            sealedIndexes.put(idxPath, map);
+            return map;
+        }
+    }
+
+    private static RecordVisitor collect(long skip, int max, List<byte[]> out) {
+        long[] toSkip = {skip};
+        return (rel, pos, payload) -> {
+            if (toSkip[0] > 0) {
+                toSkip[0]--;
+                return true;
+            }
+            out.add(payload);
+            return out.size() < max;
+        };
+    }
+
+    static void writeRecord(ByteBuffer buf, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buf.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    }
+
+    /**
+     * Percorre os registros válidos de {@code [from, limit)}, entregando cada um ao
+     * visitante. Para no primeiro registro incompleto ou corrompido.
+     *
+     * @param firstRel seq relativo do registro que começa em {@code from}
+     * @return posição logo após o último registro válido visitado
+     */
+    static long scan(FileChannel ch, long from, long limit, long firstRel, RecordVisitor visitor) throws IOException {
+        if (limit <= from) return from;
+        return scan(ch.map(FileChannel.MapMode.READ_ONLY, from, limit - from), from, firstRel, visitor);
+    }
+
+    /**
+     * O mesmo, sobre registros já em memória (mapeados ou de um bloco descomprimido).
+     */
+    static long scan(ByteBuffer map, long from, long firstRel, RecordVisitor visitor) {
+        long rel = firstRel;
+        CRC32 crc = new CRC32();
+        while (map.remaining() >= RECORD_HEADER) {
+            int start = map.position();
+            int len = map.getInt();
+            int expected = map.getInt();
+            if (len < 0 || len > map.remaining()) {
+                map.position(start);
+                break;
+            }
+            byte[] payload = new byte[len];
+            map.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != expected) {
+                map.position(start);
+                break;
+            }
+            if (!visitor.visit(rel++, (int) (from + start), payload)) break;
+        }
+        return from + map.position();
+    }
+
+    private static Path segmentPath(Path dir, long base, String suffix) {
+        return dir.resolve(String.format("%020d", base) + suffix);
+    }
+
+    private static long baseOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    private static boolean isCompressed(Path segment) {
+        return segment.getFileName().toString().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    private static Path indexPathOf(Path segment) {
+        String name = segment.getFileName().toString();
+        String suffix = isCompressed(segment) ? COMPRESSED_INDEX_SUFFIX : INDEX_SUFFIX;
+        return segment.resolveSibling(name.substring(0, name.indexOf('.')) + suffix);
+    }
+
+    /**
+     * Índice esparso do segmento ativo em memória. Só a thread de escrita
+     * acrescenta; leitores veem um prefixo consistente (array publicado antes do tamanho).
+     */
+    private static final class ActiveIndex {
+        private volatile long[] entries = new long[16];
+        private volatile int size;
+
+        void add(long rel, int position) {
+            long[] e = entries;
+            if (size == e.length) {
+                e = Arrays.copyOf(e, e.length * 2);
+            }
+            e[size] = (rel << 32) | (position & 0xFFFFFFFFL);
+            entries = e;
+            size = size + 1;
+        }
+
+        long[] floor(long rel) {
+            int n = size;
+            long[] e = entries;
+            int lo = 0;
+            int hi = n - 1;
+            long[] best = {0, 0};
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long entryRel = e[mid] >>> 32;
+                if (entryRel <= rel) {
+                    best = new long[]{entryRel, e[mid] & 0xFFFFFFFFL};
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return best;
+        }
+
+        ByteBuffer toBuffer() {
+            return toBuffer(0);
+        }
+
+        ByteBuffer toBuffer(int from) {
+            ByteBuffer buf = ByteBuffer.allocate((size - from) * INDEX_ENTRY);
+            for (int i = from; i < size; i++) {
+                buf.putInt((int) (entries[i] >>> 32)).putInt((int) entries[i]);
+            }
+            buf.flip();
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.unifor.p2p;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Relógio lógico híbrido (HLC): milissegundos do relógio de parede nos 48 bits
+ * altos e um contador nos 16 baixos, num único long.
+ *
+ * Cada evento local recebe um valor maior que o anterior e nunca menor que o
+ * relógio de parede; ao receber uma mensagem o relógio avança além do valor
+ * dela. Assim, se uma mensagem foi escrita depois de o autor ter visto outra,
+ * o HLC dela é maior, mesmo com os relógios dos peers um pouco fora de sincronia.
+ */
+final class Hlc {
+
+    static final int LOGICAL_BITS = 16;
+    // Um remoto com o relógio adiantado além disto não arrasta o nosso
+    private static final long MAX_DRIFT_MILLIS = 60_000;
+
+    private final AtomicLong last = new AtomicLong();
+    private final LongSupplier wallClock;
+
+    Hlc() {
+        this(System::currentTimeMillis);
+    }
+
+    Hlc(LongSupplier wallClock) {
+        this.wallClock = wallClock;
+    }
+
+    /**
+     * Valor para um evento local (mensagem escrita aqui).
+     */
+    long now() {
+        long wall = fromMillis(wallClock.getAsLong());
+        return last.accumulateAndGet(wall, (prev, w) -> Math.max(prev + 1, w));
+    }
+
+    /**
+     * Avança o relógio além do HLC de uma mensagem recebida e devolve o HLC com que
+     * ela entra na ordem: o dela, ou o de agora se o relógio do autor está adiantado
+     * além da deriva permitida (senão ela ficaria à frente de tudo o que for escrito
+     * até o nosso relógio alcançar o dele).
+     */
+    long update(long remote) {
+        long wallMillis = wallClock.getAsLong();
+        if (millis(remote) > wallMillis + MAX_DRIFT_MILLIS) return now();
+        long wall = fromMillis(wallMillis);
+        last.accumulateAndGet(remote, (prev, r) -> Math.max(Math.max(prev, r) + 1, wall));
+        return remote;
+    }
+
+    /**
+     * Maior HLC aceito agora: o relógio de parede mais a deriva permitida.
+     */
+    long ceiling() {
+        return fromMillis(wallClock.getAsLong() + MAX_DRIFT_MILLIS + 1) - 1;
+    }
+
+    static long fromMillis(long millis) {
+        return millis << LOGICAL_BITS;
+    }
+
+    static long millis(long hlc) {
+        return hlc >>> LOGICAL_BITS;
+    }
+}
@@ -0,0 +1,153 @@
+package org.unifor.p2p;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log estruturado do nó: cada linha é um evento seguido de pares chave=valor,
+ * por exemplo {@code [INFO] conexao.encerrada peer=3f2a... endereco=/10.0.0.5:8083}.
+ *
+ * Quem registra só confere o nível e põe o evento numa fila; a formatação e a
+ * escrita no console (que é sincronizada e pode bloquear) ficam para a thread
+ * "p2p-log". Com a fila cheia o evento é descartado e contado, em vez de segurar
+ * as threads de rede.
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR;
+
+        public static Level parse(String value) {
+            return value == null || value.isBlank() ? INFO : valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private record Event(Level level, String name, Object[] fields) {
+    }
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Level level = Level.INFO;
+
+    static {
+        Thread t = new Thread(Log::writeLoop, "p2p-log");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean enabled(Level l) {
+        return l.ordinal() >= level.ordinal();
+    }
+
+    /**
+     * Eventos descartados por fila cheia desde que o processo subiu.
+     */
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    public static void debug(String event, Object... fields) {
+        if (enabled(Level.DEBUG)) log(Level.DEBUG, event, fields);
+    }
+
+    public static void info(String event) {
+        if (enabled(Level.INFO)) log(Level.INFO, event, null);
+    }
+
+    public static void info(String event, String k1, Object v1) {
+        if (enabled(Level.INFO)) log(Level.INFO, event, new Object[]{k1, v1});
+    }
+
+    public static void info(String event, String k1, Object v1, String k2, Object v2) {
+        if (enabled(Level.INFO)) log(Level.INFO, event, new Object[]{k1, v1, k2, v2});
+    }
+
+    public static void info(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        if (enabled(Level.INFO)) log(Level.INFO, event, new Object[]{k1, v1, k2, v2, k3, v3});
+    }
+
+    public static void warn(String event, String k1, Object v1) {
+        if (enabled(Level.WARN)) log(Level.WARN, event, new Object[]{k1, v1});
+    }
+
+    public static void warn(String event, String k1, Object v1, String k2, Object v2) {
+        if (enabled(Level.WARN)) log(Level.WARN, event, new Object[]{k1, v1, k2, v2});
+    }
+
+    public static void error(String event, String k1, Object v1) {
+        if (enabled(Level.ERROR)) log(Level.ERROR, event, new Object[]{k1, v1});
+    }
+
+    public static void error(String event, String k1, Object v1, String k2, Object v2) {
+        if (enabled(Level.ERROR)) log(Level.ERROR, event, new Object[]{k1, v1, k2, v2});
+    }
+
+    public static void error(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        if (enabled(Level.ERROR)) log(Level.ERROR, event, new Object[]{k1, v1, k2, v2, k3, v3});
+    }
+
+    /**
+     * Escreve o que estiver na fila (usado ao encerrar o nó).
+     */
+    public static void flush() {
+        Event e;
+        while ((e = queue.poll()) != null) {
+            write(e);
+        }
+    }
+
+    private static void log(Level l, String event, Object[] fields) {
+        if (!queue.offer(new Event(l, event, fields))) dropped.increment();
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            try {
+                Event e = queue.poll(1, TimeUnit.SECONDS);
+                if (e != null) write(e);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void write(Event e) {
+        StringBuilder line = new StringBuilder(96);
+        line.append('[').append(tag(e.level())).append("] ").append(e.name());
+        Object[] fields = e.fields();
+        if (fields != null) {
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                line.append(' ').append(fields[i]).append('=');
+                String value = String.valueOf(fields[i + 1]);
+                // Valores com espaço entre aspas, para a linha continuar fácil de separar
+                if (value.indexOf(' ') >= 0 || value.isEmpty()) {
+                    line.append('"').append(value.replace("\"", "\\\"")).append('"');
+                } else {
+                    line.append(value);
+                }
+            }
+        }
+        PrintStream out = e.level() == Level.ERROR ? System.err : System.out;
+        out.println(line);
+    }
+
+    private static String tag(Level l) {
+        return switch (l) {
+            case DEBUG -> "DEBUG";
+            case INFO -> "INFO";
+            case WARN -> "AVISO";
+            case ERROR -> "ERRO";
+        };
+    }
+}
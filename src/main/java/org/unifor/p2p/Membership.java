@@ -0,0 +1,664 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tabela de membros da rede, com descoberta por multicast e detecção de falhas
+ * no estilo SWIM.
+ *
+ * <ul>
+ *   <li>Cada nó se anuncia no grupo multicast a cada {@link Settings#announceIntervalMillis()}
+ *       (com variação aleatória, para os nós não anunciarem todos juntos).</li>
+ *   <li>A cada {@link Settings#probeIntervalMillis()} um membro é sondado por UDP (PING/ACK),
+ *       em rodízio. Sem resposta no prazo, {@link Settings#indirectProbes()} outros membros
+ *       tentam por nós (PING_REQ); se ninguém conseguir, o membro fica suspeito.</li>
+ *   <li>Um suspeito que não se manifestar em {@link Settings#suspectTimeoutMillis()} é dado
+ *       como morto e removido. Quem descobre que é suspeito aumenta a sua encarnação e
+ *       avisa que está vivo.</li>
+ * </ul>
+ * As mudanças de estado viajam de carona nos PING/ACK. O tratamento dos pacotes
+ * só mexe na tabela em memória; conectar por TCP fica a cargo do {@link Listener}.
+ */
+public final class Membership {
+
+    private static final byte MAGIC = 'S';
+    private static final byte ANNOUNCE = 1;
+    private static final byte PING = 2;
+    private static final byte ACK = 3;
+    private static final byte PING_REQ = 4;
+    private static final int MAX_PACKET = 1400;
+    // Atualizações de estado levadas de carona em cada pacote
+    private static final int PIGGYBACK = 6;
+    private static final long ADDRESS_REFRESH_MILLIS = 30_000;
+    private static final long TOMBSTONE_MILLIS = 60_000;
+
+    /**
+     * Parâmetros da tabela de membros (p2p.membership.*).
+     *
+     * @param multicastGroup grupo dos anúncios; nós em grupos (ou portas) diferentes não se enxergam
+     * @param multicastPort  porta UDP dos anúncios (0 = sem multicast: os membros vêm só das conexões)
+     */
+    public record Settings(String multicastGroup, int multicastPort, long announceIntervalMillis,
+                           long probeIntervalMillis, long probeTimeoutMillis, int indirectProbes,
+                           long suspectTimeoutMillis) {
+        public static final Settings DEFAULT = new Settings("230.0.0.0", 4446, 5000, 1000, 300, 3, 5000);
+
+        boolean multicast() {
+            return multicastPort > 0 && multicastGroup != null && !multicastGroup.isBlank();
+        }
+    }
+
+    public enum State {ALIVE, SUSPECT, DEAD}
+
+    /**
+     * Retrato de um membro para a UI.
+     */
+    public record MemberView(String peerId, String userName, String address, int tcpPort, State state,
+                             long incarnation, long lastHeardMillisAgo) {
+    }
+
+    /**
+     * Avisos para o Peer. Chamados nas threads da tabela: não devem bloquear.
+     */
+    interface Listener {
+        void onMemberJoined(String peerId, String userName, InetAddress address, int tcpPort);
+
+        void onMemberFailed(String peerId, String userName);
+
+        // Anúncio "DISCOVER:porta:nome" de um peer sem a tabela de membros
+        void onLegacyDiscovery(InetAddress address, int tcpPort, String userName);
+    }
+
+    private static final class Member {
+        final String peerId;
+        String userName;
+        InetAddress address;
+        int tcpPort;
+        int udpPort;
+        long incarnation;
+        State state = State.ALIVE;
+        long lastHeard;
+        long suspectedAt;
+
+        Member(String peerId) {
+            this.peerId = peerId;
+        }
+    }
+
+    /**
+     * Mudança de estado a disseminar, reenviada algumas vezes.
+     */
+    private static final class Update {
+        final Member member;
+        int remaining;
+
+        Update(Member member, int remaining) {
+            this.member = member;
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * Sondagem em andamento, esperando o ACK de número {@code seq}.
+     */
+    private static final class Probe {
+        final String targetId;
+        // Para PING_REQ: a quem repassar o ACK e com qual número
+        final SocketAddress requester;
+        final long requesterSeq;
+        volatile boolean acked;
+
+        Probe(String targetId, SocketAddress requester, long requesterSeq) {
+            this.targetId = targetId;
+            this.requester = requester;
+            this.requesterSeq = requesterSeq;
+        }
+    }
+
+    private final String peerId;
+    private final String userName;
+    private final int tcpPort;
+    private final Settings settings;
+    private final Listener listener;
+    // null com o multicast desligado
+    private final MulticastSocket multicastSocket;
+    private final InetSocketAddress group;
+    private final DatagramChannel channel;
+    private final Map<String, Member> members = new HashMap<>();
+    // Membros removidos (id -> encarnação em que morreram), esquecidos depois de TOMBSTONE_MILLIS
+    private final Map<String, Long> tombstones = new HashMap<>();
+    private final Map<String, Long> tombstoneTimes = new HashMap<>();
+    private final Deque<Update> updates = new ArrayDeque<>();
+    private final Map<Long, Probe> probes = new java.util.concurrent.ConcurrentHashMap<>();
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final List<String> probeOrder = new ArrayList<>();
+    private volatile Set<InetAddress> localAddresses = Set.of();
+    private volatile long incarnation = System.currentTimeMillis();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "p2p-membership-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    Membership(String peerId, String userName, int tcpPort, Settings settings, Listener listener) throws IOException {
+        this.peerId = peerId;
+        this.userName = userName;
+        this.tcpPort = tcpPort;
+        this.settings = settings;
+        this.listener = listener;
+
+        // NOVO: Inicia o socket UDP para descoberta de peers
+        if (settings.multicast()) {
+            this.group = new InetSocketAddress(InetAddress.getByName(settings.multicastGroup()), settings.multicastPort());
+            this.multicastSocket = new MulticastSocket(settings.multicastPort());
+            this.multicastSocket.joinGroup(group.getAddress());
+            Log.info("descoberta.grupo", "endereco", settings.multicastGroup() + ":" + settings.multicastPort());
+        } else {
+            this.group = null;
+            this.multicastSocket = null;
+            Log.info("descoberta.desligada");
+        }
+
+        // Sondagens vão por unicast, de preferência na mesma porta do chat
+        this.channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(tcpPort));
+        } catch (SocketException e) {
+            channel.bind(new InetSocketAddress(0));
+        }
+        refreshLocalAddresses();
+    }
+
+    void start() {
+        if (multicastSocket != null) {
+            Thread discovery = new Thread(this::listenForDiscoveryPackets, "p2p-discovery");
+            discovery.setDaemon(true);
+            discovery.start();
+            scheduleAnnounce();
+        }
+        Thread receiver = new Thread(this::receiveLoop, "p2p-membership");
+        receiver.setDaemon(true);
+        receiver.start();
+        timer.scheduleAtFixedRate(this::probeRound, settings.probeIntervalMillis(), settings.probeIntervalMillis(),
+                TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(this::refreshLocalAddresses, ADDRESS_REFRESH_MILLIS, ADDRESS_REFRESH_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        timer.shutdownNow();
+        if (multicastSocket != null) multicastSocket.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error("membros.falha_fechar", "erro", e.getMessage());
+        }
+    }
+
+    /**
+     * Envia um "anúncio" para a rede, avisando sobre sua presença. Com {@code legacy}
+     * vai também o "DISCOVER:porta:nome" entendido pelos peers antigos.
+     */
+    void announce(boolean legacy) {
+        if (multicastSocket == null) return;
+        try {
+            if (legacy) {
+                byte[] buf = ("DISCOVER:" + tcpPort + ":" + userName).getBytes(StandardCharsets.UTF_8);
+                multicastSocket.send(new DatagramPacket(buf, buf.length, group));
+            }
+            ByteBuffer packet = packet(ANNOUNCE, 0);
+            multicastSocket.send(new DatagramPacket(packet.array(), packet.limit(), group));
+        } catch (IOException e) {
+            Log.error("descoberta.falha_enviar", "erro", e.getMessage());
+        }
+    }
+
+    List<MemberView> members() {
+        long now = System.currentTimeMillis();
+        List<MemberView> views = new ArrayList<>();
+        synchronized (members) {
+            for (Member m : members.values()) {
+                views.add(new MemberView(m.peerId, m.userName, m.address.getHostAddress(), m.tcpPort, m.state,
+                        m.incarnation, now - m.lastHeard));
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Sonda um nó com quem acabamos de abrir conexão, para os dois entrarem na
+     * tabela um do outro mesmo sem multicast (a sondagem assume que o UDP dele
+     * está na mesma porta do chat; se não estiver, nada acontece).
+     */
+    void contact(InetSocketAddress node) {
+        try {
+            send(PING, nextSeq.incrementAndGet(), node);
+        } catch (IOException e) {
+            Log.debug("membros.falha_contato", "endereco", node, "erro", e.getMessage());
+        }
+    }
+
+    /**
+     * Endereço TCP de escuta do membro, ou null se ele não está na tabela.
+     */
+    InetSocketAddress address(String memberId) {
+        synchronized (members) {
+            Member m = members.get(memberId);
+            return m == null ? null : new InetSocketAddress(m.address, m.tcpPort);
+        }
+    }
+
+    /**
+     * Se o endereço é de uma interface desta máquina (conjunto atualizado periodicamente,
+     * em vez de listar as interfaces a cada pacote).
+     */
+    boolean isLocalAddress(InetAddress address) {
+        return address.isLoopbackAddress() || localAddresses.contains(address);
+    }
+
+    private void refreshLocalAddresses() {
+        Set<InetAddress> addresses = new HashSet<>();
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                addresses.addAll(Collections.list(networkInterface.getInetAddresses()));
+            }
+            localAddresses = addresses;
+        } catch (SocketException e) {
+            Log.error("descoberta.falha_enderecos", "erro", e.getMessage());
+        }
+    }
+
+    private void scheduleAnnounce() {
+        // +-20% para que nós iniciados juntos não anunciem sempre ao mesmo tempo
+        long base = settings.announceIntervalMillis();
+        long delay = base + ThreadLocalRandom.current().nextLong(-base / 5, base / 5 + 1);
+        timer.schedule(() -> {
+            announce(false);
+            scheduleAnnounce();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // --- Recepção ---
+
+    private void listenForDiscoveryPackets() {
+        byte[] buf = new byte[MAX_PACKET];
+        while (!multicastSocket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                multicastSocket.receive(packet); // Espera por um "anúncio"
+                if (packet.getLength() > 0 && buf[0] == MAGIC) {
+                    handle(ByteBuffer.wrap(buf, 0, packet.getLength()), packet.getAddress(), null);
+                    continue;
+                }
+                String received = new String(buf, 0, packet.getLength(), StandardCharsets.UTF_8);
+                // Formato do anúncio antigo: "DISCOVER:tcpPort:username"
+                if (received.startsWith("DISCOVER:")) {
+                    String[] parts = received.split(":", 3);
+                    int peerTcpPort = Integer.parseInt(parts[1]);
+                    InetAddress address = packet.getAddress();
+                    if (!(peerTcpPort == tcpPort && isLocalAddress(address))) {
+                        listener.onLegacyDiscovery(address, peerTcpPort, parts[2]);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!multicastSocket.isClosed()) Log.error("descoberta.falha_receber", "erro", e.getMessage());
+            }
+        }
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET);
+        while (channel.isOpen()) {
+            try {
+                buf.clear();
+                SocketAddress from = channel.receive(buf);
+                buf.flip();
+                if (from instanceof InetSocketAddress source && buf.remaining() > 0 && buf.get(0) == MAGIC) {
+                    handle(buf, source.getAddress(), source);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                Log.error("membros.pacote_invalido", "erro", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Trata um pacote binário. Só atualiza a tabela e responde por UDP; nunca
+     * abre conexões nem faz I/O bloqueante.
+     */
+    private void handle(ByteBuffer buf, InetAddress sourceAddress, SocketAddress replyTo) throws IOException {
+        buf.get(); // MAGIC
+        byte type = buf.get();
+        long seq = buf.getLong();
+        Member sender = readMember(buf, sourceAddress);
+        if (sender.peerId.equals(peerId)) return; // o próprio anúncio, de volta pelo multicast
+        if (sender.address == null) sender.address = sourceAddress;
+        Member target = type == PING_REQ ? readMember(buf, sourceAddress) : null;
+        int count = buf.get();
+        // O remetente está vivo agora: isso vale como uma atualização ALIVE dele
+        apply(sender.peerId, sender.userName, sender.address, sender.tcpPort, sender.udpPort,
+                sender.incarnation, State.ALIVE, true);
+        for (int i = 0; i < count; i++) {
+            Member m = readMember(buf, sourceAddress);
+            apply(m.peerId, m.userName, m.address, m.tcpPort, m.udpPort, m.incarnation, m.state, false);
+        }
+        if (replyTo == null) return; // anúncio multicast
+        switch (type) {
+            case PING -> send(ACK, seq, replyTo);
+            case ACK -> {
+                Probe probe = probes.remove(seq);
+                if (probe != null) {
+                    probe.acked = true;
+                    // Sondagem feita a pedido de outro membro: repassa o ACK a ele
+                    if (probe.requester != null) send(ACK, probe.requesterSeq, probe.requester);
+                }
+            }
+            case PING_REQ -> {
+                if (target != null && target.address != null && !target.peerId.equals(peerId)) {
+                    long mySeq = nextSeq.incrementAndGet();
+                    Probe probe = new Probe(target.peerId, replyTo, seq);
+                    probes.put(mySeq, probe);
+                    send(PING, mySeq, new InetSocketAddress(target.address, target.udpPort));
+                    timer.schedule(() -> probes.remove(mySeq), settings.probeIntervalMillis(), TimeUnit.MILLISECONDS);
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Aplica uma atualização com as regras de precedência do SWIM: encarnação maior
+     * vence; na mesma encarnação, SUSPECT vence ALIVE; DEAD vence tudo da mesma
+     * encarnação ou anterior.
+     *
+     * @param direct se a informação veio do próprio membro (ele está falando conosco)
+     */
+    private void apply(String id, String name, InetAddress address, int port, int udpPort, long inc, State state,
+                       boolean direct) {
+        if (id.equals(peerId)) {
+            // Alguém acha que estamos mortos ou suspeitos: refuta com uma encarnação nova
+            if (state != State.ALIVE && inc >= incarnation) {
+                incarnation = inc + 1;
+                synchronized (members) {
+                    enqueueSelf();
+                }
+            }
+            return;
+        }
+        boolean joined = false;
+        boolean failed = false;
+        Member m;
+        synchronized (members) {
+            m = members.get(id);
+            long now = System.currentTimeMillis();
+            if (m == null) {
+                Long dead = tombstones.get(id);
+                // Notícia velha de um membro já removido não o traz de volta; só ele mesmo falando conosco
+                // ou uma encarnação nova
+                if (state == State.DEAD || address == null || (dead != null && !direct && inc <= dead)) return;
+                tombstones.remove(id);
+                m = new Member(id);
+                members.put(id, m);
+                probeOrder.add(ThreadLocalRandom.current().nextInt(probeOrder.size() + 1), id);
+                joined = true;
+            } else if (!supersedes(state, inc, m)) {
+                if (direct && m.state == State.ALIVE) m.lastHeard = now;
+                return;
+            }
+            m.userName = name;
+            if (address != null) m.address = address;
+            m.tcpPort = port;
+            m.udpPort = udpPort;
+            m.incarnation = inc;
+            m.state = state;
+            if (direct) m.lastHeard = now;
+            if (state == State.SUSPECT) m.suspectedAt = now;
+            if (state == State.DEAD) {
+                members.remove(id);
+                probeOrder.remove(id);
+                tombstones.put(id, inc);
+                tombstoneTimes.put(id, now);
+                failed = true;
+            }
+            enqueue(m);
+        }
+        if (joined) listener.onMemberJoined(id, name, m.address, port);
+        if (failed) listener.onMemberFailed(id, name);
+    }
+
+    private static boolean supersedes(State state, long inc, Member current) {
+        return switch (state) {
+            case ALIVE -> inc > current.incarnation;
+            case SUSPECT -> inc > current.incarnation || (inc == current.incarnation && current.state == State.ALIVE);
+            case DEAD -> inc >= current.incarnation;
+        };
+    }
+
+    // --- Sondagem ---
+
+    /**
+     * Uma rodada: sonda o próximo membro do rodízio e vence as suspeitas antigas.
+     */
+    private void probeRound() {
+        try {
+            expireSuspects();
+            Member target = nextProbeTarget();
+            if (target == null) return;
+            long seq = nextSeq.incrementAndGet();
+            Probe probe = new Probe(target.peerId, null, 0);
+            probes.put(seq, probe);
+            try {
+                send(PING, seq, new InetSocketAddress(target.address, target.udpPort));
+            } catch (IOException e) {
+                // Rota até ele indisponível daqui: segue para as sondagens indiretas
+            }
+            timer.schedule(() -> {
+                if (probe.acked) return;
+                // Sem resposta direta: pede a outros membros que tentem (a rede até ele pode estar ruim só daqui)
+                for (Member helper : randomMembers(settings.indirectProbes(), target.peerId)) {
+                    sendPingReq(seq, helper, target);
+                }
+                timer.schedule(() -> {
+                    probes.remove(seq);
+                    if (!probe.acked) suspect(target);
+                }, Math.max(0, settings.probeIntervalMillis() - settings.probeTimeoutMillis()), TimeUnit.MILLISECONDS);
+            }, settings.probeTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            Log.error("membros.falha_sondagem", "erro", e.getMessage());
+        }
+    }
+
+    private Member nextProbeTarget() {
+        synchronized (members) {
+            if (probeOrder.isEmpty()) return null;
+            // Rodízio: o primeiro vai para o fim; todos são sondados a cada N rodadas
+            String id = probeOrder.remove(0);
+            probeOrder.add(id);
+            return members.get(id);
+        }
+    }
+
+    private List<Member> randomMembers(int k, String exclude) {
+        synchronized (members) {
+            List<Member> candidates = new ArrayList<>();
+            for (Member m : members.values()) {
+                if (m.state == State.ALIVE && !m.peerId.equals(exclude)) candidates.add(m);
+            }
+            Collections.shuffle(candidates, ThreadLocalRandom.current());
+            return candidates.subList(0, Math.min(k, candidates.size()));
+        }
+    }
+
+    private void suspect(Member target) {
+        synchronized (members) {
+            Member m = members.get(target.peerId);
+            if (m == null || m.state != State.ALIVE || m.incarnation != target.incarnation) return;
+        }
+        Log.info("membros.suspeito", "peer", target.peerId, "nome", target.userName);
+        apply(target.peerId, target.userName, target.address, target.tcpPort, target.udpPort, target.incarnation,
+                State.SUSPECT, false);
+    }
+
+    private void expireSuspects() {
+        long now = System.currentTimeMillis();
+        List<Member> expired = new ArrayList<>();
+        synchronized (members) {
+            for (Member m : members.values()) {
+                if (m.state == State.SUSPECT && now - m.suspectedAt >= settings.suspectTimeoutMillis()) expired.add(m);
+            }
+        }
+        for (Member m : expired) {
+            Log.info("membros.removido", "peer", m.peerId, "nome", m.userName);
+            apply(m.peerId, m.userName, m.address, m.tcpPort, m.udpPort, m.incarnation, State.DEAD, false);
+        }
+        synchronized (members) {
+            tombstoneTimes.entrySet().removeIf(e -> {
+                boolean old = now - e.getValue() > TOMBSTONE_MILLIS;
+                if (old) tombstones.remove(e.getKey());
+                return old;
+            });
+        }
+    }
+
+    // --- Pacotes ---
+
+    private void send(byte type, long seq, SocketAddress to) throws IOException {
+        channel.send(packet(type, seq), to);
+    }
+
+    private void sendPingReq(long seq, Member helper, Member target) {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET);
+        buf.put(MAGIC).put(PING_REQ).putLong(seq);
+        writeSelf(buf);
+        writeMember(buf, target);
+        buf.put((byte) 0);
+        buf.flip();
+        try {
+            channel.send(buf, new InetSocketAddress(helper.address, helper.udpPort));
+        } catch (IOException e) {
+            Log.error("membros.falha_sondagem_indireta", "erro", e.getMessage());
+        }
+    }
+
+    /**
+     * {@code [S][tipo:1][seq:8][remetente][quantidade:1][atualizações...]}.
+     */
+    private ByteBuffer packet(byte type, long seq) {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET);
+        buf.put(MAGIC).put(type).putLong(seq);
+        writeSelf(buf);
+        int countAt = buf.position();
+        buf.put((byte) 0);
+        int count = 0;
+        synchronized (members) {
+            Iterator<Update> it = updates.iterator();
+            List<Update> sent = new ArrayList<>();
+            while (it.hasNext() && count < PIGGYBACK && buf.remaining() > 256) {
+                Update u = it.next();
+                writeMember(buf, u.member);
+                sent.add(u);
+                count++;
+                if (--u.remaining <= 0) it.remove();
+            }
+            // Quem foi enviado vai para o fim da fila, dando vez às outras atualizações
+            for (Update u : sent) {
+                if (updates.remove(u)) updates.addLast(u);
+            }
+        }
+        buf.put(countAt, (byte) count);
+        buf.flip();
+        return buf;
+    }
+
+    private void enqueue(Member m) {
+        // Cada mudança é repetida ~3*log2(n) vezes: o bastante para alcançar todos com alta probabilidade
+        Member copy = new Member(m.peerId);
+        copy.userName = m.userName;
+        copy.address = m.address;
+        copy.tcpPort = m.tcpPort;
+        copy.udpPort = m.udpPort;
+        copy.incarnation = m.incarnation;
+        copy.state = m.state;
+        updates.removeIf(u -> u.member.peerId.equals(m.peerId));
+        updates.addFirst(new Update(copy, 3 * (32 - Integer.numberOfLeadingZeros(members.size() + 1))));
+    }
+
+    private void enqueueSelf() {
+        Member self = new Member(peerId);
+        self.userName = userName;
+        self.address = null; // cada um já conhece (ou descobre) o nosso endereço
+        self.tcpPort = tcpPort;
+        self.udpPort = channel.socket().getLocalPort();
+        self.incarnation = incarnation;
+        enqueue(self);
+    }
+
+    private void writeSelf(ByteBuffer buf) {
+        writeString(buf, peerId);
+        writeString(buf, userName);
+        writeString(buf, ""); // o endereço do remetente é o de origem do pacote
+        buf.putInt(tcpPort).putInt(channel.socket().getLocalPort()).putLong(incarnation).put((byte) State.ALIVE.ordinal());
+    }
+
+    private static void writeMember(ByteBuffer buf, Member m) {
+        writeString(buf, m.peerId);
+        writeString(buf, m.userName);
+        writeString(buf, m.address == null ? "" : m.address.getHostAddress());
+        buf.putInt(m.tcpPort).putInt(m.udpPort).putLong(m.incarnation).put((byte) m.state.ordinal());
+    }
+
+    private static Member readMember(ByteBuffer buf, InetAddress sourceAddress) throws IOException {
+        Member m = new Member(readString(buf));
+        m.userName = readString(buf);
+        String host = readString(buf);
+        // Vazio: endereço desconhecido (o do remetente é o de origem do pacote). Loopback só vale na
+        // máquina de quem mandou, então vira o endereço de origem. Sempre IP literal: sem consulta a DNS.
+        InetAddress address = host.isEmpty() ? null : InetAddress.getByName(host);
+        m.address = address != null && address.isLoopbackAddress() ? sourceAddress : address;
+        m.tcpPort = buf.getInt();
+        m.udpPort = buf.getInt();
+        m.incarnation = buf.getLong();
+        m.state = State.values()[buf.get()];
+        return m;
+    }
+
+    private static void writeString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
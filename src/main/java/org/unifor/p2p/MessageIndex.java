@@ -0,0 +1,378 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Índice invertido (termo -> mensagens) de uma conversa, para busca textual
+ * sem varrer o histórico.
+ *
+ * As mensagens novas entram numa tabela em memória; a cada {@link #FLUSH_MESSAGES}
+ * mensagens ela vira um segmento imutável {@code <seq-inicial>.fts} em
+ * {@code index/}. Cada segmento tem um dicionário de termos ordenado (busca
+ * binária direto no arquivo mapeado em memória) e, por termo, a lista de seqs
+ * das mensagens no log, codificada como diferenças em varint.
+ *
+ * O que não chegou a ir para um segmento é reindexado a partir do log na
+ * abertura; apagar {@code index/} faz o índice ser refeito por inteiro.
+ */
+final class MessageIndex {
+
+    static final int FLUSH_MESSAGES = 32768;
+    // Termos maiores que isso (hashes, URLs) não são indexados
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int MAGIC = 0x46545331; // "FTS1"
+    private static final int HEADER = 4 + 8 + 8 + 4 + 8 + 8;
+    // [posição do termo:4][tamanho do termo:2][mensagens:4][posição da lista:8][tamanho da lista:4]
+    private static final int ENTRY = 4 + 2 + 4 + 8 + 4;
+    private static final String SUFFIX = ".fts";
+
+    /**
+     * Segmento imutável mapeado em memória.
+     */
+    private record Segment(long fromSeq, long toSeq, MappedByteBuffer map, int termCount,
+                           long termsOffset, long postingsOffset) {
+    }
+
+    /**
+     * Lista de seqs crescentes de um termo na tabela em memória.
+     */
+    private static final class Postings {
+        long[] seqs = new long[4];
+        int size;
+
+        void add(long seq) {
+            if (size > 0 && seqs[size - 1] == seq) return; // termo repetido na mesma mensagem
+            if (size == seqs.length) seqs = Arrays.copyOf(seqs, size * 2);
+            seqs[size++] = seq;
+        }
+    }
+
+    private final Path dir;
+    private final List<Segment> segments = new ArrayList<>();
+    private Map<String, Postings> memtable = new HashMap<>();
+    // Seq do log a partir do qual a tabela em memória começa, e o próximo esperado
+    private long memFrom;
+    private long nextSeq;
+
+    private MessageIndex(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Abre os segmentos existentes e reindexa o final do log que ainda não estava
+     * em nenhum segmento.
+     *
+     * @param read lê os textos do log a partir de um seq, em blocos
+     */
+    static MessageIndex open(Path dir, long logEnd, Function<Long, List<String>> read) throws IOException {
+        Files.createDirectories(dir);
+        MessageIndex index = new MessageIndex(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).sorted().toList()) {
+                Segment s = map(p);
+                // Segmentos de um log maior que o atual (log apagado) não valem mais
+                if (s == null || s.toSeq() > logEnd || s.fromSeq() != index.nextSeq) {
+                    Files.deleteIfExists(p);
+                    continue;
+                }
+                index.segments.add(s);
+                index.nextSeq = s.toSeq();
+            }
+        }
+        index.memFrom = index.nextSeq;
+        index.catchUp(logEnd, read);
+        return index;
+    }
+
+    /**
+     * Indexa a mensagem de seq {@code seq} do log. Chamado pela thread de escrita
+     * do histórico, em ordem; seqs já indexados são ignorados.
+     */
+    synchronized void add(long seq, String text) throws IOException {
+        if (seq < nextSeq) return;
+        for (String term : tokenize(text)) {
+            memtable.computeIfAbsent(term, k -> new Postings()).add(seq);
+        }
+        nextSeq = seq + 1;
+        if (nextSeq - memFrom >= FLUSH_MESSAGES) flush();
+    }
+
+    /**
+     * Refaz o índice inteiro a partir do log.
+     */
+    synchronized void rebuild(long logEnd, Function<Long, List<String>> read) throws IOException {
+        segments.clear();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).toList()) {
+                Files.delete(p);
+            }
+        }
+        memtable = new HashMap<>();
+        memFrom = nextSeq = 0;
+        catchUp(logEnd, read);
+    }
+
+    private void catchUp(long logEnd, Function<Long, List<String>> read) throws IOException {
+        while (nextSeq < logEnd) {
+            List<String> texts = read.apply(nextSeq);
+            if (texts.isEmpty()) break;
+            for (String text : texts) {
+                add(nextSeq, text);
+            }
+        }
+    }
+
+    /**
+     * Seqs (do mais novo para o mais antigo, até {@code limit}) das mensagens que
+     * contêm todos os termos da consulta. Seqs abaixo de {@code minSeq} (já apagadas
+     * do log pela retenção, mas ainda no índice) não contam para o limite.
+     */
+    synchronized List<Long> search(List<String> terms, long minSeq, int limit) {
+        List<Long> hits = new ArrayList<>();
+        if (terms.isEmpty()) return hits;
+        // Tabela em memória primeiro: são as mensagens mais novas
+        long[][] lists = new long[terms.size()][];
+        for (int i = 0; i < terms.size(); i++) {
+            Postings p = memtable.get(terms.get(i));
+            if (p == null) {
+                lists = null;
+                break;
+            }
+            lists[i] = Arrays.copyOf(p.seqs, p.size);
+        }
+        boolean floor = lists != null && collectNewest(intersect(lists), minSeq, limit, hits);
+        for (int s = segments.size() - 1; s >= 0 && hits.size() < limit && !floor; s--) {
+            Segment seg = segments.get(s);
+            lists = new long[terms.size()][];
+            for (int i = 0; i < terms.size(); i++) {
+                lists[i] = postings(seg, terms.get(i));
+                if (lists[i] == null) {
+                    lists = null;
+                    break;
+                }
+            }
+            if (lists != null) floor = collectNewest(intersect(lists), minSeq, limit, hits);
+        }
+        return hits;
+    }
+
+    /**
+     * Grava a tabela em memória como um novo segmento.
+     */
+    synchronized void flush() throws IOException {
+        if (nextSeq == memFrom) return;
+        String[] terms = memtable.keySet().toArray(new String[0]);
+        byte[][] termBytes = new byte[terms.length][];
+        for (int i = 0; i < terms.length; i++) {
+            termBytes[i] = terms[i].getBytes(StandardCharsets.UTF_8);
+        }
+        Integer[] order = new Integer[terms.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        // Ordem dos bytes UTF-8, a mesma usada na busca binária
+        Arrays.sort(order, Comparator.comparing((Integer i) -> termBytes[i], Arrays::compareUnsigned));
+
+        ByteBuffer termArea = ByteBuffer.allocate(Arrays.stream(termBytes).mapToInt(b -> b.length).sum());
+        VarintBuffer postingArea = new VarintBuffer();
+        ByteBuffer entries = ByteBuffer.allocate(terms.length * ENTRY);
+        for (int i : order) {
+            Postings p = memtable.get(terms[i]);
+            int postingsPos = postingArea.size();
+            long prev = memFrom;
+            for (int k = 0; k < p.size; k++) {
+                postingArea.putVarLong(p.seqs[k] - prev);
+                prev = p.seqs[k];
+            }
+            entries.putInt(termArea.position()).putShort((short) termBytes[i].length).putInt(p.size)
+                    .putLong(postingsPos).putInt(postingArea.size() - postingsPos);
+            termArea.put(termBytes[i]);
+        }
+
+        long termsOffset = HEADER + (long) entries.capacity();
+        long postingsOffset = termsOffset + termArea.capacity();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putLong(memFrom).putLong(nextSeq).putInt(terms.length)
+                .putLong(termsOffset).putLong(postingsOffset);
+
+        Path path = dir.resolve(String.format("%020d", memFrom) + SUFFIX);
+        Path tmp = dir.resolve(path.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] parts = {header.flip(), entries.flip(), termArea.flip(), postingArea.toBuffer()};
+            while (parts[3].hasRemaining()) {
+                ch.write(parts);
+            }
+            ch.force(false);
+        }
+        // Renomeia só depois do fsync: um segmento visível está sempre completo
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        segments.add(map(path));
+        memtable = new HashMap<>();
+        memFrom = nextSeq;
+    }
+
+    private static Segment map(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER) return null;
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (map.getInt(0) != MAGIC) return null;
+            return new Segment(map.getLong(4), map.getLong(12), map, map.getInt(20), map.getLong(24), map.getLong(32));
+        }
+    }
+
+    /**
+     * Lista de seqs de um termo no segmento (busca binária no dicionário), ou null.
+     */
+    private static long[] postings(Segment seg, String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer map = seg.map().duplicate();
+        int lo = 0;
+        int hi = seg.termCount() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int entry = HEADER + mid * ENTRY;
+            int termPos = (int) seg.termsOffset() + map.getInt(entry);
+            int termLen = map.getShort(entry + 4);
+            int cmp = compare(map, termPos, termLen, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                int count = map.getInt(entry + 6);
+                map.position((int) (seg.postingsOffset() + map.getLong(entry + 10)));
+                long[] seqs = new long[count];
+                long prev = seg.fromSeq();
+                for (int k = 0; k < count; k++) {
+                    prev += VarintBuffer.getVarLong(map);
+                    seqs[k] = prev;
+                }
+                return seqs;
+            }
+        }
+        return null;
+    }
+
+    private static int compare(ByteBuffer map, int pos, int len, byte[] key) {
+        int n = Math.min(len, key.length);
+        for (int i = 0; i < n; i++) {
+            int c = Byte.toUnsignedInt(map.get(pos + i)) - Byte.toUnsignedInt(key[i]);
+            if (c != 0) return c;
+        }
+        return len - key.length;
+    }
+
+    /**
+     * Interseção de listas crescentes, começando pela menor.
+     */
+    private static long[] intersect(long[][] lists) {
+        Arrays.sort(lists, Comparator.comparingInt(l -> l.length));
+        long[] result = lists[0];
+        for (int i = 1; i < lists.length && result.length > 0; i++) {
+            long[] other = lists[i];
+            long[] out = new long[result.length];
+            int n = 0;
+            int a = 0;
+            int b = 0;
+            while (a < result.length && b < other.length) {
+                if (result[a] < other[b]) a++;
+                else if (result[a] > other[b]) b++;
+                else {
+                    out[n++] = result[a];
+                    a++;
+                    b++;
+                }
+            }
+            result = Arrays.copyOf(out, n);
+        }
+        return result;
+    }
+
+    /**
+     * @return se chegou a {@code minSeq}: os segmentos mais antigos não têm mais nada
+     */
+    private static boolean collectNewest(long[] seqs, long minSeq, int limit, List<Long> hits) {
+        for (int i = seqs.length - 1; i >= 0 && hits.size() < limit; i--) {
+            if (seqs[i] < minSeq) return true;
+            hits.add(seqs[i]);
+        }
+        return false;
+    }
+
+    /**
+     * Quebra o texto em termos: minúsculas, sem acentos, só letras e dígitos.
+     * A mesma função é usada ao indexar e ao consultar.
+     */
+    static List<String> tokenize(String text) {
+        String normalized = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(c)) {
+                current.append(c);
+            } else if (!current.isEmpty()) {
+                if (current.length() <= MAX_TERM_LENGTH) terms.add(current.toString());
+                current.setLength(0);
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * Buffer crescente para as listas codificadas em varint.
+     */
+    private static final class VarintBuffer {
+        private byte[] bytes = new byte[1024];
+        private int size;
+
+        void putVarLong(long value) {
+            if (size + 10 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+
+        static long getVarLong(ByteBuffer buf) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package org.unifor.p2p;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Log compartilhado com cada mensagem gravada uma única vez, endereçada pelo
+ * conteúdo.
+ *
+ * Os registros ficam num {@link HistoryLog} próprio; a referência de uma
+ * mensagem é o número do seu registro. Um registro é {@code [0xFF]} seguido da
+ * {@link ChatMessage} em binário, com o autor como número no dicionário
+ * {@code senders.idx} ({@code [tamanho:2][utf8]} por id, 0 = desconhecido);
+ * registros sem o 0xFF (que nunca começa um UTF-8 válido) são só o texto,
+ * gravados por versões anteriores. Ao lado do log,
+ * {@code hashes.idx} guarda, na mesma ordem, os 128 primeiros bits do SHA-256 de
+ * cada registro; na abertura ele vira uma tabela hash em memória, e o que
+ * faltar no arquivo (queda entre as duas escritas) é recalculado a partir do log.
+ *
+ * Quem grava mensagens iguais (a mesma mensagem na conversa com cada peer)
+ * recebe a mesma referência.
+ *
+ * O {@link HistoryCompactor} apaga os segmentos mais antigos quando nenhuma
+ * conversa aponta mais para eles: antes ele chama {@link #retireBelow}, e daí em
+ * diante uma mensagem igual a uma abaixo do piso é gravada de novo. As entradas
+ * abaixo do piso saem da tabela hash nessa hora, então ela acompanha o que o log
+ * ainda guarda.
+ */
+final class MessageStore {
+
+    private static final String HASHES_FILE = "hashes.idx";
+    private static final String SENDERS_FILE = "senders.idx";
+    private static final byte STRUCTURED = (byte) 0xFF;
+    private static final int HASH_ENTRY = 16;
+    // Registros lidos por vez ao recalcular hashes
+    private static final int REHASH_BATCH = 4096;
+
+    private final HistoryLog log;
+    private final FileChannel hashes;
+    private final HashTable table = new HashTable();
+    private final MessageDigest sha256;
+    private final SenderDictionary senders;
+    private volatile long deduplicated;
+    // Referências abaixo disto não são mais reaproveitadas (vão ser apagadas)
+    private volatile long floor;
+    private boolean dirty;
+
+    private MessageStore(HistoryLog log, FileChannel hashes, FileChannel senders) {
+        this.log = log;
+        this.hashes = hashes;
+        this.senders = new SenderDictionary(senders);
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MessageStore open(Path dir, long segmentBytes) throws IOException {
+        HistoryLog log = HistoryLog.open(dir, segmentBytes);
+        FileChannel hashes = FileChannel.open(dir.resolve(HASHES_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel senders = FileChannel.open(dir.resolve(SENDERS_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MessageStore store = new MessageStore(log, hashes, senders);
+        store.senders.load();
+        store.load();
+        return store;
+    }
+
+    private void load() throws IOException {
+        long first = log.firstSeq();
+        floor = first;
+        long entries = Math.min(hashes.size() / HASH_ENTRY, log.nextSeq());
+        // Entrada pela metade, ou de registros que não chegaram ao log: descarta
+        hashes.truncate(entries * HASH_ENTRY);
+        ByteBuffer buf = ByteBuffer.allocate(HASH_ENTRY * 4096);
+        long seq = 0;
+        hashes.position(0);
+        while (seq < entries) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), (entries - seq) * HASH_ENTRY));
+            while (buf.hasRemaining() && hashes.read(buf) >= 0) {
+                // lê até encher
+            }
+            buf.flip();
+            while (buf.remaining() >= HASH_ENTRY) {
+                long h = buf.getLong();
+                long l = buf.getLong();
+                // Registro já apagado pela retenção
+                if (seq >= first) table.putIfAbsent(h, l, seq);
+                seq++;
+            }
+        }
+        hashes.position(hashes.size());
+        if (seq < first) {
+            // Hashes de registros que já foram apagados: só mantêm a numeração do arquivo
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(buf.capacity(), (first - seq) * HASH_ENTRY));
+            while (seq < first) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), (first - seq) * HASH_ENTRY));
+                seq += zeros.remaining() / HASH_ENTRY;
+                while (zeros.hasRemaining()) {
+                    hashes.write(zeros);
+                }
+            }
+        }
+        if (seq < log.nextSeq()) {
+            Log.warn("historico.rehash", "mensagens", log.nextSeq() - seq);
+            while (seq < log.nextSeq()) {
+                List<byte[]> texts = log.read(seq, REHASH_BATCH);
+                if (texts.isEmpty()) break;
+                ByteBuffer out = ByteBuffer.allocate(texts.size() * HASH_ENTRY);
+                for (byte[] text : texts) {
+                    long[] h = hash(text);
+                    out.putLong(h[0]).putLong(h[1]);
+                    table.putIfAbsent(h[0], h[1], seq++);
+                }
+                out.flip();
+                while (out.hasRemaining()) {
+                    hashes.write(out);
+                }
+            }
+            hashes.force(false);
+        }
+    }
+
+    /**
+     * Referências das mensagens, na mesma ordem. As que ainda não estão no log
+     * são acrescentadas numa única escrita.
+     */
+    synchronized long[] put(List<ChatMessage> messages) throws IOException {
+        List<byte[]> records = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            records.add(encode(message));
+        }
+        senders.flush();
+        long[] refs = new long[records.size()];
+        List<byte[]> fresh = new ArrayList<>();
+        ByteBuffer entries = ByteBuffer.allocate(records.size() * HASH_ENTRY);
+        long next = log.nextSeq();
+        for (int i = 0; i < records.size(); i++) {
+            long[] h = hash(records.get(i));
+            long existing = table.get(h[0], h[1]);
+            if (existing >= floor) {
+                refs[i] = existing;
+                deduplicated++;
+                continue;
+            }
+            refs[i] = next + fresh.size();
+            table.put(h[0], h[1], refs[i]);
+            fresh.add(records.get(i));
+            entries.putLong(h[0]).putLong(h[1]);
+        }
+        if (!fresh.isEmpty()) {
+            // Primeiro o registro, depois o hash: um hash nunca aponta para um registro que não existe
+            log.append(fresh);
+            entries.flip();
+            while (entries.hasRemaining()) {
+                hashes.write(entries);
+            }
+            dirty = true;
+        }
+        return refs;
+    }
+
+    /**
+     * Mensagens das referências, na mesma ordem; null para uma referência que não
+     * está no log. Referências consecutivas são lidas de uma vez.
+     */
+    List<ChatMessage> get(long[] refs) throws IOException {
+        long[] sorted = refs.clone();
+        Arrays.sort(sorted);
+        Map<Long, byte[]> found = new HashMap<>();
+        int i = 0;
+        while (i < sorted.length) {
+            int j = i + 1;
+            while (j < sorted.length && sorted[j] - sorted[j - 1] <= 1) j++;
+            long from;
+            List<byte[]> run;
+            do {
+                // O que está abaixo do primeiro registro foi apagado pela retenção
+                from = Math.max(sorted[i], log.firstSeq());
+                run = from <= sorted[j - 1] ? log.read(from, (int) (sorted[j - 1] - from + 1)) : List.of();
+            } while (log.firstSeq() > from);
+            for (int k = 0; k < run.size(); k++) {
+                found.put(from + k, run.get(k));
+            }
+            i = j;
+        }
+        List<ChatMessage> out = new ArrayList<>(refs.length);
+        for (long ref : refs) {
+            byte[] record = found.get(ref);
+            out.add(record == null ? null : decode(record));
+        }
+        return out;
+    }
+
+    private byte[] encode(ChatMessage message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(STRUCTURED);
+        message.writeTo(out, senders);
+        return out.toByteArray();
+    }
+
+    private ChatMessage decode(byte[] record) {
+        if (record.length == 0 || record[0] != STRUCTURED) {
+            return new ChatMessage(ChatMessage.UNKNOWN_SENDER, -1, 0, new String(record, StandardCharsets.UTF_8));
+        }
+        ByteBuffer in = ByteBuffer.wrap(record, 1, record.length - 1);
+        return ChatMessage.readFrom(in, senders);
+    }
+
+    /**
+     * A partir de agora, mensagens iguais a uma com referência menor que
+     * {@code ref} ganham um registro novo em vez de reaproveitá-la, e as entradas
+     * delas saem da tabela hash.
+     */
+    synchronized void retireBelow(long ref) {
+        if (ref <= floor) return;
+        floor = ref;
+        table.removeBelow(ref);
+    }
+
+    /**
+     * Entradas na tabela hash de deduplicação.
+     */
+    synchronized int indexed() {
+        return table.size;
+    }
+
+    HistoryLog log() {
+        return log;
+    }
+
+    /**
+     * Mensagens distintas gravadas.
+     */
+    long size() {
+        return log.nextSeq();
+    }
+
+    /**
+     * Gravações que reaproveitaram uma mensagem já armazenada.
+     */
+    long deduplicated() {
+        return deduplicated;
+    }
+
+    synchronized void sync() throws IOException {
+        log.sync();
+        if (dirty) {
+            hashes.force(false);
+            dirty = false;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        sync();
+        log.close();
+        hashes.close();
+        senders.close();
+    }
+
+    private long[] hash(byte[] text) {
+        byte[] digest = sha256.digest(text);
+        ByteBuffer buf = ByteBuffer.wrap(digest);
+        return new long[]{buf.getLong(), buf.getLong()};
+    }
+
+    /**
+     * Ids de autor numerados na ordem em que apareceram. Um id novo vai para o
+     * arquivo (e para o disco) antes do registro que o usa.
+     */
+    private static final class SenderDictionary implements ChatMessage.Senders {
+        private final FileChannel file;
+        // Leituras vêm de outras threads; escritas só sob o lock do MessageStore
+        private volatile List<String> ids = List.of(ChatMessage.UNKNOWN_SENDER);
+        private final Map<String, Integer> numbers = new HashMap<>();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        SenderDictionary(FileChannel file) {
+            this.file = file;
+        }
+
+        void load() throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate((int) file.size());
+            file.read(buf, 0);
+            buf.flip();
+            List<String> loaded = new ArrayList<>(ids);
+            while (buf.remaining() >= 2) {
+                int len = Short.toUnsignedInt(buf.getShort());
+                if (len > buf.remaining()) {
+                    buf.position(buf.position() - 2);
+                    break;
+                }
+                byte[] id = new byte[len];
+                buf.get(id);
+                loaded.add(new String(id, StandardCharsets.UTF_8));
+            }
+            // Entrada pela metade (queda no meio da escrita): descarta
+            file.truncate(buf.position());
+            file.position(buf.position());
+            for (int i = 0; i < loaded.size(); i++) {
+                numbers.put(loaded.get(i), i);
+            }
+            ids = loaded;
+        }
+
+        @Override
+        public void write(ByteArrayOutputStream out, String senderId) {
+            Integer number = numbers.get(senderId);
+            if (number == null) {
+                number = ids.size();
+                byte[] id = senderId.getBytes(StandardCharsets.UTF_8);
+                pending.write(id.length >>> 8);
+                pending.write(id.length);
+                pending.writeBytes(id);
+                List<String> grown = new ArrayList<>(ids);
+                grown.add(senderId);
+                ids = grown;
+                numbers.put(senderId, number);
+            }
+            ChatMessage.putVarLong(out, number);
+        }
+
+        @Override
+        public String read(ByteBuffer in) {
+            long number = ChatMessage.getVarLong(in);
+            List<String> current = ids;
+            return number < current.size() ? current.get((int) number) : ChatMessage.UNKNOWN_SENDER;
+        }
+
+        void flush() throws IOException {
+            if (pending.size() == 0) return;
+            ByteBuffer buf = ByteBuffer.wrap(pending.toByteArray());
+            while (buf.hasRemaining()) {
+                file.write(buf);
+            }
+            file.force(false);
+            pending.reset();
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Tabela hash de endereçamento aberto: hash de 128 bits -> referência, em
+     * três arrays de long (24 bytes por mensagem, sem objetos).
+     */
+    private static final class HashTable {
+        private long[] hi = new long[1024];
+        private long[] lo = new long[1024];
+        // Referência + 1 (0 = posição livre)
+        private long[] refs = new long[1024];
+        private int size;
+
+        long get(long h, long l) {
+            int mask = refs.length - 1;
+            for (int i = (int) h & mask; refs[i] != 0; i = (i + 1) & mask) {
+                if (hi[i] == h && lo[i] == l) return refs[i] - 1;
+            }
+            return -1;
+        }
+
+        void putIfAbsent(long h, long l, long ref) {
+            put(h, l, ref, false);
+        }
+
+        void put(long h, long l, long ref) {
+            put(h, l, ref, true);
+        }
+
+        private void put(long h, long l, long ref, boolean replace) {
+            if (size * 2 >= refs.length) grow();
+            int mask = refs.length - 1;
+            int i = (int) h & mask;
+            for (; refs[i] != 0; i = (i + 1) & mask) {
+                if (hi[i] == h && lo[i] == l) {
+                    if (replace) refs[i] = ref + 1;
+                    return;
+                }
+            }
+            hi[i] = h;
+            lo[i] = l;
+            refs[i] = ref + 1;
+            size++;
+        }
+
+        /**
+         * Tira as referências menores que {@code floor}. Endereçamento aberto não
+         * apaga no lugar: a tabela é refeita com as que ficam, no menor tamanho que as comporta.
+         */
+        void removeBelow(long floor) {
+            int kept = 0;
+            for (long ref : refs) {
+                if (ref != 0 && ref - 1 >= floor) kept++;
+            }
+            int capacity = 1024;
+            while (kept * 2 >= capacity) capacity *= 2;
+            rehash(capacity, floor);
+        }
+
+        private void grow() {
+            rehash(refs.length * 2, 0);
+        }
+
+        private void rehash(int capacity, long floor) {
+            long[] oldHi = hi;
+            long[] oldLo = lo;
+            long[] oldRefs = refs;
+            hi = new long[capacity];
+            lo = new long[capacity];
+            refs = new long[capacity];
+            size = 0;
+            for (int i = 0; i < oldRefs.length; i++) {
+                if (oldRefs[i] != 0 && oldRefs[i] - 1 >= floor) putIfAbsent(oldHi[i], oldLo[i], oldRefs[i] - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.unifor.p2p;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Métricas de um nó: contadores, gauges e histogramas de latência, exportados
+ * no formato texto do Prometheus.
+ *
+ * Registrar uma métrica aloca; registrar um valor nela não. Os contadores são
+ * {@link LongAdder} (uma célula por thread disputando, sem CAS repetido) e os
+ * histogramas usam baldes log-lineares no estilo HDR: 32 baldes por potência de
+ * 2, ou seja, erro relativo de no máximo ~3% em qualquer faixa, de 1 ns a ~18 min.
+ */
+public final class Metrics {
+
+    /**
+     * Contador que só cresce.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Histograma de durações em nanossegundos.
+     */
+    public static final class Histogram {
+        // 2^SUB_BITS baldes por potência de 2
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int MAX_EXP = 40;
+        private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            long v = Math.max(0, nanos);
+            buckets.incrementAndGet(index(v));
+            count.increment();
+            sum.add(v);
+        }
+
+        /**
+         * Registra o tempo decorrido desde {@code startNanos} (de {@link System#nanoTime()}).
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        /**
+         * Menor valor que cobre a fração {@code q} das amostras (limite superior do balde).
+         */
+        public long quantile(double q) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        static int index(long v) {
+            if (v < SUB) return (int) v;
+            int exp = Math.min(63 - Long.numberOfLeadingZeros(v), MAX_EXP);
+            if (exp == MAX_EXP) return BUCKETS - 1;
+            // Os SUB_BITS+1 bits mais altos: [SUB, 2*SUB)
+            int top = (int) (v >>> (exp - SUB_BITS));
+            return (exp - SUB_BITS + 1) * SUB + (top - SUB);
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB) return index;
+            int block = index / SUB;
+            long top = index % SUB + SUB;
+            return ((top + 1) << (block - 1)) - 1;
+        }
+    }
+
+    private record Series(String name, String help, String type, String labels, Object source) {
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final List<Series> series = new CopyOnWriteArrayList<>();
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    /**
+     * @param labels rótulos já no formato do Prometheus, ex.: {@code peer="abc"}
+     */
+    public Counter counter(String name, String help, String labels) {
+        Counter c = new Counter();
+        series.add(new Series(name, help, "counter", labels, c));
+        return c;
+    }
+
+    public Histogram histogram(String name, String help) {
+        Histogram h = new Histogram();
+        series.add(new Series(name, help, "summary", "", h));
+        return h;
+    }
+
+    /**
+     * Contador mantido em outro lugar (ex.: os LongAdder do gossip), lido na hora da coleta.
+     */
+    public void counter(String name, String help, DoubleSupplier value) {
+        series.add(new Series(name, help, "counter", "", value));
+    }
+
+    /**
+     * Valor lido na hora da coleta.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        series.add(new Series(name, help, "gauge", "", value));
+    }
+
+    /**
+     * Remove as séries de uma métrica (ex.: os contadores de uma conexão encerrada).
+     */
+    public void remove(Object metric) {
+        series.removeIf(s -> s.source() == metric);
+    }
+
+    /**
+     * Valor de escape de um rótulo do Prometheus.
+     */
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    /**
+     * Todas as métricas no formato texto do Prometheus (versão 0.0.4). Durações em segundos.
+     */
+    public String scrape() {
+        List<Series> sorted = new ArrayList<>(series);
+        sorted.sort(Comparator.comparing(Series::name));
+        StringBuilder out = new StringBuilder(4096);
+        String current = null;
+        for (Series s : sorted) {
+            if (!s.name().equals(current)) {
+                current = s.name();
+                out.append("# HELP ").append(s.name()).append(' ').append(s.help()).append('\n');
+                out.append("# TYPE ").append(s.name()).append(' ').append(s.type()).append('\n');
+            }
+            switch (s.source()) {
+                case Counter c -> sample(out, s.name(), s.labels(), c.get());
+                case DoubleSupplier g -> sample(out, s.name(), s.labels(), g.getAsDouble());
+                case Histogram h -> {
+                    for (double q : QUANTILES) {
+                        sample(out, s.name(), "quantile=\"" + q + "\"", h.quantile(q) / 1e9);
+                    }
+                    sample(out, s.name() + "_sum", "", h.sum() / 1e9);
+                    sample(out, s.name() + "_count", "", h.count());
+                }
+                default -> {
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(String.format(Locale.ROOT, "%.9g", value));
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,303 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transporte baseado em um único event loop NIO ({@link Selector}) com
+ * {@link SocketChannel}s não bloqueantes. Todas as conexões compartilham
+ * a mesma thread, independente de quantos peers estejam conectados.
+ */
+final class NioTransport implements Transport {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final TransportListener listener;
+    private final OutboundQueue.Settings queueSettings;
+    private final Selector selector;
+    // Tarefas que precisam rodar na thread do loop (registro de canais, interesse de escrita)
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+    private Thread loopThread;
+    private final Metrics.Counter bytesIn;
+    private final Metrics.Counter bytesOut;
+
+    NioTransport(TransportListener listener, OutboundQueue.Settings queueSettings, Metrics metrics) throws IOException {
+        this.listener = listener;
+        this.queueSettings = queueSettings;
+        this.selector = Selector.open();
+        this.bytesIn = metrics.counter("p2p_bytes_received_total", "Bytes lidos das conexões de chat");
+        this.bytesOut = metrics.counter("p2p_bytes_sent_total", "Bytes escritos nas conexões de chat");
+    }
+
+    @Override
+    public void bind(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("0.0.0.0", port), 50);
+        serverChannel.configureBlocking(false);
+        submit(() -> {
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                Log.error("transporte.falha_registrar", "erro", e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public int localPort() {
+        return serverChannel == null ? -1 : serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void start() {
+        loopThread = new Thread(this::runLoop, "p2p-nio-loop");
+        loopThread.start();
+    }
+
+    @Override
+    public TransportConnection connect(String host, int port, int timeoutMillis) throws IOException {
+        // O connect em si é bloqueante, com prazo (quem chama roda fora do event loop);
+        // depois dele o canal passa a ser atendido pelo event loop.
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), timeoutMillis);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channel.configureBlocking(false);
+        NioConnection conn = new NioConnection(channel);
+        listener.onOpen(conn, false);
+        submit(() -> conn.register(SelectionKey.OP_READ));
+        return conn;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+            selector.wakeup();
+        } catch (IOException e) {
+            // Silencioso
+        }
+    }
+
+    private void submit(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.error("transporte.falha_tarefa", "erro", e);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) conn.read();
+                            if (key.isValid() && key.isWritable()) conn.flush();
+                        } catch (CancelledKeyException e) {
+                            conn.close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) Log.error("transporte.loop_encerrado", "erro", e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection conn) conn.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Silencioso
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                NioConnection conn = new NioConnection(channel);
+                listener.onOpen(conn, true);
+                conn.register(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            if (serverChannel.isOpen())
+                Log.error("transporte.falha_aceitar", "erro", e.getMessage());
+        }
+    }
+
+    private final class NioConnection implements TransportConnection {
+        private final SocketChannel channel;
+        private final InetSocketAddress remoteAddress;
+        private final WireCodec codec = new WireCodec();
+        private final OutboundQueue writeQueue = new OutboundQueue(queueSettings);
+        // Evita acordar o Selector a cada frame: só o primeiro frame pendente agenda a escrita
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private ByteBuffer outBuffer = ByteBuffer.allocate(8192);
+        private SelectionKey key;
+        private volatile Object attachment;
+
+        NioConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        }
+
+        void register(int ops) {
+            try {
+                if (!writeQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+                key = channel.register(selector, ops, this);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void read() {
+            try {
+                readBuffer.clear();
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                bytesIn.add(n);
+                readBuffer.flip();
+                codec.decode(readBuffer, frame -> listener.onFrame(this, frame));
+                listener.onReadComplete(this);
+            } catch (ProtocolException e) {
+                Log.warn("conexao.frame_invalido", "endereco", remoteAddress, "erro", e.getMessage());
+                close();
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                // O loop é de todas as conexões: um erro ao tratar um frame derruba só esta
+                Log.error("conexao.falha_processar", "endereco", remoteAddress, "erro", e);
+                close();
+            }
+        }
+
+        void flush() {
+            try {
+                while (true) {
+                    // Todos os frames pendentes vão para o mesmo buffer e saem em um único write()
+                    outBuffer = WireCodec.drainInto(writeQueue, outBuffer);
+                    if (outBuffer.position() == 0) break;
+                    outBuffer.flip();
+                    bytesOut.add(channel.write(outBuffer));
+                    boolean partial = outBuffer.hasRemaining();
+                    outBuffer.compact();
+                    if (partial) return; // buffer do kernel cheio, espera o próximo OP_WRITE
+                }
+                writeScheduled.set(false);
+                key.interestOps(SelectionKey.OP_READ);
+                // Um frame pode ter sido enfileirado entre o último drain e a troca de interesse
+                if (!writeQueue.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void send(Frame frame) {
+            if (closed.get()) return;
+            // Na thread do loop não se pode bloquear: é ela quem drena a fila
+            if (!writeQueue.offer(frame, Thread.currentThread() != loopThread)) {
+                Log.warn("conexao.fila_cheia", "endereco", remoteAddress);
+                close();
+                return;
+            }
+            if (writeScheduled.compareAndSet(false, true)) {
+                submit(() -> {
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public OutboundQueue.QueueStats queueStats() {
+            return writeQueue.stats();
+        }
+
+        @Override
+        public void upgrade() {
+            codec.upgrade();
+        }
+
+        @Override
+        public boolean isFramed() {
+            return codec.isFramed();
+        }
+
+        @Override
+        public InetSocketAddress remoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed.get();
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Silencioso
+            }
+            listener.onClose(this);
+        }
+
+        @Override
+        public Object attachment() {
+            return attachment;
+        }
+
+        @Override
+        public void attach(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.unifor.p2p;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fila de saída limitada de uma conexão. Quem envia só enfileira; o escritor
+ * da conexão (event loop NIO ou virtual thread) drena a fila para o socket.
+ * Quando a fila enche, a {@link OverflowPolicy} decide o que acontece.
+ */
+public final class OutboundQueue {
+
+    public enum OverflowPolicy {
+        // Descarta o frame mais antigo para abrir espaço
+        DROP_OLDEST,
+        // Derruba a conexão do peer lento
+        DISCONNECT,
+        // Bloqueia quem envia até o timeout; depois disso o peer é considerado travado e desconectado
+        BLOCK;
+
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * Parâmetros das filas de saída (p2p.outbound.*).
+     */
+    public record Settings(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        public static final Settings DEFAULT = new Settings(1024, OverflowPolicy.DROP_OLDEST, 2000);
+    }
+
+    private final ArrayBlockingQueue<Frame> queue;
+    private final Settings settings;
+    private final AtomicInteger highWater = new AtomicInteger();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    OutboundQueue(Settings settings) {
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<>(settings.capacity());
+    }
+
+    /**
+     * Enfileira um frame aplicando a política de overflow.
+     *
+     * @param mayBlock false quando quem chama é o próprio escritor (bloquear causaria deadlock)
+     * @return false se a conexão deve ser encerrada
+     */
+    boolean offer(Frame frame, boolean mayBlock) {
+        boolean accepted = queue.offer(frame);
+        if (!accepted) {
+            switch (settings.policy()) {
+                case DROP_OLDEST -> {
+                    while (!accepted) {
+                        if (queue.poll() != null) dropped.incrementAndGet();
+                        accepted = queue.offer(frame);
+                    }
+                }
+                case BLOCK -> {
+                    if (mayBlock) {
+                        try {
+                            accepted = queue.offer(frame, settings.blockTimeoutMillis(), TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                case DISCONNECT -> {
+                }
+            }
+        }
+        if (!accepted) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        enqueued.incrementAndGet();
+        int depth = queue.size();
+        highWater.accumulateAndGet(depth, Math::max);
+        return true;
+    }
+
+    Frame poll() {
+        return queue.poll();
+    }
+
+    Frame take() throws InterruptedException {
+        return queue.take();
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    QueueStats stats() {
+        return new QueueStats(queue.size(), settings.capacity(), highWater.get(), enqueued.get(), dropped.get());
+    }
+
+    /**
+     * Retrato da fila de saída de uma conexão.
+     */
+    public record QueueStats(int depth, int capacity, int highWater, long enqueued, long dropped) {
+    }
+}
@@ -1,136 +1,309 @@
 package org.unifor.p2p;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.*;
-import java.util.Collections;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
 
-public class Peer {
+public class Peer implements TransportListener {
     private final String userName;
     private final String peerId;
     private final int tcpPort; // A porta para o chat (TCP)
-    private final ServerSocket serverSocket;
+    // Transporte do chat (p2p.transport), criado em start(): ele recebe este Peer como listener
+    private final String transportKind;
+    private final OutboundQueue.Settings outbound;
+    private volatile Transport transport;
     private final Consumer<String> onMessageCallback;
     private final ChatHistory history;
     private final List<PeerConnection> connections = new CopyOnWriteArrayList<>();
 
-    // NOVO: Configurações para a descoberta via UDP Multicast
-    private MulticastSocket multicastSocket;
-    private static final String MULTICAST_GROUP = "230.0.0.0";
-    private static final int MULTICAST_PORT = 4446; // Porta para "anúncios" (UDP)
+    // Descoberta (multicast) e detecção de falhas dos outros peers
+    private final Membership membership;
+    // Conexões de saída: assíncronas, com prazos, sem duplicatas e com reconexão
+    private final ConnectionManager connector;
+    // Arquivos, por conexões à parte oferecidas pela conexão do chat
+    private final FileTransfer files;
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter messagesIn = metrics.counter("p2p_messages_received_total",
+            "Mensagens de chat recebidas (ao vivo, gossip e sincronização)");
+    private final Metrics.Counter messagesOut = metrics.counter("p2p_messages_sent_total",
+            "Mensagens de chat enviadas (ao vivo, repasses e sincronização)");
+    private final Metrics.Histogram broadcastTime = metrics.histogram("p2p_broadcast_seconds",
+            "Duração do fan-out de uma mensagem para todas as conexões");
+    private final Metrics.Histogram handshakeTime = metrics.histogram("p2p_handshake_seconds",
+            "Tempo entre abrir a conexão e concluir a troca de ids");
+
+    // Versão do protocolo binário, enviada no HELLO. No handshake "/id:<id>" o peer
+    // novo acrescenta o caractere de controle de código 2 (a primeira versão com
+    // frames); como ele é <= ' ', o trim() de um peer antigo o remove e a conexão
+    // segue no protocolo de linhas.
+    static final int PROTOCOL_VERSION = 6;
+    private static final String PROTOCOL_MARKER = String.valueOf((char) 2);
+    // A partir desta versão o remoto entende FILE_OFFER
+    private static final int FILE_TRANSFER_VERSION = 3;
+    // A partir desta versão o remoto anuncia salas e entende ROOMS e SKIP
+    private static final int ROOMS_VERSION = 4;
+    // A partir desta versão o remoto troca mensagens estruturadas (MESSAGE e SYNC_BATCH, com HLC)
+    private static final int STRUCTURED_VERSION = 5;
+    // A partir desta versão o remoto concede créditos (CREDIT) e só envia mensagens dentro deles
+    private static final int FLOW_CONTROL_VERSION = 6;
+    // Intervalo em que as conexões limitadas recebem novas concessões, conforme o balde enche
+    private static final long CREDIT_INTERVAL_MILLIS = 100;
+    private static final long PING_INTERVAL_SECONDS = 30;
+    // Mensagens por frame SYNC_DATA
+    private static final int SYNC_BATCH = 256;
+
+    private final boolean framedProtocol;
+    private final int historyReplay;
+    private final int syncMaxBackfill;
+    private final GossipRouter gossip;
+    // Salas assinadas aqui e interesse anunciado por cada vizinho
+    private final RoomRouter rooms;
+    // Relógio das mensagens e a janela que as põe na mesma ordem em todos os nós
+    private final Hlc clock = new Hlc();
+    private final CausalOrder order;
+    // Limites de entrada e créditos de cada conexão
+    private final FlowControl flow;
+    private final int maxAutoConnections;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "p2p-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+    // Gravação e leitura do histórico das mensagens recebidas: pode esperar o fsync (durability=always)
+    // ou converter uma conversa antiga, e não pode parar a thread do transporte. Uma única thread
+    // mantém a ordem de chegada.
+    private final ExecutorService historyIo = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "p2p-history-io");
+        t.setDaemon(true);
+        return t;
+    });
+    // Uma única thread preserva a ordem das mensagens enviadas
+    private final ExecutorService fanout = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "p2p-fanout");
+        t.setDaemon(true);
+        return t;
+    });
 
     public Peer(String userName, int port, Consumer<String> onMessageCallback) throws IOException {
+        this(userName, port, new PeerConfig(), onMessageCallback);
+    }
+
+    public Peer(String userName, int port, PeerConfig config, Consumer<String> onMessageCallback) throws IOException {
         this.userName = userName;
         this.tcpPort = port;
         this.onMessageCallback = onMessageCallback;
+        this.framedProtocol = !"line".equalsIgnoreCase(config.getProtocol());
+        this.transportKind = config.getTransport();
+        this.outbound = config.getOutbound();
+        this.historyReplay = config.getHistoryReplay();
+        this.syncMaxBackfill = config.getSyncMaxBackfill();
+        this.gossip = new GossipRouter(config.getGossip());
+        this.rooms = new RoomRouter(config.getRooms(), config.getGossip().ttl());
+        this.order = new CausalOrder(config.getOrderWindowMillis(), onMessageCallback, clock, metrics);
+        this.flow = new FlowControl(config.getFlow(), metrics);
+        this.maxAutoConnections = config.getMaxAutoConnections();
+        this.connector = new ConnectionManager(config.getConnect(), this::dial, scheduler);
 
-        String id = PeerIdentity.getPeerId(userName);
+        String id = PeerIdentity.getPeerId(config.getDataDir(), userName);
         if (id == null) {
-            id = PeerIdentity.createPeerId(userName);
+            id = PeerIdentity.createPeerId(config.getDataDir(), userName);
         }
         this.peerId = id;
-        this.history = new ChatHistory(peerId);
+        this.history = ChatHistory.open(config.getDataDir(), peerId, config.getHistory(), metrics);
 
         try {
-            // Inicia o servidor TCP para o chat
-            this.serverSocket = new ServerSocket(this.tcpPort, 50, InetAddress.getByName("0.0.0.0"));
-            System.out.println("[INFO] Peer '" + userName + "' está ouvindo para chat na porta TCP " + this.tcpPort);
+            this.membership = new Membership(peerId, userName, port, config.getMembership(), new MembershipEvents());
+            this.files = new FileTransfer(config.getFiles(), config.getDataDir(), metrics, new FileEvents());
+        } catch (IOException e) {
+            Log.error("peer.falha_iniciar", "porta", port, "erro", e.getMessage());
+            throw e;
+        }
+        registerGauges();
+    }
 
-            // NOVO: Inicia o socket UDP para descoberta de peers
-            this.multicastSocket = new MulticastSocket(MULTICAST_PORT);
-            InetAddress group = InetAddress.getByName(MULTICAST_GROUP);
-            this.multicastSocket.joinGroup(group);
-            System.out.println("[INFO] Juntou-se ao grupo de descoberta em " + MULTICAST_GROUP + ":" + MULTICAST_PORT);
+    private void registerGauges() {
+        metrics.gauge("p2p_connections", "Conexões abertas (inclui as ainda em handshake)", connections::size);
+        metrics.gauge("p2p_connections_ready", "Conexões prontas para o envio ao vivo",
+                () -> connections.stream().filter(pc -> pc.ready).count());
+        metrics.gauge("p2p_connections_pending", "Conexões de saída em andamento", connector::pending);
+        metrics.gauge("p2p_outbound_queue_depth", "Frames esperando nas filas de saída",
+                () -> connections.stream().mapToInt(pc -> pc.connection.queueStats().depth()).sum());
+        metrics.counter("p2p_outbound_dropped_total", "Frames descartados por fila de saída cheia",
+                () -> connections.stream().mapToLong(pc -> pc.connection.queueStats().dropped()).sum());
+        metrics.gauge("p2p_flow_held_frames", "Frames esperando crédito dos remotos",
+                () -> connections.stream().mapToInt(pc -> pc.flow.heldFrames()).sum());
+        metrics.gauge("p2p_flow_throttled_peers", "Conexões sendo limitadas pela taxa de entrada",
+                () -> connections.stream().filter(pc -> pc.flow.throttled()).count());
+        metrics.gauge("p2p_members", "Membros na tabela de membros", () -> membership.members().size());
+        metrics.counter("p2p_gossip_delivered_total", "Mensagens de gossip entregues", () -> gossip.stats().delivered());
+        metrics.counter("p2p_gossip_duplicates_total", "Cópias de gossip descartadas", () -> gossip.stats().duplicates());
+        metrics.counter("p2p_gossip_relayed_total", "Repasses de gossip enviados", () -> gossip.stats().relayed());
+        metrics.gauge("jvm_threads_live", "Threads de plataforma vivas",
+                () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        metrics.counter("p2p_log_dropped_total", "Linhas de log descartadas por fila cheia", Log::dropped);
+    }
 
+    /**
+     * Métricas do nó (contadores, gauges e latências), para exportar ou acrescentar outras.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Abre a porta do chat e começa a descoberta, as sondagens e as transferências.
+     * O transporte é criado aqui, e não no construtor, para não receber o Peer
+     * antes de ele estar construído.
+     */
+    public void start() throws IOException {
+        try {
+            // Servidor TCP para o chat, com o transporte escolhido em p2p.transport
+            transport = Transport.create(transportKind, this, outbound, metrics);
+            transport.bind(tcpPort);
         } catch (IOException e) {
-            System.err.println("[ERRO CRÍTICO] Falha ao iniciar sockets: " + e.getMessage());
+            Log.error("peer.falha_iniciar", "porta", tcpPort, "erro", e.getMessage());
             throw e;
         }
+        Log.info("peer.ouvindo", "nome", userName, "porta", tcpPort, "transporte", transportKind);
+        // Inicia o transporte de chat (TCP): event loop NIO ou virtual threads
+        transport.start();
+        scheduler.scheduleAtFixedRate(this::pingConnections, PING_INTERVAL_SECONDS, PING_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        // Anúncios periódicos e sondagens dos membros conhecidos (UDP)
+        membership.start();
+        files.start(scheduler);
+        order.start(scheduler);
+        scheduler.scheduleAtFixedRate(this::grantCredits, CREDIT_INTERVAL_MILLIS, CREDIT_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
     }
 
-    public void start() {
-        // Inicia a thread para ouvir conexões de chat (TCP)
-        new Thread(this::listenForTcpConnections).start();
-        // NOVO: Inicia a thread para ouvir "anúncios" de descoberta (UDP)
-        new Thread(this::listenForDiscoveryPackets).start();
+    /**
+     * Encerra o nó: fecha o transporte e as conexões e grava o histórico pendente.
+     */
+    public void close() {
+        connector.close();
+        scheduler.shutdownNow();
+        membership.close();
+        files.close();
+        fanout.shutdown();
+        try {
+            fanout.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Transport t = transport;
+        if (t != null) t.close();
+        for (PeerConnection pc : connections) {
+            pc.connection.close();
+        }
+        // O que já chegou ainda vai para o histórico antes de fechá-lo
+        historyIo.shutdown();
+        try {
+            historyIo.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        order.releaseAll();
+        history.close();
+        Log.flush();
     }
 
-    // --- LÓGICA DE DESCOBERTA (PONTO 6) ---
+    private void grantCredits() {
+        for (PeerConnection pc : connections) {
+            pc.flow.grant();
+        }
+    }
 
-    private void listenForDiscoveryPackets() {
-        byte[] buf = new byte[256];
-        while (multicastSocket != null && !multicastSocket.isClosed()) {
-            try {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                multicastSocket.receive(packet); // Espera por um "anúncio"
-
-                String received = new String(packet.getData(), 0, packet.getLength());
-                // Formato do anúncio: "DISCOVER:tcpPort:username"
-                if (received.startsWith("DISCOVER:")) {
-                    String[] parts = received.split(":", 3);
-                    int peerTcpPort = Integer.parseInt(parts[1]);
-                    InetAddress peerAddress = packet.getAddress();
-
-                    if (!isSelf(peerAddress, peerTcpPort) && !isAlreadyConnected(peerAddress, peerTcpPort)) {
-                        String peerUserName = parts[2];
-                        System.out.println("[DESCOBERTA] Peer '" + peerUserName + "' encontrado em " + peerAddress.getHostAddress() + ":" + peerTcpPort);
-                        onMessageCallback.accept("[SISTEMA] Peer '" + peerUserName + "' encontrado! Tentando conectar...");
-                        // Conecta-se automaticamente ao peer descoberto
-                        connectToPeer(peerAddress.getHostAddress(), peerTcpPort);
-                    }
-                }
-            } catch (IOException e) {
-                if (!multicastSocket.isClosed()) System.err.println("[ERRO] Falha ao receber pacote de descoberta.");
-            }
+    private void pingConnections() {
+        long now = System.currentTimeMillis();
+        for (PeerConnection pc : connections) {
+            if (pc.connection.isFramed()) pc.connection.send(Frame.ping(now, false));
         }
     }
 
+    // --- LÓGICA DE DESCOBERTA (PONTO 6) ---
+
     /**
      * Envia um "anúncio" para a rede, avisando sobre sua presença.
      */
     public void broadcastDiscoveryPacket() {
-        try {
-            String message = "DISCOVER:" + this.tcpPort + ":" + this.userName;
-            byte[] buf = message.getBytes();
-            InetAddress group = InetAddress.getByName(MULTICAST_GROUP);
-            DatagramPacket packet = new DatagramPacket(buf, buf.length, group, MULTICAST_PORT);
-            multicastSocket.send(packet);
-            System.out.println("[INFO] Pacote de descoberta enviado para a rede.");
-        } catch (IOException e) {
-            System.err.println("[ERRO] Falha ao enviar pacote de descoberta: " + e.getMessage());
-        }
+        membership.announce(true);
+        Log.info("descoberta.enviada");
     }
 
     /**
-     * Método robusto para verificar se o pacote recebido veio do próprio peer,
-     * checando contra todas as interfaces de rede locais.
+     * A tabela de membros: quem está na rede, vivo ou suspeito.
      */
-    private boolean isSelf(InetAddress address, int port) {
-        if (port != this.tcpPort) {
-            return false;
+    public List<Membership.MemberView> getMembers() {
+        return membership.members();
+    }
+
+    /**
+     * Reações às mudanças na tabela de membros. Chamadas nas threads da tabela:
+     * a conexão TCP é aberta no {@code connector} para não segurar o tratamento dos pacotes.
+     */
+    private final class MembershipEvents implements Membership.Listener {
+        @Override
+        public void onMemberJoined(String remotePeerId, String remoteUserName, InetAddress address, int port) {
+            if (isConnectedTo(remotePeerId)) return;
+            discovered(remotePeerId, remoteUserName, address, port);
         }
-        try {
-            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
-                for (InetAddress inetAddress : Collections.list(networkInterface.getInetAddresses())) {
-                    if (inetAddress.equals(address)) {
-                        return true;
-                    }
-                }
+
+        @Override
+        public void onMemberFailed(String remotePeerId, String remoteUserName) {
+            Log.info("membros.falhou", "peer", remotePeerId, "nome", remoteUserName);
+            onMessageCallback.accept("[SISTEMA] Peer '" + remoteUserName + "' parou de responder e saiu da rede.");
+            // A conexão TCP de um peer morto pode ficar pendurada até o TCP desistir; fecha já,
+            // sem reconectar: se ele voltar, a tabela de membros avisa
+            connector.forget(remotePeerId);
+            for (PeerConnection pc : connections) {
+                if (remotePeerId.equals(pc.remotePeerId)) pc.connection.close();
             }
-        } catch (SocketException e) {
-            System.err.println("[ERRO] Não foi possível verificar os endereços de rede locais.");
+        }
+
+        @Override
+        public void onLegacyDiscovery(InetAddress address, int port, String remoteUserName) {
+            discovered(null, remoteUserName, address, port);
+        }
+    }
+
+    private void discovered(String remotePeerId, String peerUserName, InetAddress peerAddress, int peerTcpPort) {
+        // Com gossip não é preciso falar com todos: acima do limite a mensagem chega por repasse
+        if (isAlreadyConnected(peerAddress, peerTcpPort)
+                || connections.size() + connector.pending() >= maxAutoConnections) return;
+        String host = peerAddress.getHostAddress();
+        Log.info("descoberta.encontrado", "nome", peerUserName, "endereco", host + ":" + peerTcpPort);
+        onMessageCallback.accept("[SISTEMA] Peer '" + peerUserName + "' encontrado! Tentando conectar...");
+        // Conecta-se automaticamente ao peer descoberto
+        connector.connect(host, peerTcpPort, remotePeerId);
+    }
+
+    private boolean isConnectedTo(String remotePeerId) {
+        for (PeerConnection pc : connections) {
+            if (remotePeerId.equals(pc.remotePeerId) && !pc.duplicate) return true;
         }
         return false;
     }
 
     private boolean isAlreadyConnected(InetAddress address, int port) {
         for (PeerConnection pc : connections) {
-            if (pc.socket.getInetAddress().equals(address) && pc.socket.getPort() == port) {
+            InetSocketAddress remote = pc.connection.remoteAddress();
+            if (remote.getAddress().equals(address) && remote.getPort() == port) {
                 return true;
             }
         }
@@ -140,117 +313,849 @@ public class Peer {
     // --- O RESTO DA CLASSE (LÓGICA DE CHAT TCP) ---
     // A maioria dos métodos abaixo permanece como estava, com pequenas adições de feedback.
 
-    private void listenForTcpConnections() {
-        while (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                Socket socket = serverSocket.accept();
-                PeerConnection pc = new PeerConnection(socket);
-                connections.add(pc);
-                String statusMessage = "[SISTEMA] Nova conexão recebida de " + socket.getRemoteSocketAddress();
-                System.out.println(statusMessage);
-                onMessageCallback.accept(statusMessage);
-                new Thread(() -> handleConnection(pc)).start();
-            } catch (IOException e) {
-                if (!serverSocket.isClosed())
-                    System.err.println("[ERRO] Falha ao aceitar nova conexão de chat: " + e.getMessage());
+    @Override
+    public void onOpen(TransportConnection connection, boolean inbound) {
+        PeerConnection pc = new PeerConnection(connection, inbound, flow.link(connection));
+        connection.attach(pc);
+        // As de saída também entram já aqui, para o handshake poder detectar conexões duplicadas
+        connections.add(pc);
+        if (inbound) {
+            Log.info("conexao.recebida", "endereco", connection.remoteAddress());
+            onMessageCallback.accept("[SISTEMA] Nova conexão recebida de " + connection.remoteAddress());
+        }
+    }
+
+    @Override
+    public void onFrame(TransportConnection connection, Frame frame) throws IOException {
+        PeerConnection pc = (PeerConnection) connection.attachment();
+        // Duplicata aguardando ser fechada: o que chegar por ela vem (ou volta pela sincronização) pela outra
+        if (pc.duplicate) return;
+        if (pc.remotePeerId == null) {
+            // Até o handshake terminar, só interessa a linha "/id:"
+            if (frame.type() == Frame.Type.LINE) handleHandshakeLine(pc, frame.text());
+            return;
+        }
+        switch (frame.type()) {
+            case LINE -> {
+                if (!admit(pc, 1) || !flow.fits(frame.payload().length)) return;
+                countIn(pc, 1);
+                deliver(pc, frame.text()); // peer legado, protocolo de linhas
+            }
+            case CHAT -> {
+                if (!admit(pc, 1) || !flow.fits(frame.payload().length - 8)) return;
+                countIn(pc, 1);
+                pc.lastReceivedSeq = Math.max(pc.lastReceivedSeq, frame.seq());
+                if (pc.authorSeqs) {
+                    gossip.firstSeen(pc.remotePeerId, frame.seq());
+                    receive(pc, new ChatMessage(pc.remotePeerId, frame.seq(), clock.now(), frame.text()));
+                } else {
+                    deliver(pc, frame.text());
+                }
+            }
+            case GOSSIP -> {
+                if (!admit(pc, 1)) return;
+                // Peer sem HLC: a mensagem ganha o nosso na chegada
+                ChatMessage message = new ChatMessage(frame.gossipOriginId(), frame.gossipSeq(), clock.now(), frame.text());
+                if (!flow.fits(message.length())) return;
+                countIn(pc, 1);
+                handleGossip(pc, message, frame.gossipTtl(), frame.gossipHops(), frame.gossipTimestamp());
+            }
+            case MESSAGE -> {
+                if (!admit(pc, 1)) return;
+                ChatMessage message = frame.message();
+                if (!flow.fits(message.length())) return;
+                countIn(pc, 1);
+                handleGossip(pc, message, frame.gossipTtl(), frame.gossipHops(), message.timestampMillis());
+            }
+            case HELLO -> handleHello(pc, frame);
+            case SYNC_REQUEST -> {
+                long from = frame.syncFrom();
+                long to = Math.min(frame.syncTo(), from + syncMaxBackfill - 1);
+                fanout.execute(() -> sendRange(pc, from - 1, to));
+            }
+            case SYNC_DATA -> receiveSyncData(pc, frame);
+            case SYNC_BATCH -> receiveSyncBatch(pc, frame);
+            case SKIP -> {
+                long from = frame.syncFrom();
+                long to = frame.syncTo();
+                historyIo.execute(() -> {
+                    try {
+                        history.skipIncoming(pc.remotePeerId, from, to);
+                    } catch (IOException e) {
+                        Log.error("sync.falha_atualizar", "peer", pc.remotePeerId, "erro", e.getMessage());
+                    }
+                });
+            }
+            case ROOMS -> {
+                rooms.update(pc.remotePeerId, frame.rooms());
+                advertiseRoomsLater();
+            }
+            case FILE_OFFER -> files.receive(pc.remotePeerId, pc.remoteUserName,
+                    pc.connection.remoteAddress().getAddress(), frame);
+            case ACK -> pc.lastAckedByRemote = frame.seq();
+            case CREDIT -> pc.flow.onCredit(frame.credits());
+            case PING -> {
+                if (frame.pingIsReply()) {
+                    pc.rttMillis = System.currentTimeMillis() - frame.pingTimestamp();
+                } else {
+                    connection.send(Frame.ping(frame.pingTimestamp(), true));
+                }
             }
         }
     }
 
-    private void handleConnection(PeerConnection pc) {
+    @Override
+    public void onReadComplete(TransportConnection connection) {
+        // Um único ACK cumulativo por leitura do socket, em vez de um por mensagem
+        PeerConnection pc = (PeerConnection) connection.attachment();
+        if (pc.lastReceivedSeq > pc.lastAckSent) {
+            pc.lastAckSent = pc.lastReceivedSeq;
+            connection.send(Frame.ack(pc.lastAckSent));
+        }
+        // Também uma concessão de créditos por leitura
+        pc.flow.grant();
+    }
+
+    /**
+     * Aplica os limites de entrada a {@code messages} mensagens recebidas da conexão.
+     */
+    private boolean admit(PeerConnection pc, int messages) {
+        if (pc.flow.admit(messages)) return true;
+        Log.debug("fluxo.descartadas", "peer", pc.remotePeerId, "mensagens", messages);
+        return false;
+    }
+
+    private void handleHandshakeLine(PeerConnection pc, String line) {
+        if (!line.startsWith("/id:")) return;
+        String raw = line.substring(4);
+        // Peers novos terminam a linha com o marcador de versão; peers antigos o descartam no trim()
+        boolean framed = framedProtocol && raw.endsWith(PROTOCOL_MARKER);
+        if (!PeerIdentity.isValid(raw.trim())) {
+            Log.warn("handshake.id_invalido", "endereco", pc.connection.remoteAddress());
+            pc.connection.close();
+            return;
+        }
+        pc.remotePeerId = raw.trim();
+        TransportConnection connection = pc.connection;
+        if (pc.inbound) {
+            Log.info("handshake.recebido", "peer", pc.remotePeerId);
+            connection.send(Frame.line(handshakeLine(framed)));
+        } else {
+            Log.info("handshake.respondido", "peer", pc.remotePeerId);
+        }
+        PeerConnection duplicate = claim(pc);
+        if (duplicate != null) {
+            // Handshake concluído antes do fechamento: quem esperava por esta conexão já está conectado
+            if (duplicate == pc) pc.handshake.complete(null);
+            discard(duplicate);
+            if (duplicate == pc) return;
+        }
+        handshakeTime.recordSince(pc.openedNanos);
+        String label = Metrics.label("peer", pc.remotePeerId);
+        pc.received = metrics.counter("p2p_peer_messages_received_total", "Mensagens de chat recebidas por conexão", label);
+        pc.sent = metrics.counter("p2p_peer_messages_sent_total", "Mensagens de chat enviadas por conexão", label);
+        if (framed) {
+            // A partir daqui os dois lados falam frames binários
+            connection.upgrade();
+            // Saber até onde temos o remoto abre a conversa (e pode convertê-la do formato antigo)
+            historyIo.execute(() -> connection.send(Frame.hello(PROTOCOL_VERSION, peerId, userName,
+                    history.outboxMax(), knownOf(pc.remotePeerId), rooms.advertise(pc.remotePeerId))));
+        } else {
+            // Peer legado: não há como sincronizar, as mensagens seguem ao vivo a partir daqui
+            pc.ready = true;
+        }
+        if (pc.inbound) {
+            historyIo.execute(() -> replayHistory(pc.remotePeerId));
+        }
+        pc.handshake.complete(null);
+    }
+
+    /**
+     * Garante uma única conexão por peer. Quando os dois lados se conectam ao mesmo
+     * tempo, fica a conexão aberta pelo peer de menor id; os dois lados chegam à
+     * mesma conclusão sem trocar mensagens. Duas conexões no mesmo sentido: fica a
+     * nova (a antiga pode estar meio morta).
+     *
+     * @return a conexão descartada ({@code pc} ou a antiga), ou null se não havia outra
+     */
+    private PeerConnection claim(PeerConnection pc) {
+        PeerConnection loser = null;
+        synchronized (connections) {
+            for (PeerConnection other : connections) {
+                if (other == pc || other.duplicate || !pc.remotePeerId.equals(other.remotePeerId)) continue;
+                boolean keepNew = pc.inbound == other.inbound || initiator(pc).compareTo(initiator(other)) < 0;
+                loser = keepNew ? other : pc;
+                loser.duplicate = true;
+                loser.ready = false;
+                break;
+            }
+        }
+        return loser;
+    }
+
+    private void discard(PeerConnection duplicate) {
+        Log.info("conexao.duplicada", "peer", duplicate.remotePeerId);
+        // Quem abriu a duplicata a fecha; o outro lado só espera (e fecha depois do prazo, se preciso),
+        // para o "/id:" já enviado ainda chegar e o connect do remoto não falhar
+        if (!duplicate.inbound) {
+            duplicate.connection.close();
+        } else {
+            scheduler.schedule(duplicate.connection::close, connector.settings().handshakeTimeoutMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private String initiator(PeerConnection pc) {
+        return pc.inbound ? pc.remotePeerId : peerId;
+    }
+
+    private long knownOf(String remotePeerId) {
+        // Sem conversa não há ponto de partida; não abre uma só para perguntar
+        if (!history.hasConversation(remotePeerId)) return -1;
         try {
-            while (pc.remotePeerId == null) {
-                String firstLine = pc.in.readLine();
-                if (firstLine == null) throw new IOException("Conexão encerrada antes de enviar ID");
-                if (firstLine.startsWith("/id:")) {
-                    pc.remotePeerId = firstLine.substring(4).trim();
-                    System.out.println("[INFO] Conectado ao peer remoto com ID: " + pc.remotePeerId);
-                    pc.out.println("/id:" + this.peerId);
-                    var oldMessages = history.loadHistory(pc.remotePeerId);
-                    if (!oldMessages.isEmpty()) {
-                        onMessageCallback.accept("[SISTEMA] ---- Carregando histórico com " + pc.remotePeerId.substring(0, 8) + "... ----");
-                        oldMessages.forEach(onMessageCallback);
-                        onMessageCallback.accept("[SISTEMA] ---- Fim do histórico ----");
-                    }
+            return history.remoteWatermark(remotePeerId);
+        } catch (IOException e) {
+            Log.error("sync.falha_ler", "peer", remotePeerId, "erro", e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * O HELLO diz até onde o remoto já tem nossas mensagens. A partir disso a
+     * thread de fan-out envia só a diferença e então libera a conexão para o
+     * envio ao vivo; como o fan-out é de uma thread só, nada fica de fora entre as duas etapas.
+     */
+    private void handleHello(PeerConnection pc, Frame frame) throws ProtocolException {
+        pc.remoteUserName = frame.helloUserName();
+        Log.info("handshake.hello", "peer", pc.remotePeerId, "nome", pc.remoteUserName, "versao", frame.helloVersion());
+        long remoteOutboxMax = frame.helloOutboxMax();
+        long knownOfUs = frame.helloKnownOfYou();
+        pc.authorSeqs = remoteOutboxMax >= 0;
+        pc.fileOffers = frame.helloVersion() >= FILE_TRANSFER_VERSION;
+        pc.roomAware = frame.helloVersion() >= ROOMS_VERSION;
+        pc.structured = frame.helloVersion() >= STRUCTURED_VERSION;
+        if (frame.helloVersion() >= FLOW_CONTROL_VERSION) {
+            // Antes da sincronização: o lote inicial já respeita os créditos do remoto
+            pc.flow.enableCredits();
+        }
+        if (pc.roomAware) {
+            rooms.update(pc.remotePeerId, frame.rooms());
+        }
+        if (pc.fileOffers) {
+            // Envios que não chegaram ao fim: o remoto continua de onde parou
+            files.pendingOffers(pc.remotePeerId).forEach(pc.connection::send);
+        }
+        if (pc.authorSeqs) {
+            historyIo.execute(() -> {
+                try {
+                    // Conversa nova: o que o remoto escreveu antes de nos conhecer não é transferido
+                    history.baseline(pc.remotePeerId, remoteOutboxMax);
+                } catch (IOException e) {
+                    Log.error("sync.falha_atualizar", "peer", pc.remotePeerId, "erro", e.getMessage());
+                }
+            });
+        }
+        fanout.execute(() -> {
+            // knownOfUs = -1: o remoto ainda não tem ponto de partida para nós e vai usar o outboxMax que enviamos
+            long upTo = history.outboxMax();
+            if (knownOfUs >= 0) {
+                sendRange(pc, Math.max(knownOfUs, upTo - syncMaxBackfill), upTo);
+            }
+            pc.lastSeqSent = upTo;
+            pc.ready = !pc.duplicate;
+            // O interesse deste vizinho muda o anúncio para os outros, e o dele pode ter mudado desde o HELLO
+            advertiseRooms();
+        });
+    }
+
+    /**
+     * Envia nossas mensagens com seq em (afterSeq, upTo] em lotes SYNC_DATA comprimidos,
+     * só as das salas que interessam ao remoto; o resto do intervalo vai num SKIP.
+     * Roda na thread de fan-out.
+     */
+    private void sendRange(PeerConnection pc, long afterSeq, long upTo) {
+        try {
+            int sent = 0;
+            long first = history.outboxFirstSeq();
+            if (afterSeq + 1 < first && afterSeq < upTo) {
+                // O começo do outbox foi apagado pela retenção: o remoto não vai receber essas mensagens
+                long gone = Math.min(first - 1, upTo);
+                if (pc.roomAware) pc.flow.send(Frame.skip(afterSeq + 1, gone), 0);
+                afterSeq = gone;
+            }
+            while (afterSeq < upTo && pc.connection.isOpen()) {
+                List<ChatMessage> batch = new ArrayList<>();
+                for (ChatMessage m : history.readOutbox(afterSeq, SYNC_BATCH)) {
+                    if (m.seq() > upTo) break;
+                    batch.add(m);
+                }
+                if (batch.isEmpty()) break;
+                List<ChatMessage> wanted = new ArrayList<>();
+                List<CompletableFuture<Void>> writes = new ArrayList<>();
+                for (ChatMessage m : batch) {
+                    if (!wants(pc, RoomRouter.roomOf(m.text()))) continue;
+                    wanted.add(m);
+                    history.saveOutgoing(pc.remotePeerId, m, writes);
+                }
+                history.awaitDurable(writes);
+                if (!wanted.isEmpty()) {
+                    pc.flow.send(pc.structured ? Frame.syncBatch(wanted) : Frame.syncData(sequenced(wanted)), wanted.size());
+                    countOut(pc, wanted.size());
                 }
+                long last = batch.get(batch.size() - 1).seq();
+                // Depois das mensagens: o SKIP fecha o intervalo inteiro, inclusive o que veio acima
+                if (wanted.size() < batch.size()) pc.flow.send(Frame.skip(afterSeq + 1, last), 0);
+                afterSeq = last;
+                sent += wanted.size();
             }
-            String message;
-            while ((message = pc.in.readLine()) != null) {
-                onMessageCallback.accept(message);
-                history.saveMessage(pc.remotePeerId, message);
+            if (sent > 0) {
+                Log.info("sync.enviado", "peer", pc.remotePeerId, "mensagens", sent);
             }
         } catch (IOException e) {
-            // Acontece quando o outro peer se desconecta
-        } finally {
-            connections.remove(pc);
-            String statusMessage = "[SISTEMA] Conexão com " + pc.socket.getRemoteSocketAddress() + " foi encerrada.";
-            System.out.println(statusMessage);
-            onMessageCallback.accept(statusMessage);
-            pc.close();
+            Log.error("sync.falha_ler", "peer", pc.remotePeerId, "erro", e.getMessage());
         }
     }
 
-    public void broadcastMessage(String message) {
-        String formattedMessage = "[" + userName + "]: " + message;
-        onMessageCallback.accept(formattedMessage);
+    private void receiveSyncData(PeerConnection pc, Frame frame) {
+        List<ChatHistory.SequencedMessage> messages;
+        try {
+            messages = frame.syncMessages();
+        } catch (DataFormatException | ProtocolException e) {
+            Log.error("sync.lote_invalido", "peer", pc.remotePeerId, "erro", e.getMessage());
+            pc.connection.close();
+            return;
+        }
+        if (!admit(pc, messages.size())) return;
+        countIn(pc, messages.size());
+        Log.debug("sync.recebido", "peer", pc.remotePeerId, "mensagens", messages.size());
+        for (ChatHistory.SequencedMessage m : messages) {
+            ChatMessage message = new ChatMessage(pc.remotePeerId, m.seq(), clock.now(), m.text());
+            if (flow.fits(message.length())) receive(pc, message);
+        }
+    }
+
+    private void receiveSyncBatch(PeerConnection pc, Frame frame) {
+        List<ChatMessage> messages;
+        try {
+            messages = frame.batchMessages();
+        } catch (DataFormatException | ProtocolException e) {
+            Log.error("sync.lote_invalido", "peer", pc.remotePeerId, "erro", e.getMessage());
+            pc.connection.close();
+            return;
+        }
+        if (!admit(pc, messages.size())) return;
+        countIn(pc, messages.size());
+        Log.debug("sync.recebido", "peer", pc.remotePeerId, "mensagens", messages.size());
+        for (ChatMessage m : messages) {
+            // A sincronização só traz mensagens do próprio remoto
+            if (!m.senderId().equals(pc.remotePeerId) || !flow.fits(m.length())) continue;
+            receive(pc, stamped(m));
+        }
+    }
+
+    private static List<ChatHistory.SequencedMessage> sequenced(List<ChatMessage> messages) {
+        List<ChatHistory.SequencedMessage> out = new ArrayList<>(messages.size());
+        for (ChatMessage m : messages) {
+            out.add(new ChatHistory.SequencedMessage(m.seq(), m.text()));
+        }
+        return out;
+    }
+
+    private void countIn(PeerConnection pc, int n) {
+        messagesIn.add(n);
+        Metrics.Counter c = pc.received;
+        if (c != null) c.add(n);
+    }
+
+    private void countOut(PeerConnection pc, int n) {
+        messagesOut.add(n);
+        Metrics.Counter c = pc.sent;
+        if (c != null) c.add(n);
+    }
+
+    /**
+     * Mensagem de gossip (GOSSIP ou MESSAGE): na primeira vez que o id aparece,
+     * entrega e repassa para alguns vizinhos com o TTL decrementado; cópias
+     * repetidas são só contadas.
+     *
+     * @param sentAt milissegundos do envio pelo autor, para a latência de propagação
+     */
+    private void handleGossip(PeerConnection pc, ChatMessage received, int ttl, int hops, long sentAt) {
+        String origin = received.senderId();
+        long seq = received.seq();
+        if (!PeerIdentity.isValid(origin)) {
+            // O autor vem do remoto e vira nome de pasta no histórico: só UUIDs
+            Log.warn("gossip.origem_invalida", "origem", origin, "de", pc.remotePeerId);
+            return;
+        }
+        if (origin.equals(peerId) || !gossip.firstSeen(origin, seq)) {
+            gossip.recordDuplicate();
+            Log.debug("gossip.duplicada", "origem", origin, "seq", seq, "de", pc.remotePeerId);
+            return;
+        }
+        ChatMessage message = stamped(received);
+        int hopped = hops + 1;
+        Log.debug("gossip.recebida", "origem", origin, "seq", seq, "saltos", hopped, "ttl", ttl);
+        gossip.recordDelivery(sentAt, hopped);
+        boolean direct = origin.equals(pc.remotePeerId);
+        if (direct) pc.lastReceivedSeq = Math.max(pc.lastReceivedSeq, seq);
+        if (direct) {
+            receive(pc, message);
+        } else {
+            historyIo.execute(() -> receiveRelayed(message));
+        }
+        if (ttl > 0) {
+            fanout.execute(() -> relay(message, ttl - 1, hopped, sentAt, pc));
+        }
+    }
+
+    /**
+     * A mensagem com o HLC que ela usa na ordem: o do autor, ou o de agora se o
+     * relógio dele está adiantado além da deriva permitida ({@link Hlc#update}).
+     */
+    private ChatMessage stamped(ChatMessage message) {
+        long hlc = clock.update(message.hlc());
+        if (hlc == message.hlc()) return message;
+        Log.debug("ordem.relogio_adiantado", "autor", message.senderId(), "hlc_ms", message.timestampMillis());
+        return message.withHlc(hlc);
+    }
+
+    /**
+     * Mensagem repassada (o autor não é o vizinho que a entregou). Roda na thread do histórico.
+     */
+    private void receiveRelayed(ChatMessage message) {
+        String origin = message.senderId();
+        if (knownOf(origin) >= 0) {
+            // Lacunas só são pedidas ao próprio autor; mensagens repassadas ficam no histórico da conversa com ele
+            store(null, message);
+            return;
+        }
+        // Autor com quem nunca falamos direto: sem ponto de partida de sincronização, o id do gossip basta
+        if (rooms.subscribed(RoomRouter.roomOf(message.text()))) {
+            order.offer(message);
+            if (!history.saveRelayed(origin, message)) {
+                Log.warn("historico.limite_conversas", "origem", origin, "limite", ChatHistory.MAX_CONVERSATIONS);
+            }
+        }
+    }
+
+    /**
+     * Repassa só para vizinhos com assinantes da sala (eles mesmos ou alguém atrás
+     * deles), como MESSAGE para quem entende e GOSSIP para os demais.
+     */
+    private void relay(ChatMessage message, int ttl, int hops, long sentAt, PeerConnection from) {
+        String origin = message.senderId();
+        String room = RoomRouter.roomOf(message.text());
+        List<PeerConnection> candidates = new ArrayList<>();
         for (PeerConnection pc : connections) {
-            pc.out.println(formattedMessage);
-            if (pc.remotePeerId != null) {
-                history.saveMessage(pc.remotePeerId, formattedMessage);
+            if (pc != from && pc.ready && pc.authorSeqs && !origin.equals(pc.remotePeerId) && wants(pc, room)) {
+                candidates.add(pc);
+            }
+        }
+        List<PeerConnection> targets = gossip.pickTargets(candidates);
+        Frame structured = null;
+        Frame legacy = null;
+        for (PeerConnection pc : targets) {
+            if (pc.structured) {
+                if (structured == null) structured = Frame.message(ttl, hops, message);
+                pc.flow.send(structured, 1);
+            } else {
+                if (legacy == null) legacy = Frame.gossip(origin, message.seq(), ttl, hops, sentAt, message.text());
+                pc.flow.send(legacy, 1);
             }
+            countOut(pc, 1);
         }
+        gossip.recordRelayed(targets.size());
+    }
+
+    /**
+     * Números do gossip: entregas, cópias descartadas, repasses e latência de propagação.
+     */
+    public GossipRouter.GossipStats getGossipStats() {
+        return gossip.stats();
     }
 
-    public boolean connectToPeer(String host, int port) {
+    /**
+     * Mensagem com seq de autor: grava e exibe uma única vez e, se veio direto do
+     * autor ({@code direct} não nulo) depois de uma lacuna, pede o que falta. Uma
+     * mensagem de sala que não assinamos (só de passagem) conta a seq sem ser gravada.
+     * A gravação roda na thread do histórico, na ordem de chegada.
+     */
+    private void receive(PeerConnection direct, ChatMessage message) {
+        historyIo.execute(() -> store(direct, message));
+    }
+
+    private void store(PeerConnection direct, ChatMessage message) {
         try {
-            Socket socket = new Socket(host, port);
-            PeerConnection pc = new PeerConnection(socket);
-            pc.out.println("/id:" + this.peerId);
-
-            String response = pc.in.readLine();
-            if (response != null && response.startsWith("/id:")) {
-                pc.remotePeerId = response.substring(4).trim();
-                System.out.println("[INFO] Recebido peerId remoto: " + pc.remotePeerId);
-            }
+            String origin = message.senderId();
+            boolean subscribed = rooms.subscribed(RoomRouter.roomOf(message.text()));
+            ConversationSync.Receive result = subscribed
+                    ? history.saveIncoming(origin, message)
+                    : history.passIncoming(origin, message.seq());
+            if (result == ConversationSync.Receive.DUPLICATE) return;
+            if (subscribed) order.offer(message);
+            if (result == ConversationSync.Receive.GAP && direct != null) requestGap(direct);
+        } catch (IOException e) {
+            Log.error("historico.falha_gravar", "erro", e.getMessage());
+        }
+    }
+
+    /**
+     * Pede ao remoto a lacuna mais antiga, uma vez por lacuna (ex.: frames
+     * descartados pela fila de saída dele ou backfill limitado por p2p.sync.max-backfill).
+     */
+    private void requestGap(PeerConnection pc) throws IOException {
+        long[] gap = history.remoteGap(pc.remotePeerId);
+        if (gap == null || gap[0] == pc.requestedGapFrom) return;
+        pc.requestedGapFrom = gap[0];
+        pc.connection.send(Frame.syncRequest(gap[0], gap[1]));
+    }
 
-            connections.add(pc);
+    private String handshakeLine(boolean framed) {
+        return "/id:" + this.peerId + (framed ? PROTOCOL_MARKER : "");
+    }
 
-            if (pc.remotePeerId != null) {
-                var old = history.loadHistory(pc.remotePeerId);
-                if (!old.isEmpty()) {
-                    onMessageCallback.accept("[SISTEMA] ---- Carregando histórico com " + pc.remotePeerId.substring(0, 8) + "... ----");
-                    old.forEach(onMessageCallback);
-                    onMessageCallback.accept("[SISTEMA] ---- Fim do histórico ----");
-                }
+    private void deliver(PeerConnection pc, String text) {
+        if (!rooms.subscribed(RoomRouter.roomOf(text))) return;
+        ChatMessage message = new ChatMessage(pc.remotePeerId, -1, clock.now(), text);
+        order.offer(message);
+        historyIo.execute(() -> history.saveMessage(pc.remotePeerId, message));
+    }
+
+    @Override
+    public void onClose(TransportConnection connection) {
+        PeerConnection pc = (PeerConnection) connection.attachment();
+        if (pc == null) return;
+        pc.handshake.completeExceptionally(new IOException("Conexão encerrada antes de enviar ID"));
+        connections.remove(pc);
+        if (pc.received != null) {
+            metrics.remove(pc.received);
+            metrics.remove(pc.sent);
+        }
+        if (pc.remotePeerId != null && !pc.duplicate && !isConnectedTo(pc.remotePeerId)) {
+            rooms.remove(pc.remotePeerId);
+            advertiseRoomsLater();
+            // Para uma conexão recebida, o endereço de escuta do remoto vem da tabela de membros
+            InetSocketAddress listening = membership.address(pc.remotePeerId);
+            if (listening != null) {
+                connector.remember(pc.remotePeerId, listening.getAddress().getHostAddress(), listening.getPort());
             }
-            new Thread(() -> handleConnection(pc)).start();
-            return true;
-        } catch (IOException e) {
-            System.err.println("[ERRO] Falha ao conectar ao peer " + host + ":" + port + ". Motivo: " + e.getMessage());
-            return false;
+            connector.dropped(pc.remotePeerId);
         }
+        Log.info("conexao.encerrada", "peer", pc.remotePeerId, "endereco", connection.remoteAddress());
+        onMessageCallback.accept("[SISTEMA] Conexão com " + connection.remoteAddress() + " foi encerrada.");
     }
 
-    private static class PeerConnection {
-        Socket socket;
-        BufferedReader in;
-        PrintWriter out;
-        String remotePeerId;
+    /**
+     * Reapresenta só o final da conversa (p2p.history.replay mensagens); o
+     * restante pode ser buscado por páginas via {@link #loadHistoryBefore}.
+     */
+    private void replayHistory(String remotePeerId) {
+        if (historyReplay <= 0) return;
+        ChatHistory.HistoryPage page = history.loadTail(remotePeerId, historyReplay);
+        if (!page.messages().isEmpty()) {
+            onMessageCallback.accept("[SISTEMA] ---- Carregando histórico com " + remotePeerId.substring(0, 8) + "... ----");
+            page.messages().forEach(onMessageCallback);
+            onMessageCallback.accept("[SISTEMA] ---- Fim do histórico" + (page.hasMore() ? " (há mensagens mais antigas)" : "") + " ----");
+        }
+    }
+
+    /**
+     * Página do histórico com um peer anterior ao cursor (Long.MAX_VALUE = a partir do fim).
+     */
+    public ChatHistory.HistoryPage loadHistoryBefore(String remotePeerId, long cursor, int limit) {
+        return history.loadBefore(remotePeerId, cursor, limit);
+    }
+
+    /**
+     * Busca textual no histórico (todas as conversas se {@code remotePeerId} for null).
+     */
+    public List<ChatHistory.SearchHit> search(String query, String remotePeerId, int limit) {
+        return history.search(query, remotePeerId, limit);
+    }
+
+    /**
+     * Refaz o índice de busca a partir dos logs, em paralelo por conversa.
+     */
+    public int rebuildSearchIndex() {
+        return history.rebuildIndex();
+    }
+
+    /**
+     * Publica a mensagem localmente e agenda o envio para os peers. O laço sobre
+     * as conexões roda na thread de fan-out, então quem chama (a requisição HTTP)
+     * não espera por nenhum peer, esteja ele lento ou não.
+     */
+    public void broadcastMessage(String message) {
+        broadcastMessage(RoomRouter.DEFAULT_ROOM, message);
+    }
 
-        PeerConnection(Socket socket) throws IOException {
-            this.socket = socket;
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.out = new PrintWriter(socket.getOutputStream(), true);
+    /**
+     * Publica na sala: a mensagem só vai para os vizinhos com assinantes dela.
+     */
+    public void broadcastMessage(String room, String message) {
+        String formattedMessage = RoomRouter.tag(room, "[" + userName + "]: " + message);
+        int max = flow.settings().maxMessageBytes();
+        if (formattedMessage.getBytes(StandardCharsets.UTF_8).length > max) {
+            throw new IllegalArgumentException("Mensagem longa demais (máximo de " + max + " bytes)");
         }
+        long hlc = clock.now();
+        order.local(new ChatMessage(peerId, -1, hlc, formattedMessage));
+        fanout.execute(() -> fanOut(hlc, formattedMessage));
+    }
 
-        void close() {
+    private void fanOut(long hlc, String formattedMessage) {
+        long start = System.nanoTime();
+        // O seq de autor vem do outbox; quem ainda não está pronto recebe a mensagem na sincronização
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        ChatMessage written = history.appendOutbox(hlc, formattedMessage, writes);
+        long seq = written.seq();
+        String room = RoomRouter.roomOf(formattedMessage);
+        List<PeerConnection> targets = new ArrayList<>();
+        for (PeerConnection pc : connections) {
+            if (!pc.ready || !wants(pc, room)) continue;
+            targets.add(pc);
             try {
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (socket != null && !socket.isClosed()) socket.close();
+                history.saveOutgoing(pc.remotePeerId, written, writes);
             } catch (IOException e) {
-                // Silencioso
+                Log.error("historico.falha_gravar", "erro", e.getMessage());
+            }
+        }
+        // Outbox e conversas no mesmo lote: um fsync por envio, e nada sai antes de o seq estar no disco
+        history.awaitDurable(writes);
+        int ttl = gossip.settings().ttl();
+        gossip.firstSeen(peerId, seq);
+        gossip.recordOriginated();
+        for (PeerConnection pc : targets) {
+            if (pc.roomAware && pc.lastSeqSent < seq - 1) {
+                // As seqs desde a última enviada eram de salas que o remoto não assina
+                pc.flow.send(Frame.skip(pc.lastSeqSent + 1, seq - 1), 0);
+            }
+            pc.lastSeqSent = seq;
+            if (pc.structured) {
+                // Com ttl 0 o vizinho não repassa: é o envio direto
+                pc.flow.send(Frame.message(Math.max(ttl - 1, 0), 0, written), 1);
+            } else if (pc.authorSeqs && ttl > 0) {
+                // Os vizinhos repassam a mensagem adiante, até ttl saltos
+                pc.flow.send(Frame.gossip(peerId, seq, ttl - 1, 0, System.currentTimeMillis(), formattedMessage), 1);
+            } else if (pc.connection.isFramed()) {
+                pc.connection.send(Frame.chat(seq, formattedMessage));
+            } else {
+                pc.connection.send(Frame.line(formattedMessage));
+            }
+            countOut(pc, 1);
+        }
+        broadcastTime.recordSince(start);
+    }
+
+    /**
+     * Peers sem salas (versão anterior à 4) recebem tudo, como antes; os outros só o que anunciaram.
+     */
+    private boolean wants(PeerConnection pc, String room) {
+        return !pc.roomAware || rooms.interested(pc.remotePeerId, room);
+    }
+
+    /**
+     * Manda a cada vizinho pronto o anúncio de salas que mudou para ele. Roda na thread de fan-out.
+     */
+    private void advertiseRooms() {
+        for (PeerConnection pc : connections) {
+            if (!pc.ready || !pc.roomAware || pc.duplicate) continue;
+            Map<String, Integer> adv = rooms.changedAdvertisement(pc.remotePeerId);
+            if (adv != null) pc.connection.send(Frame.rooms(adv));
+        }
+    }
+
+    private void advertiseRoomsLater() {
+        try {
+            fanout.execute(this::advertiseRooms);
+        } catch (RejectedExecutionException e) {
+            // Nó encerrando
+        }
+    }
+
+    /**
+     * Assina a sala: os vizinhos passam a mandar as mensagens dela para cá.
+     */
+    public void joinRoom(String room) {
+        if (rooms.subscribe(RoomRouter.normalize(room))) advertiseRoomsLater();
+    }
+
+    public void leaveRoom(String room) {
+        if (rooms.unsubscribe(RoomRouter.normalize(room))) advertiseRoomsLater();
+    }
+
+    /**
+     * Salas assinadas e o interesse anunciado por cada vizinho.
+     */
+    public RoomRouter.RoomsView getRooms() {
+        return rooms.view();
+    }
+
+    /**
+     * Oferece ao peer conectado o arquivo {@code name} da pasta de envio; os bytes
+     * vão por uma conexão à parte, aberta pelo remoto depois que o usuário de lá
+     * aceita, e o andamento aparece em {@link #getTransfers()}.
+     */
+    public FileTransfer.TransferView sendFile(String remotePeerId, String name) throws IOException {
+        for (PeerConnection pc : connections) {
+            if (remotePeerId.equals(pc.remotePeerId) && !pc.duplicate && pc.fileOffers) {
+                FileTransfer.Offer offer = files.offer(remotePeerId, pc.remoteUserName, name);
+                pc.connection.send(offer.frame());
+                onMessageCallback.accept("[SISTEMA] Oferecendo o arquivo '" + offer.transfer().name() + "' ("
+                        + formatSize(offer.transfer().size()) + ") para " + pc.remoteUserName + "...");
+                return offer.transfer();
+            }
+        }
+        throw new IllegalStateException("Peer " + remotePeerId + " não está conectado ou não recebe arquivos");
+    }
+
+    /**
+     * Aceita a oferta de arquivo {@code transferId}; o download começa em seguida.
+     */
+    public FileTransfer.TransferView acceptFile(String transferId) {
+        return files.accept(transferId);
+    }
+
+    /**
+     * Recusa a oferta de arquivo {@code transferId}.
+     */
+    public FileTransfer.TransferView declineFile(String transferId) {
+        return files.decline(transferId);
+    }
+
+    /**
+     * Transferências de arquivo deste nó, enviadas e recebidas, com o andamento de cada uma.
+     */
+    public List<FileTransfer.TransferView> getTransfers() {
+        return files.transfers();
+    }
+
+    private final class FileEvents implements FileTransfer.Listener {
+        @Override
+        public void onOffered(FileTransfer.TransferView t) {
+            onMessageCallback.accept("[SISTEMA] " + t.peerName() + " oferece o arquivo '" + t.name() + "' ("
+                    + formatSize(t.size()) + "). Aceite ou recuse no painel Enviar Arquivo.");
+        }
+
+        @Override
+        public void onReceiving(FileTransfer.TransferView t) {
+            onMessageCallback.accept("[SISTEMA] Recebendo o arquivo '" + t.name() + "' (" + formatSize(t.size())
+                    + ") de " + t.peerName() + "...");
+        }
+
+        @Override
+        public void onCompleted(FileTransfer.TransferView t) {
+            onMessageCallback.accept(t.direction() == FileTransfer.Direction.SEND
+                    ? "[SISTEMA] Arquivo '" + t.name() + "' entregue a " + t.peerName() + "."
+                    : "[SISTEMA] Arquivo '" + t.name() + "' recebido de " + t.peerName() + ": " + t.file());
+        }
+
+        @Override
+        public void onFailed(FileTransfer.TransferView t) {
+            onMessageCallback.accept("[SISTEMA] Falha na transferência do arquivo '" + t.name() + "': " + t.error());
+        }
+    }
+
+    private static String formatSize(long bytes) {
+        return bytes < 1024 * 1024 ? (bytes + 1023) / 1024 + " KB" : String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    /**
+     * Conecta ao peer sem bloquear; o future termina com o id do peer remoto.
+     * Pedidos simultâneos para o mesmo endereço compartilham a mesma tentativa.
+     */
+    public CompletableFuture<String> connectAsync(String host, int port) {
+        return connector.connect(host, port, null);
+    }
+
+    /**
+     * Abre a conexão e faz o handshake (chamado pelo {@link ConnectionManager}, numa virtual thread).
+     */
+    private String dial(String host, int port, String expectedPeerId) throws IOException {
+        if (expectedPeerId != null && isConnectedTo(expectedPeerId)) return expectedPeerId;
+        InetSocketAddress target = new InetSocketAddress(host, port);
+        for (PeerConnection pc : connections) {
+            // Já conectados a esse endereço: nada a fazer
+            if (!pc.inbound && pc.remotePeerId != null && !pc.duplicate && target.equals(pc.connection.remoteAddress())) {
+                return pc.remotePeerId;
             }
         }
+        ConnectionManager.Settings settings = connector.settings();
+        Transport transport = this.transport;
+        if (transport == null) throw new IOException("Peer não iniciado");
+        TransportConnection connection = transport.connect(host, port, settings.connectTimeoutMillis());
+        PeerConnection pc = (PeerConnection) connection.attachment();
+        connection.send(Frame.line(handshakeLine(framedProtocol)));
+        try {
+            // A resposta chega pela thread do transporte; aqui só esperamos o handshake, com prazo
+            pc.handshake.get(settings.handshakeTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            connection.close();
+            throw new IOException("sem resposta ao handshake em " + settings.handshakeTimeoutMillis() + " ms");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            connection.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("conexão interrompida");
+        }
+        if (!pc.duplicate) {
+            replayHistory(pc.remotePeerId);
+            membership.contact(target);
+        }
+        return pc.remotePeerId;
+    }
+
+    /**
+     * Estado de cada conexão, incluindo a fila de saída (para a UI e diagnóstico).
+     */
+    public List<PeerConnectionStats> getConnectionStats() {
+        List<PeerConnectionStats> stats = new ArrayList<>();
+        for (PeerConnection pc : connections) {
+            stats.add(new PeerConnectionStats(pc.remotePeerId, pc.remoteUserName,
+                    pc.connection.remoteAddress().toString(), pc.connection.isFramed(), pc.rttMillis,
+                    pc.connection.queueStats(), pc.flow.stats()));
+        }
+        return stats;
+    }
+
+    private static class PeerConnection {
+        final TransportConnection connection;
+        final boolean inbound;
+        final CompletableFuture<Void> handshake = new CompletableFuture<>();
+        // Limites de entrada e créditos desta conexão
+        final FlowControl.Link flow;
+        volatile String remotePeerId;
+        // Handshake e sincronização concluídos: a conexão recebe o envio ao vivo
+        volatile boolean ready;
+        // O remoto numera as mensagens com seq de autor (HELLO com campos de sincronização)
+        volatile boolean authorSeqs;
+        // O remoto aceita ofertas de arquivo (HELLO de versão 3 ou maior)
+        volatile boolean fileOffers;
+        // O remoto anunciou salas: recebe só as que interessam, com SKIP para o resto
+        volatile boolean roomAware;
+        // O remoto recebe MESSAGE e SYNC_BATCH (mensagens com autor e HLC) em vez de CHAT, GOSSIP e SYNC_DATA
+        volatile boolean structured;
+        // Último seq de autor nosso enviado (ou coberto por SKIP) nesta conexão; só a thread de fan-out mexe
+        volatile long lastSeqSent;
+        // Descartada por já existir outra conexão com o mesmo peer (não reconecta)
+        volatile boolean duplicate;
+        final long openedNanos = System.nanoTime();
+        // Contadores desta conexão, registrados ao fim do handshake
+        volatile Metrics.Counter received;
+        volatile Metrics.Counter sent;
+        volatile long requestedGapFrom;
+        volatile String remoteUserName;
+        volatile long lastReceivedSeq;
+        volatile long lastAckSent;
+        volatile long lastAckedByRemote;
+        volatile long rttMillis = -1;
+
+        PeerConnection(TransportConnection connection, boolean inbound, FlowControl.Link flow) {
+            this.connection = connection;
+            this.inbound = inbound;
+            this.flow = flow;
+        }
     }
-}
\ No newline at end of file
+}
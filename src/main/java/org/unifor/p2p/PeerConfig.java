@@ -0,0 +1,171 @@
+package org.unifor.p2p;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Configurações do nó P2P. Os valores padrão reproduzem o comportamento
+ * original; o ChatService preenche a partir do application.properties.
+ */
+public class PeerConfig {
+
+    // "nio" (event loop com Selector) ou "virtual" (uma virtual thread por conexão)
+    private String transport = "nio";
+    // "framed" (protocolo binário, com fallback para peers antigos) ou "line" (só texto)
+    private String protocol = "framed";
+    private OutboundQueue.Settings outbound = OutboundQueue.Settings.DEFAULT;
+    private ChatHistory.Settings history = ChatHistory.Settings.DEFAULT;
+    // Quantas mensagens do histórico são reapresentadas ao reconectar com um peer
+    private int historyReplay = 50;
+    // Máximo de mensagens enviadas de uma vez para pôr em dia um peer que reconectou
+    private int syncMaxBackfill = 10000;
+    private GossipRouter.Settings gossip = GossipRouter.Settings.DEFAULT;
+    // Conexões abertas automaticamente pela descoberta; com gossip não é preciso conectar a todos
+    private int maxAutoConnections = 8;
+    private Membership.Settings membership = Membership.Settings.DEFAULT;
+    private ConnectionManager.Settings connect = ConnectionManager.Settings.DEFAULT;
+    private FileTransfer.Settings files = FileTransfer.Settings.DEFAULT;
+    // Salas assinadas ao subir, além da sala padrão
+    private List<String> rooms = List.of();
+    // Quanto uma mensagem recebida espera para sair na ordem do HLC (0 = exibe na chegada)
+    private long orderWindowMillis = 200;
+    private FlowControl.Settings flow = FlowControl.Settings.DEFAULT;
+    // Onde ficam peer_id.txt e chat_history (vazio = diretório de trabalho)
+    private Path dataDir = Paths.get("");
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public PeerConfig setTransport(String transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public PeerConfig setProtocol(String protocol) {
+        this.protocol = protocol;
+        return this;
+    }
+
+    public OutboundQueue.Settings getOutbound() {
+        return outbound;
+    }
+
+    public PeerConfig setOutbound(OutboundQueue.Settings outbound) {
+        this.outbound = outbound;
+        return this;
+    }
+
+    public ChatHistory.Settings getHistory() {
+        return history;
+    }
+
+    public PeerConfig setHistory(ChatHistory.Settings history) {
+        this.history = history;
+        return this;
+    }
+
+    public int getHistoryReplay() {
+        return historyReplay;
+    }
+
+    public PeerConfig setHistoryReplay(int historyReplay) {
+        this.historyReplay = historyReplay;
+        return this;
+    }
+
+    public int getSyncMaxBackfill() {
+        return syncMaxBackfill;
+    }
+
+    public PeerConfig setSyncMaxBackfill(int syncMaxBackfill) {
+        this.syncMaxBackfill = syncMaxBackfill;
+        return this;
+    }
+
+    public GossipRouter.Settings getGossip() {
+        return gossip;
+    }
+
+    public PeerConfig setGossip(GossipRouter.Settings gossip) {
+        this.gossip = gossip;
+        return this;
+    }
+
+    public int getMaxAutoConnections() {
+        return maxAutoConnections;
+    }
+
+    public PeerConfig setMaxAutoConnections(int maxAutoConnections) {
+        this.maxAutoConnections = maxAutoConnections;
+        return this;
+    }
+
+    public Membership.Settings getMembership() {
+        return membership;
+    }
+
+    public PeerConfig setMembership(Membership.Settings membership) {
+        this.membership = membership;
+        return this;
+    }
+
+    public ConnectionManager.Settings getConnect() {
+        return connect;
+    }
+
+    public PeerConfig setConnect(ConnectionManager.Settings connect) {
+        this.connect = connect;
+        return this;
+    }
+
+    public FileTransfer.Settings getFiles() {
+        return files;
+    }
+
+    public PeerConfig setFiles(FileTransfer.Settings files) {
+        this.files = files;
+        return this;
+    }
+
+    public List<String> getRooms() {
+        return rooms;
+    }
+
+    public PeerConfig setRooms(List<String> rooms) {
+        this.rooms = rooms;
+        return this;
+    }
+
+    public long getOrderWindowMillis() {
+        return orderWindowMillis;
+    }
+
+    public PeerConfig setOrderWindowMillis(long orderWindowMillis) {
+        this.orderWindowMillis = orderWindowMillis;
+        return this;
+    }
+
+    public FlowControl.Settings getFlow() {
+        return flow;
+    }
+
+    public PeerConfig setFlow(FlowControl.Settings flow) {
+        this.flow = flow;
+        return this;
+    }
+
+    public Path getDataDir() {
+        return dataDir;
+    }
+
+    public PeerConfig setDataDir(Path dataDir) {
+        this.dataDir = dataDir;
+        return this;
+    }
+}
@@ -0,0 +1,8 @@
+package org.unifor.p2p;
+
+/**
+ * Retrato de uma conexão ativa, exposto em /peers.
+ */
+public record PeerConnectionStats(String peerId, String userName, String address, boolean framed,
+                                  long rttMillis, OutboundQueue.QueueStats outbound, FlowControl.LinkStats flow) {
+}
@@ -13,15 +13,38 @@ public class PeerIdentity {
     private static final String FILE_NAME = "peer_id.txt";
 
     public static String getPeerId(String userName) throws IOException {
-        Path path = Paths.get(FILE_NAME, userName + ".id");
+        return getPeerId(Paths.get(""), userName);
+    }
+
+    public static String createPeerId(String userName) throws IOException {
+        return createPeerId(Paths.get(""), userName);
+    }
+
+    /**
+     * @param dataDir diretório de dados do nó (o vazio é o diretório de trabalho)
+     */
+    public static String getPeerId(Path dataDir, String userName) throws IOException {
+        Path path = dataDir.resolve(FILE_NAME).resolve(userName + ".id");
         if (Files.exists(path)) {
             return Files.readString(path).trim();
         }
         return null;
     }
 
-    public static String createPeerId(String userName) throws IOException {
-        Path path = Paths.get(FILE_NAME, userName + ".id");
+    /**
+     * Ids de peer são UUIDs na forma canônica; o id vira nome de pasta no histórico.
+     */
+    public static boolean isValid(String peerId) {
+        if (peerId == null || peerId.length() != 36) return false;
+        try {
+            return UUID.fromString(peerId).toString().equals(peerId);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public static String createPeerId(Path dataDir, String userName) throws IOException {
+        Path path = dataDir.resolve(FILE_NAME).resolve(userName + ".id");
 
         if (!Files.exists(path)) {
             String newId = UUID.randomUUID().toString();
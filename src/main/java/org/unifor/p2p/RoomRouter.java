@@ -0,0 +1,153 @@
+package org.unifor.p2p;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Salas (tópicos) assinadas por este nó e por quem está atrás de cada vizinho.
+ *
+ * Uma mensagem de sala leva o prefixo {@code "#sala "} no texto; sem prefixo
+ * ela é da sala {@link #DEFAULT_ROOM}, como as de peers que não conhecem salas.
+ *
+ * Cada vizinho anuncia as salas que interessam a ele ou a alguém atrás dele,
+ * com a distância em saltos até o assinante mais próximo (vetor de distâncias,
+ * sem devolver a um vizinho o que ele mesmo anunciou). Uma mensagem só vai para
+ * os vizinhos que anunciaram a sala dela; a distância é limitada pelo TTL do
+ * gossip, então um interesse que deixou de existir some em no máximo TTL trocas.
+ */
+public final class RoomRouter {
+
+    public static final String DEFAULT_ROOM = "geral";
+    private static final Pattern VALID = Pattern.compile("[a-z0-9_-]{1,32}");
+
+    /**
+     * Salas assinadas aqui e, para cada vizinho, as salas que ele anunciou com a distância.
+     */
+    public record RoomsView(List<String> subscribed, Map<String, Map<String, Integer>> neighbors) {
+    }
+
+    private final int maxDistance;
+    private final Set<String> local = new TreeSet<>();
+    // Vizinho -> sala -> distância (0 = o próprio vizinho assina)
+    private final Map<String, Map<String, Integer>> neighbors = new HashMap<>();
+    // Último anúncio enviado a cada vizinho
+    private final Map<String, Map<String, Integer>> advertised = new HashMap<>();
+
+    RoomRouter(List<String> rooms, int maxDistance) {
+        this.maxDistance = maxDistance;
+        local.add(DEFAULT_ROOM);
+        for (String room : rooms) {
+            local.add(normalize(room));
+        }
+    }
+
+    // --- Nome da sala no texto ---
+
+    /**
+     * Nome da sala em minúsculas; letras, dígitos, '_' e '-', até 32 caracteres.
+     */
+    public static String normalize(String room) {
+        String name = room == null ? "" : room.strip().toLowerCase(Locale.ROOT);
+        if (name.startsWith("#")) name = name.substring(1);
+        if (!VALID.matcher(name).matches()) throw new IllegalArgumentException("Nome de sala inválido: " + room);
+        return name;
+    }
+
+    /**
+     * Sala de uma mensagem pelo prefixo do texto.
+     */
+    public static String roomOf(String message) {
+        if (!message.startsWith("#")) return DEFAULT_ROOM;
+        int end = message.indexOf(' ');
+        String name = end < 0 ? "" : message.substring(1, end);
+        return VALID.matcher(name).matches() ? name : DEFAULT_ROOM;
+    }
+
+    public static String tag(String room, String message) {
+        return DEFAULT_ROOM.equals(room) ? message : "#" + room + " " + message;
+    }
+
+    public static String untag(String message) {
+        return DEFAULT_ROOM.equals(roomOf(message)) ? message : message.substring(message.indexOf(' ') + 1);
+    }
+
+    // --- Assinaturas locais ---
+
+    synchronized boolean subscribe(String room) {
+        return local.add(room);
+    }
+
+    synchronized boolean unsubscribe(String room) {
+        return !DEFAULT_ROOM.equals(room) && local.remove(room);
+    }
+
+    synchronized boolean subscribed(String room) {
+        return local.contains(room);
+    }
+
+    synchronized List<String> rooms() {
+        return List.copyOf(local);
+    }
+
+    synchronized RoomsView view() {
+        return new RoomsView(List.copyOf(local), Map.copyOf(neighbors));
+    }
+
+    // --- Tabela de interesse dos vizinhos ---
+
+    synchronized void update(String neighborId, Map<String, Integer> interest) {
+        neighbors.put(neighborId, Map.copyOf(interest));
+    }
+
+    synchronized void remove(String neighborId) {
+        neighbors.remove(neighborId);
+        advertised.remove(neighborId);
+    }
+
+    /**
+     * Algum assinante da sala está no vizinho ou atrás dele.
+     */
+    synchronized boolean interested(String neighborId, String room) {
+        Map<String, Integer> interest = neighbors.get(neighborId);
+        return interest != null && interest.containsKey(room);
+    }
+
+    /**
+     * Anúncio para o vizinho, registrado como enviado (vai no HELLO).
+     */
+    synchronized Map<String, Integer> advertise(String neighborId) {
+        Map<String, Integer> adv = advertisementFor(neighborId);
+        advertised.put(neighborId, adv);
+        return adv;
+    }
+
+    /**
+     * Novo anúncio para o vizinho, ou null se não mudou desde o último enviado.
+     */
+    synchronized Map<String, Integer> changedAdvertisement(String neighborId) {
+        Map<String, Integer> adv = advertisementFor(neighborId);
+        if (adv.equals(advertised.get(neighborId))) return null;
+        advertised.put(neighborId, adv);
+        return adv;
+    }
+
+    private Map<String, Integer> advertisementFor(String neighborId) {
+        Map<String, Integer> adv = new HashMap<>();
+        for (String room : local) {
+            adv.put(room, 0);
+        }
+        for (Map.Entry<String, Map<String, Integer>> n : neighbors.entrySet()) {
+            if (n.getKey().equals(neighborId)) continue;
+            for (Map.Entry<String, Integer> e : n.getValue().entrySet()) {
+                int distance = e.getValue() + 1;
+                if (distance < maxDistance) adv.merge(e.getKey(), distance, Math::min);
+            }
+        }
+        return adv;
+    }
+}
@@ -0,0 +1,51 @@
+package org.unifor.p2p;
+
+/**
+ * Balde de fichas: enche a {@code ratePerSecond} fichas por segundo até
+ * {@code burst}, e cada mensagem consome uma. Limita a taxa média sem impedir
+ * rajadas curtas. Taxa 0 = sem limite.
+ */
+final class TokenBucket {
+
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    TokenBucket(int ratePerSecond, int burst) {
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(burst, 1);
+        this.tokens = this.burst;
+    }
+
+    boolean unlimited() {
+        return ratePerNano <= 0;
+    }
+
+    /**
+     * Consome até {@code n} fichas, o quanto houver.
+     *
+     * @return fichas consumidas
+     */
+    synchronized int acquireUpTo(int n) {
+        if (unlimited()) return n;
+        refill();
+        int taken = (int) Math.min(n, Math.floor(tokens));
+        tokens -= taken;
+        return taken;
+    }
+
+    /**
+     * Devolve fichas consumidas e não usadas.
+     */
+    synchronized void refund(int n) {
+        if (unlimited()) return;
+        tokens = Math.min(burst, tokens + n);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+        refilledAt = now;
+    }
+}
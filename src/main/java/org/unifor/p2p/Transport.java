@@ -0,0 +1,68 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+
+/**
+ * Camada de transporte plugável usada pelo {@link Peer}.
+ * O transporte só conhece bytes e frames; a lógica de handshake e chat
+ * fica no Peer, que recebe os eventos pelo {@link TransportListener}.
+ */
+public interface Transport {
+
+    /**
+     * Abre o socket de escuta na porta informada (0 = porta efêmera).
+     */
+    void bind(int port) throws IOException;
+
+    /**
+     * Porta local efetivamente usada pelo socket de escuta.
+     */
+    int localPort();
+
+    /**
+     * Inicia o(s) laço(s) de aceitação e leitura.
+     */
+    void start();
+
+    /**
+     * Abre uma conexão de saída. O {@link TransportListener#onOpen} é chamado
+     * antes deste método retornar e antes de qualquer leitura.
+     */
+    default TransportConnection connect(String host, int port) throws IOException {
+        return connect(host, port, 0);
+    }
+
+    /**
+     * Como {@link #connect(String, int)}, desistindo (SocketTimeoutException) se o
+     * connect TCP não terminar em {@code timeoutMillis} (0 = sem limite).
+     */
+    TransportConnection connect(String host, int port, int timeoutMillis) throws IOException;
+
+    void close();
+
+    /**
+     * Cria o transporte a partir do valor da propriedade {@code p2p.transport}.
+     */
+    static Transport create(String kind, TransportListener listener) throws IOException {
+        return create(kind, listener, OutboundQueue.Settings.DEFAULT);
+    }
+
+    static Transport create(String kind, TransportListener listener, OutboundQueue.Settings queues) throws IOException {
+        return create(kind, listener, queues, new Metrics());
+    }
+
+    /**
+     * Como {@link #create(String, TransportListener, OutboundQueue.Settings)}, contando
+     * os bytes lidos e escritos nas métricas do nó.
+     */
+    static Transport create(String kind, TransportListener listener, OutboundQueue.Settings queues, Metrics metrics)
+            throws IOException {
+        if (kind == null || kind.isBlank() || kind.equalsIgnoreCase("nio")) {
+            return new NioTransport(listener, queues, metrics);
+        }
+        if (kind.equalsIgnoreCase("virtual")) {
+            return new VirtualThreadTransport(listener, queues, metrics);
+        }
+        throw new IllegalArgumentException("Transporte desconhecido: " + kind + " (use 'nio' ou 'virtual')");
+    }
+}
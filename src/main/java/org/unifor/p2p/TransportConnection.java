@@ -0,0 +1,39 @@
+package org.unifor.p2p;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Uma conexão TCP aberta pelo {@link Transport}.
+ */
+public interface TransportConnection {
+
+    /**
+     * Enfileira um frame na fila de saída limitada da conexão. Frames pendentes
+     * são agrupados em uma única escrita no socket pelo escritor da conexão.
+     * Se a fila estiver cheia, vale a {@link OutboundQueue.OverflowPolicy} configurada.
+     */
+    void send(Frame frame);
+
+    OutboundQueue.QueueStats queueStats();
+
+    /**
+     * Passa a leitura para o protocolo binário de frames. Chamado pelo dono
+     * durante o handshake, a partir do callback da própria linha "/id:".
+     */
+    void upgrade();
+
+    boolean isFramed();
+
+    InetSocketAddress remoteAddress();
+
+    boolean isOpen();
+
+    void close();
+
+    /**
+     * Objeto associado à conexão pelo dono (no nosso caso, o PeerConnection).
+     */
+    Object attachment();
+
+    void attach(Object attachment);
+}
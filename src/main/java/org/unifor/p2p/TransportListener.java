@@ -0,0 +1,26 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+
+/**
+ * Eventos de uma conexão entregues pelo {@link Transport}.
+ * No transporte NIO todos os eventos chegam na thread do event loop,
+ * então as implementações não devem bloquear.
+ */
+public interface TransportListener {
+
+    void onOpen(TransportConnection connection, boolean inbound);
+
+    /**
+     * Um frame recebido. Uma exceção (inclusive de um frame malformado) fecha só esta conexão.
+     */
+    void onFrame(TransportConnection connection, Frame frame) throws IOException;
+
+    /**
+     * Chamado depois que todos os frames de uma leitura do socket foram entregues.
+     */
+    default void onReadComplete(TransportConnection connection) {
+    }
+
+    void onClose(TransportConnection connection);
+}
@@ -0,0 +1,208 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transporte com sockets bloqueantes, mas com uma virtual thread por conexão
+ * em vez de uma thread de plataforma. O modelo de programação é o mesmo do
+ * código original; o custo de uma conexão ociosa cai para alguns KB de heap.
+ */
+final class VirtualThreadTransport implements Transport {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final TransportListener listener;
+    private final OutboundQueue.Settings queueSettings;
+    private ServerSocket serverSocket;
+    private final Metrics.Counter bytesIn;
+    private final Metrics.Counter bytesOut;
+
+    VirtualThreadTransport(TransportListener listener, OutboundQueue.Settings queueSettings, Metrics metrics) {
+        this.listener = listener;
+        this.queueSettings = queueSettings;
+        this.bytesIn = metrics.counter("p2p_bytes_received_total", "Bytes lidos das conexões de chat");
+        this.bytesOut = metrics.counter("p2p_bytes_sent_total", "Bytes escritos nas conexões de chat");
+    }
+
+    @Override
+    public void bind(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("0.0.0.0"));
+    }
+
+    @Override
+    public int localPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void start() {
+        Thread.ofVirtual().name("p2p-accept").start(this::acceptLoop);
+    }
+
+    @Override
+    public TransportConnection connect(String host, int port, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        VirtualConnection conn = new VirtualConnection(socket);
+        listener.onOpen(conn, false);
+        conn.start();
+        return conn;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            // Silencioso
+        }
+    }
+
+    private void acceptLoop() {
+        while (serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                VirtualConnection conn = new VirtualConnection(socket);
+                listener.onOpen(conn, true);
+                conn.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    Log.error("transporte.falha_aceitar", "erro", e.getMessage());
+            }
+        }
+    }
+
+    private final class VirtualConnection implements TransportConnection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final WireCodec codec = new WireCodec();
+        private final OutboundQueue writeQueue = new OutboundQueue(queueSettings);
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private Thread writer;
+        private volatile Object attachment;
+
+        VirtualConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+        }
+
+        void start() {
+            Thread.ofVirtual().start(this::readLoop);
+            writer = Thread.ofVirtual().start(this::writeLoop);
+        }
+
+        private void readLoop() {
+            byte[] buf = new byte[READ_BUFFER_SIZE];
+            try {
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    bytesIn.add(n);
+                    codec.decode(ByteBuffer.wrap(buf, 0, n), frame -> listener.onFrame(this, frame));
+                    listener.onReadComplete(this);
+                }
+            } catch (ProtocolException e) {
+                Log.warn("conexao.frame_invalido", "endereco", remoteAddress(), "erro", e.getMessage());
+            } catch (IOException e) {
+                // Acontece quando o outro peer se desconecta
+            } catch (RuntimeException e) {
+                Log.error("conexao.falha_processar", "endereco", remoteAddress(), "erro", e);
+            } finally {
+                close();
+            }
+        }
+
+        private void writeLoop() {
+            ByteBuffer buf = ByteBuffer.allocate(8192);
+            try {
+                while (!closed.get()) {
+                    // Espera o primeiro frame e leva junto todos os que já estiverem na fila
+                    Frame first = writeQueue.take();
+                    if (buf.remaining() < first.encodedLength()) {
+                        buf = ByteBuffer.allocate(Math.max(buf.capacity(), first.encodedLength()));
+                    }
+                    first.writeTo(buf);
+                    buf = WireCodec.drainInto(writeQueue, buf);
+                    out.write(buf.array(), 0, buf.position());
+                    out.flush();
+                    bytesOut.add(buf.position());
+                    buf.clear();
+                }
+            } catch (InterruptedException | IOException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void send(Frame frame) {
+            if (closed.get()) return;
+            // Quem bloqueia aqui é quem envia, nunca o escritor (que tem thread própria)
+            if (!writeQueue.offer(frame, Thread.currentThread() != writer)) {
+                Log.warn("conexao.fila_cheia", "endereco", remoteAddress());
+                close();
+            }
+        }
+
+        @Override
+        public OutboundQueue.QueueStats queueStats() {
+            return writeQueue.stats();
+        }
+
+        @Override
+        public void upgrade() {
+            codec.upgrade();
+        }
+
+        @Override
+        public boolean isFramed() {
+            return codec.isFramed();
+        }
+
+        @Override
+        public InetSocketAddress remoteAddress() {
+            return (InetSocketAddress) socket.getRemoteSocketAddress();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed.get();
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (writer != null) writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Silencioso
+            }
+            listener.onClose(this);
+        }
+
+        @Override
+        public Object attachment() {
+            return attachment;
+        }
+
+        @Override
+        public void attach(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+}
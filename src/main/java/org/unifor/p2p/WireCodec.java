@@ -0,0 +1,117 @@
+package org.unifor.p2p;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodificador de uma conexão. Começa no modo de linhas (handshake "/id:"
+ * e peers legados) e passa para frames binários quando {@link #upgrade()} é
+ * chamado. A troca pode acontecer no meio de um buffer: os bytes seguintes à
+ * linha do handshake já são interpretados como frames.
+ */
+final class WireCodec {
+
+    // Limite de um frame; um tamanho maior indica fluxo corrompido ou peer malicioso
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    // Teto de bytes agrupados em uma única escrita no socket
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    interface FrameSink {
+        void accept(Frame frame) throws IOException;
+    }
+
+    private byte[] pending = new byte[256];
+    private int length;
+    private volatile boolean framed;
+
+    void upgrade() {
+        framed = true;
+    }
+
+    boolean isFramed() {
+        return framed;
+    }
+
+    void decode(ByteBuffer data, FrameSink sink) throws IOException {
+        while (data.hasRemaining()) {
+            if (framed) {
+                decodeFrame(data, sink);
+            } else {
+                decodeLine(data, sink);
+            }
+        }
+    }
+
+    private void decodeLine(ByteBuffer data, FrameSink sink) throws IOException {
+        while (data.hasRemaining() && !framed) {
+            byte b = data.get();
+            if (b == '\n') {
+                int end = length;
+                if (end > 0 && pending[end - 1] == '\r') end--;
+                byte[] line = Arrays.copyOf(pending, end);
+                length = 0;
+                sink.accept(new Frame(Frame.Type.LINE, line));
+            } else {
+                // Sem isto um peer de linhas poderia encher a memória com uma linha sem fim
+                if (length >= MAX_FRAME_SIZE) throw new ProtocolException("Linha longa demais");
+                append(b);
+            }
+        }
+    }
+
+    private void decodeFrame(ByteBuffer data, FrameSink sink) throws IOException {
+        // Junta os bytes até ter um cabeçalho completo e depois o payload inteiro
+        while (data.hasRemaining() && length < Frame.HEADER_SIZE) {
+            append(data.get());
+        }
+        if (length < Frame.HEADER_SIZE) return;
+
+        Frame.Type type = Frame.Type.fromCode(pending[0]);
+        int size = ByteBuffer.wrap(pending, 1, 4).getInt();
+        if (type == null || type == Frame.Type.LINE || size < 0 || size > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Frame inválido (tipo " + pending[0] + ", tamanho " + size + ")");
+        }
+        int missing = Frame.HEADER_SIZE + size - length;
+        int chunk = Math.min(missing, data.remaining());
+        ensureCapacity(length + chunk);
+        data.get(pending, length, chunk);
+        length += chunk;
+        if (chunk == missing) {
+            byte[] payload = Arrays.copyOfRange(pending, Frame.HEADER_SIZE, Frame.HEADER_SIZE + size);
+            length = 0;
+            sink.accept(new Frame(type, payload));
+        }
+    }
+
+    private void append(byte b) {
+        ensureCapacity(length + 1);
+        pending[length++] = b;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(needed, pending.length * 2));
+        }
+    }
+
+    /**
+     * Codifica em {@code out} todos os frames pendentes que couberem, para que
+     * vários frames saiam em uma única escrita. Retorna o buffer (possivelmente
+     * realocado) em modo de escrita.
+     */
+    static ByteBuffer drainInto(OutboundQueue queue, ByteBuffer out) {
+        Frame frame;
+        while (out.position() < MAX_BATCH_BYTES && (frame = queue.poll()) != null) {
+            if (out.remaining() < frame.encodedLength()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + frame.encodedLength()));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            frame.writeTo(out);
+        }
+        return out;
+    }
+}
@@ -1,19 +1,67 @@
 package org.unifor.service;
 
+import org.unifor.p2p.ChatHistory;
+import org.unifor.p2p.ConnectionManager;
+import org.unifor.p2p.FileTransfer;
+import org.unifor.p2p.FlowControl;
+import org.unifor.p2p.GossipRouter;
+import org.unifor.p2p.Log;
+import org.unifor.p2p.Membership;
+import org.unifor.p2p.OutboundQueue;
 import org.unifor.p2p.Peer;
+import org.unifor.p2p.PeerConfig;
+import org.unifor.p2p.PeerConnectionStats;
+import org.unifor.p2p.PeerIdentity;
+import org.unifor.p2p.RoomRouter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class ChatService {
 
-    private final List<String> messages = new CopyOnWriteArrayList<>();
+    // Buffer e stream de uma sala assinada
+    private record Room(MessageBuffer messages, MessageStream stream) {
+    }
+
+    // Eventos SSE com o estado dos peers e das transferências (ver publishStatus)
+    static final String PEERS_EVENT = "peers";
+    static final String TRANSFERS_EVENT = "transfers";
+    private static final long STATUS_INTERVAL_MS = 1000;
+
+    // Só as mensagens mais recentes ficam em memória; o restante está no histórico em disco
+    private MessageBuffer messages;
+    // Push das mensagens novas para a UI (Server-Sent Events)
+    private MessageStream stream;
+    // Salas assinadas; a padrão usa os campos acima
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // Envio para os streams de todas as salas: uma virtual thread por escritor, para
+    // que um navegador lento só segure a dele
+    private final ExecutorService pusher = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ui-push-", 0).factory());
+    private final AtomicLong messagesAdded = new AtomicLong();
+    // Confere o estado uma vez por nó, não uma por navegador aberto
+    private final ScheduledExecutorService statusTimer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("ui-status").daemon().factory());
+    // Último estado publicado (o de uma sala aberta depois é enviado a ela na abertura)
+    private volatile List<PeerConnectionStats> lastPeers;
+    private volatile List<FileTransfer.TransferView> lastTransfers;
     private Peer peer;
 
     @Value("${p2p.username}")
@@ -22,18 +70,251 @@ public class ChatService {
     @Value("${p2p.port}")
     private int port;
 
+    // "nio" (event loop com Selector) ou "virtual" (virtual thread por conexão)
+    @Value("${p2p.transport:nio}")
+    private String transport;
+
+    // "framed" (binário, com fallback para peers antigos) ou "line" (protocolo de texto original)
+    @Value("${p2p.protocol:framed}")
+    private String protocol;
+
+    // Fila de saída limitada por conexão e o que fazer quando ela enche
+    @Value("${p2p.outbound.capacity:1024}")
+    private int outboundCapacity;
+
+    // drop-oldest, disconnect ou block
+    @Value("${p2p.outbound.overflow:drop-oldest}")
+    private String outboundOverflow;
+
+    @Value("${p2p.outbound.block-timeout-ms:2000}")
+    private long outboundBlockTimeoutMs;
+
+    // Histórico: tamanho máximo de cada segmento e quando fazer fsync (always, interval, os)
+    @Value("${p2p.history.segment-bytes:8388608}")
+    private long historySegmentBytes;
+
+    @Value("${p2p.history.durability:interval}")
+    private String historyDurability;
+
+    @Value("${p2p.history.sync-interval-ms:1000}")
+    private long historySyncIntervalMs;
+
+    // Compressão dos segmentos fechados e retenção (0 = sem limite)
+    @Value("${p2p.history.compaction.compress:true}")
+    private boolean historyCompress;
+
+    @Value("${p2p.history.compaction.block-bytes:65536}")
+    private int historyBlockBytes;
+
+    @Value("${p2p.history.compaction.interval-ms:60000}")
+    private long historyCompactionIntervalMs;
+
+    @Value("${p2p.history.retention.max-age-ms:0}")
+    private long historyMaxAgeMs;
+
+    @Value("${p2p.history.retention.peer-max-bytes:0}")
+    private long historyPeerMaxBytes;
+
+    @Value("${p2p.history.retention.peer-max-messages:0}")
+    private long historyPeerMaxMessages;
+
+    @Value("${p2p.history.retention.max-total-bytes:0}")
+    private long historyMaxTotalBytes;
+
+    // Mensagens do histórico reapresentadas ao conectar; as mais antigas vêm por /history
+    @Value("${p2p.history.replay:50}")
+    private int historyReplay;
+
+    @Value("${p2p.sync.max-backfill:10000}")
+    private int syncMaxBackfill;
+
+    // Gossip: saltos máximos, vizinhos por repasse e janela de ids já vistos
+    @Value("${p2p.gossip.ttl:8}")
+    private int gossipTtl;
+
+    @Value("${p2p.gossip.fanout:4}")
+    private int gossipFanout;
+
+    @Value("${p2p.gossip.dedup-capacity:65536}")
+    private int gossipDedupCapacity;
+
+    @Value("${p2p.gossip.dedup-window-ms:300000}")
+    private long gossipDedupWindowMs;
+
+    // Conexões abertas automaticamente pela descoberta
+    @Value("${p2p.discovery.max-connections:8}")
+    private int discoveryMaxConnections;
+
+    // Tabela de membros: anúncios, sondagens (SWIM) e prazo até um suspeito ser removido
+    // Grupo e porta dos anúncios multicast (porta 0 = sem multicast, só conexões manuais)
+    @Value("${p2p.membership.multicast-group:230.0.0.0}")
+    private String membershipMulticastGroup;
+
+    @Value("${p2p.membership.multicast-port:4446}")
+    private int membershipMulticastPort;
+
+    @Value("${p2p.membership.announce-interval-ms:5000}")
+    private long membershipAnnounceIntervalMs;
+
+    @Value("${p2p.membership.probe-interval-ms:1000}")
+    private long membershipProbeIntervalMs;
+
+    @Value("${p2p.membership.probe-timeout-ms:300}")
+    private long membershipProbeTimeoutMs;
+
+    @Value("${p2p.membership.indirect-probes:3}")
+    private int membershipIndirectProbes;
+
+    @Value("${p2p.membership.suspect-timeout-ms:5000}")
+    private long membershipSuspectTimeoutMs;
+
+    // Conexões de saída: prazos de connect/handshake e espera entre reconexões
+    @Value("${p2p.connect.timeout-ms:5000}")
+    private int connectTimeoutMs;
+
+    @Value("${p2p.connect.handshake-timeout-ms:5000}")
+    private int connectHandshakeTimeoutMs;
+
+    @Value("${p2p.connect.reconnect-initial-ms:1000}")
+    private long connectReconnectInitialMs;
+
+    @Value("${p2p.connect.reconnect-max-ms:60000}")
+    private long connectReconnectMaxMs;
+
+    // Arquivos: porta dos dados (0 = livre), blocos com checksum, blocos em trânsito, pasta dos recebidos
+    // e a pasta de onde se pode enviar
+    @Value("${p2p.file.port:0}")
+    private int filePort;
+
+    @Value("${p2p.file.chunk-bytes:1048576}")
+    private int fileChunkBytes;
+
+    @Value("${p2p.file.window:8}")
+    private int fileWindow;
+
+    @Value("${p2p.file.directory:downloads}")
+    private String fileDirectory;
+
+    @Value("${p2p.file.retries:5}")
+    private int fileRetries;
+
+    @Value("${p2p.file.outbox:outbox}")
+    private String fileOutbox;
+
+    // Diretório de peer_id.txt e chat_history/ (vazio = diretório de trabalho)
+    @Value("${p2p.data-dir:}")
+    private String dataDir;
+
+    // Nível do log do nó: DEBUG, INFO, WARN ou ERROR
+    @Value("${p2p.log.level:INFO}")
+    private String logLevel;
+
+    // Capacidade do buffer de mensagens da UI, por sala (arredondada para potência de 2)
+    @Value("${p2p.messages.capacity:4096}")
+    private int messagesCapacity;
+
+    // Salas assinadas ao subir, separadas por vírgula, além da sala padrão
+    @Value("${p2p.rooms:}")
+    private String roomList;
+
+    // Espera das mensagens recebidas para saírem na ordem do HLC (0 = exibe na chegada)
+    @Value("${p2p.order.window-ms:200}")
+    private long orderWindowMs;
+
+    // Limites de entrada (mensagens por segundo, 0 = sem limite) e créditos por conexão
+    @Value("${p2p.flow.peer-rate:500}")
+    private int flowPeerRate;
+
+    @Value("${p2p.flow.peer-burst:1000}")
+    private int flowPeerBurst;
+
+    @Value("${p2p.flow.global-rate:2000}")
+    private int flowGlobalRate;
+
+    @Value("${p2p.flow.global-burst:4000}")
+    private int flowGlobalBurst;
+
+    @Value("${p2p.flow.window:512}")
+    private int flowWindow;
+
+    @Value("${p2p.flow.max-held:1024}")
+    private int flowMaxHeld;
+
+    @Value("${p2p.flow.max-message-bytes:8192}")
+    private int flowMaxMessageBytes;
+
     @PostConstruct
     private void init() {
+        Log.setLevel(Log.Level.parse(logLevel));
+        messages = new MessageBuffer(messagesCapacity);
+        stream = new MessageStream(messages, pusher);
+        rooms.put(RoomRouter.DEFAULT_ROOM, new Room(messages, stream));
+        List<String> initialRooms = new ArrayList<>();
+        for (String name : roomList.split(",")) {
+            if (name.isBlank()) continue;
+            String room = RoomRouter.normalize(name);
+            initialRooms.add(room);
+            openRoom(room);
+        }
         try {
             // A lógica de inicialização do Peer com o callback permanece a mesma.
-            peer = new Peer(userName, port, this::onMessageReceived);
+            PeerConfig config = new PeerConfig()
+                    .setTransport(transport)
+                    .setProtocol(protocol)
+                    .setOutbound(new OutboundQueue.Settings(outboundCapacity,
+                            OutboundQueue.OverflowPolicy.parse(outboundOverflow), outboundBlockTimeoutMs))
+                    .setHistory(new ChatHistory.Settings(historySegmentBytes,
+                            ChatHistory.Durability.parse(historyDurability), historySyncIntervalMs,
+                            new ChatHistory.Compaction(historyCompress, historyBlockBytes, historyCompactionIntervalMs,
+                                    historyMaxAgeMs, historyPeerMaxBytes, historyPeerMaxMessages, historyMaxTotalBytes)))
+                    .setHistoryReplay(historyReplay)
+                    .setSyncMaxBackfill(syncMaxBackfill)
+                    .setGossip(new GossipRouter.Settings(gossipTtl, gossipFanout,
+                            gossipDedupCapacity, gossipDedupWindowMs))
+                    .setMaxAutoConnections(discoveryMaxConnections)
+                    .setMembership(new Membership.Settings(membershipMulticastGroup, membershipMulticastPort,
+                            membershipAnnounceIntervalMs, membershipProbeIntervalMs, membershipProbeTimeoutMs,
+                            membershipIndirectProbes, membershipSuspectTimeoutMs))
+                    .setConnect(new ConnectionManager.Settings(connectTimeoutMs, connectHandshakeTimeoutMs,
+                            connectReconnectInitialMs, connectReconnectMaxMs))
+                    .setFiles(new FileTransfer.Settings(filePort, fileChunkBytes, fileWindow, fileDirectory,
+                            fileRetries, fileOutbox))
+                    .setRooms(initialRooms)
+                    .setOrderWindowMillis(orderWindowMs)
+                    .setFlow(new FlowControl.Settings(flowPeerRate, flowPeerBurst, flowGlobalRate, flowGlobalBurst,
+                            flowWindow, flowMaxHeld, flowMaxMessageBytes))
+                    .setDataDir(Paths.get(dataDir));
+            peer = new Peer(userName, port, config, this::onMessageReceived);
+            peer.getMetrics().gauge("ui_messages_buffered", "Mensagens nos buffers da UI (todas as salas)",
+                    () -> rooms.values().stream()
+                            .mapToLong(r -> Math.min(r.messages().lastSeq(), r.messages().capacity())).sum());
+            peer.getMetrics().counter("ui_messages_total", "Mensagens adicionadas aos buffers da UI", messagesAdded::get);
+            peer.getMetrics().gauge("ui_stream_subscribers", "Navegadores conectados ao stream SSE",
+                    () -> rooms.values().stream().mapToLong(r -> r.stream().subscribers()).sum());
+            peer.getMetrics().gauge("ui_rooms", "Salas assinadas", rooms::size);
             peer.start();
+            statusTimer.scheduleWithFixedDelay(this::publishStatus, 0, STATUS_INTERVAL_MS, TimeUnit.MILLISECONDS);
         } catch (IOException e) {
             e.printStackTrace();
             addMessage("[ERRO CRÍTICO] Falha ao iniciar o Peer na porta " + port);
         }
     }
 
+    /**
+     * Fecha o Peer ao desligar a aplicação, gravando o histórico que ainda estiver na fila.
+     */
+    @PreDestroy
+    private void shutdown() {
+        statusTimer.shutdownNow();
+        if (peer != null) {
+            peer.close();
+        }
+        for (Room room : rooms.values()) {
+            room.stream().close();
+        }
+        pusher.shutdownNow();
+    }
+
     /**
      * NOVO: Inicia o processo de descoberta de peers na rede.
      */
@@ -45,45 +326,312 @@ public class ChatService {
 
     /**
      * Método chamado pelo Peer sempre que uma nova mensagem (chat ou status) é recebida.
+     * Vai para o buffer da sala dela, sem o prefixo; a de uma sala que não está
+     * aberta aqui fica na sala padrão com o prefixo.
      */
     public void onMessageReceived(String message) {
-        messages.add(message);
+        Room room = rooms.get(RoomRouter.roomOf(message));
+        if (room == null) {
+            add(rooms.get(RoomRouter.DEFAULT_ROOM), message);
+        } else {
+            add(room, RoomRouter.untag(message));
+        }
     }
 
     /**
      * Adiciona uma mensagem diretamente à lista (usado para erros de sistema).
      */
     public void addMessage(String message) {
-        messages.add(message);
+        add(rooms.get(RoomRouter.DEFAULT_ROOM), message);
+    }
+
+    private void add(Room room, String message) {
+        room.messages().add(message);
+        messagesAdded.incrementAndGet();
+        room.stream().publish();
     }
 
     /**
      * Envia uma mensagem de chat para a rede.
      */
     public void sendMessage(String message) {
+        sendMessage(RoomRouter.DEFAULT_ROOM, message);
+    }
+
+    /**
+     * Envia uma mensagem para a sala; quem escreve numa sala passa a assiná-la.
+     */
+    public void sendMessage(String room, String message) {
+        String name = RoomRouter.normalize(room);
+        joinRoom(name);
         if (peer != null) {
-            peer.broadcastMessage(message);
+            peer.broadcastMessage(name, message);
+        }
+    }
+
+    /**
+     * Assina a sala: abre o buffer dela e avisa os vizinhos.
+     */
+    public void joinRoom(String room) {
+        String name = RoomRouter.normalize(room);
+        openRoom(name);
+        if (peer != null) {
+            peer.joinRoom(name);
+        }
+    }
+
+    /**
+     * Sai da sala: as mensagens dela deixam de chegar aqui e o buffer é descartado.
+     */
+    public void leaveRoom(String room) {
+        String name = RoomRouter.normalize(room);
+        if (RoomRouter.DEFAULT_ROOM.equals(name)) {
+            throw new IllegalArgumentException("A sala " + name + " não pode ser deixada");
+        }
+        if (peer != null) {
+            peer.leaveRoom(name);
+        }
+        Room removed = rooms.remove(name);
+        if (removed != null) {
+            removed.stream().close();
+        }
+    }
+
+    private void openRoom(String name) {
+        rooms.computeIfAbsent(name, n -> {
+            MessageBuffer buffer = new MessageBuffer(messagesCapacity);
+            MessageStream roomStream = new MessageStream(buffer, pusher);
+            List<PeerConnectionStats> peers = lastPeers;
+            List<FileTransfer.TransferView> transfers = lastTransfers;
+            if (peers != null) roomStream.publishEvent(PEERS_EVENT, peers);
+            if (transfers != null) roomStream.publishEvent(TRANSFERS_EVENT, transfers);
+            return new Room(buffer, roomStream);
+        });
+    }
+
+    /**
+     * Manda pelos streams SSE a lista de peers e a de transferências quando elas
+     * mudam, como eventos nomeados. Assim a página não consulta /peers e /send-file
+     * por conta própria.
+     */
+    private void publishStatus() {
+        try {
+            List<PeerConnectionStats> peers = getPeerStats();
+            if (!peers.equals(lastPeers)) {
+                lastPeers = peers;
+                rooms.values().forEach(r -> r.stream().publishEvent(PEERS_EVENT, peers));
+            }
+            List<FileTransfer.TransferView> transfers = getTransfers();
+            if (!transfers.equals(lastTransfers)) {
+                lastTransfers = transfers;
+                rooms.values().forEach(r -> r.stream().publishEvent(TRANSFERS_EVENT, transfers));
+            }
+        } catch (RuntimeException e) {
+            // Uma falha aqui não pode cancelar as próximas execuções
+            Log.error("ui.falha_estado", "erro", e.getMessage());
         }
     }
 
     /**
-     * ALTERADO: Tenta se conectar a outro peer e retorna o status da operação.
+     * Nomes das salas abertas na UI, com a padrão primeiro.
+     */
+    public List<String> getRoomNames() {
+        List<String> names = new ArrayList<>(rooms.keySet());
+        names.remove(RoomRouter.DEFAULT_ROOM);
+        Collections.sort(names);
+        names.add(0, RoomRouter.DEFAULT_ROOM);
+        return names;
+    }
+
+    /**
+     * Salas assinadas e a tabela de interesse dos vizinhos.
+     */
+    public RoomRouter.RoomsView getRooms() {
+        return peer != null ? peer.getRooms() : new RoomRouter.RoomsView(getRoomNames(), Map.of());
+    }
+
+    /**
+     * Inicia a conexão com outro peer sem esperar por ela: o resultado aparece na sala
+     * principal como mensagem de sistema, e o peer novo chega pelo evento {@code peers}.
      * @param host O IP do peer de destino.
      * @param port A porta do peer de destino.
-     * @return true se a conexão foi bem-sucedida, false caso contrário.
+     * @return true se a tentativa foi iniciada, false se o peer não foi inicializado.
      */
     public boolean connectToPeer(String host, int port) {
+        if (peer == null) {
+            return false;
+        }
+        peer.connectAsync(host, port).whenComplete((remotePeerId, error) -> {
+            if (error == null) {
+                addMessage("[SISTEMA] Conexão com " + host + ":" + port + " estabelecida.");
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                addMessage("[SISTEMA] Falha ao conectar com " + host + ":" + port + ": " + cause.getMessage());
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Busca uma página do histórico com um peer, anterior ao cursor informado.
+     * @param remotePeerId UUID do peer remoto.
+     * @param before Cursor da página já exibida (null = últimas mensagens).
+     * @param limit Tamanho da página.
+     */
+    public ChatHistory.HistoryPage loadHistoryPage(String remotePeerId, Long before, int limit) {
+        if (peer == null) {
+            return new ChatHistory.HistoryPage(List.of(), 0, false);
+        }
+        requirePeerId(remotePeerId);
+        return peer.loadHistoryBefore(remotePeerId, before == null ? Long.MAX_VALUE : before, limit);
+    }
+
+    /**
+     * O id vira nome de diretório: só aceitamos UUIDs na forma canônica.
+     * @throws IllegalArgumentException se não for (a API responde 400).
+     */
+    private static void requirePeerId(String remotePeerId) {
+        if (!PeerIdentity.isValid(remotePeerId)) {
+            throw new IllegalArgumentException("Id de peer inválido: " + remotePeerId);
+        }
+    }
+
+    /**
+     * Busca mensagens no histórico que contenham todos os termos da consulta.
+     * @param query Termos da busca (sem diferenciar maiúsculas e acentos).
+     * @param remotePeerId UUID do peer, ou null para buscar em todas as conversas.
+     * @param limit Máximo de resultados.
+     */
+    public List<ChatHistory.SearchHit> search(String query, String remotePeerId, int limit) {
+        if (peer == null) {
+            return Collections.emptyList();
+        }
+        if (remotePeerId != null) {
+            requirePeerId(remotePeerId);
+        }
+        return peer.search(query, remotePeerId, limit);
+    }
+
+    /**
+     * Refaz o índice de busca a partir do histórico em disco.
+     * @return Quantidade de conversas reindexadas.
+     */
+    public int rebuildSearchIndex() {
+        return peer != null ? peer.rebuildSearchIndex() : 0;
+    }
+
+    /**
+     * Números do gossip: entregas, duplicatas descartadas e latência de propagação.
+     */
+    public GossipRouter.GossipStats getGossipStats() {
+        return peer != null ? peer.getGossipStats() : null;
+    }
+
+    /**
+     * Métricas do nó no formato texto do Prometheus.
+     */
+    public String getMetricsText() {
+        return peer != null ? peer.getMetrics().scrape() : "";
+    }
+
+    /**
+     * Oferece um arquivo da pasta de envio (p2p.file.outbox) a um peer conectado.
+     * @param remotePeerId UUID do peer de destino.
+     * @param name Nome do arquivo, relativo à pasta de envio.
+     */
+    public FileTransfer.TransferView sendFile(String remotePeerId, String name) throws IOException {
+        if (peer == null) {
+            throw new IllegalStateException("Peer não inicializado");
+        }
+        requirePeerId(remotePeerId);
+        return peer.sendFile(remotePeerId, name);
+    }
+
+    /**
+     * Aceita uma oferta de arquivo recebida; o download começa em seguida.
+     */
+    public FileTransfer.TransferView acceptFile(String transferId) {
+        if (peer == null) {
+            throw new IllegalStateException("Peer não inicializado");
+        }
+        return peer.acceptFile(transferId);
+    }
+
+    /**
+     * Recusa uma oferta de arquivo recebida.
+     */
+    public FileTransfer.TransferView declineFile(String transferId) {
+        if (peer == null) {
+            throw new IllegalStateException("Peer não inicializado");
+        }
+        return peer.declineFile(transferId);
+    }
+
+    /**
+     * Transferências de arquivo (enviadas e recebidas) com o andamento de cada uma.
+     */
+    public List<FileTransfer.TransferView> getTransfers() {
+        return peer != null ? peer.getTransfers() : Collections.emptyList();
+    }
+
+    /**
+     * Membros da rede conhecidos pela descoberta, com o estado de cada um.
+     */
+    public List<Membership.MemberView> getMembers() {
+        return peer != null ? peer.getMembers() : Collections.emptyList();
+    }
+
+    /**
+     * Estado das conexões ativas, incluindo a profundidade das filas de saída.
+     */
+    public List<PeerConnectionStats> getPeerStats() {
         if (peer != null) {
-            // Retorna o resultado booleano vindo diretamente da camada P2P.
-            return peer.connectToPeer(host, port);
+            return peer.getConnectionStats();
         }
-        return false; // Retorna falso se o peer não foi inicializado.
+        return Collections.emptyList();
     }
 
     /**
-     * Retorna a lista de mensagens para ser exibida na UI.
+     * Retorna as mensagens em memória para serem exibidas na UI.
      */
     public List<String> getMessages() {
-        return Collections.unmodifiableList(messages);
+        return messages.tail(messages.capacity());
+    }
+
+    /**
+     * Mensagens com sequência a partir de {@code fromSeq}, sem copiar o buffer inteiro.
+     */
+    public List<MessageBuffer.Entry> getMessages(long fromSeq, int limit) {
+        return messages.range(fromSeq, limit);
+    }
+
+    /**
+     * Mensagens da sala com sequência a partir de {@code fromSeq}; cada sala tem a sua sequência.
+     */
+    public List<MessageBuffer.Entry> getMessages(String room, long fromSeq, int limit) {
+        return room(room).messages().range(fromSeq, limit);
+    }
+
+    public int getMessagesCapacity() {
+        return messages.capacity();
+    }
+
+    /**
+     * Stream SSE com as mensagens a partir de {@code fromSeq} e as que chegarem depois.
+     */
+    public SseEmitter subscribe(long fromSeq) {
+        return stream.subscribe(fromSeq);
+    }
+
+    public SseEmitter subscribe(String room, long fromSeq) {
+        return room(room).stream().subscribe(fromSeq);
+    }
+
+    private Room room(String name) {
+        Room room = rooms.get(RoomRouter.normalize(name));
+        if (room == null) {
+            throw new IllegalArgumentException("Sala não assinada: " + name);
+        }
+        return room;
     }
 }
\ No newline at end of file
@@ -0,0 +1,88 @@
+package org.unifor.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Buffer circular de tamanho fixo com as mensagens exibidas na UI.
+ *
+ * Cada mensagem recebe um número de sequência crescente (a partir de 1); quando
+ * o buffer enche, a mais antiga é sobrescrita. A escrita não usa lock: quem
+ * adiciona reserva a sequência com um incremento atômico e publica a entrada no
+ * slot {@code seq % capacidade}. A leitura copia só o trecho pedido.
+ */
+public final class MessageBuffer {
+
+    /**
+     * Mensagem com o seu número de sequência no buffer.
+     */
+    public record Entry(long seq, String message) {
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    // Próxima sequência a ser reservada
+    private final AtomicLong next = new AtomicLong(1);
+
+    /**
+     * @param capacity arredondada para a próxima potência de 2
+     */
+    public MessageBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adiciona a mensagem e retorna a sequência atribuída a ela. O(1), sem lock.
+     */
+    public long add(String message) {
+        long seq = next.getAndIncrement();
+        slots.setRelease((int) (seq & mask), new Entry(seq, message));
+        return seq;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Sequência da última mensagem reservada (0 se o buffer está vazio).
+     */
+    public long lastSeq() {
+        return next.get() - 1;
+    }
+
+    /**
+     * Até {@code max} entradas com sequência {@code >= fromSeq}, em ordem. O que já
+     * foi sobrescrito é pulado; a leitura para na primeira sequência reservada mas
+     * ainda não publicada, então o resultado nunca tem buracos no fim e pode ser
+     * continuado a partir de {@code última seq + 1}.
+     */
+    public List<Entry> range(long fromSeq, int max) {
+        long end = next.get();
+        long start = Math.max(fromSeq, Math.max(1, end - capacity()));
+        List<Entry> out = new ArrayList<>((int) Math.min(max, Math.max(0, end - start)));
+        for (long seq = start; seq < end && out.size() < max; seq++) {
+            Entry e = slots.getAcquire((int) (seq & mask));
+            if (e == null || e.seq() < seq) break; // reservada, ainda não publicada
+            if (e.seq() == seq) out.add(e);
+            // e.seq() > seq: já sobrescrita por uma volta mais nova
+        }
+        return out;
+    }
+
+    /**
+     * As últimas {@code max} mensagens, da mais antiga para a mais nova.
+     */
+    public List<String> tail(int max) {
+        List<Entry> entries = range(lastSeq() - max + 1, max);
+        List<String> out = new ArrayList<>(entries.size());
+        for (Entry e : entries) {
+            out.add(e.message());
+        }
+        return out;
+    }
+}
@@ -0,0 +1,197 @@
+package org.unifor.service;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Envia as mensagens novas do {@link MessageBuffer} para os navegadores via
+ * Server-Sent Events.
+ *
+ * Quem publica (as threads do Peer) só agenda o envio; cada assinante tem o seu
+ * escritor (uma tarefa por vez no executor de envio) que lê o buffer a partir do
+ * cursor dele e escreve na conexão. Assim um navegador lento nunca segura o event
+ * loop da rede nem os outros navegadores, e uma rajada de mensagens vira um único
+ * ciclo de envio. A fila de cada assinante é o próprio buffer circular: quem fica
+ * para trás mais que a capacidade dele, ou com um envio parado há mais de
+ * {@link #SEND_STALL_NANOS}, é encerrado, e o navegador reconecta do Last-Event-ID.
+ *
+ * O mesmo escritor manda os eventos nomeados de estado ({@link #publishEvent}),
+ * como a lista de peers: de cada nome só vale o último valor, então um navegador
+ * lento recebe o estado atual e não a fila de mudanças.
+ */
+final class MessageStream {
+
+    // Máximo de entradas lidas do buffer por assinante em cada volta
+    private static final int BATCH = 256;
+    // Um envio parado há mais que isto (navegador que não lê) encerra o assinante
+    private static final long SEND_STALL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final MessageBuffer buffer;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    // Último valor de cada evento de estado, enviado a quem assina depois
+    private final Map<String, Object> status = new ConcurrentHashMap<>();
+    private final Executor pusher;
+
+    private static final class Subscriber {
+        final SseEmitter emitter;
+        // Pedidos de envio pendentes: só quem passa de 0 para 1 agenda o escritor
+        final AtomicInteger pending = new AtomicInteger();
+        // Eventos de estado ainda não enviados, pelo nome (o valor novo substitui o antigo)
+        final Map<String, Object> events = new ConcurrentHashMap<>();
+        // Próxima sequência a enviar (só o escritor altera)
+        volatile long nextSeq;
+        // System.nanoTime() do início do envio em curso, 0 quando parado
+        volatile long sendingSince;
+        volatile boolean closed;
+
+        Subscriber(SseEmitter emitter, long nextSeq) {
+            this.emitter = emitter;
+            this.nextSeq = nextSeq;
+        }
+    }
+
+    /**
+     * @param pusher executor das tarefas de envio; um envio bloqueado ocupa uma
+     *               thread dele, então deve ter uma thread (virtual) por tarefa
+     */
+    MessageStream(MessageBuffer buffer, Executor pusher) {
+        this.buffer = buffer;
+        this.pusher = pusher;
+    }
+
+    /**
+     * Abre um stream que começa na sequência {@code fromSeq} (o que já saiu do
+     * buffer é pulado) e segue com as mensagens novas.
+     */
+    SseEmitter subscribe(long fromSeq) {
+        // Sem timeout: o navegador mantém a conexão aberta e reconecta sozinho se ela cair
+        SseEmitter emitter = new SseEmitter(0L);
+        Subscriber subscriber = new Subscriber(emitter, Math.max(fromSeq, oldestSeq()));
+        emitter.onCompletion(() -> remove(subscriber));
+        emitter.onTimeout(() -> remove(subscriber));
+        emitter.onError(e -> remove(subscriber));
+        subscribers.add(subscriber);
+        // Depois de entrar na lista: um publishEvent concorrente não é perdido nem sobrescrito
+        status.forEach(subscriber.events::putIfAbsent);
+        schedule(subscriber);
+        return emitter;
+    }
+
+    int subscribers() {
+        return subscribers.size();
+    }
+
+    /**
+     * Avisa que há mensagens novas no buffer. Não bloqueia.
+     */
+    void publish() {
+        long now = System.nanoTime();
+        long oldest = oldestSeq();
+        for (Subscriber s : subscribers) {
+            long since = s.sendingSince;
+            if (s.nextSeq < oldest || since != 0 && now - since > SEND_STALL_NANOS) {
+                drop(s);
+            } else {
+                schedule(s);
+            }
+        }
+    }
+
+    /**
+     * Manda a todos os assinantes o evento {@code name} com {@code data} em JSON,
+     * no lugar de um ainda não enviado com o mesmo nome. Não bloqueia.
+     */
+    void publishEvent(String name, Object data) {
+        status.put(name, data);
+        for (Subscriber s : subscribers) {
+            s.events.put(name, data);
+            schedule(s);
+        }
+    }
+
+    /**
+     * Encerra os streams abertos; o executor de envio é de quem criou o stream.
+     */
+    void close() {
+        for (Subscriber s : subscribers) {
+            remove(s);
+            s.emitter.complete();
+        }
+    }
+
+    // Primeira sequência que o buffer ainda guarda; antes dela o assinante perderia mensagens
+    private long oldestSeq() {
+        return buffer.lastSeq() - buffer.capacity() + 1;
+    }
+
+    private void schedule(Subscriber s) {
+        if (s.pending.getAndIncrement() == 0) {
+            pusher.execute(() -> drain(s));
+        }
+    }
+
+    private void remove(Subscriber s) {
+        s.closed = true;
+        subscribers.remove(s);
+    }
+
+    /**
+     * Tira o assinante da lista e encerra o stream fora da thread de quem chamou:
+     * o complete espera o envio em curso, que pode estar bloqueado.
+     */
+    private void drop(Subscriber s) {
+        if (s.closed) return;
+        remove(s);
+        pusher.execute(s.emitter::complete);
+    }
+
+    private void drain(Subscriber s) {
+        int missed = 1;
+        do {
+            if (!s.closed) send(s);
+            // O que foi publicado durante o envio faz outra volta, sempre no mesmo escritor
+            missed = s.pending.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void send(Subscriber s) {
+        try {
+            List<MessageBuffer.Entry> entries;
+            do {
+                entries = buffer.range(s.nextSeq, BATCH);
+                for (MessageBuffer.Entry e : entries) {
+                    if (s.closed) return;
+                    s.sendingSince = System.nanoTime();
+                    s.emitter.send(SseEmitter.event()
+                            .id(String.valueOf(e.seq()))
+                            .data(e, MediaType.APPLICATION_JSON));
+                    s.nextSeq = e.seq() + 1;
+                }
+            } while (entries.size() == BATCH);
+            for (Map.Entry<String, Object> e : s.events.entrySet()) {
+                if (s.closed) return;
+                // Se chegou um valor mais novo, ele é o que vai (nesta volta ou na próxima)
+                if (!s.events.remove(e.getKey(), e.getValue())) continue;
+                s.sendingSince = System.nanoTime();
+                s.emitter.send(SseEmitter.event()
+                        .name(e.getKey())
+                        .data(e.getValue(), MediaType.APPLICATION_JSON));
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Navegador fechou a aba ou a conexão caiu
+            remove(s);
+            s.emitter.completeWithError(e);
+        } finally {
+            s.sendingSince = 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CausalOrderTest {
+
+    private static final String A = "3f2504e0-4f89-11d3-9a0c-0305e82c3301";
+    private static final String B = "6fa459ea-ee8a-3ca4-894e-db77e160355e";
+
+    private final AtomicLong wall = new AtomicLong(1_700_000_000_000L);
+    private final Hlc clock = new Hlc(wall::get);
+    private final Metrics metrics = new Metrics();
+    private final List<String> shown = new ArrayList<>();
+
+    private ChatMessage at(String sender, long millis, String text) {
+        return new ChatMessage(sender, -1, Hlc.fromMillis(wall.get() + millis), text);
+    }
+
+    private long late() {
+        String prefix = "p2p_order_late_total ";
+        return metrics.scrape().lines().filter(l -> l.startsWith(prefix))
+                .mapToLong(l -> Long.parseLong(l.substring(prefix.length()))).sum();
+    }
+
+    @Test
+    void messagesInsideTheWindowLeaveInHlcOrder() {
+        CausalOrder order = new CausalOrder(60_000, shown::add, clock, metrics);
+        order.offer(at(B, 30, "c"));
+        order.offer(at(A, 10, "a"));
+        order.offer(at(B, 20, "b"));
+        assertTrue(shown.isEmpty());
+        assertEquals(3, order.size());
+        order.releaseAll();
+        assertEquals(List.of("a", "b", "c"), shown);
+        assertEquals(0, late());
+    }
+
+    @Test
+    void localMessageReleasesTheHeldOnesFirst() {
+        CausalOrder order = new CausalOrder(60_000, shown::add, clock, metrics);
+        order.offer(at(B, -5, "recebida"));
+        order.local(new ChatMessage(A, 1, clock.now(), "minha"));
+        assertEquals(List.of("recebida", "minha"), shown);
+        assertEquals(0, order.size());
+    }
+
+    @Test
+    void messageBehindTheLastShownIsReleasedAndCounted() {
+        CausalOrder order = new CausalOrder(0, shown::add, clock, metrics);
+        order.offer(at(A, 20, "nova"));
+        order.offer(at(B, 10, "atrasada"));
+        assertEquals(List.of("nova", "atrasada"), shown);
+        assertEquals(1, late());
+    }
+
+    @Test
+    void messageFromTheFutureDoesNotMakeTheNextOnesLate() {
+        CausalOrder order = new CausalOrder(0, shown::add, clock, metrics);
+        order.offer(at(B, 3_600_000, "futuro"));
+        order.offer(at(A, 10, "agora"));
+        assertEquals(List.of("futuro", "agora"), shown);
+        assertEquals(0, late());
+    }
+}
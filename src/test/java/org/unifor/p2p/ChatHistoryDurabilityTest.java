@@ -0,0 +1,53 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatHistoryDurabilityTest {
+
+    private static final String LOCAL = "3f2504e0-4f89-11d3-9a0c-0305e82c3301";
+    private static final List<String> REMOTES = List.of(
+            "6fa459ea-ee8a-3ca4-894e-db77e160355e",
+            "16fd2706-8baf-433b-82eb-8c7fada847da",
+            "886313e1-3b8a-5372-9b90-0c9aee199e5d");
+
+    @TempDir
+    Path dataDir;
+
+    @Test
+    void broadcastWritesAreConfirmedTogether() throws Exception {
+        ChatHistory.Settings settings = new ChatHistory.Settings(1 << 20, ChatHistory.Durability.ALWAYS, 1000);
+        ChatHistory history = ChatHistory.open(dataDir, LOCAL, settings, new Metrics());
+        try {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            ChatMessage written = history.appendOutbox(Hlc.fromMillis(1000), "[Ana]: oi", writes);
+            for (String remote : REMOTES) {
+                history.saveOutgoing(remote, written, writes);
+            }
+            // Só enfileira: a espera é uma só, no fim
+            assertEquals(1 + REMOTES.size(), writes.size());
+            history.awaitDurable(writes);
+            assertTrue(writes.stream().allMatch(CompletableFuture::isDone));
+
+            assertEquals(1, history.outboxMax());
+            assertEquals("[Ana]: oi", history.readOutbox(0, 10).get(0).text());
+            for (String remote : REMOTES) {
+                assertEquals(List.of("[Ana]: oi"), history.loadHistory(remote));
+            }
+
+            // A mesma seq não é gravada de novo na conversa
+            List<CompletableFuture<Void>> again = new ArrayList<>();
+            history.saveOutgoing(REMOTES.get(0), written, again);
+            assertTrue(again.isEmpty());
+        } finally {
+            history.close();
+        }
+    }
+}
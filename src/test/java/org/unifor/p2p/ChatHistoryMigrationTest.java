@@ -0,0 +1,82 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatHistoryMigrationTest {
+
+    private static final String LOCAL = "3f2504e0-4f89-11d3-9a0c-0305e82c3301";
+    private static final String REMOTE = "6fa459ea-ee8a-3ca4-894e-db77e160355e";
+
+    @TempDir
+    Path dataDir;
+
+    private Path userDir() {
+        return dataDir.resolve("chat_history").resolve(LOCAL);
+    }
+
+    private ChatHistory open() throws Exception {
+        return ChatHistory.open(dataDir, LOCAL, ChatHistory.Settings.DEFAULT, new Metrics());
+    }
+
+    @Test
+    void importsLegacyTextFile() throws Exception {
+        Files.createDirectories(userDir());
+        Files.write(userDir().resolve(REMOTE + ".txt"), List.of("Ana: oi", "Bia: olá", "Ana: tudo bem?"));
+
+        ChatHistory history = open();
+        try {
+            assertEquals(List.of("Ana: oi", "Bia: olá", "Ana: tudo bem?"), history.loadHistory(REMOTE));
+            assertFalse(Files.exists(userDir().resolve(REMOTE + ".txt")));
+            assertTrue(Files.exists(userDir().resolve(REMOTE + ".txt.migrated")));
+        } finally {
+            history.close();
+        }
+
+        // Reaberto, o arquivo já importado não é lido de novo
+        history = open();
+        try {
+            assertEquals(3, history.loadHistory(REMOTE).size());
+        } finally {
+            history.close();
+        }
+    }
+
+    @Test
+    void convertsInlineTextLogToReferences() throws Exception {
+        // Log da conversa no formato anterior: o texto dentro de cada registro
+        Path conversation = userDir().resolve(REMOTE);
+        HistoryLog legacy = HistoryLog.open(conversation, 1 << 20);
+        byte[] text = "Ana: mensagem antiga".getBytes(StandardCharsets.UTF_8);
+        byte[] sequenced = "Bia: resposta".getBytes(StandardCharsets.UTF_8);
+        legacy.append(List.of(
+                ByteBuffer.allocate(1 + text.length).put((byte) 0).put(text).array(),
+                ByteBuffer.allocate(10 + sequenced.length).put((byte) 1).put((byte) 1).putLong(1).put(sequenced).array()));
+        legacy.close();
+
+        ChatHistory history = open();
+        try {
+            assertEquals(List.of("Ana: mensagem antiga", "Bia: resposta"), history.loadHistory(REMOTE));
+            assertTrue(Files.exists(conversation.resolve("refs")));
+            history.saveMessage(REMOTE, "Ana: nova");
+            assertEquals(List.of("Ana: mensagem antiga", "Bia: resposta", "Ana: nova"), history.loadHistory(REMOTE));
+        } finally {
+            history.close();
+        }
+
+        history = open();
+        try {
+            assertEquals(List.of("Ana: mensagem antiga", "Bia: resposta", "Ana: nova"), history.loadHistory(REMOTE));
+        } finally {
+            history.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversationSyncTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void firstMessageBecomesTheStartingPoint() throws Exception {
+        ConversationSync sync = ConversationSync.open(dir);
+        assertEquals(-1, sync.remoteWatermark());
+        assertEquals(ConversationSync.Receive.NEW, sync.receive(10));
+        assertEquals(10, sync.remoteWatermark());
+        assertNull(sync.gap());
+        sync.close();
+    }
+
+    @Test
+    void baselineIsOnlyTakenOnce() throws Exception {
+        ConversationSync sync = ConversationSync.open(dir);
+        sync.baseline(5);
+        sync.baseline(50);
+        assertEquals(5, sync.remoteWatermark());
+        sync.close();
+    }
+
+    @Test
+    void gapIsReportedAndFilled() throws Exception {
+        ConversationSync sync = ConversationSync.open(dir);
+        sync.baseline(0);
+        assertEquals(ConversationSync.Receive.NEW, sync.receive(1));
+        assertEquals(ConversationSync.Receive.GAP, sync.receive(4));
+        assertEquals(ConversationSync.Receive.GAP, sync.receive(5));
+        assertArrayEquals(new long[]{2, 3}, sync.gap());
+        assertEquals(1, sync.remoteWatermark());
+
+        assertEquals(ConversationSync.Receive.GAP, sync.receive(2));
+        assertArrayEquals(new long[]{3, 3}, sync.gap());
+        assertEquals(ConversationSync.Receive.NEW, sync.receive(3));
+        assertEquals(5, sync.remoteWatermark());
+        assertNull(sync.gap());
+        sync.close();
+    }
+
+    @Test
+    void duplicatesAreDetected() throws Exception {
+        ConversationSync sync = ConversationSync.open(dir);
+        sync.baseline(0);
+        sync.receive(1);
+        sync.receive(3);
+        assertEquals(ConversationSync.Receive.DUPLICATE, sync.receive(1));
+        assertEquals(ConversationSync.Receive.DUPLICATE, sync.receive(3));
+        sync.close();
+    }
+
+    @Test
+    void skipOnlyAppliesWhenTouchingTheWatermark() throws Exception {
+        ConversationSync sync = ConversationSync.open(dir);
+        sync.baseline(0);
+        sync.receive(1);
+        // Há uma lacuna (2) antes do intervalo: ele volta na resposta ao pedido
+        assertFalse(sync.skip(3, 5));
+        assertEquals(1, sync.remoteWatermark());
+        // Intervalo já coberto pelo watermark
+        assertFalse(sync.skip(0, 1));
+
+        sync.receive(7);
+        assertTrue(sync.skip(2, 6));
+        assertEquals(7, sync.remoteWatermark());
+        assertNull(sync.gap());
+        sync.close();
+    }
+
+    @Test
+    void skipBeforeAStartingPointIsIgnored() throws Exception {
+        ConversationSync sync = ConversationSync.open(dir);
+        assertFalse(sync.skip(1, 5));
+        assertEquals(-1, sync.remoteWatermark());
+        sync.close();
+    }
+
+    @Test
+    void persistedStateSurvivesReopen() throws Exception {
+        ConversationSync sync = ConversationSync.open(dir);
+        sync.baseline(0);
+        sync.receive(1);
+        sync.receive(2);
+        sync.markLocal(9);
+        sync.persist(sync.snapshot());
+        // Um retrato mais antigo não faz o estado gravado regredir
+        sync.persist(new long[]{1, 3});
+        sync.close();
+
+        sync = ConversationSync.open(dir);
+        assertEquals(2, sync.remoteWatermark());
+        assertEquals(9, sync.maxLocal());
+        assertFalse(sync.markLocal(9));
+        assertTrue(sync.markLocal(10));
+        sync.close();
+    }
+}
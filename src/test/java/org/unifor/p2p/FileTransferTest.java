@@ -0,0 +1,97 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTransferTest {
+
+    private static final String PEER = "3f2504e0-4f89-11d3-9a0c-0305e82c3301";
+
+    private static final FileTransfer.Listener IGNORE = new FileTransfer.Listener() {
+        @Override
+        public void onOffered(FileTransfer.TransferView transfer) {
+        }
+
+        @Override
+        public void onReceiving(FileTransfer.TransferView transfer) {
+        }
+
+        @Override
+        public void onCompleted(FileTransfer.TransferView transfer) {
+        }
+
+        @Override
+        public void onFailed(FileTransfer.TransferView transfer) {
+        }
+    };
+
+    @TempDir
+    Path dataDir;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private FileTransfer files;
+
+    @AfterEach
+    void close() {
+        if (files != null) files.close();
+        scheduler.shutdownNow();
+    }
+
+    private String offerFile() throws Exception {
+        files = new FileTransfer(FileTransfer.Settings.DEFAULT, dataDir, new Metrics(), IGNORE);
+        files.start(scheduler);
+        Files.writeString(dataDir.resolve("outbox").resolve("a.txt"), "conteúdo");
+        return files.offer(PEER, "Ana", "a.txt").transfer().id();
+    }
+
+    // Manda o pedido e devolve quantos bytes o remoto respondeu antes de fechar
+    private int request(String id, long next, int credit) throws Exception {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("127.0.0.1", files.port()))) {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer out = ByteBuffer.allocate(2 + bytes.length + 12)
+                    .putShort((short) bytes.length).put(bytes).putLong(next).putInt(credit).flip();
+            while (out.hasRemaining()) socket.write(out);
+            ByteBuffer in = ByteBuffer.allocate(1024);
+            int total = 0;
+            for (int n; (n = socket.read(in)) > 0; ) {
+                total += n;
+                // Um bloco chegou: basta para saber que o pedido foi atendido
+                if (total >= 16) break;
+            }
+            return total;
+        }
+    }
+
+    @Test
+    void requestWithoutCreditIsRejected() throws Exception {
+        String id = offerFile();
+        assertEquals(0, request(id, 0, 0));
+        assertEquals(0, request(id, 0, -5));
+        assertEquals(FileTransfer.State.OFFERED, files.transfers().get(0).state());
+    }
+
+    @Test
+    void requestWithNegativeChunkIsRejected() throws Exception {
+        String id = offerFile();
+        assertEquals(0, request(id, -1, 8));
+        assertEquals(FileTransfer.State.OFFERED, files.transfers().get(0).state());
+    }
+
+    @Test
+    void validRequestReceivesTheFirstChunk() throws Exception {
+        String id = offerFile();
+        assertTrue(request(id, 0, 8) >= 16);
+    }
+}
@@ -0,0 +1,124 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameTest {
+
+    private static final String PEER = "3f2504e0-4f89-11d3-9a0c-0305e82c3301";
+
+    // Mesmo frame sem os últimos bytes, como chegaria de um peer com bug ou malicioso
+    private static Frame cut(Frame frame, int bytes) {
+        byte[] payload = frame.payload();
+        return new Frame(frame.type(), Arrays.copyOf(payload, payload.length - bytes));
+    }
+
+    @Test
+    void helloRoundTrip() throws Exception {
+        Frame hello = Frame.hello(3, PEER, "Ana", 42, -1, Map.of("geral", 1));
+        assertEquals(3, hello.helloVersion());
+        assertEquals(PEER, hello.helloPeerId());
+        assertEquals("Ana", hello.helloUserName());
+        assertEquals(42, hello.helloOutboxMax());
+        assertEquals(-1, hello.helloKnownOfYou());
+        assertEquals(Map.of("geral", 1), hello.rooms());
+    }
+
+    @Test
+    void oversizedUserNameIsCutWithoutBreakingTheFrame() throws Exception {
+        // 'ã' tem 2 bytes: o limite de 65.535 cai no meio de um caractere
+        String name = "ã".repeat(40_000);
+        Frame hello = Frame.hello(3, PEER, name, 42, 7);
+        assertEquals(PEER, hello.helloPeerId());
+        assertEquals(name.substring(0, 32_767), hello.helloUserName());
+        assertEquals(42, hello.helloOutboxMax());
+        assertEquals(7, hello.helloKnownOfYou());
+    }
+
+    @Test
+    void helloFromOldPeerHasNoSyncFields() throws Exception {
+        // Peers antigos mandam só versão, id e nome
+        Frame hello = cut(Frame.hello(3, PEER, "Ana", 42, 7), 16);
+        assertEquals("Ana", hello.helloUserName());
+        assertEquals(-1, hello.helloOutboxMax());
+        assertEquals(-1, hello.helloKnownOfYou());
+        assertTrue(hello.rooms().isEmpty());
+    }
+
+    @Test
+    void messageRoundTrip() throws Exception {
+        ChatMessage sent = new ChatMessage(PEER, 9, Hlc.fromMillis(1_700_000_000_000L) + 3, "bom dia");
+        Frame frame = Frame.message(4, 1, sent);
+        assertEquals(4, frame.gossipTtl());
+        assertEquals(1, frame.gossipHops());
+        ChatMessage received = frame.message();
+        assertEquals(PEER, received.senderId());
+        assertEquals(9, received.seq());
+        assertEquals(sent.hlc(), received.hlc());
+        assertEquals("bom dia", received.text());
+    }
+
+    @Test
+    void syncBatchRoundTrip() throws Exception {
+        List<ChatMessage> sent = List.of(
+                new ChatMessage(PEER, 1, Hlc.fromMillis(1000), "um"),
+                new ChatMessage(PEER, 2, Hlc.fromMillis(2000), "dois"));
+        List<ChatMessage> received = Frame.syncBatch(sent).batchMessages();
+        assertEquals(2, received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(sent.get(i).seq(), received.get(i).seq());
+            assertEquals(sent.get(i).hlc(), received.get(i).hlc());
+            assertEquals(sent.get(i).text(), received.get(i).text());
+        }
+    }
+
+    @Test
+    void syncDataRoundTrip() throws Exception {
+        List<ChatHistory.SequencedMessage> sent = List.of(
+                new ChatHistory.SequencedMessage(5, "cinco"), new ChatHistory.SequencedMessage(6, "seis"));
+        assertEquals(sent, Frame.syncData(sent).syncMessages());
+    }
+
+    @Test
+    void truncatedFixedFieldsThrowProtocolException() {
+        assertThrows(ProtocolException.class, () -> cut(Frame.chat(1, ""), 1).seq());
+        assertThrows(ProtocolException.class, () -> cut(Frame.chat(1, ""), 1).text());
+        assertThrows(ProtocolException.class, () -> cut(Frame.ack(1), 4).seq());
+        assertThrows(ProtocolException.class, () -> cut(Frame.skip(1, 2), 1).syncTo());
+        assertThrows(ProtocolException.class, () -> cut(Frame.credit(8), 1).credits());
+        assertThrows(ProtocolException.class, () -> cut(Frame.ping(1, true), 1).pingTimestamp());
+        assertThrows(ProtocolException.class, () -> cut(Frame.fileOffer("t", "a.txt", 10, 4096, 9000), 7).fileOfferId());
+    }
+
+    @Test
+    void truncatedStringsThrowProtocolException() {
+        Frame hello = Frame.hello(3, PEER, "Ana", 1, 1);
+        // Corta dentro do nome: o tamanho declarado passa do fim do payload
+        assertThrows(ProtocolException.class, () -> cut(hello, 18).helloUserName());
+        Frame gossip = Frame.gossip(PEER, 1, 3, 0, 0, "");
+        assertThrows(ProtocolException.class, () -> cut(gossip, 1).gossipOriginId());
+    }
+
+    @Test
+    void truncatedMessageThrowsProtocolException() {
+        Frame frame = Frame.message(1, 0, new ChatMessage(PEER, 1, Hlc.fromMillis(1000), "texto"));
+        // O texto tem tamanho declarado: qualquer corte é detectado
+        for (int bytes = 1; bytes <= frame.payload().length; bytes++) {
+            Frame partial = cut(frame, bytes);
+            assertThrows(ProtocolException.class, partial::message);
+        }
+    }
+
+    @Test
+    void truncatedBatchThrowsDataFormatException() {
+        Frame batch = Frame.syncBatch(List.of(new ChatMessage(PEER, 1, Hlc.fromMillis(1000), "texto")));
+        assertThrows(DataFormatException.class, cut(batch, 4)::batchMessages);
+    }
+}
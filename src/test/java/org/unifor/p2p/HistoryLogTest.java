@@ -0,0 +1,140 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryLogTest {
+
+    @TempDir
+    Path dir;
+
+    private static List<byte[]> records(int from, int count) {
+        List<byte[]> out = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            out.add(("registro " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+
+    private static List<String> texts(List<byte[]> payloads) {
+        return payloads.stream().map(p -> new String(p, StandardCharsets.UTF_8)).toList();
+    }
+
+    private Path activeSegment() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".log")).max(Path::compareTo).orElseThrow();
+        }
+    }
+
+    @Test
+    void tornWriteIsTruncatedOnOpen() throws Exception {
+        HistoryLog log = HistoryLog.open(dir, 1 << 20);
+        log.append(records(0, 10));
+        log.sync();
+        log.close();
+
+        // Queda no meio de uma escrita: cabeçalho de um registro de 100 bytes e só parte dele
+        Files.write(activeSegment(), new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 'x', 'y'}, StandardOpenOption.APPEND);
+        long torn = Files.size(activeSegment());
+
+        log = HistoryLog.open(dir, 1 << 20);
+        assertEquals(10, log.nextSeq());
+        assertTrue(Files.size(activeSegment()) < torn);
+        log.append(records(10, 5));
+        assertEquals(texts(records(0, 15)), texts(log.readAll()));
+        log.close();
+
+        log = HistoryLog.open(dir, 1 << 20);
+        assertEquals(15, log.nextSeq());
+        log.close();
+    }
+
+    @Test
+    void corruptLastRecordIsTruncated() throws Exception {
+        HistoryLog log = HistoryLog.open(dir, 1 << 20);
+        log.append(records(0, 3));
+        log.close();
+
+        // Último byte do payload trocado: o CRC não confere
+        Path segment = activeSegment();
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 0x55;
+        Files.write(segment, bytes);
+
+        log = HistoryLog.open(dir, 1 << 20);
+        assertEquals(2, log.nextSeq());
+        assertEquals(texts(records(0, 2)), texts(log.readAll()));
+        log.close();
+    }
+
+    @Test
+    void readsAcrossSegments() throws Exception {
+        HistoryLog log = HistoryLog.open(dir, 256);
+        for (int i = 0; i < 100; i += 10) {
+            log.append(records(i, 10));
+        }
+        assertTrue(log.activeBase() > 0);
+        assertEquals(texts(records(37, 20)), texts(log.read(37, 20)));
+        assertEquals(texts(records(0, 100)), texts(log.readAll()));
+        log.close();
+
+        log = HistoryLog.open(dir, 256);
+        assertEquals(100, log.nextSeq());
+        assertEquals(texts(records(90, 10)), texts(log.read(90, 50)));
+        log.close();
+    }
+
+    @Test
+    void compressedSegmentsReadTheSameRecords() throws Exception {
+        HistoryLog log = HistoryLog.open(dir, 512);
+        for (int i = 0; i < 200; i += 10) {
+            log.append(records(i, 10));
+        }
+        long saved = 0;
+        for (HistoryLog.Sealed s : log.sealed()) {
+            saved += log.compress(s.base(), 128);
+        }
+        assertTrue(saved > 0);
+        assertTrue(log.sealed().stream().allMatch(HistoryLog.Sealed::compressed));
+        assertEquals(texts(records(0, 200)), texts(log.readAll()));
+        assertEquals(texts(records(65, 30)), texts(log.read(65, 30)));
+        log.close();
+
+        // Reaberto, o log continua dos segmentos comprimidos
+        log = HistoryLog.open(dir, 512);
+        assertEquals(200, log.nextSeq());
+        assertEquals(texts(records(0, 200)), texts(log.readAll()));
+        log.append(records(200, 1));
+        assertEquals(texts(records(200, 1)), texts(log.read(200, 10)));
+        log.close();
+    }
+
+    @Test
+    void dropOldestMovesTheFirstSeq() throws Exception {
+        HistoryLog log = HistoryLog.open(dir, 256);
+        for (int i = 0; i < 60; i += 10) {
+            log.append(records(i, 10));
+        }
+        long dropped = log.dropOldest();
+        assertTrue(dropped > 0);
+        assertEquals(dropped, log.firstSeq());
+        assertEquals(texts(records((int) dropped, 60 - (int) dropped)), texts(log.readAll()));
+        log.close();
+    }
+
+    @Test
+    void rejectsInvalidSegmentSize() {
+        assertThrows(IllegalArgumentException.class, () -> HistoryLog.open(dir, 0));
+        assertThrows(IllegalArgumentException.class, () -> HistoryLog.open(dir, HistoryLog.MAX_SEGMENT_BYTES + 1));
+    }
+}
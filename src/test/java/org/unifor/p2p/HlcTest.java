@@ -0,0 +1,55 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HlcTest {
+
+    private final AtomicLong wall = new AtomicLong(1_700_000_000_000L);
+    private final Hlc clock = new Hlc(wall::get);
+
+    @Test
+    void nowIsMonotonicWithAStoppedWallClock() {
+        long first = clock.now();
+        long second = clock.now();
+        assertEquals(Hlc.fromMillis(wall.get()), first);
+        assertEquals(first + 1, second);
+        assertEquals(wall.get(), Hlc.millis(second));
+    }
+
+    @Test
+    void nowFollowsTheWallClock() {
+        clock.now();
+        wall.addAndGet(5);
+        assertEquals(Hlc.fromMillis(wall.get()), clock.now());
+    }
+
+    @Test
+    void updateMovesPastTheRemoteValue() {
+        long remote = Hlc.fromMillis(wall.get() + 1000) + 7;
+        assertEquals(remote, clock.update(remote));
+        // Uma mensagem escrita depois de ver a remota fica depois dela
+        assertTrue(clock.now() > remote);
+    }
+
+    @Test
+    void updateIgnoresRemoteFarInTheFuture() {
+        long remote = Hlc.fromMillis(wall.get() + 3_600_000);
+        long stamped = clock.update(remote);
+        assertTrue(stamped < remote);
+        assertEquals(wall.get(), Hlc.millis(stamped));
+        assertTrue(clock.now() < remote);
+    }
+
+    @Test
+    void ceilingCoversTheAllowedDrift() {
+        long ceiling = clock.ceiling();
+        long withinDrift = Hlc.fromMillis(wall.get() + 60_000) + 5;
+        assertTrue(withinDrift <= ceiling);
+        assertEquals(withinDrift, clock.update(withinDrift));
+        assertTrue(Hlc.fromMillis(wall.get() + 60_001) > ceiling);
+    }
+}
@@ -0,0 +1,112 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Vários {@link Peer} na mesma JVM, como no simulador de cluster: portas livres,
+ * um diretório de dados por nó e multicast desligado.
+ */
+class PeerClusterTest {
+
+    @TempDir
+    Path root;
+
+    private final List<Peer> peers = new ArrayList<>();
+    private final List<Queue<String>> shown = new ArrayList<>();
+    private final List<Integer> ports = new ArrayList<>();
+
+    @AfterEach
+    void closePeers() {
+        peers.forEach(Peer::close);
+    }
+
+    private void startPeers(int count) throws Exception {
+        Membership.Settings m = Membership.Settings.DEFAULT;
+        Membership.Settings noMulticast = new Membership.Settings("", 0, m.announceIntervalMillis(),
+                m.probeIntervalMillis(), m.probeTimeoutMillis(), m.indirectProbes(), m.suspectTimeoutMillis());
+        for (int i = 0; i < count; i++) {
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            Queue<String> messages = new ConcurrentLinkedQueue<>();
+            PeerConfig config = new PeerConfig()
+                    .setHistoryReplay(0)
+                    .setMaxAutoConnections(0)
+                    .setMembership(noMulticast)
+                    .setDataDir(root.resolve("peer-" + i));
+            Peer peer = new Peer("no-" + i, port, config, messages::add);
+            peer.start();
+            peers.add(peer);
+            shown.add(messages);
+            ports.add(port);
+        }
+    }
+
+    private void connect(int from, int to) {
+        peers.get(from).connectAsync("127.0.0.1", ports.get(to)).join();
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) fail("Tempo esgotado esperando: " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    private String peerId(int node) throws Exception {
+        return PeerIdentity.getPeerId(root.resolve("peer-" + node), "no-" + node);
+    }
+
+    private boolean handshakeDone() {
+        return peers.stream().allMatch(p -> p.getConnectionStats().stream().allMatch(c -> c.userName() != null));
+    }
+
+    private static boolean contains(Queue<String> messages, String text) {
+        return messages.stream().anyMatch(m -> m.endsWith(text));
+    }
+
+    @Test
+    void eachNodeKeepsItsOwnIdentityAndHistory() throws Exception {
+        startPeers(2);
+        String first = peerId(0);
+        String second = peerId(1);
+        assertTrue(PeerIdentity.isValid(first));
+        assertTrue(PeerIdentity.isValid(second));
+        assertNotEquals(first, second);
+        assertTrue(Files.isDirectory(root.resolve("peer-0").resolve("chat_history").resolve(first)));
+        assertTrue(Files.isDirectory(root.resolve("peer-1").resolve("chat_history").resolve(second)));
+    }
+
+    @Test
+    void broadcastReachesNodesTwoHopsAway() throws Exception {
+        startPeers(3);
+        connect(0, 1);
+        connect(1, 2);
+        await(() -> peers.get(1).getConnectionStats().size() == 2 && handshakeDone(), "handshake");
+        // O HELLO chega antes de a conexão entrar no envio ao vivo (depois da sincronização)
+        Thread.sleep(500);
+
+        peers.get(0).broadcastMessage("olá do nó 0");
+        await(() -> contains(shown.get(1), "olá do nó 0"), "entrega no vizinho");
+        await(() -> contains(shown.get(2), "olá do nó 0"), "entrega a dois saltos");
+        String origin = peerId(0);
+        assertTrue(peers.get(2).getConnectionStats().stream().noneMatch(c -> origin.equals(c.peerId())),
+                "o nó 2 não tem conexão direta com o 0");
+    }
+}
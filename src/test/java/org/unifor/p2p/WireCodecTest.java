@@ -0,0 +1,93 @@
+package org.unifor.p2p;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WireCodecTest {
+
+    private final WireCodec codec = new WireCodec();
+    private final List<Frame> frames = new ArrayList<>();
+
+    private static byte[] encode(Frame... frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Frame f : frames) {
+            ByteBuffer buf = ByteBuffer.allocate(f.encodedLength());
+            f.writeTo(buf);
+            out.write(buf.array(), 0, buf.position());
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] header(int type, int size) {
+        return ByteBuffer.allocate(Frame.HEADER_SIZE).put((byte) type).putInt(size).array();
+    }
+
+    @Test
+    void decodesFrameSplitAcrossReads() throws Exception {
+        codec.upgrade();
+        byte[] wire = encode(Frame.chat(7, "olá"), Frame.ack(7));
+        // Um byte por leitura: o cabeçalho e o payload chegam aos pedaços
+        for (byte b : wire) {
+            codec.decode(ByteBuffer.wrap(new byte[]{b}), frames::add);
+        }
+        assertEquals(2, frames.size());
+        assertEquals(Frame.Type.CHAT, frames.get(0).type());
+        assertEquals(7, frames.get(0).seq());
+        assertEquals("olá", frames.get(0).text());
+        assertEquals(Frame.Type.ACK, frames.get(1).type());
+    }
+
+    @Test
+    void truncatedFrameWaitsForTheRest() throws Exception {
+        codec.upgrade();
+        byte[] wire = encode(Frame.chat(1, "mensagem"));
+        codec.decode(ByteBuffer.wrap(wire, 0, wire.length - 3), frames::add);
+        assertTrue(frames.isEmpty());
+        codec.decode(ByteBuffer.wrap(wire, wire.length - 3, 3), frames::add);
+        assertEquals(1, frames.size());
+        assertEquals("mensagem", frames.get(0).text());
+    }
+
+    @Test
+    void switchesToFramesInTheMiddleOfABuffer() throws Exception {
+        byte[] line = "/id:abc\r\n".getBytes(StandardCharsets.UTF_8);
+        byte[] frame = encode(Frame.chat(1, "oi"));
+        ByteBuffer data = ByteBuffer.allocate(line.length + frame.length).put(line).put(frame).flip();
+        codec.decode(data, f -> {
+            frames.add(f);
+            if (f.type() == Frame.Type.LINE) codec.upgrade();
+        });
+        assertEquals(2, frames.size());
+        assertEquals("/id:abc", frames.get(0).text());
+        assertEquals("oi", frames.get(1).text());
+    }
+
+    @Test
+    void rejectsOversizedFrame() {
+        codec.upgrade();
+        ByteBuffer data = ByteBuffer.wrap(header(Frame.Type.CHAT.code, WireCodec.MAX_FRAME_SIZE + 1));
+        assertThrows(ProtocolException.class, () -> codec.decode(data, frames::add));
+    }
+
+    @Test
+    void rejectsNegativeSizeAndUnknownType() {
+        codec.upgrade();
+        assertThrows(ProtocolException.class,
+                () -> codec.decode(ByteBuffer.wrap(header(Frame.Type.CHAT.code, -1)), frames::add));
+        WireCodec other = new WireCodec();
+        other.upgrade();
+        assertThrows(ProtocolException.class, () -> other.decode(ByteBuffer.wrap(header(99, 0)), frames::add));
+        WireCodec line = new WireCodec();
+        line.upgrade();
+        assertThrows(ProtocolException.class,
+                () -> line.decode(ByteBuffer.wrap(header(Frame.Type.LINE.code, 0)), frames::add));
+    }
+}
@@ -0,0 +1,57 @@
+package org.unifor.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageBufferTest {
+
+    private static List<Long> seqs(List<MessageBuffer.Entry> entries) {
+        return entries.stream().map(MessageBuffer.Entry::seq).toList();
+    }
+
+    @Test
+    void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(8, new MessageBuffer(5).capacity());
+        assertEquals(8, new MessageBuffer(8).capacity());
+        assertEquals(2, new MessageBuffer(0).capacity());
+    }
+
+    @Test
+    void sequencesStartAtOne() {
+        MessageBuffer buffer = new MessageBuffer(4);
+        assertEquals(0, buffer.lastSeq());
+        assertTrue(buffer.range(1, 10).isEmpty());
+        assertEquals(1, buffer.add("a"));
+        assertEquals(2, buffer.add("b"));
+        assertEquals(2, buffer.lastSeq());
+        assertEquals(List.of("a", "b"), buffer.tail(10));
+    }
+
+    @Test
+    void overwrittenEntriesAreSkipped() {
+        MessageBuffer buffer = new MessageBuffer(4);
+        for (int i = 1; i <= 10; i++) {
+            buffer.add("m" + i);
+        }
+        // Só as 4 últimas continuam no anel
+        assertEquals(List.of(7L, 8L, 9L, 10L), seqs(buffer.range(1, 100)));
+        assertEquals(List.of("m9", "m10"), buffer.tail(2));
+        assertEquals(List.of("m7", "m8", "m9", "m10"), buffer.tail(100));
+    }
+
+    @Test
+    void rangeCanBeContinuedFromTheLastSeq() {
+        MessageBuffer buffer = new MessageBuffer(16);
+        for (int i = 1; i <= 10; i++) {
+            buffer.add("m" + i);
+        }
+        List<MessageBuffer.Entry> first = buffer.range(3, 4);
+        assertEquals(List.of(3L, 4L, 5L, 6L), seqs(first));
+        long next = first.get(first.size() - 1).seq() + 1;
+        assertEquals(List.of(7L, 8L, 9L, 10L), seqs(buffer.range(next, 100)));
+        assertTrue(buffer.range(11, 100).isEmpty());
+    }
+}